@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.bench;
+
+import org.apache.commons.cli.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+
+/**
+ * Runs the benchmarks once per requested thread count with the GC profiler attached, writing one JSON
+ * result file per thread count so runs against different builds or dependency versions can be compared.
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) {
+
+        CommandLineParser parser = new DefaultParser();
+        Options options = new Options();
+        options.addOption( "h","help", false, "Help for BenchmarkRunner" );
+        options.addOption( "b", "benchmarks", true, "Regular expression selecting benchmarks, defaults to all (optional)" );
+        options.addOption( "t", "threads", true, "Comma separated thread counts, defaults to 1 and all cores (optional)" );
+        options.addOption( "o", "out", true, "Directory for JSON results, defaults to results (optional)" );
+        options.addOption( "p", "param", true, "Benchmark parameter override as name=v1,v2 (optional, repeatable)" );
+
+        try {
+
+            CommandLine line = parser.parse( options, args );
+
+            if(line.hasOption( "help" )) {
+                HelpFormatter formatter = new HelpFormatter();
+                formatter.printHelp( "BenchmarkRunner", options );
+                return;
+            }
+
+            String include = line.getOptionValue("b", "com.salesforce.shield.platformencryption.bench.*");
+            String threadCounts = line.getOptionValue("t", "1," + Runtime.getRuntime().availableProcessors());
+            File out = new File(line.getOptionValue("o", "results"));
+            if (!out.isDirectory() && !out.mkdirs()) throw new ParseException("Unable to create result directory " + out);
+
+            for (String threadCount : threadCounts.split(",")) {
+                int threads = Integer.parseInt(threadCount.trim());
+                File result = new File(out, "results-t" + threads + ".json");
+
+                ChainedOptionsBuilder builder = new OptionsBuilder()
+                        .include(include)
+                        .threads(threads)
+                        .addProfiler(GCProfiler.class)
+                        .resultFormat(ResultFormatType.JSON)
+                        .result(result.getPath());
+
+                if (line.hasOption("p")) {
+                    for (String param : line.getOptionValues("p")) {
+                        int equals = param.indexOf('=');
+                        if (equals < 0) throw new ParseException("Parameter overrides look like name=v1,v2");
+                        builder.param(param.substring(0, equals), param.substring(equals + 1).split(","));
+                    }
+                }
+
+                new Runner(builder.build()).run();
+                System.out.println("Results for " + threads + " thread(s) written to: " + result);
+            }
+
+        } catch( ParseException e ) {
+            System.out.println( "ERROR: " + e.getMessage() );
+        } catch (RunnerException e) {
+            e.printStackTrace();
+        }
+
+    }
+
+}
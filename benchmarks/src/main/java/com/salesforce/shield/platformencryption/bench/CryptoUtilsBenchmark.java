@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.bench;
+
+import com.salesforce.shield.platformencryption.util.CryptoException;
+import com.salesforce.shield.platformencryption.util.CryptoUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CryptoUtilsBenchmark {
+
+    @Param({"32", "1024", "65536"})
+    public int payloadSize;
+
+    private final CryptoUtils cryptoUtils = new CryptoUtils();
+    private byte[] key;
+    private byte[] payload;
+    private String ciphertext;
+
+    @Setup
+    public void setup() throws CryptoException {
+        key = cryptoUtils.generateAESKey();
+        payload = new byte[payloadSize];
+        new Random(42).nextBytes(payload);
+        ciphertext = cryptoUtils.encrypt(key, payload);
+    }
+
+    @Benchmark
+    public String encrypt() throws CryptoException {
+        return cryptoUtils.encrypt(key, payload);
+    }
+
+    @Benchmark
+    public String decrypt() throws CryptoException {
+        return cryptoUtils.decrypt(key, ciphertext);
+    }
+
+    @Benchmark
+    public byte[] generateAESKey() throws CryptoException {
+        return cryptoUtils.generateAESKey();
+    }
+
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.bench;
+
+import com.salesforce.shield.platformencryption.util.CryptoException;
+import com.salesforce.shield.platformencryption.util.CryptoUtils;
+import org.openjdk.jmh.annotations.*;
+
+import javax.crypto.SecretKey;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the String/hex CryptoUtils API with the caller-supplied buffer API for CBC and GCM.
+ * Run with the GC profiler to see the difference in gc.alloc.rate.norm.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CryptoUtilsBufferBenchmark {
+
+    @Param({"32", "1024", "65536"})
+    public int payloadSize;
+
+    private final CryptoUtils cryptoUtils = new CryptoUtils();
+    private byte[] key;
+    private SecretKey secretKey;
+    private byte[] payload;
+    private String hexCiphertext;
+    private byte[] cbcCiphertext;
+    private byte[] gcmCiphertext;
+
+    @State(Scope.Thread)
+    public static class Buffers {
+        ByteBuffer in;
+        ByteBuffer out;
+
+        @Setup
+        public void setup(CryptoUtilsBufferBenchmark benchmark) {
+            in = ByteBuffer.allocate(CryptoUtils.gcmOutputSize(benchmark.payloadSize) + 16);
+            out = ByteBuffer.allocate(CryptoUtils.gcmOutputSize(benchmark.payloadSize) + 16);
+        }
+    }
+
+    @Setup
+    public void setup() throws CryptoException {
+        key = cryptoUtils.generateAESKey();
+        secretKey = cryptoUtils.secretKey(key);
+        payload = new byte[payloadSize];
+        new Random(42).nextBytes(payload);
+        hexCiphertext = cryptoUtils.encrypt(key, payload);
+        cbcCiphertext = new byte[CryptoUtils.cbcOutputSize(payloadSize)];
+        cryptoUtils.encrypt(secretKey, payload, 0, payloadSize, cbcCiphertext, 0);
+        gcmCiphertext = new byte[CryptoUtils.gcmOutputSize(payloadSize)];
+        cryptoUtils.encryptGcm(secretKey, null, payload, 0, payloadSize, gcmCiphertext, 0);
+    }
+
+    @Benchmark
+    public String hexEncrypt() throws CryptoException {
+        return cryptoUtils.encrypt(key, payload);
+    }
+
+    @Benchmark
+    public String hexDecrypt() throws CryptoException {
+        return cryptoUtils.decrypt(key, hexCiphertext);
+    }
+
+    @Benchmark
+    public int cbcEncryptBuffer(Buffers buffers) throws CryptoException {
+        buffers.in.clear();
+        buffers.in.put(payload).flip();
+        buffers.out.clear();
+        return cryptoUtils.encrypt(secretKey, buffers.in, buffers.out);
+    }
+
+    @Benchmark
+    public int cbcDecryptBuffer(Buffers buffers) throws CryptoException {
+        buffers.in.clear();
+        buffers.in.put(cbcCiphertext).flip();
+        buffers.out.clear();
+        return cryptoUtils.decrypt(secretKey, buffers.in, buffers.out);
+    }
+
+    @Benchmark
+    public int gcmEncryptBuffer(Buffers buffers) throws CryptoException {
+        buffers.in.clear();
+        buffers.in.put(payload).flip();
+        buffers.out.clear();
+        return cryptoUtils.encryptGcm(secretKey, null, buffers.in, buffers.out);
+    }
+
+    @Benchmark
+    public int gcmDecryptBuffer(Buffers buffers) throws CryptoException {
+        buffers.in.clear();
+        buffers.in.put(gcmCiphertext).flip();
+        buffers.out.clear();
+        return cryptoUtils.decryptGcm(secretKey, null, buffers.in, buffers.out);
+    }
+
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.bench;
+
+import com.salesforce.shield.platformencryption.util.CryptoUtils;
+import com.salesforce.shield.platformencryption.util.FanOutWrapper;
+import com.salesforce.shield.platformencryption.util.JweWrapper;
+import org.openjdk.jmh.annotations.*;
+
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wrapping one key for many certificates: one FanOutWrapper call against a full JWE per certificate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FanOutWrapperBenchmark {
+
+    @Param({"1", "5", "20"})
+    public int recipients;
+
+    private FanOutWrapper fanOutWrapper;
+    private JweWrapper[] jweWrappers;
+    private ForkJoinPool pool;
+    private String kid;
+    private byte[] key;
+
+    @Setup
+    public void setup() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        List<PublicKey> keys = new ArrayList<PublicKey>(recipients);
+        jweWrappers = new JweWrapper[recipients];
+        for (int i = 0; i < recipients; i++) {
+            keys.add(generator.generateKeyPair().getPublic());
+            jweWrappers[i] = new JweWrapper(keys.get(i));
+        }
+        pool = new ForkJoinPool();
+        fanOutWrapper = new FanOutWrapper(keys, pool);
+        kid = UUID.randomUUID().toString();
+        key = new CryptoUtils().generateAESKey();
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public String[] fanOut() throws Exception {
+        return fanOutWrapper.wrap(kid, key);
+    }
+
+    @Benchmark
+    public String[] perRecipient() throws Exception {
+        String[] jwes = new String[recipients];
+        for (int i = 0; i < recipients; i++) jwes[i] = jweWrappers[i].wrap(kid, key);
+        return jwes;
+    }
+
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.bench;
+
+import com.salesforce.shield.platformencryption.util.CryptoUtils;
+import com.salesforce.shield.platformencryption.util.JweWrapper;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.security.KeyPairGenerator;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JweWrapperBenchmark {
+
+    @Param({"2048", "3072", "4096"})
+    public int rsaKeySize;
+
+    private JweWrapper jweWrapper;
+    private String kid;
+    private byte[] key;
+
+    @State(Scope.Thread)
+    public static class Output {
+        final ByteBuffer buffer = ByteBuffer.allocate(4096);
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(rsaKeySize);
+        jweWrapper = new JweWrapper(generator.generateKeyPair().getPublic());
+        kid = UUID.randomUUID().toString();
+        key = new CryptoUtils().generateAESKey();
+    }
+
+    @Benchmark
+    public String wrap() throws Exception {
+        return jweWrapper.wrap(kid, key);
+    }
+
+    @Benchmark
+    public ByteBuffer wrapIntoBuffer(Output output) throws Exception {
+        output.buffer.clear();
+        jweWrapper.wrap(kid, key, output.buffer);
+        return output.buffer;
+    }
+
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.bench;
+
+import com.salesforce.shield.platformencryption.util.KeyMaterialCache;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Looking up a DEK by kid in the off-heap KeyMaterialCache against a ConcurrentHashMap of heap byte[]s.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = "-XX:MaxDirectMemorySize=4g")
+@Threads(4)
+public class KeyMaterialCacheBenchmark {
+
+    @Param({"10000", "1000000"})
+    public int entries;
+
+    private String[] kids;
+    private KeyMaterialCache cache;
+    private ConcurrentHashMap<String, byte[]> map;
+
+    @Setup
+    public void setup() {
+        cache = new KeyMaterialCache(entries, 700, 0, TimeUnit.SECONDS);
+        map = new ConcurrentHashMap<String, byte[]>(entries * 2);
+        kids = new String[entries / 2];
+        byte[] key = new byte[32];
+        char[] jwe = new char[690];
+        Arrays.fill(jwe, 'A');
+        for (int i = 0; i < kids.length; i++) {
+            kids[i] = "kid-" + i;
+            Arrays.fill(key, (byte) i);
+            cache.put(kids[i], key, new String(jwe));
+            map.put(kids[i], key.clone());
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        cache.close();
+    }
+
+    @State(Scope.Thread)
+    public static class Buffer {
+        final byte[] key = new byte[KeyMaterialCache.MAX_KEY_LENGTH];
+    }
+
+    @Benchmark
+    public int offHeap(Buffer buffer) {
+        int length = cache.getKey(kids[ThreadLocalRandom.current().nextInt(kids.length)], buffer.key);
+        Arrays.fill(buffer.key, (byte) 0);
+        return length;
+    }
+
+    @Benchmark
+    public int heap(Buffer buffer) {
+        byte[] key = map.get(kids[ThreadLocalRandom.current().nextInt(kids.length)]);
+        System.arraycopy(key, 0, buffer.key, 0, key.length);
+        Arrays.fill(buffer.key, (byte) 0);
+        return key.length;
+    }
+
+}
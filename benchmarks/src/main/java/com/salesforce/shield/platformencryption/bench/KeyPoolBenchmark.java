@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.bench;
+
+import com.salesforce.shield.platformencryption.util.KeyPool;
+import com.salesforce.shield.platformencryption.util.KeyWrappingService;
+import org.openjdk.jmh.annotations.*;
+
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Issuing a burst of keys with random kids from KeyWrappingService, with and without a KeyPool behind it.  Each
+ * iteration starts from a full pool and issues one burst, so this is the latency a burst sees while the pool
+ * lasts, not the sustained rate, which is the refill rate either way.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, batchSize = 1000)
+@Measurement(iterations = 10, batchSize = 1000)
+@Fork(1)
+public class KeyPoolBenchmark {
+
+    @Param({"false", "true"})
+    public boolean pooled;
+
+    private KeyWrappingService service;
+    private KeyPool pool;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        PublicKey wrappingKey = generator.generateKeyPair().getPublic();
+        service = new KeyWrappingService(wrappingKey, 1, 1000);
+        if (pooled) {
+            pool = new KeyPool(wrappingKey, new byte[32], 1000, 2000);
+            service.setKeyPool(pool);
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void fill() throws InterruptedException {
+        while (pool != null && pool.size() < 2000) Thread.sleep(10);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        service.close();
+        if (pool != null) pool.close();
+    }
+
+    @Benchmark
+    public KeyWrappingService.WrappedKey generateAndWrap() throws Exception {
+        KeyWrappingService.WrappedKey wrapped = service.generateAndWrap(null).get();
+        wrapped.destroy();
+        return wrapped;
+    }
+
+}
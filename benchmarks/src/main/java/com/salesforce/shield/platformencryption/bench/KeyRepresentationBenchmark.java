@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.bench;
+
+import com.salesforce.shield.platformencryption.util.CryptoException;
+import com.salesforce.shield.platformencryption.util.CryptoUtils;
+import com.salesforce.shield.platformencryption.util.KeyRepresentation;
+import org.openjdk.jmh.annotations.*;
+
+import java.security.KeyPairGenerator;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KeyRepresentationBenchmark {
+
+    @Param({"2048", "3072", "4096"})
+    public int rsaKeySize;
+
+    private KeyRepresentation keyRepresentation;
+
+    @Setup
+    public void setup() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(rsaKeySize);
+        byte[] key = new CryptoUtils().generateAESKey();
+        keyRepresentation = new KeyRepresentation(UUID.randomUUID().toString(), key, generator.generateKeyPair().getPublic());
+    }
+
+    @Benchmark
+    public String getJwe() throws CryptoException {
+        return keyRepresentation.getJwe();
+    }
+
+    @Benchmark
+    public String representation() throws CryptoException {
+        return keyRepresentation.toJson();
+    }
+
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.bench;
+
+import com.salesforce.shield.platformencryption.util.RandomSource;
+import org.openjdk.jmh.annotations.*;
+
+import java.security.SecureRandom;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-thread RandomSource DRBGs against one shared SecureRandom and UUID.randomUUID().  Run with several
+ * thread counts (-t 1,4,8) to see the shared source stop scaling.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RandomSourceBenchmark {
+
+    //12 for a GCM IV, 16 for a CBC IV, 32 for a key
+    @Param({"12", "32"})
+    public int length;
+
+    private final SecureRandom shared = new SecureRandom();
+
+    @State(Scope.Thread)
+    public static class Buffer {
+        byte[] bytes;
+
+        @Setup
+        public void setup(RandomSourceBenchmark benchmark) {
+            bytes = new byte[benchmark.length];
+        }
+    }
+
+    @Benchmark
+    public byte[] randomSource(Buffer buffer) {
+        RandomSource.nextBytes(buffer.bytes);
+        return buffer.bytes;
+    }
+
+    @Benchmark
+    public byte[] sharedSecureRandom(Buffer buffer) {
+        shared.nextBytes(buffer.bytes);
+        return buffer.bytes;
+    }
+
+    @Benchmark
+    public String randomSourceKid() {
+        return RandomSource.kid();
+    }
+
+    @Benchmark
+    public String randomUUID() {
+        return UUID.randomUUID().toString();
+    }
+
+}
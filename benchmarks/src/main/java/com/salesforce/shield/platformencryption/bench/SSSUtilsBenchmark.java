@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.bench;
+
+import com.salesforce.shield.platformencryption.util.CryptoUtils;
+import com.salesforce.shield.platformencryption.util.SSSUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SSSUtilsBenchmark {
+
+    //n:k
+    @Param({"3:2", "5:3", "10:5", "255:128"})
+    public String scheme;
+
+    //Secrets per bulk call
+    @Param({"1000"})
+    public int batchSize;
+
+    private SSSUtils sssUtils;
+    private byte[] secret;
+    private String[] parts;
+    private List<byte[]> secrets;
+    private List<byte[][]> shareSets;
+    private ForkJoinPool pool;
+
+    @Setup
+    public void setup() throws Exception {
+        String[] nk = scheme.split(":");
+        int n = Integer.parseInt(nk[0]);
+        int k = Integer.parseInt(nk[1]);
+        sssUtils = new SSSUtils(n, k);
+        CryptoUtils cryptoUtils = new CryptoUtils();
+        secret = cryptoUtils.generateAESKey();
+        parts = Arrays.copyOf(sssUtils.split(secret), k);
+
+        secrets = new ArrayList<byte[]>(batchSize);
+        shareSets = new ArrayList<byte[][]>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            secrets.add(cryptoUtils.generateAESKey());
+            shareSets.add(Arrays.copyOf(sssUtils.splitShares(secrets.get(i)), k));
+        }
+        pool = new ForkJoinPool();
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public String[] split() {
+        return sssUtils.split(secret);
+    }
+
+    @Benchmark
+    public byte[] recover() throws Exception {
+        return sssUtils.recover(parts);
+    }
+
+    @Benchmark
+    public List<byte[][]> splitAll() {
+        return sssUtils.splitAll(secrets, pool);
+    }
+
+    @Benchmark
+    public List<byte[]> recoverAll() throws Exception {
+        return sssUtils.recoverAll(shareSets, pool);
+    }
+
+}
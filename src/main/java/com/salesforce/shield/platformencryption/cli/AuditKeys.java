@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.cli;
+
+import com.salesforce.shield.platformencryption.util.CryptoException;
+import com.salesforce.shield.platformencryption.util.JweVerifier;
+import com.salesforce.shield.platformencryption.util.KeyAuditor;
+import com.salesforce.shield.platformencryption.util.KeyStoreFile;
+import com.salesforce.shield.platformencryption.util.PrivateKeys;
+import org.apache.commons.cli.*;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.PrivateKey;
+import java.util.Map;
+
+public class AuditKeys {
+
+    public static void main(String[] args) {
+
+        CommandLineParser parser = new DefaultParser();
+        Options options = new Options();
+        options.addOption( "h","help", false, "Help for AuditKeys" );
+        options.addOption( "p", "private", true, "PEM or DER file holding the private key of the wrapping certificate (required unless -j)" );
+        options.addOption( "j", "jks", true, "PKCS12 or JKS key store holding the private key of the wrapping certificate (required unless -p)" );
+        options.addOption( "a", "alias", true, "Key entry in the -j key store, defaults to the first one (optional)" );
+        options.addOption( "w", "password", true, "Password of the -j key store and key, defaults to none (optional)" );
+        options.addOption( "d", "dir", true, "Directory of Cache-Only Key representation files to audit (required unless -s)" );
+        options.addOption( "s", "store", true, "Key store file of Cache-Only Key representations to audit (required unless -d)" );
+        options.addOption( "f", "fingerprints", true, "File of \"kid fingerprint\" lines, the hex SHA-256 of each expected DEK, to compare against (optional)" );
+        options.addOption( "o", "out", true, "Write a \"kid fingerprint\" line for every verified key to this file (optional)" );
+        options.addOption( "t", "threads", true, "Number of verifying threads, defaults to all cores (optional)" );
+
+        boolean clean = false;
+        try {
+
+            CommandLine line = parser.parse( options, args );
+
+            if(line.hasOption( "help" ) || line.getOptions().length == 0 || line.hasOption( "p" ) == line.hasOption( "j" ) || line.hasOption( "d" ) == line.hasOption( "s" )) {
+                HelpFormatter formatter = new HelpFormatter();
+                formatter.printHelp( "AuditKeys", options );
+                clean = true;
+            } else {
+
+                int threads = Runtime.getRuntime().availableProcessors();
+                if( line.hasOption( "t" ) ) {
+                    try {
+                        threads = Integer.parseInt(line.getOptionValue("t"));
+                    } catch (NumberFormatException e) {
+                        throw new ParseException("Please choose a number of threads, not " + line.getOptionValue("t"));
+                    }
+                    if (threads < 1) throw new ParseException("Please choose at least 1 thread.");
+                }
+
+                PrivateKey privateKey;
+                if( line.hasOption( "p" ) ) {
+                    privateKey = PrivateKeys.read(new File(line.getOptionValue( "p" )));
+                } else {
+                    char[] password = line.getOptionValue( "w", "" ).toCharArray();
+                    privateKey = PrivateKeys.read(new File(line.getOptionValue( "j" )), line.getOptionValue( "a" ), password);
+                }
+
+                Map<String, String> fingerprints = null;
+                if( line.hasOption( "f" ) ) {
+                    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(line.getOptionValue( "f" )), StandardCharsets.UTF_8));
+                    try {
+                        fingerprints = KeyAuditor.readFingerprints(reader);
+                    } finally {
+                        reader.close();
+                    }
+                }
+
+                KeyAuditor auditor = new KeyAuditor(new JweVerifier(privateKey), threads, fingerprints);
+                Writer out = line.hasOption( "o" ) ? new BufferedWriter(new OutputStreamWriter(new FileOutputStream(line.getOptionValue( "o" )), StandardCharsets.UTF_8)) : null;
+                KeyAuditor.Report report;
+                try {
+                    if( line.hasOption( "d" ) ) {
+                        report = auditor.audit(new File(line.getOptionValue( "d" )), out);
+                    } else {
+                        KeyStoreFile keyStore = KeyStoreFile.open(new File(line.getOptionValue( "s" )), false);
+                        try {
+                            report = auditor.audit(keyStore, out);
+                        } finally {
+                            keyStore.close();
+                        }
+                    }
+                } finally {
+                    if (out != null) out.close();
+                }
+
+                report.print(System.out);
+                clean = report.getFailed() == 0;
+            }
+
+        } catch( ParseException e ) {
+            System.out.println( "ERROR: " + e.getMessage() );
+        } catch (CryptoException e) {
+            System.out.println( "ERROR: " + e.getMessage() );
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        //A non-zero status lets scripts stop a release on a bad key
+        if (!clean) System.exit(1);
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.cli;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+
+/**
+ * Helpers for CLIs that run either in their own JVM or for a client of the WrapperDaemon, where the working
+ * directory and the console streams are the client's rather than the process's.
+ */
+final class CliSupport {
+
+    private CliSupport() {
+    }
+
+    /**
+     * @return path as given if it is absolute, otherwise resolved against dir
+     */
+    static File file(File dir, String path) {
+        File file = new File(path);
+        return file.isAbsolute() ? file : new File(dir, path);
+    }
+
+    /**
+     * @return the value of opt as an int, or defaultValue if it wasn't given
+     */
+    static int intValue(CommandLine line, String opt, int defaultValue) throws ParseException {
+        String value = line.getOptionValue(opt);
+        if (value == null) return defaultValue;
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new ParseException("Please choose a number for -" + opt + ", not " + value);
+        }
+    }
+
+    static long longValue(CommandLine line, String opt, long defaultValue) throws ParseException {
+        String value = line.getOptionValue(opt);
+        if (value == null) return defaultValue;
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new ParseException("Please choose a number for -" + opt + ", not " + value);
+        }
+    }
+
+    static double doubleValue(CommandLine line, String opt, double defaultValue) throws ParseException {
+        String value = line.getOptionValue(opt);
+        if (value == null) return defaultValue;
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw new ParseException("Please choose a number for -" + opt + ", not " + value);
+        }
+    }
+
+    static void printHelp(String command, Options options, PrintStream out) {
+        HelpFormatter formatter = new HelpFormatter();
+        PrintWriter writer = new PrintWriter(out);
+        formatter.printHelp(writer, formatter.getWidth(), command, null, options, formatter.getLeftPadding(), formatter.getDescPadding(), null);
+        writer.flush();
+    }
+
+}
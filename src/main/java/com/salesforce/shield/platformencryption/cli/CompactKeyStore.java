@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.cli;
+
+import com.salesforce.shield.platformencryption.util.KeyStoreFile;
+import org.apache.commons.cli.*;
+
+import java.io.File;
+import java.io.IOException;
+
+public class CompactKeyStore {
+
+    public static void main(String[] args) {
+
+        CommandLineParser parser = new DefaultParser();
+        Options options = new Options();
+        options.addOption( "h","help", false, "Help for CompactKeyStore" );
+        options.addOption( "ks", "keystore", true, "Key store file to rewrite with only its live records (required)" );
+
+        try {
+
+            CommandLine line = parser.parse( options, args );
+
+            if(line.hasOption( "help" ) || line.getOptions().length == 0 || !line.hasOption( "ks" )) {
+                HelpFormatter formatter = new HelpFormatter();
+                formatter.printHelp( "CompactKeyStore", options );
+            } else {
+
+                File file = new File(line.getOptionValue( "ks" ));
+                if (!file.isFile()) throw new ParseException("No key store at " + file);
+                long before = file.length();
+                KeyStoreFile keyStore = KeyStoreFile.open(file, true);
+                try {
+                    keyStore.compact();
+                    System.out.println("Compacted " + keyStore.size() + " keys in " + file + " from " + before + " to " + file.length() + " bytes");
+                } finally {
+                    keyStore.close();
+                }
+            }
+
+        } catch( ParseException e ) {
+            System.out.println( "ERROR: " + e.getMessage() );
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+    }
+}
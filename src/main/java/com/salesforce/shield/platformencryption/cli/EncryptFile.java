@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.cli;
+
+import com.salesforce.shield.platformencryption.util.CryptoException;
+import com.salesforce.shield.platformencryption.util.FileEncryptor;
+import org.apache.commons.cli.*;
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+
+public class EncryptFile {
+
+    public static void main(String[] args) {
+
+        CommandLineParser parser = new DefaultParser();
+        Options options = new Options();
+        options.addOption( "h","help", false, "Help for EncryptFile" );
+        options.addOption( "e", "encrypt", false, "Encrypt the input file" );
+        options.addOption( "d", "decrypt", false, "Decrypt the input file" );
+        options.addOption( "b", "bytes", true, "Hex Encoded 256 bit AES KEY (required)" );
+        options.addOption( "i", "in", true, "Input file (required)" );
+        options.addOption( "o", "out", true, "Output file (required)" );
+        options.addOption( "s", "chunk", true, "Chunk size in bytes when encrypting, defaults to 1MiB (optional)" );
+        options.addOption( "x", "index", true, "Decrypt only this chunk (optional)" );
+        options.addOption( "t", "threads", true, "Number of threads, defaults to all cores (optional)" );
+
+        try {
+
+            CommandLine line = parser.parse( options, args );
+
+            if(line.hasOption( "help" ) || line.getOptions().length == 0 || !line.hasOption( "b" ) || !line.hasOption( "i" ) || !line.hasOption( "o" ) || line.hasOption( "e" ) == line.hasOption( "d" )) {
+                HelpFormatter formatter = new HelpFormatter();
+                formatter.printHelp( "EncryptFile", options );
+            } else {
+
+                byte[] key;
+                try {
+                    key = Hex.decodeHex(line.getOptionValue( "b" ));
+                    if (key.length != 32) throw new CryptoException("You must specify a Hex encoded 256 bit AES key");
+                } catch (DecoderException e) {
+                    throw new CryptoException("Unable to hex decode AES key", e);
+                }
+
+                int threads = CliSupport.intValue(line, "t", Runtime.getRuntime().availableProcessors());
+                if (threads < 1) throw new ParseException("Please choose at least 1 thread.");
+                ForkJoinPool pool = new ForkJoinPool(threads);
+                FileEncryptor fileEncryptor = new FileEncryptor(key, pool);
+
+                File in = new File(line.getOptionValue( "i" ));
+                File out = new File(line.getOptionValue( "o" ));
+                long start = System.nanoTime();
+                if (line.hasOption( "e" )) {
+                    int chunkSize = CliSupport.intValue(line, "s", FileEncryptor.DEFAULT_CHUNK_SIZE);
+                    if (chunkSize < 1 || chunkSize > FileEncryptor.MAX_CHUNK_SIZE) throw new ParseException("Please choose a chunk size between 1 and " + FileEncryptor.MAX_CHUNK_SIZE + " bytes.");
+                    fileEncryptor.encrypt(in, out, chunkSize);
+                } else if (line.hasOption( "x" )) {
+                    byte[] chunk = fileEncryptor.decryptChunk(in, CliSupport.longValue(line, "x", 0));
+                    FileOutputStream chunkFile = new FileOutputStream(out);
+                    chunkFile.write(chunk);
+                    chunkFile.close();
+                } else {
+                    fileEncryptor.decrypt(in, out);
+                }
+                pool.shutdown();
+
+                long millis = (System.nanoTime() - start) / 1000000;
+                System.out.println((line.hasOption( "e" ) ? "Encrypted " : "Decrypted ") + in + " to " + out + " in " + millis + "ms");
+            }
+
+        } catch( ParseException e ) {
+            System.out.println( "ERROR: " + e.getMessage() );
+        } catch (CryptoException e) {
+            System.out.println( "ERROR: " + e.getMessage() );
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+    }
+}
@@ -0,0 +1,423 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.cli;
+
+import com.salesforce.shield.platformencryption.metrics.LatencyHistogram;
+import com.salesforce.shield.platformencryption.server.PathSegments;
+import com.salesforce.shield.platformencryption.util.CryptoException;
+import com.salesforce.shield.platformencryption.util.JweVerifier;
+import com.salesforce.shield.platformencryption.util.PrivateKeys;
+import org.apache.commons.cli.*;
+import org.apache.commons.io.IOUtils;
+import org.jose4j.json.JsonUtil;
+import org.jose4j.lang.JoseException;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays Cache-Only Key callouts against an HTTP key endpoint and reports latency percentiles and throughput.
+ *
+ * The schedule is open loop: request i is due at a fixed time from the start whatever happened to earlier
+ * requests, and its latency is measured from that due time, so a stalled server shows up as queueing delay
+ * instead of as fewer, faster samples (coordinated omission).  The time from actually sending is reported
+ * separately as service time.
+ *
+ * Responses are checked off the timed path, on a separate pool: the body must be a {"kid","jwe"} document for
+ * the requested kid, and its JWE must pass JweVerifier, decrypted when a private key is given.
+ */
+public class LoadGenerator {
+
+    private static final double[] PERCENTILES = {50, 75, 90, 99, 99.9, 99.99, 100};
+    private static final int CHECK_QUEUE = 10000;
+
+    private final String url;
+    private final List<String> kids;
+    private final Map<String, String> fingerprints;
+    private final Distribution distribution;
+    private final double rate;
+    private final int connections;
+    private final int timeoutMillis;
+    private final JweVerifier verifier;
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LatencyHistogram serviceTime = new LatencyHistogram();
+    private final ConcurrentHashMap<String, AtomicLong> responses = new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentHashMap<String, AtomicLong> problems = new ConcurrentHashMap<String, AtomicLong>();
+    private final AtomicLong verified = new AtomicLong();
+    private final AtomicLong unchecked = new AtomicLong();
+    private final AtomicLong next = new AtomicLong();
+
+    LoadGenerator(String url, List<String> kids, Map<String, String> fingerprints, Distribution distribution,
+                  double rate, int connections, int timeoutMillis, JweVerifier verifier) {
+        this.url = url.endsWith("/") ? url : url + "/";
+        this.kids = kids;
+        this.fingerprints = fingerprints;
+        this.distribution = distribution;
+        this.rate = rate;
+        this.connections = connections;
+        this.timeoutMillis = timeoutMillis;
+        this.verifier = verifier;
+    }
+
+    public static void main(String[] args) {
+
+        CommandLineParser parser = new DefaultParser();
+        Options options = new Options();
+        options.addOption( "h","help", false, "Help for LoadGenerator" );
+        options.addOption( "u", "url", true, "Key endpoint, the kid is appended as the last path segment (required)" );
+        options.addOption( "i", "kids", true, "File of kids to request, one per line, optionally followed by the hex SHA-256 fingerprint of the DEK (required)" );
+        options.addOption( "r", "rate", true, "Requests per second, defaults to 100 (optional)" );
+        options.addOption( "d", "duration", true, "Seconds to measure for, defaults to 30 (optional)" );
+        options.addOption( "W", "warmup", true, "Seconds of unmeasured load first, defaults to 5 (optional)" );
+        options.addOption( "c", "connections", true, "Concurrent connections, defaults to 16 (optional)" );
+        options.addOption( "m", "distribution", true, "uniform, zipf or burst: kids uniformly at random, Zipf distributed by their order in the file, or bursts of kids not requested before, defaults to uniform (optional)" );
+        options.addOption( "z", "zipf", true, "Zipf exponent, defaults to 1.0 (optional)" );
+        options.addOption( "b", "burst", true, "Seconds between bursts, each a burst's worth of requests due at once, defaults to 1 (optional)" );
+        options.addOption( "p", "private", true, "PEM or DER private key of the wrapping certificate, to decrypt every JWE (optional)" );
+        options.addOption( "j", "jks", true, "PKCS12 or JKS key store holding that private key instead (optional)" );
+        options.addOption( "a", "alias", true, "Key entry in the -j key store, defaults to the first one (optional)" );
+        options.addOption( "w", "password", true, "Password of the -j key store and key, defaults to none (optional)" );
+        options.addOption( "t", "timeout", true, "Connect and read timeout in milliseconds, defaults to 5000 (optional)" );
+
+        try {
+
+            CommandLine line = parser.parse( options, args );
+
+            if(line.hasOption( "help" ) || line.getOptions().length == 0 || !line.hasOption( "u" ) || !line.hasOption( "i" ) || (line.hasOption( "p" ) && line.hasOption( "j" ))) {
+                HelpFormatter formatter = new HelpFormatter();
+                formatter.printHelp( "LoadGenerator", options );
+            } else {
+
+                double rate = Double.parseDouble(line.getOptionValue( "r", "100" ));
+                double duration = Double.parseDouble(line.getOptionValue( "d", "30" ));
+                double warmup = Double.parseDouble(line.getOptionValue( "W", "5" ));
+                int connections = Integer.parseInt(line.getOptionValue( "c", "16" ));
+                int timeout = Integer.parseInt(line.getOptionValue( "t", "5000" ));
+                if (rate <= 0 || duration <= 0 || warmup < 0) throw new ParseException("Rate and duration must be positive.");
+                if (connections < 1) throw new ParseException("Please choose at least 1 connection.");
+
+                List<String> kids = new ArrayList<String>();
+                Map<String, String> fingerprints = new HashMap<String, String>();
+                readKids(new File(line.getOptionValue( "i" )), kids, fingerprints);
+                if (kids.isEmpty()) throw new ParseException("There are no kids in " + line.getOptionValue( "i" ));
+
+                String name = line.getOptionValue( "m", "uniform" );
+                Distribution distribution;
+                if ("uniform".equals(name)) {
+                    distribution = Distribution.uniform(kids.size(), rate);
+                } else if ("zipf".equals(name)) {
+                    double exponent = Double.parseDouble(line.getOptionValue( "z", "1.0" ));
+                    if (!(exponent >= 0) || Double.isInfinite(exponent)) throw new ParseException("The Zipf exponent must be a non-negative number.");
+                    distribution = Distribution.zipf(kids.size(), rate, exponent);
+                } else if ("burst".equals(name)) {
+                    double period = Double.parseDouble(line.getOptionValue( "b", "1" ));
+                    //A period that rounds to 0 ns would make every request due at once, forever
+                    if (!(period * 1e9 >= 1) || Double.isInfinite(period)) throw new ParseException("Seconds between bursts must be positive.");
+                    distribution = Distribution.burst(kids.size(), rate, period);
+                } else {
+                    throw new ParseException("Unknown distribution " + name + ", choose uniform, zipf or burst.");
+                }
+
+                JweVerifier verifier = null;
+                if( line.hasOption( "p" ) ) {
+                    verifier = new JweVerifier(PrivateKeys.read(new File(line.getOptionValue( "p" ))));
+                } else if( line.hasOption( "j" ) ) {
+                    char[] password = line.getOptionValue( "w", "" ).toCharArray();
+                    verifier = new JweVerifier(PrivateKeys.read(new File(line.getOptionValue( "j" )), line.getOptionValue( "a" ), password));
+                }
+
+                //HttpURLConnection only keeps 5 idle connections per host by default
+                System.setProperty("http.maxConnections", String.valueOf(connections));
+
+                LoadGenerator generator = new LoadGenerator(line.getOptionValue( "u" ), kids, fingerprints, distribution, rate, connections, timeout, verifier);
+                System.out.println("Requesting " + kids.size() + " kids from " + line.getOptionValue( "u" ) + ": " + name + ", "
+                        + rate + " requests/s over " + connections + " connections, " + warmup + " s warm up, " + duration + " s measured"
+                        + (verifier == null ? ", JWEs inspected" : ", JWEs decrypted"));
+                generator.run((long) (warmup * 1e9), (long) (duration * 1e9), System.out);
+            }
+
+        } catch( ParseException e ) {
+            System.out.println( "ERROR: " + e.getMessage() );
+        } catch (NumberFormatException e) {
+            System.out.println( "ERROR: " + e.getMessage() );
+        } catch (CryptoException e) {
+            System.out.println( "ERROR: " + e.getMessage() );
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+    }
+
+    static void readKids(File file, List<String> kids, Map<String, String> fingerprints) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.trim().split("\\s+");
+                if (fields[0].isEmpty() || fields[0].startsWith("#")) continue;
+                kids.add(fields[0]);
+                if (fields.length > 1) fingerprints.put(fields[0], fields[1]);
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    void run(long warmupNanos, long durationNanos, PrintStream out) throws InterruptedException {
+
+        final long start = System.nanoTime() + 100000000L;
+        final long measureFrom = start + warmupNanos;
+        final long end = measureFrom + durationNanos;
+
+        int checkers = Runtime.getRuntime().availableProcessors();
+        final ThreadPoolExecutor checks = new ThreadPoolExecutor(checkers, checkers, 0, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(CHECK_QUEUE), new RejectedExecutionHandler() {
+            @Override
+            public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+                //Checking fell behind, skip rather than slow the schedule down
+                unchecked.incrementAndGet();
+            }
+        });
+
+        Thread[] workers = new Thread[connections];
+        for (int i = 0; i < connections; i++) {
+            workers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (true) {
+                        long request = next.getAndIncrement();
+                        long due = start + distribution.dueNanos(request);
+                        if (due >= end) return;
+                        for (long wait = due - System.nanoTime(); wait > 0; wait = due - System.nanoTime()) {
+                            LockSupport.parkNanos(wait);
+                        }
+                        send(kids.get(distribution.kid(request)), due, due >= measureFrom, checks);
+                    }
+                }
+            }, "loadgenerator-" + i);
+            workers[i].start();
+        }
+        for (Thread worker : workers) worker.join();
+        long finished = System.nanoTime();
+
+        checks.shutdown();
+        checks.awaitTermination(1, TimeUnit.MINUTES);
+        report(Math.max(finished, end) - measureFrom, out);
+    }
+
+    private void send(final String kid, long due, boolean measured, ThreadPoolExecutor checks) {
+        long sent = System.nanoTime();
+        String status;
+        byte[] body = null;
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) new URL(url + PathSegments.encode(kid)).openConnection();
+            connection.setConnectTimeout(timeoutMillis);
+            connection.setReadTimeout(timeoutMillis);
+            int code = connection.getResponseCode();
+            //Read every response to the end so the connection goes back to the keep-alive cache
+            InputStream in = code < 400 ? connection.getInputStream() : connection.getErrorStream();
+            if (in != null) {
+                try {
+                    body = IOUtils.toByteArray(in);
+                } finally {
+                    in.close();
+                }
+            }
+            status = String.valueOf(code);
+        } catch (IOException e) {
+            status = e.getClass().getSimpleName();
+            if (connection != null) connection.disconnect();
+        }
+        long received = System.nanoTime();
+        if (!measured) return;
+
+        latency.record(received - due);
+        serviceTime.record(received - sent);
+        count(responses, status);
+        if (body != null && "200".equals(status)) {
+            final byte[] document = body;
+            checks.execute(new Runnable() {
+                @Override
+                public void run() {
+                    check(kid, document);
+                }
+            });
+        }
+    }
+
+    private void check(String kid, byte[] body) {
+        Map<String, Object> document;
+        try {
+            document = JsonUtil.parseJson(new String(body, StandardCharsets.UTF_8));
+        } catch (JoseException e) {
+            count(problems, "NOT_A_REPRESENTATION");
+            return;
+        }
+        if (!kid.equals(document.get("kid")) || !(document.get("jwe") instanceof String)) {
+            count(problems, "NOT_A_REPRESENTATION");
+            return;
+        }
+        String jwe = (String) document.get("jwe");
+        JweVerifier.Result result = verifier == null ? JweVerifier.inspect(kid, jwe) : verifier.verify(kid, jwe);
+        if (!result.isVerified()) {
+            count(problems, result.getProblem().name());
+            return;
+        }
+        String expected = fingerprints.get(kid);
+        if (expected != null && result.getFingerprint() != null && !expected.equalsIgnoreCase(result.getFingerprint())) {
+            count(problems, "FINGERPRINT_MISMATCH");
+            return;
+        }
+        verified.incrementAndGet();
+    }
+
+    private static void count(ConcurrentHashMap<String, AtomicLong> counts, String key) {
+        AtomicLong count = counts.get(key);
+        if (count == null) {
+            AtomicLong created = new AtomicLong();
+            count = counts.putIfAbsent(key, created);
+            if (count == null) count = created;
+        }
+        count.incrementAndGet();
+    }
+
+    private void report(long nanos, PrintStream out) {
+        double seconds = nanos / 1e9;
+        long requests = latency.getCount();
+        out.println("");
+        out.println(String.format("%d requests in %.1f s, %.1f requests/s (target %.1f)", requests, seconds, requests / seconds, rate));
+        out.println("Responses: " + new TreeMap<String, AtomicLong>(responses));
+        out.print("Checked:   " + verified.get() + " verified");
+        if (!problems.isEmpty()) out.print(", failed " + new TreeMap<String, AtomicLong>(problems));
+        if (unchecked.get() > 0) out.print(", " + unchecked.get() + " not checked");
+        out.println("");
+        out.println("");
+        out.println("Latency from the scheduled start (ms):");
+        printPercentiles(latency, out);
+        out.println("Service time from sending (ms):");
+        printPercentiles(serviceTime, out);
+    }
+
+    private static void printPercentiles(LatencyHistogram histogram, PrintStream out) {
+        StringBuilder header = new StringBuilder();
+        StringBuilder values = new StringBuilder();
+        for (double percentile : PERCENTILES) {
+            String label = percentile == 100 ? "max" : "p" + (percentile == Math.floor(percentile) ? String.valueOf((int) percentile) : String.valueOf(percentile));
+            long nanos = percentile == 100 ? histogram.getMax() : histogram.getValueAtPercentile(percentile);
+            header.append(String.format("%10s", label));
+            values.append(String.format("%10.3f", nanos / 1e6));
+        }
+        header.append(String.format("%10s", "mean"));
+        values.append(String.format("%10.3f", histogram.getMean() / 1e6));
+        out.println(header);
+        out.println(values);
+    }
+
+    /**
+     * When each request is due and which kid it asks for.
+     */
+    abstract static class Distribution {
+
+        final int kids;
+        final double rate;
+
+        Distribution(int kids, double rate) {
+            this.kids = kids;
+            this.rate = rate;
+        }
+
+        long dueNanos(long request) {
+            return (long) (request * 1e9 / rate);
+        }
+
+        abstract int kid(long request);
+
+        static Distribution uniform(int kids, double rate) {
+            return new Distribution(kids, rate) {
+                @Override
+                int kid(long request) {
+                    return ThreadLocalRandom.current().nextInt(this.kids);
+                }
+            };
+        }
+
+        //The kid at rank k (its position in the file) is requested with probability proportional to 1 / k^exponent
+        static Distribution zipf(int kids, double rate, double exponent) {
+            final double[] cumulative = new double[kids];
+            double total = 0;
+            for (int k = 0; k < kids; k++) {
+                total += 1 / Math.pow(k + 1, exponent);
+                cumulative[k] = total;
+            }
+            final double sum = total;
+            return new Distribution(kids, rate) {
+                @Override
+                int kid(long request) {
+                    double target = ThreadLocalRandom.current().nextDouble() * sum;
+                    int low = 0, high = cumulative.length - 1;
+                    while (low < high) {
+                        int middle = (low + high) >>> 1;
+                        if (cumulative[middle] < target) low = middle + 1;
+                        else high = middle;
+                    }
+                    return low;
+                }
+            };
+        }
+
+        //Every period a period's worth of requests is due at the same instant, each for a kid not requested
+        //before, in a random order, until every kid has been requested and the order starts over
+        static Distribution burst(int kids, double rate, double periodSeconds) {
+            final long period = (long) (periodSeconds * 1e9);
+            final long perBurst = Math.max(1, (long) (rate * periodSeconds));
+            List<Integer> shuffled = new ArrayList<Integer>(kids);
+            for (int k = 0; k < kids; k++) shuffled.add(k);
+            Collections.shuffle(shuffled, new Random());
+            final int[] order = new int[kids];
+            for (int k = 0; k < kids; k++) order[k] = shuffled.get(k);
+            return new Distribution(kids, rate) {
+                @Override
+                long dueNanos(long request) {
+                    return request / perBurst * period;
+                }
+
+                @Override
+                int kid(long request) {
+                    return order[(int) (request % order.length)];
+                }
+            };
+        }
+    }
+}
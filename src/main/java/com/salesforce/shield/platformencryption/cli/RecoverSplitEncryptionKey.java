@@ -7,16 +7,28 @@
 
 package com.salesforce.shield.platformencryption.cli;
 
+import com.salesforce.shield.platformencryption.util.CryptoException;
 import com.salesforce.shield.platformencryption.util.SSSUtils;
 import org.apache.commons.cli.*;
 import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
 
+import java.io.File;
+import java.io.InputStream;
+import java.io.PrintStream;
 import java.nio.charset.StandardCharsets;
 
 public class RecoverSplitEncryptionKey {
 
 
     public static void main(String[] args) {
+        run(args, new File(System.getProperty("user.dir")), System.in, System.out, System.err);
+    }
+
+    /**
+     * As main, writing to out and err, which belong to the WrapperDaemon client when run in the daemon.
+     */
+    public static void run(String[] args, File dir, InputStream in, PrintStream out, PrintStream err) {
 
         CommandLineParser parser = new DefaultParser();
         Options options = new Options();
@@ -30,25 +42,36 @@ public class RecoverSplitEncryptionKey {
         try {
             CommandLine line = parser.parse( options, args );
             if(line.hasOption( "help" ) || line.getOptions().length == 0  || !line.hasOption( "n" ) || !line.hasOption( "k" )|| !line.hasOption( "p" ) ) {
-                HelpFormatter formatter = new HelpFormatter();
-                formatter.printHelp( "RecoverSplitEncryptionKey", options );
+                CliSupport.printHelp( "RecoverSplitEncryptionKey", options, out );
             } else {
 
-                int n = Integer.parseInt(line.getOptionValue("n"));
-                int k = Integer.parseInt(line.getOptionValue("k"));
+                int n = CliSupport.intValue(line, "n", 0);
+                int k = CliSupport.intValue(line, "k", 0);
                 String[] parts = line.getOptionValues("p");
-                SSSUtils sssUtil = new SSSUtils(n, k);
+                SSSUtils sssUtil;
+                try {
+                    sssUtil = new SSSUtils(n, k);
+                } catch (IllegalArgumentException e) {
+                    throw new ParseException(e.getMessage());
+                }
                 final byte[] recovered = sssUtil.recover(parts);
-                System.out.println("Hex encoded encryption key: "  + new String(recovered, StandardCharsets.UTF_8));
+                if (SSSUtils.isLegacy(parts[0])) {
+                    //Shares from earlier versions split the hex encoded key
+                    out.println("Hex encoded encryption key: "  + new String(recovered, StandardCharsets.UTF_8));
+                } else {
+                    out.println("Hex encoded encryption key: "  + Hex.encodeHexString(recovered));
+                }
 
             }
 
 
         }
         catch( ParseException e ) {
-            System.out.println( "Error: " + e.getMessage() );
+            out.println( "Error: " + e.getMessage() );
+        } catch (CryptoException e) {
+            out.println( "Error: " + e.getMessage() );
         } catch (DecoderException e) {
-            e.printStackTrace();
+            e.printStackTrace(err);
         }
 
 
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.cli;
+
+import com.salesforce.shield.platformencryption.util.CertificateCache;
+import com.salesforce.shield.platformencryption.util.CryptoException;
+import com.salesforce.shield.platformencryption.util.KeyRotator;
+import com.salesforce.shield.platformencryption.util.KeyStoreFile;
+import com.salesforce.shield.platformencryption.util.RotationJournal;
+import org.apache.commons.cli.*;
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.security.PublicKey;
+import java.util.Arrays;
+
+public class RotateKeys {
+
+    public static void main(String[] args) {
+
+        CommandLineParser parser = new DefaultParser();
+        Options options = new Options();
+        options.addOption( "h","help", false, "Help for RotateKeys" );
+        options.addOption( "c", "cert", true, "Path to the new Certificate File (required)" );
+        options.addOption( "k", "keys", true, "NDJSON file of {\"kid\",\"key\"} records holding the keys to rotate, or - for stdin (required)" );
+        options.addOption( "m", "master", true, "Hex encoded AES key the \"key\" values are encrypted with, if they are not plain hex keys (optional)" );
+        options.addOption( "d", "dir", true, "Directory of existing Cache-Only Key representation files (required unless -s)" );
+        options.addOption( "s", "store", true, "Key store file of existing Cache-Only Key representations, may be the same as -ks (required unless -d)" );
+        options.addOption( "ks", "keystore", true, "Key store file to write the rotated key representations into (required)" );
+        options.addOption( "j", "journal", true, "Checkpoint journal of rotated kids, defaults to the -ks file name plus .journal (optional)" );
+        options.addOption( "t", "threads", true, "Number of wrapping threads, defaults to all cores (optional)" );
+
+        try {
+
+            CommandLine line = parser.parse( options, args );
+
+            if(line.hasOption( "help" ) || line.getOptions().length == 0 || !line.hasOption( "c" ) || !line.hasOption( "k" ) || !line.hasOption( "ks" ) || line.hasOption( "d" ) == line.hasOption( "s" )) {
+                HelpFormatter formatter = new HelpFormatter();
+                formatter.printHelp( "RotateKeys", options );
+            } else {
+
+                int threads = CliSupport.intValue(line, "t", Runtime.getRuntime().availableProcessors());
+                if (threads < 1) throw new ParseException("Please choose at least 1 thread.");
+
+                byte[] masterKey = null;
+                if( line.hasOption( "m" ) ) {
+                    try {
+                        masterKey = Hex.decodeHex(line.getOptionValue( "m" ));
+                    } catch (DecoderException e) {
+                        throw new CryptoException("Unable to hex decode master key", e);
+                    }
+                    if (masterKey.length != 32) throw new CryptoException("You must specify a Hex encoded 256 bit AES master key");
+                }
+
+                //Parse the new public key used for RSA-OAEP wrapping
+                PublicKey publicWrappingKey = CertificateCache.parse(new File(line.getOptionValue( "c" ))).getPublicKey();
+
+                File targetFile = new File(line.getOptionValue( "ks" ));
+                File journalFile = new File(line.getOptionValue( "j", targetFile.getPath() + ".journal" ));
+                rotate(line, publicWrappingKey, masterKey, threads, targetFile, journalFile);
+            }
+
+        } catch( ParseException e ) {
+            System.out.println( "ERROR: " + e.getMessage() );
+        } catch (CryptoException e) {
+            System.out.println( "ERROR: " + e.getMessage() );
+        } catch (FileNotFoundException e) {
+            e.printStackTrace();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+    }
+
+    private static void rotate(CommandLine line, PublicKey publicWrappingKey, byte[] masterKey, int threads, File targetFile, File journalFile) throws IOException, CryptoException {
+
+        String file = line.getOptionValue( "k" );
+        InputStream input = "-".equals(file) ? System.in : new FileInputStream(file);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+
+        KeyStoreFile target = KeyStoreFile.open(targetFile, true);
+        KeyStoreFile source = null;
+        KeyRotator.Representations existing;
+        if( line.hasOption( "d" ) ) {
+            existing = KeyRotator.inDirectory(new File(line.getOptionValue( "d" )));
+        } else if (new File(line.getOptionValue( "s" )).getCanonicalFile().equals(targetFile.getCanonicalFile())) {
+            //Rotating in place, the new representations replace the old ones
+            existing = KeyRotator.inKeyStore(target);
+        } else {
+            source = KeyStoreFile.open(new File(line.getOptionValue( "s" )), false);
+            existing = KeyRotator.inKeyStore(source);
+        }
+
+        //The journal is tied to the new wrapping key, a journal from an earlier rotation is refused
+        String rotation = DigestUtils.sha256Hex(publicWrappingKey.getEncoded());
+        RotationJournal journal;
+        try {
+            journal = RotationJournal.open(journalFile, rotation);
+        } catch (IOException e) {
+            reader.close();
+            target.close();
+            if (source != null) source.close();
+            throw e;
+        }
+        try {
+            if (journal.size() > 0) System.out.println("Resuming rotation, " + journal.size() + " keys already rotated according to " + journalFile);
+
+            long start = System.nanoTime();
+            KeyRotator rotator = new KeyRotator(publicWrappingKey, threads, masterKey);
+            long rotated = rotator.rotate(reader, existing, target, journal);
+            long millis = (System.nanoTime() - start) / 1000000;
+
+            System.out.println("Rotated " + rotated + " keys in " + millis + " ms into key store: " + targetFile);
+            if (rotator.getSkipped() > 0) System.out.println("Skipped " + rotator.getSkipped() + " keys already rotated");
+            if (rotator.getMissing() > 0) System.out.println("Skipped " + rotator.getMissing() + " keys with no existing key representation");
+        } finally {
+            reader.close();
+            journal.close();
+            target.close();
+            if (source != null) source.close();
+            if (masterKey != null) Arrays.fill(masterKey, (byte) 0);
+        }
+    }
+}
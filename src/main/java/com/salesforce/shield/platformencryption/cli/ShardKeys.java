@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.cli;
+
+import com.salesforce.shield.platformencryption.server.Cluster;
+import com.salesforce.shield.platformencryption.server.KeyShards;
+import com.salesforce.shield.platformencryption.util.KeyStoreFile;
+import org.apache.commons.cli.*;
+
+import java.io.File;
+import java.io.IOException;
+
+public class ShardKeys {
+
+    public static void main(String[] args) {
+
+        CommandLineParser parser = new DefaultParser();
+        Options options = new Options();
+        options.addOption( "h","help", false, "Help for ShardKeys" );
+        options.addOption( "d", "dir", true, "Directory of Cache-Only Key representation files to shard (required unless -ks)" );
+        options.addOption( "ks", "keystore", true, "Key store file of Cache-Only Key representations to shard (required unless -d)" );
+        options.addOption( "c", "cluster", true, "Comma separated host:port of every node, as given to KeyService -c (required)" );
+        options.addOption( "o", "out", true, "Directory of shard key stores, one host_port.ks per node, updated in place (required)" );
+        options.addOption( "r", "replicas", true, "Nodes holding each kid, defaults to " + Cluster.DEFAULT_REPLICAS + " (optional)" );
+        options.addOption( "v", "vnodes", true, "Virtual nodes per node, defaults to " + Cluster.DEFAULT_VIRTUAL_NODES + " (optional)" );
+
+        try {
+
+            CommandLine line = parser.parse( options, args );
+
+            if(line.hasOption( "help" ) || line.getOptions().length == 0 || !line.hasOption( "c" ) || !line.hasOption( "o" ) || line.hasOption( "d" ) == line.hasOption( "ks" )) {
+                HelpFormatter formatter = new HelpFormatter();
+                formatter.printHelp( "ShardKeys", options );
+            } else {
+
+                int replicas = CliSupport.intValue(line, "r", Cluster.DEFAULT_REPLICAS);
+                int virtualNodes = CliSupport.intValue(line, "v", Cluster.DEFAULT_VIRTUAL_NODES);
+                Cluster cluster;
+                try {
+                    cluster = new Cluster(Cluster.parseNodes(line.getOptionValue( "c" )), null, replicas, virtualNodes);
+                } catch (IllegalArgumentException e) {
+                    throw new ParseException(e.getMessage());
+                }
+
+                KeyShards shards = new KeyShards(cluster, new File(line.getOptionValue( "o" )));
+                KeyShards.Report report;
+                if( line.hasOption( "ks" ) ) {
+                    KeyStoreFile keyStore = KeyStoreFile.open(new File(line.getOptionValue( "ks" )), false);
+                    try {
+                        report = shards.write(keyStore);
+                    } finally {
+                        keyStore.close();
+                    }
+                } else {
+                    report = shards.write(new File(line.getOptionValue( "d" )));
+                }
+                report.print(System.out);
+            }
+
+        } catch( ParseException e ) {
+            System.out.println( "ERROR: " + e.getMessage() );
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+    }
+}
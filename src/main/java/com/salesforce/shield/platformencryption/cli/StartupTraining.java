@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.cli;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/**
+ * Training run for the class-data sharing archive built by mvn -Pappcds package: runs each of the core
+ * commands once, in a scratch directory, so that the classes they load end up in the archive.
+ */
+public class StartupTraining {
+
+    private static final String RECOVER = "./RecoverSplitEncryptionKey ";
+
+    public static void main(String[] args) throws IOException {
+
+        if (args.length != 1) {
+            System.out.println("Usage: StartupTraining <certificate file>");
+            System.exit(1);
+        }
+
+        String cert = new File(args[0]).getAbsolutePath();
+        File dir = Files.createTempDirectory("keywrapper-training").toFile();
+        try {
+            run("WrapEncryptionKey", dir, "-h");
+            run("WrapEncryptionKey", dir, "-c", cert, "-i", "training");
+            run("WrapEncryptionKey", dir, "-c", cert, "-i", "training-ks", "-ks", "training.ks");
+
+            // Recover the key from the parts in the example command that the split prints
+            String split = run("WrapEncryptionKey", dir, "-c", cert, "-i", "training-split", "-s", "-n", "3", "-k", "2");
+            for (String line : split.split("\n")) {
+                if (line.startsWith(RECOVER)) {
+                    run("RecoverSplitEncryptionKey", dir, line.substring(RECOVER.length()).trim().split(" "));
+                }
+            }
+
+            FileUtils.writeStringToFile(new File(dir, "keys.ndjson"),
+                    "{\"kid\":\"training-bulk-1\"}\n{\"kid\":\"training-bulk-2\"}\n", StandardCharsets.UTF_8);
+            run("WrapEncryptionKey", dir, "-c", cert, "-f", "keys.ndjson", "-o", "wrapped.ndjson", "-t", "2");
+
+            File plain = new File(dir, "plain.txt");
+            FileUtils.writeStringToFile(plain, "training", StandardCharsets.UTF_8);
+            String key = "000102030405060708090a0b0c0d0e0f101112131415161718191a1b1c1d1e1f";
+            EncryptFile.main(new String[] { "-e", "-b", key, "-i", plain.getPath(), "-o", new File(dir, "plain.enc").getPath() });
+            EncryptFile.main(new String[] { "-d", "-b", key, "-i", new File(dir, "plain.enc").getPath(), "-o", new File(dir, "plain.dec").getPath() });
+        } finally {
+            FileUtils.deleteQuietly(dir);
+        }
+        System.out.println("Training run complete");
+    }
+
+    /**
+     * Runs command in dir, returning what it wrote to out.
+     */
+    private static String run(String command, File dir, String... args) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        InputStream in = new ByteArrayInputStream(new byte[0]);
+        PrintStream outStream = new PrintStream(out, true);
+        PrintStream errStream = new PrintStream(err, true);
+
+        if (command.equals("WrapEncryptionKey")) {
+            WrapEncryptionKey.run(args, dir, in, outStream, errStream);
+        } else {
+            RecoverSplitEncryptionKey.run(args, dir, in, outStream, errStream);
+        }
+
+        String output = new String(out.toByteArray(), StandardCharsets.UTF_8);
+        String errors = new String(err.toByteArray(), StandardCharsets.UTF_8);
+        if (output.contains("ERROR: ") || errors.contains("Exception")) {
+            System.out.println(command + " " + Arrays.toString(args) + " failed:");
+            System.out.print(output);
+            System.out.print(errors);
+        }
+        return output;
+    }
+}
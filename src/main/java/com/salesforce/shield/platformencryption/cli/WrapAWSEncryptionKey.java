@@ -7,34 +7,63 @@
 
 package com.salesforce.shield.platformencryption.cli;
 
+import com.amazonaws.SdkClientException;
 import com.amazonaws.auth.AWSStaticCredentialsProvider;
 import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.client.builder.AwsClientBuilder;
 import com.amazonaws.services.kms.AWSKMS;
 import com.amazonaws.services.kms.AWSKMSClientBuilder;
 import com.amazonaws.services.kms.model.GenerateDataKeyRequest;
 import com.amazonaws.services.kms.model.GenerateDataKeyResult;
+import com.salesforce.shield.platformencryption.metrics.Instrumentation;
+import com.salesforce.shield.platformencryption.metrics.Stage;
+import com.salesforce.shield.platformencryption.util.CertificateCache;
 import com.salesforce.shield.platformencryption.util.CryptoException;
 import com.salesforce.shield.platformencryption.util.CryptoUtils;
+import com.salesforce.shield.platformencryption.util.JweWrapper;
 import com.salesforce.shield.platformencryption.util.KeyRepresentation;
+import com.salesforce.shield.platformencryption.util.KeyStoreFile;
+import com.salesforce.shield.platformencryption.util.KmsKeyGenerator;
+import com.salesforce.shield.platformencryption.util.RandomSource;
 import com.salesforce.shield.platformencryption.util.SSSUtils;
+import com.salesforce.shield.platformencryption.util.TokenBucket;
 import org.apache.commons.cli.*;
 import org.apache.commons.codec.DecoderException;
 import org.apache.commons.codec.binary.Hex;
+import org.jose4j.json.JsonUtil;
+import org.jose4j.lang.JoseException;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
 import java.nio.charset.StandardCharsets;
 import java.security.PublicKey;
-import java.security.cert.CertificateException;
-import java.security.cert.CertificateFactory;
-import java.security.cert.X509Certificate;
-import java.util.UUID;
+import java.util.ArrayList;
+import java.util.List;
 
 public class WrapAWSEncryptionKey {
 
+    //Shared by every run in a WrapperDaemon, so certificates are only parsed again when they change
+    private static final CertificateCache CERTIFICATES = new CertificateCache();
+
     public static void main(String[] args) {
+        run(args, new File(System.getProperty("user.dir")), System.in, System.out, System.err);
+    }
+
+    /**
+     * As main, for a WrapperDaemon client: relative paths are resolved against dir.
+     */
+    public static void run(String[] args, File dir, InputStream in, PrintStream out, PrintStream err) {
 
         PublicKey publicWrappingKey = null;
         String kid = null;
@@ -49,29 +78,39 @@ public class WrapAWSEncryptionKey {
         options.addOption( "ak", "accesskey", true, "AWS Access Key (required)" );
         options.addOption( "sk", "secretkey", true, "AWS Secret Key (required)" );
         options.addOption( "a", "alias", true, "AWS CMK Alias (required)" );
+        options.addOption( "ks", "keystore", true, "Write the key representation and backup into this key store file instead of separate files (optional)" );
+        options.addOption( "e", "endpoint", true, "KMS endpoint URL, e.g. a local KmsStub, defaults to the regional endpoint (optional)" );
+        options.addOption( "n", "count", true, "Batch mode: number of keys to generate, with random UUID kids (optional)" );
+        options.addOption( "f", "file", true, "Batch mode: NDJSON file of {\"kid\"} records to generate keys for, or - for stdin (optional)" );
+        options.addOption( "o", "out", true, "Batch mode: NDJSON output file when not writing to a key store, defaults to stdout (optional)" );
+        options.addOption( "cc", "concurrency", true, "Batch mode: maximum GenerateDataKey requests in flight, defaults to 16 (optional)" );
+        options.addOption( "rl", "ratelimit", true, "Batch mode: maximum GenerateDataKey requests per second, defaults to 1000 (optional)" );
+        options.addOption( "rt", "retries", true, "Batch mode: retries of a throttled or failed request, defaults to 8 (optional)" );
 
         try {
 
             CommandLine line = parser.parse( options, args );
 
             if(line.hasOption( "help" ) || line.getOptions().length == 0 || !line.hasOption( "c" ) || !line.hasOption( "r" ) || !line.hasOption( "ak" )|| !line.hasOption( "sk" )|| !line.hasOption( "a" )) {
-                HelpFormatter formatter = new HelpFormatter();
-                formatter.printHelp( "WrapAWSEncryptionKey", options );
+                CliSupport.printHelp( "WrapAWSEncryptionKey", options, out );
             } else {
 
+                if( line.hasOption( "n" ) || line.hasOption( "f" ) ) {
+                    //Batch mode, one client and many keys
+                    generateBatch(line, dir, in, out, err);
+                    return;
+                }
+
                 if( line.hasOption( "i" ) ) {
                     //User specified kid
                     kid = line.getOptionValue( "i" );
                 } else {
                     //or generate a random UUID for a kid
-                    kid = UUID.randomUUID().toString();
+                    kid = RandomSource.kid();
                 }
 
                 //Parse the public key used for RSA-OAEP wrapping
-                CertificateFactory certificateFactory = CertificateFactory.getInstance("X.509");
-                FileInputStream inputStream = new FileInputStream(line.getOptionValue( "c" ));
-                X509Certificate certificate = (X509Certificate) certificateFactory.generateCertificate(inputStream);
-                publicWrappingKey = certificate.getPublicKey();
+                publicWrappingKey = CERTIFICATES.getPublicKey(CliSupport.file(dir, line.getOptionValue( "c" )));
 
 
                 //AWS Credentials
@@ -82,45 +121,149 @@ public class WrapAWSEncryptionKey {
 
 
                 //Call KMS to generate an AES key
-                System.out.println("Calling AWS KMS to generate a new 256bit AES Key with Customer Master Key: " + AWS_ALIAS);
+                out.println("Calling AWS KMS to generate a new 256bit AES Key with Customer Master Key: " + AWS_ALIAS);
                 BasicAWSCredentials creds = new BasicAWSCredentials(AWS_ACCESS_KEY, AWS_SECRET_KEY);
-                AWSKMS kmsClient = AWSKMSClientBuilder.standard().withCredentials(new AWSStaticCredentialsProvider(creds)).withRegion(AWS_REGION).build();
+                AWSKMSClientBuilder kmsClientBuilder = AWSKMSClientBuilder.standard().withCredentials(new AWSStaticCredentialsProvider(creds));
+                if( line.hasOption( "e" ) ) {
+                    kmsClientBuilder.withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(line.getOptionValue( "e" ), AWS_REGION));
+                } else {
+                    kmsClientBuilder.withRegion(AWS_REGION);
+                }
+                AWSKMS kmsClient = kmsClientBuilder.build();
                 GenerateDataKeyRequest request = new GenerateDataKeyRequest().withKeyId("alias/" + AWS_ALIAS).withKeySpec("AES_256");
-                GenerateDataKeyResult response = kmsClient.generateDataKey(request);
+                long started = Instrumentation.begin();
+                GenerateDataKeyResult response;
+                try {
+                    response = kmsClient.generateDataKey(request);
+                } catch (SdkClientException e) {
+                    //Service errors, and requests that never got an answer
+                    Instrumentation.failed(Stage.KMS_ROUND_TRIP, started, e);
+                    throw e;
+                }
+                Instrumentation.end(Stage.KMS_ROUND_TRIP, started);
                 String cipherText = Hex.encodeHexString(response.getCiphertextBlob());
-                System.out.println("Generated KMS KeyId: " + response.getKeyId());
+                out.println("Generated KMS KeyId: " + response.getKeyId());
 
-                //Write the wrapped key to a file in the Cache Only Key Representation
+                //Write the wrapped key in the Cache Only Key Representation, and the KMS generated key as an encrypted backup
                 KeyRepresentation keyRepresentation = new KeyRepresentation(kid, response.getPlaintext().array(), publicWrappingKey);
-                FileOutputStream keyRepresentationFile = new FileOutputStream(kid);
-                keyRepresentationFile.write(keyRepresentation.toString().getBytes(StandardCharsets.UTF_8));
-                keyRepresentationFile.close();
+                String backup = KmsKeyGenerator.backup(response.getKeyId(), cipherText);
+
+                if( line.hasOption( "ks" ) ) {
+                    KeyStoreFile keyStore = KeyStoreFile.open(CliSupport.file(dir, line.getOptionValue( "ks" )), true);
+                    try {
+                        keyStore.put(kid, keyRepresentation.toJson().getBytes(StandardCharsets.UTF_8));
+                        keyStore.put(kid + ".backup", backup.getBytes(StandardCharsets.UTF_8));
+                    } finally {
+                        keyStore.close();
+                    }
 
-                System.out.println("Cache-Only Key representation written to file: " + kid);
+                    out.println("Cache-Only Key representation and encrypted backup of KMS generated key written to key store: " + line.getOptionValue( "ks" ));
+                } else {
+                    byte[] representation = keyRepresentation.toJson().getBytes(StandardCharsets.UTF_8);
+                    started = Instrumentation.begin();
+                    FileOutputStream keyRepresentationFile = new FileOutputStream(CliSupport.file(dir, kid));
+                    try {
+                        keyRepresentationFile.write(representation);
+                    } finally {
+                        keyRepresentationFile.close();
+                    }
+                    Instrumentation.end(Stage.FILE_WRITE, started);
 
-                //Write the KMS generated key to a backup file (encypted)
-                FileOutputStream backupFile = new FileOutputStream(kid + ".backup");
-                StringBuffer backup = new StringBuffer();
-                backup.append("KeyId:");
-                backup.append(response.getKeyId());
-                backup.append("\nHex Encoded Encrypted Backup from KMS: ");
-                backup.append(cipherText);
-                backupFile.write(backup.toString().getBytes(StandardCharsets.UTF_8));
-                backupFile.close();
+                    out.println("Cache-Only Key representation written to file: " + kid);
 
-                System.out.println("Encrypted backup of KMS generated key written to file: " + kid+ ".backup");
+                    //Write the KMS generated key to a backup file (encypted)
+                    started = Instrumentation.begin();
+                    FileOutputStream backupFile = new FileOutputStream(CliSupport.file(dir, kid + ".backup"));
+                    try {
+                        backupFile.write(backup.getBytes(StandardCharsets.UTF_8));
+                    } finally {
+                        backupFile.close();
+                    }
+                    Instrumentation.end(Stage.FILE_WRITE, started);
+
+                    out.println("Encrypted backup of KMS generated key written to file: " + kid+ ".backup");
+                }
 
             }
 
         } catch( ParseException e ) {
-            System.out.println( "ERROR: " + e.getMessage() );
-        } catch (CertificateException e) {
-            e.printStackTrace();
+            out.println( "ERROR: " + e.getMessage() );
+        } catch (CryptoException e) {
+            out.println( "ERROR: " + e.getMessage() );
         } catch (FileNotFoundException e) {
-            e.printStackTrace();
+            e.printStackTrace(err);
         } catch (IOException e) {
-            e.printStackTrace();
+            e.printStackTrace(err);
         }
 
     }
+
+    private static void generateBatch(CommandLine line, File dir, InputStream in, PrintStream out, PrintStream err) throws ParseException, IOException, CryptoException {
+
+        int concurrency = CliSupport.intValue(line, "cc", 16);
+        if (concurrency < 1) throw new ParseException("Please allow at least 1 request in flight.");
+        double rate = CliSupport.doubleValue(line, "rl", 1000);
+        if (!(rate > 0)) throw new ParseException("Please choose a positive rate limit.");
+        int retries = CliSupport.intValue(line, "rt", 8);
+        if (retries < 0) throw new ParseException("Please choose a retry count of 0 or more.");
+
+        //The kids to generate keys for, read up front so bad input fails before any KMS calls
+        List<String> kids = new ArrayList<String>();
+        if( line.hasOption( "f" ) ) {
+            String file = line.getOptionValue( "f" );
+            InputStream input = "-".equals(file) ? in : new FileInputStream(CliSupport.file(dir, file));
+            BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+            try {
+                String record;
+                long lineNumber = 0;
+                while ((record = reader.readLine()) != null) {
+                    lineNumber++;
+                    if (record.trim().isEmpty()) continue;
+                    Object kid;
+                    try {
+                        kid = JsonUtil.parseJson(record).get("kid");
+                    } catch (JoseException e) {
+                        throw new CryptoException("Line " + lineNumber + ": unable to parse record", e);
+                    }
+                    if (!(kid instanceof String) || ((String) kid).isEmpty()) throw new CryptoException("Line " + lineNumber + ": record has no kid");
+                    kids.add((String) kid);
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        if( line.hasOption( "n" ) ) {
+            int count = CliSupport.intValue(line, "n", 0);
+            if (count < 1) throw new ParseException("Please generate at least 1 key.");
+            for (int i = 0; i < count; i++) kids.add(RandomSource.kid());
+        }
+
+        JweWrapper jweWrapper = new JweWrapper(CERTIFICATES.getPublicKey(CliSupport.file(dir, line.getOptionValue( "c" ))));
+
+        BasicAWSCredentials creds = new BasicAWSCredentials(line.getOptionValue( "ak" ), line.getOptionValue( "sk" ));
+        AWSKMS kmsClient = KmsKeyGenerator.client(new AWSStaticCredentialsProvider(creds), line.getOptionValue( "r" ), line.getOptionValue( "e" ), concurrency);
+        KmsKeyGenerator generator = new KmsKeyGenerator(kmsClient, "alias/" + line.getOptionValue( "a" ), jweWrapper, concurrency, new TokenBucket(rate, concurrency), retries);
+
+        KeyStoreFile keyStore = null;
+        Writer writer = null;
+        if( line.hasOption( "ks" ) ) {
+            keyStore = KeyStoreFile.open(CliSupport.file(dir, line.getOptionValue( "ks" )), true);
+        } else {
+            OutputStream output = line.hasOption( "o" ) ? new FileOutputStream(CliSupport.file(dir, line.getOptionValue( "o" ))) : out;
+            writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+        }
+
+        try {
+            //stdout may carry the NDJSON output, so report on stderr
+            err.println("Calling AWS KMS to generate " + kids.size() + " 256bit AES Keys with Customer Master Key: " + line.getOptionValue( "a" ));
+            long start = System.nanoTime();
+            long count = generator.generate(kids, keyStore, writer);
+            long millis = (System.nanoTime() - start) / 1000000;
+            err.println("Generated and wrapped " + count + " keys in " + millis + " ms, " + generator.getRetries() + " requests retried");
+        } finally {
+            if (keyStore != null) keyStore.close();
+            if (writer != null) writer.close();
+            kmsClient.shutdown();
+        }
+    }
 }
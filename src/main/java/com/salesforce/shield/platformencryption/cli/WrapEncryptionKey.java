@@ -7,28 +7,53 @@
 
 package com.salesforce.shield.platformencryption.cli;
 
+import com.salesforce.shield.platformencryption.metrics.Instrumentation;
+import com.salesforce.shield.platformencryption.metrics.Stage;
+import com.salesforce.shield.platformencryption.util.BulkKeyWrapper;
+import com.salesforce.shield.platformencryption.util.CertificateCache;
 import com.salesforce.shield.platformencryption.util.CryptoException;
 import com.salesforce.shield.platformencryption.util.CryptoUtils;
+import com.salesforce.shield.platformencryption.util.FanOutWrapper;
 import com.salesforce.shield.platformencryption.util.KeyRepresentation;
+import com.salesforce.shield.platformencryption.util.KeyStoreFile;
+import com.salesforce.shield.platformencryption.util.RandomSource;
 import com.salesforce.shield.platformencryption.util.SSSUtils;
 import org.apache.commons.cli.*;
 import org.apache.commons.codec.DecoderException;
 import org.apache.commons.codec.binary.Hex;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
 import java.nio.charset.StandardCharsets;
 import java.security.PublicKey;
-import java.security.cert.CertificateException;
-import java.security.cert.CertificateFactory;
-import java.security.cert.X509Certificate;
-import java.util.UUID;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 public class WrapEncryptionKey {
 
+    //Shared by every run in a WrapperDaemon, so certificates are only parsed again when they change
+    private static final CertificateCache CERTIFICATES = new CertificateCache();
+
     public static void main(String[] args) {
+        run(args, new File(System.getProperty("user.dir")), System.in, System.out, System.err);
+    }
+
+    /**
+     * Runs the command with relative paths resolved against dir and the console streams given, so it can
+     * run for a WrapperDaemon client.
+     */
+    public static void run(String[] args, File dir, InputStream in, PrintStream out, PrintStream err) {
 
         PublicKey publicWrappingKey = null;
         String kid = null;
@@ -43,35 +68,45 @@ public class WrapEncryptionKey {
         CommandLineParser parser = new DefaultParser();
         Options options = new Options();
         options.addOption( "h","help", false, "Help for WrapEncryptionKey" );
-        options.addOption( "c", "cert", true, "Path to Certificate File (required)" );
+        options.addOption( "c", "cert", true, "Path to Certificate File, repeat to wrap the key for several certificates (required)" );
         options.addOption( "b", "bytes", true, "Hex Encoded BYOK AES KEY (optional)" );
         options.addOption( "i", "kid", true, "Key Identifier (optional)" );
         options.addOption( "s", "split",false, "Protect Encryption key with Shamir's Secret Sharing (optional)" );
         options.addOption( "n", "num",true, "Number of N parts for Shamir's Secret Sharing (optional)" );
         options.addOption( "k", "know",true, "Knowledge of K pieces for Shamir's Secret Sharing (optional)" );
+        options.addOption( "f", "file",true, "Bulk mode: NDJSON file of {\"kid\",\"key\"} records to wrap, or - for stdin (optional)" );
+        options.addOption( "o", "out",true, "Bulk mode: NDJSON output file, defaults to stdout (optional)" );
+        options.addOption( "t", "threads",true, "Bulk mode: number of wrapping threads, defaults to all cores (optional)" );
+        options.addOption( "ks", "keystore",true, "Write key representations into this key store file instead of one file per kid (optional)" );
 
         try {
 
             CommandLine line = parser.parse( options, args );
 
             if(line.hasOption( "help" ) || line.getOptions().length == 0 ) {
-                HelpFormatter formatter = new HelpFormatter();
-                formatter.printHelp( "WrapEncryptionKey", options );
+                CliSupport.printHelp( "WrapEncryptionKey", options, out );
             } else {
                 if( line.hasOption( "c" ) ) {
                     //Parse the public key used for RSA-OAEP wrapping
-                    CertificateFactory certificateFactory = CertificateFactory.getInstance("X.509");
-                    FileInputStream inputStream = new FileInputStream(line.getOptionValue( "c" ));
-                    X509Certificate certificate = (X509Certificate) certificateFactory.generateCertificate(inputStream);
-                    publicWrappingKey = certificate.getPublicKey();
+                    publicWrappingKey = CERTIFICATES.getPublicKey(CliSupport.file(dir, line.getOptionValue( "c" )));
                 } else throw new ParseException("Please specifiy a BYOK wrapping certificate in PEM forat with the -c option.");
 
+                String[] certificates = line.getOptionValues( "c" );
+                if (certificates.length > 1 && (line.hasOption( "f" ) || line.hasOption( "ks" )))
+                    throw new ParseException("Wrapping for several certificates writes one directory per certificate, it can't be combined with -f or -ks.");
+
+                if( line.hasOption( "f" ) ) {
+                    //Bulk mode, wrap every record in the NDJSON input with the one certificate
+                    wrapBulk(line, publicWrappingKey, dir, in, out, err);
+                    return;
+                }
+
                 if( line.hasOption( "i" ) ) {
                     //User specified kid
                     kid = line.getOptionValue( "i" );
                 } else {
                     //or generate a random UUID for a kid
-                    kid = UUID.randomUUID().toString();
+                    kid = RandomSource.kid();
                 }
 
                 if( line.hasOption( "b" ) ) {
@@ -81,25 +116,25 @@ public class WrapEncryptionKey {
                     try {
                         byokKey = Hex.decodeHex(hexEncodedKey);
                         if (byokKey.length != 32) throw new CryptoException("You must specify a Hex encoded 256 bit AES key");
-                        System.out.println("Wrapping user specfied AES key");
+                        out.println("Wrapping user specfied AES key");
                     } catch (DecoderException e) {
                         throw new CryptoException("Unable to hex decode AES key", e);
                     }
 
                 } else {
                     //or we generate an AES key for them
-                    System.out.println("Generating 256 bit AES Key");
+                    out.println("Generating 256 bit AES Key");
                     byokKey = cryptoUtils.generateAESKey();
 
                     if( line.hasOption( "s" ) ) {
                         if(!line.hasOption("n") || !line.hasOption("k")) throw new ParseException("If using secret splitting, please specify valued for -n and -k.");
 
                         //Check to see if we're using secret splitting and if so get the parts
-                        n = Integer.parseInt(line.getOptionValue("n"));
-                        if ((n > 10) || (n < 2))
-                            throw new ParseException("Lets keep things simple.  Please choose a value of n between 2-10");
+                        n = CliSupport.intValue(line, "n", 0);
+                        if ((n > SSSUtils.MAX_PARTS) || (n < 2))
+                            throw new ParseException("Please choose a value of n between 2-" + SSSUtils.MAX_PARTS);
 
-                        k = Integer.parseInt(line.getOptionValue("k"));
+                        k = CliSupport.intValue(line, "k", 0);
                         if (k <= 1)
                             throw new ParseException("There's no point in secret splitting if you don't require knowledge of more than 1 parts.  Choose a better value for k please.");
                         if (k > n)
@@ -109,15 +144,39 @@ public class WrapEncryptionKey {
 
                 }
 
-                //Write the wrapped key to a file
-                KeyRepresentation keyRepresentation = new KeyRepresentation(kid, byokKey, publicWrappingKey);
-                FileOutputStream keyRepresentationFile = new FileOutputStream(kid);
-                keyRepresentationFile.write(keyRepresentation.toString().getBytes(StandardCharsets.UTF_8));
-                keyRepresentationFile.close();
+                if (certificates.length > 1) {
+                    //Fan out, the key is encrypted once and only its CEK is wrapped for each certificate
+                    wrapFanOut(certificates, kid, byokKey, dir, out);
+                } else if( line.hasOption( "ks" ) ) {
+                    //Write the wrapped key into the key store
+                    KeyRepresentation keyRepresentation = new KeyRepresentation(kid, byokKey, publicWrappingKey);
+                    KeyStoreFile keyStore = KeyStoreFile.open(CliSupport.file(dir, line.getOptionValue( "ks" )), true);
+                    try {
+                        keyStore.put(kid, keyRepresentation.toJson().getBytes(StandardCharsets.UTF_8));
+                    } finally {
+                        keyStore.close();
+                    }
 
-                System.out.println("");
-                System.out.println("Cache-Only Key representation written to file: " + kid);
-                System.out.println("");
+                    out.println("");
+                    out.println("Cache-Only Key representation written to key store: " + line.getOptionValue( "ks" ));
+                    out.println("");
+                } else {
+                    //Write the wrapped key to a file
+                    KeyRepresentation keyRepresentation = new KeyRepresentation(kid, byokKey, publicWrappingKey);
+                    byte[] representation = keyRepresentation.toJson().getBytes(StandardCharsets.UTF_8);
+                    long started = Instrumentation.begin();
+                    FileOutputStream keyRepresentationFile = new FileOutputStream(CliSupport.file(dir, kid));
+                    try {
+                        keyRepresentationFile.write(representation);
+                    } finally {
+                        keyRepresentationFile.close();
+                    }
+                    Instrumentation.end(Stage.FILE_WRITE, started);
+
+                    out.println("");
+                    out.println("Cache-Only Key representation written to file: " + kid);
+                    out.println("");
+                }
 
                 if (scriptGeneratedKey) {
                     //we generated the key, so need to tell the user about the key
@@ -126,20 +185,22 @@ public class WrapEncryptionKey {
                     if( line.hasOption( "s" ) ) {
                         //User wants the key split using Shamir's
                         SSSUtils sssUtils = new SSSUtils(n,k);
-                        String[] parts = sssUtils.split(kexEncodedKey.getBytes(StandardCharsets.UTF_8));
-                        System.out.println("Encryption Key can be recovered with " + k + " of the following " + n + " parts:");
+                        String[] parts = sssUtils.split(byokKey);
+                        out.println("Encryption Key can be recovered with " + k + " of the following " + n + " parts:");
                         for(String value : parts) {
-                            System.out.println(value);
+                            out.println(value);
                         }
 
-                        System.out.println("");
-                        System.out.println("For example, you can use the following command: ");
-                        System.out.println("./RecoverSplitEncryptionKey -n " + n + " -k " + k + " -p " + parts[2] + " " + parts[0]);
-                        System.out.println("");
+                        out.println("");
+                        out.println("For example, you can use the following command: ");
+                        StringBuilder example = new StringBuilder("./RecoverSplitEncryptionKey -n " + n + " -k " + k + " -p");
+                        for (int i = 0; i < k; i++) example.append(' ').append(parts[n - 1 - i]);
+                        out.println(example);
+                        out.println("");
 
                     } else {
                         //user just wants the hex encoded key
-                        System.out.println("Hex encoded encryption key: " + kexEncodedKey);
+                        out.println("Hex encoded encryption key: " + kexEncodedKey);
 
                     }
 
@@ -148,16 +209,76 @@ public class WrapEncryptionKey {
             }
 
         } catch( ParseException e ) {
-            System.out.println( "ERROR: " + e.getMessage() );
+            out.println( "ERROR: " + e.getMessage() );
         } catch (CryptoException e) {
-            System.out.println( "ERROR: " + e.getMessage() );
-        } catch (CertificateException e) {
-            e.printStackTrace();
+            out.println( "ERROR: " + e.getMessage() );
         } catch (FileNotFoundException e) {
-            e.printStackTrace();
+            e.printStackTrace(err);
         } catch (IOException e) {
-            e.printStackTrace();
+            e.printStackTrace(err);
         }
 
     }
+
+    private static void wrapFanOut(String[] certificates, String kid, byte[] byokKey, File workingDir, PrintStream out) throws ParseException, IOException, CryptoException {
+
+        //One output directory per certificate, named after the certificate file
+        List<PublicKey> recipients = new ArrayList<PublicKey>(certificates.length);
+        List<File> dirs = new ArrayList<File>(certificates.length);
+        for (String certificate : certificates) {
+            File certificateFile = CliSupport.file(workingDir, certificate);
+            String name = certificateFile.getName();
+            if (name.lastIndexOf('.') > 0) name = name.substring(0, name.lastIndexOf('.'));
+            File dir = new File(workingDir, name);
+            if (dirs.contains(dir)) throw new ParseException("Certificate file names must be unique, " + name + " is used twice.");
+            recipients.add(CERTIFICATES.getPublicKey(certificateFile));
+            dirs.add(dir);
+        }
+
+        ForkJoinPool pool = new ForkJoinPool();
+        try {
+            String[] jwes = new FanOutWrapper(recipients, pool).wrap(kid, byokKey);
+            out.println("");
+            for (int i = 0; i < jwes.length; i++) {
+                File dir = dirs.get(i);
+                if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Unable to create directory " + dir);
+                File keyRepresentationFile = new File(dir, kid);
+                long started = Instrumentation.begin();
+                FileOutputStream output = new FileOutputStream(keyRepresentationFile);
+                try {
+                    output.write(KeyRepresentation.toJson(kid, jwes[i]).getBytes(StandardCharsets.UTF_8));
+                } finally {
+                    output.close();
+                }
+                Instrumentation.end(Stage.FILE_WRITE, started);
+                out.println("Cache-Only Key representation for " + certificates[i] + " written to file: " + keyRepresentationFile);
+            }
+            out.println("");
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static void wrapBulk(CommandLine line, PublicKey publicWrappingKey, File dir, InputStream in, PrintStream out, PrintStream err) throws ParseException, IOException, CryptoException {
+
+        int threads = CliSupport.intValue(line, "t", Runtime.getRuntime().availableProcessors());
+        if (threads < 1) throw new ParseException("Please choose at least 1 thread.");
+
+        String file = line.getOptionValue( "f" );
+        InputStream input = "-".equals(file) ? in : new FileInputStream(CliSupport.file(dir, file));
+        OutputStream output = line.hasOption( "o" ) ? new FileOutputStream(CliSupport.file(dir, line.getOptionValue( "o" ))) : out;
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+        KeyStoreFile keyStore = line.hasOption( "ks" ) ? KeyStoreFile.open(CliSupport.file(dir, line.getOptionValue( "ks" )), true) : null;
+        try {
+            long count = new BulkKeyWrapper(publicWrappingKey, threads, keyStore).wrap(reader, writer);
+            //stdout may carry the NDJSON output, so report on stderr
+            err.println("Wrapped " + count + " keys");
+        } finally {
+            reader.close();
+            writer.close();
+            if (keyStore != null) keyStore.close();
+        }
+    }
 }
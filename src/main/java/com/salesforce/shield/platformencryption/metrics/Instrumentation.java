@@ -0,0 +1,254 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.metrics;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Times the stages of the wrap pipeline into per-stage latency histograms and failure counts published over
+ * JMX, and emits a Flight Recorder stage event per stage while a recording is running.
+ *
+ * A timed stage looks like:
+ *
+ *     long started = Instrumentation.begin();
+ *     ... the stage ...
+ *     Instrumentation.end(Stage.RSA_OAEP, started);
+ *
+ * with Instrumentation.failed(stage, started, e) where the stage's exception is handled.  When neither metrics
+ * nor a recording are on, begin() is one volatile read returning 0 and end() returns straight away, so the
+ * calls can stay in place in production.  Metrics are turned on with -Dkeywrapper.metrics=true, which also
+ * registers the MXBean, or through the MXBean of a process that called registerMBean().
+ */
+public final class Instrumentation {
+
+    public static final String OBJECT_NAME = "com.salesforce.shield.platformencryption:type=WrapMetrics";
+
+    private static final Stage[] STAGES = Stage.values();
+    private static final LatencyHistogram[] HISTOGRAMS = new LatencyHistogram[STAGES.length];
+    private static final LongAdder[] FAILURES = new LongAdder[STAGES.length];
+    private static final ConcurrentHashMap<String, LongAdder> FAILURE_CAUSES = new ConcurrentHashMap<String, LongAdder>();
+
+    private static volatile boolean active;
+    private static volatile boolean metrics;
+    private static volatile boolean recording;
+    private static boolean watching;
+
+    static {
+        for (int i = 0; i < STAGES.length; i++) {
+            HISTOGRAMS[i] = new LatencyHistogram();
+            FAILURES[i] = new LongAdder();
+        }
+
+        //Listening for recordings loads a good part of jdk.jfr, which a CLI run can do without unless the JVM
+        //was started with a recording.  Long running processes watch from registerMBean().
+        if (JfrEvents.isInitialized()) watchFlightRecorder();
+
+        if (Boolean.getBoolean("keywrapper.metrics")) {
+            setEnabled(true);
+            registerMBean();
+            //The CLIs exit before anyone can read the MXBean, so report on stderr on the way out
+            Runtime.getRuntime().addShutdownHook(new Thread("metrics-report") {
+                @Override
+                public void run() {
+                    report(System.err);
+                }
+            });
+        }
+    }
+
+    private Instrumentation() {
+    }
+
+    /**
+     * @return the start time of a stage, or 0 when nothing is being collected
+     */
+    public static long begin() {
+        return active ? System.nanoTime() : 0;
+    }
+
+    public static void end(Stage stage, long started) {
+        if (started == 0) return;
+        long elapsed = System.nanoTime() - started;
+        if (metrics) HISTOGRAMS[stage.ordinal()].record(elapsed);
+        if (recording) JfrEvents.commit(stage, elapsed, null);
+    }
+
+    public static void failed(Stage stage, long started, Throwable cause) {
+        if (started == 0) return;
+        long elapsed = System.nanoTime() - started;
+        if (metrics) {
+            FAILURES[stage.ordinal()].increment();
+            String key = stage.name() + " " + cause.getClass().getName();
+            LongAdder count = FAILURE_CAUSES.get(key);
+            if (count == null) {
+                LongAdder added = new LongAdder();
+                count = FAILURE_CAUSES.putIfAbsent(key, added);
+                if (count == null) count = added;
+            }
+            count.increment();
+        }
+        if (recording) JfrEvents.commit(stage, elapsed, cause);
+    }
+
+    public static boolean isEnabled() {
+        return metrics;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        metrics = enabled;
+        active = metrics || recording;
+    }
+
+    static void setRecording(boolean running) {
+        recording = running;
+        active = metrics || recording;
+    }
+
+    public static LatencyHistogram histogram(Stage stage) {
+        return HISTOGRAMS[stage.ordinal()];
+    }
+
+    public static StageStatistics statistics(Stage stage) {
+        LatencyHistogram histogram = HISTOGRAMS[stage.ordinal()];
+        return new StageStatistics(stage.name(), histogram.getCount(), FAILURES[stage.ordinal()].sum(),
+                histogram.getMean() / 1000, micros(histogram.getValueAtPercentile(50)),
+                micros(histogram.getValueAtPercentile(99)), micros(histogram.getMax()));
+    }
+
+    public static Map<String, Long> failures() {
+        Map<String, Long> failures = new TreeMap<String, Long>();
+        for (Map.Entry<String, LongAdder> entry : FAILURE_CAUSES.entrySet()) {
+            failures.put(entry.getKey(), entry.getValue().sum());
+        }
+        return failures;
+    }
+
+    /**
+     * Prints the statistics of every stage that ran, and the failures by cause.
+     */
+    public static void report(PrintStream out) {
+        for (Stage stage : STAGES) {
+            StageStatistics statistics = statistics(stage);
+            if (statistics.getCount() > 0 || statistics.getFailures() > 0) out.println(statistics);
+        }
+        for (Map.Entry<String, Long> failure : failures().entrySet()) {
+            out.println("Failed " + failure.getKey() + ": " + failure.getValue());
+        }
+    }
+
+    public static void reset() {
+        for (int i = 0; i < STAGES.length; i++) {
+            HISTOGRAMS[i].reset();
+            FAILURES[i].reset();
+        }
+        FAILURE_CAUSES.clear();
+    }
+
+    /**
+     * Registers the WrapMetrics MXBean with the platform MBean server, if it isn't already.  Long running
+     * processes call this at startup so metrics can be turned on from a JMX console.
+     */
+    public static void registerMBean() {
+        watchFlightRecorder();
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new WrapMetrics(), new ObjectName(OBJECT_NAME));
+        } catch (InstanceAlreadyExistsException e) {
+            //registered already
+        } catch (JMException e) {
+            System.err.println("Unable to register " + OBJECT_NAME + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Starts committing stage events whenever a Flight Recorder recording is running, including recordings
+     * started later with jcmd.
+     */
+    public static synchronized void watchFlightRecorder() {
+        if (watching) return;
+        //jdk.jfr is missing from Java 8 runtimes before 8u262
+        try {
+            JfrEvents.install();
+            watching = true;
+        } catch (ReflectiveOperationException e) {
+            //no Flight Recorder
+        } catch (LinkageError e) {
+            //no Flight Recorder
+        }
+    }
+
+    private static double micros(long nanos) {
+        return nanos / 1000.0;
+    }
+
+    private static final class WrapMetrics implements WrapMetricsMXBean {
+
+        private long lastWraps;
+        private long lastRead = System.nanoTime();
+        private double lastRate;
+
+        @Override
+        public boolean isEnabled() {
+            return Instrumentation.isEnabled();
+        }
+
+        @Override
+        public void setEnabled(boolean enabled) {
+            Instrumentation.setEnabled(enabled);
+        }
+
+        @Override
+        public long getWraps() {
+            return histogram(Stage.WRAP).getCount();
+        }
+
+        @Override
+        public synchronized double getWrapsPerSecond() {
+            long now = System.nanoTime();
+            long elapsed = now - lastRead;
+            if (elapsed >= TimeUnit.SECONDS.toNanos(1)) {
+                long wraps = getWraps();
+                lastRate = Math.max(0, wraps - lastWraps) * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+                lastWraps = wraps;
+                lastRead = now;
+            }
+            return lastRate;
+        }
+
+        @Override
+        public List<StageStatistics> getStages() {
+            List<StageStatistics> stages = new ArrayList<StageStatistics>(STAGES.length);
+            for (Stage stage : STAGES) stages.add(statistics(stage));
+            return stages;
+        }
+
+        @Override
+        public Map<String, Long> getFailures() {
+            return failures();
+        }
+
+        @Override
+        public synchronized void reset() {
+            Instrumentation.reset();
+            lastWraps = 0;
+            lastRate = 0;
+            lastRead = System.nanoTime();
+        }
+    }
+
+}
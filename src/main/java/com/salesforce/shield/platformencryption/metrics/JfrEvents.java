@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.metrics;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Everything that touches jdk.jfr, through reflection so the sources build against Java 8, where jdk.jfr only
+ * exists from 8u262 on.  Stage events are defined with EventFactory as:
+ *
+ * com.salesforce.shield.platformencryption.Stage "Key Wrapper Stage", without stack traces
+ *   stage   : the Stage's name
+ *   elapsed : nanoseconds the stage took
+ *   failure : class of the exception the stage failed with, empty if it succeeded
+ *
+ * The event is committed when the stage ends, so its start time is the end of the stage.
+ */
+final class JfrEvents {
+
+    private static final String JFR = "jdk.jfr.";
+
+    //Set once install() has found a usable Flight Recorder
+    private static volatile Events events;
+
+    private JfrEvents() {
+    }
+
+    //Doesn't initialize Flight Recorder itself, false if there is none
+    static boolean isInitialized() {
+        try {
+            return (Boolean) Class.forName(JFR + "FlightRecorder").getMethod("isInitialized").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return false;
+        } catch (LinkageError e) {
+            return false;
+        }
+    }
+
+    //Tells Instrumentation whenever a recording starts or stops, without initializing Flight Recorder itself
+    static void install() throws ReflectiveOperationException {
+        final Class<?> flightRecorder = Class.forName(JFR + "FlightRecorder");
+        Class<?> listener = Class.forName(JFR + "FlightRecorderListener");
+        final Method getFlightRecorder = flightRecorder.getMethod("getFlightRecorder");
+        final Method getRecordings = flightRecorder.getMethod("getRecordings");
+        final Method getState = Class.forName(JFR + "Recording").getMethod("getState");
+        events = new Events();
+
+        Object proxy = Proxy.newProxyInstance(listener.getClassLoader(), new Class<?>[]{listener}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                String name = method.getName();
+                if (name.equals("recorderInitialized") || name.equals("recordingStateChanged")) {
+                    Object recorder = name.equals("recorderInitialized") ? args[0] : getFlightRecorder.invoke(null);
+                    Instrumentation.setRecording(isRecording((List<?>) getRecordings.invoke(recorder), getState));
+                    return null;
+                }
+                if (name.equals("equals")) return proxy == args[0];
+                if (name.equals("hashCode")) return System.identityHashCode(proxy);
+                if (name.equals("toString")) return "Key Wrapper recording listener";
+                return null;
+            }
+        });
+        flightRecorder.getMethod("addListener", listener).invoke(null, proxy);
+    }
+
+    static void commit(Stage stage, long elapsed, Throwable failure) {
+        Events current = events;
+        if (current != null) current.commit(stage, elapsed, failure);
+    }
+
+    private static boolean isRecording(List<?> recordings, Method getState) throws ReflectiveOperationException {
+        for (Object recording : recordings) {
+            if (((Enum<?>) getState.invoke(recording)).name().equals("RUNNING")) return true;
+        }
+        return false;
+    }
+
+    //The stage event type, and the Event methods used to fill in and commit one
+    private static final class Events {
+
+        private final Object factory;
+        private final Method newEvent;
+        private final Method shouldCommit;
+        private final Method set;
+        private final Method commit;
+
+        Events() throws ReflectiveOperationException {
+            Class<?> element = Class.forName(JFR + "AnnotationElement");
+            Constructor<?> annotation = element.getConstructor(Class.class, Object.class);
+            Class<?> descriptor = Class.forName(JFR + "ValueDescriptor");
+            Constructor<?> field = descriptor.getConstructor(Class.class, String.class, List.class);
+
+            List<Object> type = Arrays.asList(
+                    annotation.newInstance(annotationType("Name"), "com.salesforce.shield.platformencryption.Stage"),
+                    annotation.newInstance(annotationType("Label"), "Key Wrapper Stage"),
+                    annotation.newInstance(annotationType("Category"), new String[]{"Key Wrapper"}),
+                    annotation.newInstance(annotationType("Description"), "One stage of producing a Cache-Only Key representation"),
+                    //Stack traces are off to keep commits cheap
+                    annotation.newInstance(annotationType("StackTrace"), false));
+            List<Object> fields = Arrays.asList(
+                    field.newInstance(String.class, "stage", Collections.singletonList(
+                            annotation.newInstance(annotationType("Label"), "Stage"))),
+                    field.newInstance(long.class, "elapsed", Arrays.asList(
+                            annotation.newInstance(annotationType("Label"), "Elapsed"),
+                            annotation.newInstance(annotationType("Timespan"), "NANOSECONDS"))),
+                    field.newInstance(String.class, "failure", Arrays.asList(
+                            annotation.newInstance(annotationType("Label"), "Failure"),
+                            annotation.newInstance(annotationType("Description"), "Class of the exception the stage failed with, empty if it succeeded"))));
+
+            Class<?> eventFactory = Class.forName(JFR + "EventFactory");
+            factory = eventFactory.getMethod("create", List.class, List.class).invoke(null, new ArrayList<Object>(type), new ArrayList<Object>(fields));
+            newEvent = eventFactory.getMethod("newEvent");
+            Class<?> event = Class.forName(JFR + "Event");
+            shouldCommit = event.getMethod("shouldCommit");
+            set = event.getMethod("set", int.class, Object.class);
+            commit = event.getMethod("commit");
+        }
+
+        void commit(Stage stage, long elapsed, Throwable failure) {
+            try {
+                Object event = newEvent.invoke(factory);
+                if (!(Boolean) shouldCommit.invoke(event)) return;
+                set.invoke(event, 0, stage.name());
+                set.invoke(event, 1, elapsed);
+                set.invoke(event, 2, failure == null ? "" : failure.getClass().getName());
+                commit.invoke(event);
+            } catch (ReflectiveOperationException e) {
+                //the event is lost, the stage itself is unaffected
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private static Class<? extends Annotation> annotationType(String name) throws ClassNotFoundException {
+            return (Class<? extends Annotation>) Class.forName(JFR + name);
+        }
+    }
+
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.metrics;
+
+/**
+ * The stages of producing a key representation that are timed by Instrumentation.
+ */
+public enum Stage {
+
+    CERTIFICATE_PARSE,
+    KEY_GENERATION,
+    RSA_OAEP,
+    AES_GCM,
+    //A whole JWE, RSA_OAEP and AES_GCM included
+    WRAP,
+    SSS_SPLIT,
+    KMS_ROUND_TRIP,
+    //Writing a key representation file
+    FILE_WRITE,
+    //Appending a record to a key store, through its memory mapping
+    FILE_APPEND,
+    //Forcing a key store's appended records to disk
+    FILE_SYNC
+
+}
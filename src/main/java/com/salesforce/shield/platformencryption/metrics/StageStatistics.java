@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.metrics;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Point in time statistics for one Stage, published through WrapMetricsMXBean.  Times are in microseconds.
+ */
+public class StageStatistics {
+
+    private final String stage;
+    private final long count;
+    private final long failures;
+    private final double meanMicros;
+    private final double p50Micros;
+    private final double p99Micros;
+    private final double maxMicros;
+
+    @ConstructorProperties({"stage", "count", "failures", "meanMicros", "p50Micros", "p99Micros", "maxMicros"})
+    public StageStatistics(String stage, long count, long failures, double meanMicros, double p50Micros, double p99Micros, double maxMicros) {
+        this.stage = stage;
+        this.count = count;
+        this.failures = failures;
+        this.meanMicros = meanMicros;
+        this.p50Micros = p50Micros;
+        this.p99Micros = p99Micros;
+        this.maxMicros = maxMicros;
+    }
+
+    public String getStage() {
+        return stage;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getFailures() {
+        return failures;
+    }
+
+    public double getMeanMicros() {
+        return meanMicros;
+    }
+
+    public double getP50Micros() {
+        return p50Micros;
+    }
+
+    public double getP99Micros() {
+        return p99Micros;
+    }
+
+    public double getMaxMicros() {
+        return maxMicros;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%-18s count %10d  failures %6d  mean %10.1f  p50 %10.1f  p99 %10.1f  max %10.1f us",
+                stage, count, failures, meanMicros, p50Micros, p99Micros, maxMicros);
+    }
+
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.metrics;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * JMX view of Instrumentation, registered as com.salesforce.shield.platformencryption:type=WrapMetrics.
+ */
+public interface WrapMetricsMXBean {
+
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    long getWraps();
+
+    /**
+     * @return JWEs produced per second since the previous reading, readings less than a second apart share it
+     */
+    double getWrapsPerSecond();
+
+    List<StageStatistics> getStages();
+
+    /**
+     * @return failure counts keyed by "STAGE exception class"
+     */
+    Map<String, Long> getFailures();
+
+    void reset();
+
+}
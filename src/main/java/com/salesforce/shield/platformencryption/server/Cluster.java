@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.server;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The key services sharing a kid space: a HashRing of "host:port" node names, each kid held by replicas of
+ * them, and which node this one is.
+ */
+public final class Cluster {
+
+    public static final int DEFAULT_REPLICAS = 2;
+    public static final int DEFAULT_VIRTUAL_NODES = 128;
+
+    private final HashRing ring;
+    private final String self;
+    private final int replicas;
+    private final Map<String, InetSocketAddress> addresses = new HashMap<String, InetSocketAddress>();
+
+    /**
+     * @param self this node's name in nodes, or null for a process that only routes, such as ShardKeys
+     */
+    public Cluster(Collection<String> nodes, String self, int replicas, int virtualNodes) {
+        if (replicas < 1) throw new IllegalArgumentException("Every kid needs at least 1 replica");
+        if (self != null && !nodes.contains(self)) throw new IllegalArgumentException(self + " is not one of the nodes " + nodes);
+        for (String node : nodes) addresses.put(node, address(node));
+        this.ring = new HashRing(nodes, virtualNodes);
+        this.self = self;
+        this.replicas = replicas;
+    }
+
+    /**
+     * Parses a comma separated list of "host:port" node names.
+     */
+    public static List<String> parseNodes(String list) {
+        List<String> nodes = new ArrayList<String>();
+        for (String node : list.split(",")) {
+            node = node.trim();
+            if (node.isEmpty()) continue;
+            address(node);
+            if (!nodes.contains(node)) nodes.add(node);
+        }
+        if (nodes.isEmpty()) throw new IllegalArgumentException("No cluster nodes in " + list);
+        return nodes;
+    }
+
+    public String getSelf() {
+        return self;
+    }
+
+    public int getReplicas() {
+        return replicas;
+    }
+
+    public List<String> getNodes() {
+        return ring.getNodes();
+    }
+
+    /**
+     * @return the nodes holding kid, primary first
+     */
+    public List<String> owners(String kid) {
+        return ring.owners(kid, replicas);
+    }
+
+    public boolean isOwner(String node, String kid) {
+        return owners(kid).contains(node);
+    }
+
+    public boolean owns(String kid) {
+        return isOwner(self, kid);
+    }
+
+    InetSocketAddress addressOf(String node) {
+        return addresses.get(node);
+    }
+
+    private static InetSocketAddress address(String node) {
+        int colon = node.lastIndexOf(':');
+        if (colon <= 0 || colon == node.length() - 1) throw new IllegalArgumentException("Expected host:port, not " + node);
+        try {
+            return new InetSocketAddress(node.substring(0, colon), Integer.parseInt(node.substring(colon + 1)));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Expected host:port, not " + node);
+        }
+    }
+
+}
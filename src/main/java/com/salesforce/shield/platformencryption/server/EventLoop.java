@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.server;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single selector thread serving the connections handed to it by the KeyService acceptor.  In cluster
+ * mode the same thread also drives this loop's connections to the other nodes, and keys wrapped on demand
+ * are handed back to it with execute().
+ */
+final class EventLoop implements Runnable {
+
+    //How often peers are checked for stalled requests while any are waiting
+    private static final long TICK_MILLIS = 100;
+
+    private final Selector selector;
+    private final KeyService service;
+    private final Queue<SocketChannel> accepted = new ConcurrentLinkedQueue<SocketChannel>();
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private final Map<String, PeerConnection> peers = new HashMap<String, PeerConnection>();
+    private boolean forwarding;
+
+    EventLoop(KeyService service) throws IOException {
+        this.service = service;
+        this.selector = Selector.open();
+    }
+
+    void register(SocketChannel channel) {
+        accepted.add(channel);
+        selector.wakeup();
+    }
+
+    /**
+     * Runs task on this loop's thread, from any thread.
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    void close() throws IOException {
+        selector.close();
+    }
+
+    KeyIndex index() {
+        return service.index();
+    }
+
+    LazyKeyIndex lazy() {
+        return service.lazy();
+    }
+
+    Cluster cluster() {
+        return service.cluster();
+    }
+
+    PeerConnection peer(String node) {
+        PeerConnection peer = peers.get(node);
+        if (peer == null) {
+            peer = new PeerConnection(node, service.cluster().addressOf(node), selector);
+            peers.put(node, peer);
+        }
+        forwarding = true;
+        return peer;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (selector.isOpen()) {
+                selector.select(forwarding ? TICK_MILLIS : 0);
+                registerAccepted();
+                runTasks();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    process(key);
+                }
+                if (forwarding) expirePeers();
+            }
+        } catch (ClosedSelectorException e) {
+            //shutting down
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void registerAccepted() throws IOException {
+        SocketChannel channel;
+        while ((channel = accepted.poll()) != null) {
+            channel.configureBlocking(false);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            key.attach(new HttpConnection(channel, key));
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) task.run();
+    }
+
+    private void expirePeers() {
+        long now = System.nanoTime();
+        boolean waiting = false;
+        for (PeerConnection peer : peers.values()) waiting |= peer.expire(now);
+        forwarding = waiting;
+    }
+
+    private void process(SelectionKey key) {
+        if (key.attachment() instanceof PeerConnection) {
+            ((PeerConnection) key.attachment()).onSelected();
+            return;
+        }
+        HttpConnection connection = (HttpConnection) key.attachment();
+        try {
+            boolean open = true;
+            if (key.isValid() && key.isWritable()) open = connection.flush();
+            if (open && key.isValid() && key.isReadable()) open = connection.onReadable(this);
+            if (!open) connection.close();
+        } catch (IOException e) {
+            //client went away
+            connection.close();
+        }
+    }
+
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Consistent hash ring over node names.  Each node is placed at virtualNodes points, and a kid belongs to
+ * the first distinct nodes found walking clockwise from the kid's hash.  Adding or removing a node only
+ * changes the owners of the kids next to its points.
+ *
+ * Placement depends only on the set of names, so every process given the same nodes agrees on the owners.
+ */
+public final class HashRing {
+
+    private final String[] nodes;
+    private final long[] points;
+    private final int[] pointNodes;
+
+    public HashRing(Collection<String> nodes, int virtualNodes) {
+        if (nodes.isEmpty()) throw new IllegalArgumentException("A ring needs at least one node");
+        if (virtualNodes < 1) throw new IllegalArgumentException("Each node needs at least one virtual node");
+        this.nodes = new TreeSet<String>(nodes).toArray(new String[0]);
+
+        //Nodes are added in name order, so should two points collide every process keeps the same one
+        TreeMap<Long, Integer> ring = new TreeMap<Long, Integer>();
+        for (int node = 0; node < this.nodes.length; node++) {
+            for (int i = 0; i < virtualNodes; i++) {
+                Long point = hash(this.nodes[node] + "#" + i);
+                if (!ring.containsKey(point)) ring.put(point, node);
+            }
+        }
+        this.points = new long[ring.size()];
+        this.pointNodes = new int[ring.size()];
+        int i = 0;
+        for (Map.Entry<Long, Integer> entry : ring.entrySet()) {
+            points[i] = entry.getKey();
+            pointNodes[i++] = entry.getValue();
+        }
+    }
+
+    /**
+     * @return the nodes holding kid, primary first, at most replicas of them
+     */
+    public List<String> owners(String kid, int replicas) {
+        int wanted = Math.min(replicas, nodes.length);
+        List<String> owners = new ArrayList<String>(wanted);
+        int start = Arrays.binarySearch(points, hash(kid));
+        if (start < 0) start = -start - 1;
+        for (int i = 0; i < points.length && owners.size() < wanted; i++) {
+            String node = nodes[pointNodes[(start + i) % points.length]];
+            if (!owners.contains(node)) owners.add(node);
+        }
+        return owners;
+    }
+
+    public List<String> getNodes() {
+        return Collections.unmodifiableList(Arrays.asList(nodes));
+    }
+
+    //FNV-1a over the UTF-8 bytes with the murmur3 finalizer, so similar names still spread around the ring
+    static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+}
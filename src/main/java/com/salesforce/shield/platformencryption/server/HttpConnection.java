@@ -0,0 +1,287 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BiConsumer;
+
+/**
+ * One keep-alive HTTP/1.1 connection owned by a single EventLoop.  Only GET and HEAD of /<kid> are
+ * understood; pipelined requests are answered in order.  A kid that is wrapped on demand, or that this node
+ * doesn't own in cluster mode and forwards to its owners, is answered once its response arrives, and later
+ * answers wait behind it.
+ */
+final class HttpConnection {
+
+    private static final int MAX_REQUEST_HEAD = 8192;
+
+    private final SocketChannel channel;
+    private final SelectionKey selectionKey;
+    private final ByteBuffer in = ByteBuffer.allocate(MAX_REQUEST_HEAD);
+    //Responses in request order: a ByteBuffer, or a Pending that may not have its response yet
+    private final ArrayDeque<Object> out = new ArrayDeque<Object>();
+    private boolean closeAfterFlush;
+
+    HttpConnection(SocketChannel channel, SelectionKey selectionKey) {
+        this.channel = channel;
+        this.selectionKey = selectionKey;
+    }
+
+    /**
+     * Reads and answers every complete request that is available.
+     *
+     * @return false once the connection should be closed
+     */
+    boolean onReadable(EventLoop loop) throws IOException {
+
+        if (channel.read(in) < 0) return false;
+
+        in.flip();
+        while (!closeAfterFlush) {
+            int end = headEnd(in);
+            if (end < 0) break;
+            handle(in.array(), in.position(), end, loop);
+            in.position(end);
+        }
+        in.compact();
+
+        if (!in.hasRemaining() && !closeAfterFlush) {
+            //A request head that doesn't fit in the buffer is not one of ours
+            respond(HttpResponses.HEADERS_TOO_LARGE, true);
+        }
+        return flush();
+    }
+
+    /**
+     * Writes as much pending output as the socket accepts.
+     *
+     * @return false once everything is written and the connection should be closed
+     */
+    boolean flush() throws IOException {
+        while (!out.isEmpty()) {
+            Object next = out.peek();
+            ByteBuffer head;
+            if (next instanceof Pending) {
+                head = ((Pending) next).response;
+                if (head == null) break;
+            } else {
+                head = (ByteBuffer) next;
+            }
+            channel.write(head);
+            if (head.hasRemaining()) {
+                selectionKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return true;
+            }
+            out.poll();
+        }
+        if (closeAfterFlush && out.isEmpty()) return false;
+        selectionKey.interestOps(SelectionKey.OP_READ);
+        return true;
+    }
+
+    //Called when a pending response arrives, on the loop thread
+    private void resume() {
+        if (!channel.isOpen()) return;
+        try {
+            if (!flush()) close();
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    void close() {
+        selectionKey.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            //nothing useful to do
+        }
+    }
+
+    private void handle(byte[] buf, int start, int end, EventLoop loop) {
+
+        String head = new String(buf, start, end - start, StandardCharsets.ISO_8859_1);
+        int lineEnd = head.indexOf("\r\n");
+        String[] requestLine = head.substring(0, lineEnd).split(" ");
+        if (requestLine.length != 3 || !requestLine[1].startsWith("/")) {
+            respond(HttpResponses.BAD_REQUEST, true);
+            return;
+        }
+
+        boolean close = wantsClose(requestLine[2], head.substring(lineEnd + 2));
+        boolean isHead = "HEAD".equals(requestLine[0]);
+        if (!isHead && !"GET".equals(requestLine[0])) {
+            //We don't read request bodies, so the connection can't be reused
+            respond(HttpResponses.METHOD_NOT_ALLOWED, true);
+            return;
+        }
+
+        String kid;
+        try {
+            kid = kid(requestLine[1]);
+        } catch (IllegalArgumentException e) {
+            respond(HttpResponses.BAD_REQUEST, close);
+            return;
+        }
+        ByteBuffer response = loop.index().get(kid);
+        LazyKeyIndex lazy = loop.lazy();
+        if (response == null && lazy != null && lazy.contains(kid)) {
+            response = lazy.cached(kid);
+            if (response == null) {
+                Wrap wrap = new Wrap(loop, isHead);
+                out.add(wrap);
+                closeAfterFlush |= close;
+                lazy.get(kid).whenComplete(wrap);
+                return;
+            }
+        }
+        if (response == null) {
+            Cluster cluster = loop.cluster();
+            if (cluster != null && !cluster.owns(kid) && header(head, PeerConnection.FORWARDED_HEADER) == null) {
+                Forward forward = new Forward(loop, kid, isHead, cluster.owners(kid));
+                out.add(forward);
+                closeAfterFlush |= close;
+                forward.next();
+                return;
+            }
+            response = HttpResponses.NOT_FOUND.duplicate();
+        }
+        if (isHead) response.limit(headLength(response));
+        respond(response, close);
+    }
+
+    private void respond(ByteBuffer response, boolean close) {
+        out.add(response.duplicate());
+        closeAfterFlush |= close;
+    }
+
+    //The kid is the last path segment, so the service can sit behind any named credential prefix
+    static String kid(String target) {
+        int query = target.indexOf('?');
+        String path = query < 0 ? target : target.substring(0, query);
+        return PathSegments.decode(path.substring(path.lastIndexOf('/') + 1));
+    }
+
+    private static boolean wantsClose(String version, String headers) {
+        boolean keepAlive = "HTTP/1.1".equals(version);
+        String value = header(headers, "Connection");
+        if ("close".equalsIgnoreCase(value)) keepAlive = false;
+        else if ("keep-alive".equalsIgnoreCase(value)) keepAlive = true;
+        return !keepAlive;
+    }
+
+    private static String header(String head, String name) {
+        for (String header : head.split("\r\n")) {
+            int colon = header.indexOf(':');
+            if (colon > 0 && header.substring(0, colon).trim().equalsIgnoreCase(name)) return header.substring(colon + 1).trim();
+        }
+        return null;
+    }
+
+    //Returns the offset just past the blank line ending the request head, or -1 if it hasn't arrived yet
+    private static int headEnd(ByteBuffer buf) {
+        byte[] array = buf.array();
+        for (int i = buf.position(); i + 3 < buf.limit(); i++) {
+            if (array[i] == '\r' && array[i + 1] == '\n' && array[i + 2] == '\r' && array[i + 3] == '\n') return i + 4;
+        }
+        return -1;
+    }
+
+    //A response that is still on its way, filled in on the loop thread
+    private abstract class Pending {
+
+        private final boolean isHead;
+        ByteBuffer response;
+
+        Pending(boolean isHead) {
+            this.isHead = isHead;
+        }
+
+        void complete(ByteBuffer complete) {
+            if (isHead) complete.limit(headLength(complete));
+            response = complete;
+            resume();
+        }
+    }
+
+    //A request for a kid this node doesn't own, tried on each owner in turn until one answers
+    private final class Forward extends Pending implements PeerConnection.Callback {
+
+        private final EventLoop loop;
+        private final String kid;
+        private final List<String> owners;
+        private int tried;
+
+        Forward(EventLoop loop, String kid, boolean isHead, List<String> owners) {
+            super(isHead);
+            this.loop = loop;
+            this.kid = kid;
+            this.owners = owners;
+        }
+
+        void next() {
+            if (tried == owners.size()) {
+                complete(HttpResponses.BAD_GATEWAY.duplicate());
+                return;
+            }
+            loop.peer(owners.get(tried++)).send(kid, this);
+        }
+
+        @Override
+        public void completed(ByteBuffer forwarded) {
+            complete(forwarded);
+        }
+
+        @Override
+        public void failed() {
+            next();
+        }
+    }
+
+    //A request for a kid being wrapped on demand, which finishes on a wrapping thread
+    private final class Wrap extends Pending implements BiConsumer<ByteBuffer, Throwable>, Runnable {
+
+        private final EventLoop loop;
+        private ByteBuffer wrapped;
+        private Throwable failure;
+
+        Wrap(EventLoop loop, boolean isHead) {
+            super(isHead);
+            this.loop = loop;
+        }
+
+        @Override
+        public void accept(ByteBuffer wrapped, Throwable failure) {
+            this.wrapped = wrapped;
+            this.failure = failure;
+            loop.execute(this);
+        }
+
+        @Override
+        public void run() {
+            if (wrapped != null) complete(wrapped.duplicate());
+            else if (failure instanceof RejectedExecutionException) complete(HttpResponses.SERVICE_UNAVAILABLE.duplicate());
+            else complete(HttpResponses.INTERNAL_SERVER_ERROR.duplicate());
+        }
+    }
+
+    private static int headLength(ByteBuffer response) {
+        for (int i = response.position(); i + 3 < response.limit(); i++) {
+            if (response.get(i) == '\r' && response.get(i + 1) == '\n' && response.get(i + 2) == '\r' && response.get(i + 3) == '\n') return i + 4;
+        }
+        return response.limit();
+    }
+
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Pre-rendered HTTP/1.1 responses.  Buffers are direct and read-only; callers write duplicates.
+ */
+final class HttpResponses {
+
+    static final ByteBuffer BAD_REQUEST = status("400 Bad Request");
+    static final ByteBuffer NOT_FOUND = status("404 Not Found");
+    static final ByteBuffer METHOD_NOT_ALLOWED = status("405 Method Not Allowed");
+    static final ByteBuffer HEADERS_TOO_LARGE = status("431 Request Header Fields Too Large");
+    static final ByteBuffer INTERNAL_SERVER_ERROR = status("500 Internal Server Error");
+    static final ByteBuffer BAD_GATEWAY = status("502 Bad Gateway");
+    static final ByteBuffer SERVICE_UNAVAILABLE = status("503 Service Unavailable");
+
+    private HttpResponses() {
+    }
+
+    static ByteBuffer ok(byte[] body) {
+        return render("200 OK", "application/json", body);
+    }
+
+    private static ByteBuffer status(String status) {
+        return render(status, "text/plain", status.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static ByteBuffer render(String status, String contentType, byte[] body) {
+        byte[] head = ("HTTP/1.1 " + status + "\r\n"
+                + "Content-Type: " + contentType + "\r\n"
+                + "Content-Length: " + body.length + "\r\n"
+                + "Cache-Control: no-store\r\n"
+                + "\r\n").getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer response = ByteBuffer.allocateDirect(head.length + body.length);
+        response.put(head).put(body).flip();
+        return response.asReadOnlyBuffer();
+    }
+
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.server;
+
+import com.salesforce.shield.platformencryption.util.KeyStoreFile;
+import org.jose4j.json.JsonUtil;
+import org.jose4j.lang.JoseException;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * In-memory index of key representations by kid.  Every entry holds the complete, pre-rendered
+ * HTTP response so serving a key is a map lookup and a buffer write.  A KeyIndexWatcher replaces
+ * entries one kid at a time while it is being served, and a reader sees either the old or the new
+ * response for a kid.
+ */
+public class KeyIndex {
+
+    private final ConcurrentHashMap<String, ByteBuffer> responses;
+
+    public KeyIndex(Map<String, ByteBuffer> responses) {
+        this.responses = new ConcurrentHashMap<String, ByteBuffer>(responses);
+    }
+
+    /**
+     * Loads every key representation file in dir, as written by WrapEncryptionKey or WrapAWSEncryptionKey.
+     * KMS backup files and files that are not key representations are skipped.
+     */
+    public static KeyIndex load(File dir) throws IOException {
+        return load(dir, null);
+    }
+
+    /**
+     * Loads the key representation files in dir whose kid is accepted by kids, or all of them when kids is null.
+     */
+    public static KeyIndex load(File dir, Predicate<String> kids) throws IOException {
+        return load(dir, kids, null);
+    }
+
+    //Also records the kid of every key representation file by file name in kidsByFile, when it isn't null
+    static KeyIndex load(File dir, Predicate<String> kids, Map<String, String> kidsByFile) throws IOException {
+
+        File[] files = dir.listFiles();
+        if (files == null) throw new IOException("Unable to list key directory " + dir);
+
+        Map<String, ByteBuffer> responses = new HashMap<String, ByteBuffer>(files.length * 2);
+        for (File file : files) {
+            if (!file.isFile() || file.getName().endsWith(".backup")) continue;
+            byte[] body = Files.readAllBytes(file.toPath());
+            String kid = parseKid(body);
+            if (kid == null) {
+                System.out.println("Skipping " + file + ", not a key representation");
+                continue;
+            }
+            if (kidsByFile != null) kidsByFile.put(file.getName(), kid);
+            if (kids != null && !kids.test(kid)) continue;
+            responses.put(kid, HttpResponses.ok(body));
+        }
+        return new KeyIndex(responses);
+    }
+
+    /**
+     * Loads every key representation in a key store.  Values are copied out of the store's mapping so
+     * serving never faults pages in from disk.
+     */
+    public static KeyIndex load(KeyStoreFile keyStore) {
+        return load(keyStore, null);
+    }
+
+    /**
+     * Loads the key representations in a key store whose kid is accepted by kids, or all of them when kids is null.
+     */
+    public static KeyIndex load(KeyStoreFile keyStore, Predicate<String> kids) {
+
+        Map<String, ByteBuffer> responses = new HashMap<String, ByteBuffer>();
+        for (String kid : keyStore.kids()) {
+            if (kid.endsWith(".backup")) continue;
+            if (kids != null && !kids.test(kid)) continue;
+            ByteBuffer value = keyStore.get(kid);
+            if (value == null) continue;
+            byte[] body = new byte[value.remaining()];
+            value.get(body);
+            if (!kid.equals(parseKid(body))) {
+                System.out.println("Skipping " + kid + ", not a key representation");
+                continue;
+            }
+            responses.put(kid, HttpResponses.ok(body));
+        }
+        return new KeyIndex(responses);
+    }
+
+    static String parseKid(byte[] body) {
+        try {
+            Map<String, Object> representation = JsonUtil.parseJson(new String(body, StandardCharsets.UTF_8));
+            Object kid = representation.get("kid");
+            Object jwe = representation.get("jwe");
+            if (kid instanceof String && jwe instanceof String) return (String) kid;
+        } catch (JoseException e) {
+            //not JSON, fall through
+        }
+        return null;
+    }
+
+    /**
+     * @return a read-only view of the full HTTP response for kid, or null if the kid is unknown
+     */
+    public ByteBuffer get(String kid) {
+        ByteBuffer response = responses.get(kid);
+        return response == null ? null : response.duplicate();
+    }
+
+    public int size() {
+        return responses.size();
+    }
+
+    Set<String> kids() {
+        return responses.keySet();
+    }
+
+    void put(String kid, byte[] body) {
+        responses.put(kid, HttpResponses.ok(body));
+    }
+
+    boolean remove(String kid) {
+        return responses.remove(kid) != null;
+    }
+
+}
@@ -0,0 +1,409 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.server;
+
+import com.salesforce.shield.platformencryption.util.CertificateCache;
+import com.salesforce.shield.platformencryption.util.CryptoException;
+import com.salesforce.shield.platformencryption.util.KeyStoreFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Keeps a KeyIndex, and the certificate of a LazyKeyIndex, up to date with the files they were loaded from
+ * while they are being served.  A background thread waits on a WatchService and reads only what changed: the
+ * key representation files that were written or deleted, or the records appended to a key store.  Each kid
+ * is swapped in the index on its own, so serving never waits for a reload.
+ *
+ * Sources are added before start().  Rereading everything is left to the rare cases that need it, when the
+ * WatchService lost events or a key store was compacted.
+ */
+public final class KeyIndexWatcher implements Runnable, AutoCloseable {
+
+    //Writers produce a file in several steps, so changes are collected until they stop for this long
+    private static final long SETTLE_MILLIS = 50;
+    //A writer that never pauses still has its changes applied at least this often
+    private static final long MAX_BATCH_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final WatchService watchService;
+    private final Map<WatchKey, List<Source>> sources = new HashMap<WatchKey, List<Source>>();
+    private Thread thread;
+
+    public KeyIndexWatcher() throws IOException {
+        this.watchService = FileSystems.getDefault().newWatchService();
+    }
+
+    /**
+     * Loads the key representation files in dir whose kid is accepted by kids, or all of them when kids is
+     * null, and keeps the returned index up to date with the directory.
+     */
+    public KeyIndex watchDirectory(File dir, Predicate<String> kids) throws IOException {
+        //Watching starts before the listing, so a file written meanwhile is seen by one or the other
+        WatchKey key = register(dir);
+        DirectorySource source = new DirectorySource(dir, kids);
+        source.index = KeyIndex.load(dir, kids, source.kidsByFile);
+        add(key, source);
+        return source.index;
+    }
+
+    /**
+     * Loads the key representations in the key store file whose kid is accepted by kids, or all of them when
+     * kids is null, and keeps the returned index up to date with the records appended to the store.
+     */
+    public KeyIndex watchKeyStore(File file, Predicate<String> kids) throws IOException {
+        WatchKey key = register(file.getAbsoluteFile().getParentFile());
+        KeyStoreSource source = new KeyStoreSource(file, kids);
+        source.keyStore = KeyStoreFile.open(file, false);
+        source.index = KeyIndex.load(source.keyStore, kids);
+        add(key, source);
+        return source.index;
+    }
+
+    /**
+     * Switches lazy to the certificate in file whenever it changes.
+     */
+    public void watchCertificate(File file, LazyKeyIndex lazy) throws IOException {
+        add(register(file.getAbsoluteFile().getParentFile()), new CertificateSource(file, lazy));
+    }
+
+    public synchronized void start() {
+        if (thread != null) return;
+        thread = new Thread(this, "keyindex-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                Map<Source, Set<String>> changes = new LinkedHashMap<Source, Set<String>>();
+                Set<Source> rescans = new LinkedHashSet<Source>();
+                collect(watchService.take(), changes, rescans);
+                long started = System.nanoTime();
+                WatchKey key;
+                while (System.nanoTime() - started < MAX_BATCH_NANOS
+                        && (key = watchService.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+                    collect(key, changes, rescans);
+                }
+
+                for (Source source : rescans) {
+                    changes.remove(source);
+                    apply(source, null);
+                }
+                for (Map.Entry<Source, Set<String>> entry : changes.entrySet()) apply(entry.getKey(), entry.getValue());
+            }
+        } catch (InterruptedException e) {
+            //closed
+        } catch (ClosedWatchServiceException e) {
+            //closed
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        watchService.close();
+        for (List<Source> registered : sources.values()) {
+            for (Source source : registered) source.close();
+        }
+    }
+
+    private WatchKey register(File dir) throws IOException {
+        return dir.toPath().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+    }
+
+    //Watching the same directory twice gives the same key, so one key may serve several sources
+    private synchronized void add(WatchKey key, Source source) {
+        if (thread != null) throw new IllegalStateException("Sources must be added before the watcher is started");
+        List<Source> registered = sources.get(key);
+        if (registered == null) {
+            registered = new ArrayList<Source>();
+            sources.put(key, registered);
+        }
+        registered.add(source);
+    }
+
+    private void collect(WatchKey key, Map<Source, Set<String>> changes, Set<Source> rescans) {
+        List<Source> registered = sources.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (registered == null) continue;
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                rescans.addAll(registered);
+                continue;
+            }
+            String name = ((Path) event.context()).toString();
+            for (Source source : registered) {
+                if (!source.accepts(name)) continue;
+                Set<String> names = changes.get(source);
+                if (names == null) {
+                    names = new HashSet<String>();
+                    changes.put(source, names);
+                }
+                names.add(name);
+            }
+        }
+        key.reset();
+    }
+
+    private static void apply(Source source, Set<String> names) {
+        try {
+            source.changed(names);
+        } catch (IOException e) {
+            System.out.println("Unable to reload " + source + ": " + e.getMessage());
+        } catch (RuntimeException e) {
+            System.out.println("Unable to reload " + source + ": " + e);
+        }
+    }
+
+    private abstract static class Source {
+
+        abstract boolean accepts(String name);
+
+        /**
+         * @param names the file names that changed, or null if anything may have
+         */
+        abstract void changed(Set<String> names) throws IOException;
+
+        void close() throws IOException {
+        }
+    }
+
+    //A directory of key representation files, one kid per file
+    private static final class DirectorySource extends Source {
+
+        private final File dir;
+        private final Predicate<String> kids;
+        private final Map<String, String> kidsByFile = new HashMap<String, String>();
+        private KeyIndex index;
+
+        DirectorySource(File dir, Predicate<String> kids) {
+            this.dir = dir;
+            this.kids = kids;
+        }
+
+        @Override
+        boolean accepts(String name) {
+            return !name.endsWith(".backup");
+        }
+
+        @Override
+        void changed(Set<String> names) throws IOException {
+            if (names == null) {
+                String[] listed = dir.list();
+                if (listed == null) throw new IOException("Unable to list key directory " + dir);
+                names = new HashSet<String>(Arrays.asList(listed));
+                names.addAll(kidsByFile.keySet());
+            }
+
+            //A renamed file shows up as a new name and an old one in no particular order, and two files may hold
+            //the same kid, so a kid is only removed once every file holding it is gone
+            Map<String, byte[]> bodies = new HashMap<String, byte[]>();
+            Set<String> orphaned = new HashSet<String>();
+            for (String name : names) {
+                if (!accepts(name)) continue;
+                String previous = kidsByFile.get(name);
+                byte[] body;
+                try {
+                    body = read(name);
+                } catch (IOException e) {
+                    //Gone again, or unreadable, either way the next event decides
+                    continue;
+                }
+                String kid = body == null ? null : KeyIndex.parseKid(body);
+                if (body != null && kid == null) {
+                    //Not a key representation, or one that is only partly written: keep serving what was there
+                    continue;
+                }
+                if (previous != null && !previous.equals(kid)) {
+                    kidsByFile.remove(name);
+                    orphaned.add(previous);
+                }
+                if (kid == null) continue;
+                kidsByFile.put(name, kid);
+                if (kids != null && !kids.test(kid)) continue;
+                bodies.put(kid, body);
+            }
+
+            int removed = 0;
+            orphaned.removeAll(bodies.keySet());
+            if (!orphaned.isEmpty()) {
+                Map<String, String> filesByKid = new HashMap<String, String>();
+                for (Map.Entry<String, String> entry : kidsByFile.entrySet()) {
+                    if (orphaned.contains(entry.getValue())) filesByKid.put(entry.getValue(), entry.getKey());
+                }
+                for (String kid : orphaned) {
+                    String survivor = filesByKid.get(kid);
+                    if (survivor == null) {
+                        if (index.remove(kid)) removed++;
+                        continue;
+                    }
+                    //Still held by another file, whose copy is the one to serve now
+                    byte[] body;
+                    try {
+                        body = read(survivor);
+                    } catch (IOException e) {
+                        continue;
+                    }
+                    if (body != null && kid.equals(KeyIndex.parseKid(body)) && (kids == null || kids.test(kid))) {
+                        bodies.put(kid, body);
+                    }
+                }
+            }
+
+            for (Map.Entry<String, byte[]> entry : bodies.entrySet()) index.put(entry.getKey(), entry.getValue());
+            int updated = bodies.size();
+            if (updated > 0 || removed > 0) {
+                System.out.println("Reloaded " + updated + " and removed " + removed + " key representations from " + dir);
+            }
+        }
+
+        //The file's contents, or null if there is no such file
+        private byte[] read(String name) throws IOException {
+            File file = new File(dir, name);
+            return file.isFile() ? Files.readAllBytes(file.toPath()) : null;
+        }
+
+        @Override
+        public String toString() {
+            return "key directory " + dir;
+        }
+    }
+
+    //A key store another process appends to
+    private static final class KeyStoreSource extends Source {
+
+        private final File file;
+        private final Predicate<String> kids;
+        private KeyStoreFile keyStore;
+        private KeyIndex index;
+
+        KeyStoreSource(File file, Predicate<String> kids) {
+            this.file = file;
+            this.kids = kids;
+        }
+
+        @Override
+        boolean accepts(String name) {
+            return name.equals(file.getName());
+        }
+
+        @Override
+        void changed(Set<String> names) throws IOException {
+            List<String> changed = keyStore.refresh();
+            Set<String> gone = null;
+            if (changed == null) {
+                //Compacted or replaced, so every kid is looked up again in the new file
+                KeyStoreFile reopened = KeyStoreFile.open(file, false);
+                keyStore.close();
+                keyStore = reopened;
+                changed = keyStore.kids();
+                gone = new HashSet<String>(index.kids());
+                gone.removeAll(changed);
+            }
+
+            int updated = 0;
+            int removed = 0;
+            for (String kid : changed) {
+                if (kid.endsWith(".backup") || (kids != null && !kids.test(kid))) continue;
+                ByteBuffer value = keyStore.get(kid);
+                if (value == null) {
+                    if (index.remove(kid)) removed++;
+                    continue;
+                }
+                byte[] body = new byte[value.remaining()];
+                value.get(body);
+                if (!kid.equals(KeyIndex.parseKid(body))) continue;
+                index.put(kid, body);
+                updated++;
+            }
+            if (gone != null) {
+                for (String kid : gone) {
+                    if (index.remove(kid)) removed++;
+                }
+            }
+            if (updated > 0 || removed > 0) {
+                System.out.println("Reloaded " + updated + " and removed " + removed + " key representations from " + file);
+            }
+        }
+
+        @Override
+        void close() throws IOException {
+            keyStore.close();
+        }
+
+        @Override
+        public String toString() {
+            return "key store " + file;
+        }
+    }
+
+    private static final class CertificateSource extends Source {
+
+        private final File file;
+        private final LazyKeyIndex lazy;
+
+        CertificateSource(File file, LazyKeyIndex lazy) {
+            this.file = file;
+            this.lazy = lazy;
+        }
+
+        //Mounted secrets are swapped by renaming a symlinked directory next to the file, not by writing the file
+        @Override
+        boolean accepts(String name) {
+            return name.equals(file.getName()) || name.startsWith("..");
+        }
+
+        @Override
+        void changed(Set<String> names) throws IOException {
+            PublicKey wrappingKey;
+            try {
+                wrappingKey = CertificateCache.parse(file).getPublicKey();
+            } catch (CryptoException e) {
+                //Most likely half written, the rest of the write brings another event
+                System.out.println("Keeping the current certificate, unable to read " + file + ": " + e.getMessage());
+                return;
+            }
+            if (Arrays.equals(wrappingKey.getEncoded(), lazy.getWrappingKey().getEncoded())) return;
+            try {
+                lazy.setWrappingKey(wrappingKey);
+            } catch (CryptoException e) {
+                System.out.println("Keeping the current certificate, " + file + " can't be used: " + e.getMessage());
+                return;
+            }
+            System.out.println("Reloaded certificate " + file);
+        }
+
+        @Override
+        public String toString() {
+            return "certificate " + file;
+        }
+    }
+
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.server;
+
+import com.salesforce.shield.platformencryption.util.CertificateCache;
+import com.salesforce.shield.platformencryption.util.CryptoException;
+import com.salesforce.shield.platformencryption.util.KeyStoreFile;
+import org.apache.commons.cli.*;
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Serves Cache-Only Key representations over HTTP from memory.  A request for /<kid> (under any path
+ * prefix) returns the {"kid","jwe"} document for that kid.  One acceptor thread hands connections to a
+ * fixed set of non-blocking EventLoops; nothing on the request path touches the disk.
+ *
+ * In cluster mode several services split the kids between them on a HashRing.  Each one holds the kids it
+ * owns and forwards requests for any other kid to that kid's owners.
+ *
+ * Keys can also be held as DEKs under a local master key in a LazyKeyIndex, and wrapped for the current
+ * certificate the first time they are asked for.  With a KeyIndexWatcher, new and changed keys and a new
+ * certificate are picked up without a restart.
+ */
+public class KeyService {
+
+    private final KeyIndex index;
+    private final LazyKeyIndex lazy;
+    private final Cluster cluster;
+    private final EventLoop[] loops;
+    private ServerSocketChannel serverChannel;
+
+    public KeyService(KeyIndex index, int threads) throws IOException {
+        this(index, threads, null);
+    }
+
+    public KeyService(KeyIndex index, int threads, Cluster cluster) throws IOException {
+        this(index, null, threads, cluster);
+    }
+
+    /**
+     * @param lazy keys to wrap on demand when index doesn't have them, or null
+     */
+    public KeyService(KeyIndex index, LazyKeyIndex lazy, int threads, Cluster cluster) throws IOException {
+        this.index = index;
+        this.lazy = lazy;
+        this.cluster = cluster;
+        this.loops = new EventLoop[threads];
+        for (int i = 0; i < threads; i++) loops[i] = new EventLoop(this);
+    }
+
+    KeyIndex index() {
+        return index;
+    }
+
+    LazyKeyIndex lazy() {
+        return lazy;
+    }
+
+    Cluster cluster() {
+        return cluster;
+    }
+
+    /**
+     * Binds to address and starts the event loops.  Connections are accepted on the calling thread
+     * until close() is called.
+     */
+    public void serve(InetSocketAddress address) throws IOException {
+
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        serverChannel.bind(address, 1024);
+
+        for (int i = 0; i < loops.length; i++) {
+            Thread thread = new Thread(loops[i], "keyservice-loop-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        int next = 0;
+        try {
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            }
+        } catch (ClosedChannelException e) {
+            //close() was called
+        }
+    }
+
+    public void close() throws IOException {
+        if (serverChannel != null) serverChannel.close();
+        for (EventLoop loop : loops) loop.close();
+    }
+
+    public static void main(String[] args) {
+
+        CommandLineParser parser = new DefaultParser();
+        Options options = new Options();
+        options.addOption( "h","help", false, "Help for KeyService" );
+        options.addOption( "d", "dir", true, "Directory of Cache-Only Key representation files (required unless -ks or -k)" );
+        options.addOption( "ks", "keystore", true, "Key store file of Cache-Only Key representations (required unless -d or -k)" );
+        options.addOption( "k", "keys", true, "NDJSON file of {\"kid\",\"key\"} records to wrap on demand, \"key\" encrypted under -m (optional)" );
+        options.addOption( "m", "master", true, "Hex encoded AES master key the -k keys are encrypted with (required with -k)" );
+        options.addOption( "w", "cert", true, "Path to the Certificate File -k keys are wrapped for (required with -k)" );
+        options.addOption( "e", "expiry", true, "Seconds a key wrapped on demand is served for, defaults to " + LazyKeyIndex.DEFAULT_TTL_SECONDS + " (optional)" );
+        options.addOption( "n", "cached", true, "Most keys wrapped on demand held at once, defaults to " + LazyKeyIndex.DEFAULT_MAX_CACHED + " (optional)" );
+        options.addOption( "u", "watch", false, "Reload changes to the -d or -ks key representations and the -w certificate while serving (optional)" );
+        options.addOption( "p", "port", true, "Port to listen on, defaults to 8080 (optional)" );
+        options.addOption( "b", "bind", true, "Address to bind to, defaults to all interfaces (optional)" );
+        options.addOption( "t", "threads", true, "Number of event loop threads, defaults to all cores (optional)" );
+        options.addOption( "c", "cluster", true, "Comma separated host:port of every node, enables cluster mode (optional)" );
+        options.addOption( "s", "self", true, "This node's host:port in -c, defaults to the -b address and -p port (optional)" );
+        options.addOption( "r", "replicas", true, "Nodes holding each kid in cluster mode, defaults to " + Cluster.DEFAULT_REPLICAS + " (optional)" );
+        options.addOption( "v", "vnodes", true, "Virtual nodes per node in cluster mode, defaults to " + Cluster.DEFAULT_VIRTUAL_NODES + " (optional)" );
+
+        try {
+
+            CommandLine line = parser.parse( options, args );
+
+            boolean representations = line.hasOption( "d" ) || line.hasOption( "ks" );
+            if(line.hasOption( "help" ) || line.getOptions().length == 0 || (line.hasOption( "d" ) && line.hasOption( "ks" ))
+                    || (!representations && !line.hasOption( "k" )) || (line.hasOption( "k" ) && (!line.hasOption( "m" ) || !line.hasOption( "w" )))) {
+                HelpFormatter formatter = new HelpFormatter();
+                formatter.printHelp( "KeyService", options );
+            } else {
+
+                int port = intValue(line, "p", 8080);
+                int threads = intValue(line, "t", Runtime.getRuntime().availableProcessors());
+                if (threads < 1) throw new ParseException("Please choose at least 1 thread.");
+                InetSocketAddress address = line.hasOption( "b" ) ? new InetSocketAddress(line.getOptionValue( "b" ), port) : new InetSocketAddress(port);
+
+                Cluster cluster = null;
+                Predicate<String> owned = null;
+                if( line.hasOption( "c" ) ) {
+                    String self = line.getOptionValue( "s" );
+                    if (self == null && !line.hasOption( "b" )) throw new ParseException("Please name this node with -s, or bind it with -b.");
+                    if (self == null) self = line.getOptionValue( "b" ) + ":" + port;
+                    int replicas = intValue(line, "r", Cluster.DEFAULT_REPLICAS);
+                    int virtualNodes = intValue(line, "v", Cluster.DEFAULT_VIRTUAL_NODES);
+                    try {
+                        cluster = new Cluster(Cluster.parseNodes(line.getOptionValue( "c" )), self, replicas, virtualNodes);
+                    } catch (IllegalArgumentException e) {
+                        throw new ParseException(e.getMessage());
+                    }
+                    final Cluster shard = cluster;
+                    owned = new Predicate<String>() {
+                        @Override
+                        public boolean test(String kid) {
+                            return shard.owns(kid);
+                        }
+                    };
+                }
+
+                KeyIndexWatcher watcher = line.hasOption( "u" ) ? new KeyIndexWatcher() : null;
+                KeyIndex index;
+                if( line.hasOption( "ks" ) && watcher != null ) {
+                    index = watcher.watchKeyStore(new File(line.getOptionValue( "ks" )), owned);
+                } else if( line.hasOption( "ks" ) ) {
+                    KeyStoreFile keyStore = KeyStoreFile.open(new File(line.getOptionValue( "ks" )), false);
+                    index = KeyIndex.load(keyStore, owned);
+                    keyStore.close();
+                } else if( line.hasOption( "d" ) && watcher != null ) {
+                    index = watcher.watchDirectory(new File(line.getOptionValue( "d" )), owned);
+                } else if( line.hasOption( "d" ) ) {
+                    index = KeyIndex.load(new File(line.getOptionValue( "d" )), owned);
+                } else {
+                    index = new KeyIndex(Collections.<String, ByteBuffer>emptyMap());
+                }
+                if (representations) System.out.println("Loaded " + index.size() + " Cache-Only Key representations");
+
+                LazyKeyIndex lazy = null;
+                if( line.hasOption( "k" ) ) {
+                    lazy = lazy(line, owned);
+                    System.out.println("Loaded " + lazy.size() + " keys to wrap on demand");
+                    if (watcher != null) watcher.watchCertificate(new File(line.getOptionValue( "w" )), lazy);
+                }
+                if (cluster != null) {
+                    System.out.println("Node " + cluster.getSelf() + " of " + cluster.getNodes().size() + ", each kid on " + cluster.getReplicas());
+                }
+
+                KeyService service = new KeyService(index, lazy, threads, cluster);
+                if (watcher != null) watcher.start();
+                System.out.println("Serving keys on " + address);
+                service.serve(address);
+            }
+
+        } catch( ParseException e ) {
+            System.out.println( "ERROR: " + e.getMessage() );
+        } catch (CryptoException e) {
+            System.out.println( "ERROR: " + e.getMessage() );
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+    }
+
+    //A value that isn't a number is a usage error like any other
+    private static int intValue(CommandLine line, String opt, int defaultValue) throws ParseException {
+        String value = line.getOptionValue(opt);
+        if (value == null) return defaultValue;
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new ParseException("Please choose a number for -" + opt + ", not " + value);
+        }
+    }
+
+    private static long longValue(CommandLine line, String opt, long defaultValue) throws ParseException {
+        String value = line.getOptionValue(opt);
+        if (value == null) return defaultValue;
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new ParseException("Please choose a number for -" + opt + ", not " + value);
+        }
+    }
+
+    private static LazyKeyIndex lazy(CommandLine line, Predicate<String> owned) throws ParseException, IOException, CryptoException {
+
+        long ttl = longValue(line, "e", LazyKeyIndex.DEFAULT_TTL_SECONDS);
+        if (ttl < 1) throw new ParseException("Please choose an expiry of at least 1 second.");
+        int maxCached = intValue(line, "n", LazyKeyIndex.DEFAULT_MAX_CACHED);
+        if (maxCached < 1) throw new ParseException("Please cache at least 1 key.");
+
+        byte[] masterKey;
+        try {
+            masterKey = Hex.decodeHex(line.getOptionValue( "m" ));
+        } catch (DecoderException e) {
+            throw new CryptoException("Unable to hex decode master key", e);
+        }
+        try {
+            if (masterKey.length != 32) throw new CryptoException("You must specify a Hex encoded 256 bit AES master key");
+
+            Map<String, byte[]> protectedKeys;
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(line.getOptionValue( "k" )), StandardCharsets.UTF_8));
+            try {
+                protectedKeys = LazyKeyIndex.readProtectedKeys(reader, owned);
+            } finally {
+                reader.close();
+            }
+
+            return new LazyKeyIndex(protectedKeys, masterKey, CertificateCache.parse(new File(line.getOptionValue( "w" ))).getPublicKey(),
+                    ttl, TimeUnit.SECONDS, maxCached, Runtime.getRuntime().availableProcessors());
+        } finally {
+            Arrays.fill(masterKey, (byte) 0);
+        }
+    }
+
+}
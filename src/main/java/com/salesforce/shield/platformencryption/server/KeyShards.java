@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.server;
+
+import com.salesforce.shield.platformencryption.util.KeyStoreFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Splits key representations into one key store per cluster node, holding the kids the node owns, for
+ * KeyService -c to serve.  Writing into existing shard stores only adds and removes the kids whose owners
+ * changed, so adding a node moves its share of the kids and leaves every other kid where it was.
+ */
+public final class KeyShards {
+
+    //Per node counts in a Report
+    private static final int HELD = 0;
+    private static final int ADDED = 1;
+    private static final int REMOVED = 2;
+
+    private final Cluster cluster;
+    private final File dir;
+
+    public KeyShards(Cluster cluster, File dir) {
+        this.cluster = cluster;
+        this.dir = dir;
+    }
+
+    /**
+     * @return the shard store file for node in dir
+     */
+    public static File storeFile(File dir, String node) {
+        return new File(dir, node.replace(':', '_') + ".ks");
+    }
+
+    /**
+     * Shards every key representation file in sourceDir.
+     */
+    public Report write(File sourceDir) throws IOException {
+        File[] files = sourceDir.listFiles();
+        if (files == null) throw new IOException("Unable to list key directory " + sourceDir);
+        Writer writer = new Writer();
+        try {
+            for (File file : files) {
+                if (!file.isFile() || file.getName().endsWith(".backup")) continue;
+                byte[] body = Files.readAllBytes(file.toPath());
+                String kid = KeyIndex.parseKid(body);
+                if (kid != null) writer.add(kid, body);
+            }
+            return writer.finish();
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Shards every key representation in source.
+     */
+    public Report write(KeyStoreFile source) throws IOException {
+        Writer writer = new Writer();
+        try {
+            for (String kid : source.kids()) {
+                if (kid.endsWith(".backup")) continue;
+                ByteBuffer value = source.get(kid);
+                if (value == null) continue;
+                byte[] body = new byte[value.remaining()];
+                value.get(body);
+                if (kid.equals(KeyIndex.parseKid(body))) writer.add(kid, body);
+            }
+            return writer.finish();
+        } finally {
+            writer.close();
+        }
+    }
+
+    private final class Writer {
+
+        private final Map<String, KeyStoreFile> stores = new LinkedHashMap<String, KeyStoreFile>();
+        private final Set<String> kids = new HashSet<String>();
+        private final Report report = new Report();
+
+        Writer() throws IOException {
+            if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Unable to create shard directory " + dir);
+            for (String node : cluster.getNodes()) {
+                stores.put(node, KeyStoreFile.open(storeFile(dir, node), true));
+                report.nodes.put(node, new int[3]);
+            }
+        }
+
+        void add(String kid, byte[] body) throws IOException {
+            kids.add(kid);
+            for (String node : cluster.owners(kid)) {
+                KeyStoreFile store = stores.get(node);
+                ByteBuffer current = store.get(kid);
+                if (current == null || !current.equals(ByteBuffer.wrap(body))) {
+                    store.put(kid, body);
+                    report.nodes.get(node)[ADDED]++;
+                }
+            }
+        }
+
+        Report finish() throws IOException {
+            report.kids = kids.size();
+            for (Map.Entry<String, KeyStoreFile> entry : stores.entrySet()) {
+                KeyStoreFile store = entry.getValue();
+                int[] counts = report.nodes.get(entry.getKey());
+                for (String kid : store.kids()) {
+                    //Gone from the source, or moved to other nodes
+                    if (!kids.contains(kid) || !cluster.isOwner(entry.getKey(), kid)) {
+                        store.delete(kid);
+                        counts[REMOVED]++;
+                    }
+                }
+                if (counts[REMOVED] > 0) store.compact();
+                store.sync();
+                counts[HELD] = store.size();
+            }
+            return report;
+        }
+
+        void close() throws IOException {
+            for (KeyStoreFile store : stores.values()) store.close();
+        }
+    }
+
+    public static final class Report {
+
+        private int kids;
+        private final Map<String, int[]> nodes = new LinkedHashMap<String, int[]>();
+
+        public int getKids() {
+            return kids;
+        }
+
+        /**
+         * @return kids written to or removed from every shard, the keys that had to move
+         */
+        public int getMoved() {
+            int moved = 0;
+            for (int[] counts : nodes.values()) moved += counts[ADDED] + counts[REMOVED];
+            return moved;
+        }
+
+        public void print(PrintStream out) {
+            out.println(String.format("%-24s %10s %10s %10s", "Node", "Kids", "Added", "Removed"));
+            for (Map.Entry<String, int[]> entry : nodes.entrySet()) {
+                int[] counts = entry.getValue();
+                out.println(String.format("%-24s %10d %10d %10d", entry.getKey(), counts[HELD], counts[ADDED], counts[REMOVED]));
+            }
+            out.println(kids + " kids, " + getMoved() + " shard entries written or removed");
+        }
+    }
+
+}
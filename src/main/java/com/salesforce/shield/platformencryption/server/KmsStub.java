@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.server;
+
+import com.salesforce.shield.platformencryption.util.CryptoException;
+import com.salesforce.shield.platformencryption.util.CryptoUtils;
+import com.salesforce.shield.platformencryption.util.TokenBucket;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.cli.*;
+import org.apache.commons.io.IOUtils;
+import org.jose4j.json.JsonUtil;
+import org.jose4j.lang.JoseException;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local stand-in for AWS KMS that answers GenerateDataKey over the KMS JSON protocol, so batch key generation
+ * can be load-tested without an AWS account or quota.  It can add latency to every response and throttle
+ * requests above a rate with the same ThrottlingException KMS returns.  Data keys are random, and the
+ * "ciphertext" is the data key AES-GCM encrypted under a key that only lives as long as the process.
+ * Point WrapAWSEncryptionKey at it with -e http://localhost:<port>; the credentials are not checked.
+ */
+public class KmsStub implements HttpHandler {
+
+    private static final String GENERATE_DATA_KEY = "TrentService.GenerateDataKey";
+    private static final String CONTENT_TYPE = "application/x-amz-json-1.1";
+
+    private final CryptoUtils cryptoUtils = new CryptoUtils();
+    private final SecretKey masterKey;
+    private final String keyArn = "arn:aws:kms:local:000000000000:key/" + UUID.randomUUID();
+    private final SecureRandom random = new SecureRandom();
+    private final TokenBucket rateLimiter;
+    private final long latencyMillis;
+    private final AtomicLong generated = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+
+    public KmsStub(TokenBucket rateLimiter, long latencyMillis) throws CryptoException {
+        this.masterKey = cryptoUtils.secretKey(cryptoUtils.generateAESKey());
+        this.rateLimiter = rateLimiter;
+        this.latencyMillis = latencyMillis;
+    }
+
+    public long getGenerated() {
+        return generated.get();
+    }
+
+    public long getThrottled() {
+        return throttled.get();
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        try {
+            byte[] body = IOUtils.toByteArray(exchange.getRequestBody());
+            if (latencyMillis > 0) TimeUnit.MILLISECONDS.sleep(latencyMillis);
+
+            if (!"POST".equals(exchange.getRequestMethod()) || !GENERATE_DATA_KEY.equals(exchange.getRequestHeaders().getFirst("X-Amz-Target"))) {
+                error(exchange, "UnknownOperationException", "Only GenerateDataKey is supported");
+                return;
+            }
+            if (rateLimiter != null && rateLimiter.tryAcquire() > 0) {
+                throttled.incrementAndGet();
+                error(exchange, "ThrottlingException", "Rate exceeded");
+                return;
+            }
+
+            Map<String, Object> request = JsonUtil.parseJson(new String(body, StandardCharsets.UTF_8));
+            int length = 32;
+            if ("AES_128".equals(request.get("KeySpec"))) length = 16;
+            if (request.get("NumberOfBytes") instanceof Number) length = ((Number) request.get("NumberOfBytes")).intValue();
+            if (length < 1 || length > 1024) {
+                error(exchange, "ValidationException", "NumberOfBytes must be between 1 and 1024");
+                return;
+            }
+
+            byte[] plaintext = new byte[length];
+            random.nextBytes(plaintext);
+            byte[] ciphertext = new byte[CryptoUtils.gcmOutputSize(length)];
+            cryptoUtils.encryptGcm(masterKey, keyArn.getBytes(StandardCharsets.UTF_8), plaintext, 0, length, ciphertext, 0);
+
+            Map<String, Object> response = new LinkedHashMap<String, Object>();
+            response.put("CiphertextBlob", Base64.getEncoder().encodeToString(ciphertext));
+            response.put("KeyId", keyArn);
+            response.put("Plaintext", Base64.getEncoder().encodeToString(plaintext));
+            generated.incrementAndGet();
+            send(exchange, 200, JsonUtil.toJson(response));
+
+        } catch (JoseException e) {
+            error(exchange, "SerializationException", "Unable to parse request");
+        } catch (CryptoException e) {
+            error(exchange, 500, "KMSInternalException", e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            exchange.close();
+        }
+    }
+
+    private static void error(HttpExchange exchange, String type, String message) throws IOException {
+        error(exchange, 400, type, message);
+    }
+
+    private static void error(HttpExchange exchange, int status, String type, String message) throws IOException {
+        Map<String, Object> response = new LinkedHashMap<String, Object>();
+        response.put("__type", type);
+        response.put("message", message);
+        exchange.getResponseHeaders().set("x-amzn-ErrorType", type);
+        send(exchange, status, JsonUtil.toJson(response));
+    }
+
+    private static void send(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+        exchange.getResponseHeaders().set("x-amzn-RequestId", UUID.randomUUID().toString());
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.close();
+    }
+
+    public static void main(String[] args) {
+
+        CommandLineParser parser = new DefaultParser();
+        Options options = new Options();
+        options.addOption( "h","help", false, "Help for KmsStub" );
+        options.addOption( "p", "port", true, "Port to listen on, defaults to 4599 (optional)" );
+        options.addOption( "r", "rate", true, "Throttle GenerateDataKey requests above this many per second (optional)" );
+        options.addOption( "l", "latency", true, "Milliseconds to wait before every response, defaults to 0 (optional)" );
+        options.addOption( "t", "threads", true, "Number of request threads, defaults to 64 (optional)" );
+
+        try {
+
+            CommandLine line = parser.parse( options, args );
+
+            if(line.hasOption( "help" )) {
+                HelpFormatter formatter = new HelpFormatter();
+                formatter.printHelp( "KmsStub", options );
+            } else {
+
+                int port = Integer.parseInt(line.getOptionValue("p", "4599"));
+                int threads = Integer.parseInt(line.getOptionValue("t", "64"));
+                if (threads < 1) throw new ParseException("Please choose at least 1 thread.");
+                long latency = Long.parseLong(line.getOptionValue("l", "0"));
+                TokenBucket rateLimiter = null;
+                if (line.hasOption( "r" )) {
+                    double rate = Double.parseDouble(line.getOptionValue("r"));
+                    rateLimiter = new TokenBucket(rate, (int) Math.max(1, rate));
+                }
+
+                final KmsStub stub = new KmsStub(rateLimiter, latency);
+                HttpServer server = HttpServer.create(new InetSocketAddress(port), 1024);
+                server.createContext("/", stub);
+                server.setExecutor(Executors.newFixedThreadPool(threads));
+                server.start();
+                System.out.println("KMS stub listening on http://localhost:" + port);
+                Runtime.getRuntime().addShutdownHook(new Thread() {
+                    @Override
+                    public void run() {
+                        System.out.println("Generated " + stub.getGenerated() + " data keys, throttled " + stub.getThrottled() + " requests");
+                    }
+                });
+            }
+
+        } catch( ParseException e ) {
+            System.out.println( "ERROR: " + e.getMessage() );
+        } catch (NumberFormatException e) {
+            System.out.println( "ERROR: " + e.getMessage() );
+        } catch (CryptoException e) {
+            System.out.println( "ERROR: " + e.getMessage() );
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+    }
+
+}
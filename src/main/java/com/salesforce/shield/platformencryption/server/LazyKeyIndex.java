@@ -0,0 +1,365 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.server;
+
+import com.salesforce.shield.platformencryption.util.CryptoException;
+import com.salesforce.shield.platformencryption.util.CryptoUtils;
+import com.salesforce.shield.platformencryption.util.JweWrapper;
+import com.salesforce.shield.platformencryption.util.KeyRepresentation;
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+import org.jose4j.json.JsonUtil;
+import org.jose4j.lang.JoseException;
+
+import javax.crypto.SecretKey;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
+
+/**
+ * Key representations built on demand.  Only the DEKs are held, each encrypted under a local master key with
+ * CryptoUtils, and the first request for a kid wraps it for the current certificate on a small worker pool.
+ * The rendered response is then cached until it expires or the cache is full, so changing the certificate
+ * costs nothing up front and storage doesn't grow with every certificate.
+ *
+ * Concurrent requests for a kid that isn't cached share one wrap: a burst of callouts for a cold kid costs
+ * a single RSA-OAEP operation.
+ */
+public final class LazyKeyIndex implements AutoCloseable {
+
+    public static final long DEFAULT_TTL_SECONDS = 3600;
+    public static final int DEFAULT_MAX_CACHED = 100000;
+
+    private static final int KEY_LENGTH = 32;
+    private static final int QUEUE_PER_THREAD = 1024;
+
+    private final Map<String, byte[]> protectedKeys;
+    private final SecretKey masterKey;
+    private final CryptoUtils cryptoUtils = new CryptoUtils();
+    private final long ttlNanos;
+    private final int maxCached;
+    private final ThreadPoolExecutor executor;
+    private final AtomicReference<JweWrapper> wrapper = new AtomicReference<JweWrapper>();
+    private final ConcurrentHashMap<String, Cached> cache = new ConcurrentHashMap<String, Cached>();
+    private final ConcurrentHashMap<String, WrapTask> inFlight = new ConcurrentHashMap<String, WrapTask>();
+    private final AtomicBoolean evicting = new AtomicBoolean();
+    private final AtomicLong wraps = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+
+    /**
+     * @param protectedKeys the CryptoUtils encryption of each kid's 256 bit AES key under masterKey, as read by readProtectedKeys
+     * @param ttl how long a wrapped key is served before it is wrapped again
+     * @param maxCached the most wrapped keys held at once
+     * @param threads the number of wrapping threads
+     */
+    public LazyKeyIndex(Map<String, byte[]> protectedKeys, byte[] masterKey, PublicKey wrappingKey,
+                        long ttl, TimeUnit unit, int maxCached, int threads) throws CryptoException {
+        if (threads < 1) throw new IllegalArgumentException("threads must be at least 1");
+        if (maxCached < 1) throw new IllegalArgumentException("maxCached must be at least 1");
+        if (ttl <= 0) throw new IllegalArgumentException("ttl must be positive");
+        this.protectedKeys = protectedKeys;
+        this.masterKey = cryptoUtils.secretKey(masterKey);
+        this.ttlNanos = unit.toNanos(ttl);
+        this.maxCached = maxCached;
+        this.wrapper.set(new JweWrapper(wrappingKey));
+
+        //Better to refuse to start than to fail the first request for a key
+        for (Map.Entry<String, byte[]> entry : protectedKeys.entrySet()) {
+            decrypt(entry.getKey(), entry.getValue(), null);
+        }
+
+        final AtomicInteger count = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(threads * QUEUE_PER_THREAD), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "keyservice-wrap-" + count.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Reads NDJSON {"kid","key"} records, "key" being the hex encoded CryptoUtils encryption of the DEK under the
+     * master key, as RotateKeys -k -m reads them.  Records whose kid is not accepted by kids are skipped, none are
+     * when kids is null.
+     */
+    public static Map<String, byte[]> readProtectedKeys(BufferedReader in, Predicate<String> kids) throws IOException, CryptoException {
+        Map<String, byte[]> protectedKeys = new HashMap<String, byte[]>();
+        String line;
+        long lineNumber = 0;
+        while ((line = in.readLine()) != null) {
+            lineNumber++;
+            if (line.trim().isEmpty()) continue;
+            Map<String, Object> record;
+            try {
+                record = JsonUtil.parseJson(line);
+            } catch (JoseException e) {
+                throw new CryptoException("Line " + lineNumber + ": unable to parse record", e);
+            }
+            Object kid = record.get("kid");
+            Object key = record.get("key");
+            if (!(kid instanceof String) || ((String) kid).isEmpty())
+                throw new CryptoException("Line " + lineNumber + ": record has no kid");
+            if (!(key instanceof String))
+                throw new CryptoException("Line " + lineNumber + ": record has no key");
+            if (kids != null && !kids.test((String) kid)) continue;
+            try {
+                protectedKeys.put((String) kid, Hex.decodeHex((String) key));
+            } catch (DecoderException e) {
+                throw new CryptoException("Line " + lineNumber + ": unable to hex decode key", e);
+            }
+        }
+        return protectedKeys;
+    }
+
+    public boolean contains(String kid) {
+        return protectedKeys.containsKey(kid);
+    }
+
+    /**
+     * @return a read-only view of the cached HTTP response for kid, or null if it has to be wrapped first
+     */
+    public ByteBuffer cached(String kid) {
+        ByteBuffer response = lookup(kid);
+        if (response != null) hits.incrementAndGet();
+        return response;
+    }
+
+    /**
+     * Completes with the HTTP response for kid, wrapping the key unless it is cached or already being wrapped.
+     * The response buffer is shared by everyone waiting on the same wrap, so callers write duplicates of it.
+     * When the wrapping threads are backed up the future fails with a RejectedExecutionException.
+     *
+     * @return null if the kid is unknown
+     */
+    public CompletableFuture<ByteBuffer> get(String kid) {
+        byte[] protectedKey = protectedKeys.get(kid);
+        if (protectedKey == null) return null;
+
+        //A wrap still running at close() may cache its response after the cache was cleared
+        if (executor.isShutdown()) {
+            CompletableFuture<ByteBuffer> closed = new CompletableFuture<ByteBuffer>();
+            closed.completeExceptionally(new RejectedExecutionException("The key index is closed"));
+            return closed;
+        }
+
+        ByteBuffer response = cached(kid);
+        if (response != null) return CompletableFuture.completedFuture(response);
+
+        JweWrapper current = wrapper.get();
+        WrapTask task = new WrapTask(kid, protectedKey, current, new CompletableFuture<ByteBuffer>());
+        CompletableFuture<ByteBuffer> wrap = task.future;
+        while (true) {
+            WrapTask running = inFlight.putIfAbsent(kid, task);
+            if (running == null) break;
+            if (running.jweWrapper == current) {
+                coalesced.incrementAndGet();
+                return running.future;
+            }
+            //Started for a certificate that was replaced since: it still answers whoever joined it, but not us
+            if (inFlight.replace(kid, running, task)) break;
+        }
+
+        //A wrap that finished between the cache check and claiming the kid has already cached its response
+        response = lookup(kid);
+        if (response != null) {
+            inFlight.remove(kid, task);
+            wrap.complete(response);
+            return wrap;
+        }
+
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            inFlight.remove(kid, task);
+            wrap.completeExceptionally(e);
+        }
+        return wrap;
+    }
+
+    /**
+     * Wraps keys for a new certificate from now on.  Everything cached for the old one is dropped, and requests
+     * from now on don't wait on wraps still running for it.
+     */
+    public void setWrappingKey(PublicKey wrappingKey) throws CryptoException {
+        wrapper.set(new JweWrapper(wrappingKey));
+        cache.clear();
+    }
+
+    public PublicKey getWrappingKey() {
+        return wrapper.get().getWrappingKey();
+    }
+
+    public int size() {
+        return protectedKeys.size();
+    }
+
+    public int getCached() {
+        return cache.size();
+    }
+
+    public long getWraps() {
+        return wraps.get();
+    }
+
+    /**
+     * @return requests that waited on a wrap another request had already started
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Stops the wrapping threads.  Requests still waiting on a wrap fail with a RejectedExecutionException.
+     */
+    @Override
+    public void close() {
+        List<Runnable> queued = executor.shutdownNow();
+        RejectedExecutionException closed = new RejectedExecutionException("The key index is closed");
+        //Queued wraps will never run, including ones a newer certificate's wrap took the kid over from
+        for (Runnable task : queued) ((WrapTask) task).future.completeExceptionally(closed);
+        //Running ones finish anyway, but nobody should wait on them once the index is closed
+        Iterator<WrapTask> tasks = inFlight.values().iterator();
+        while (tasks.hasNext()) {
+            WrapTask task = tasks.next();
+            tasks.remove();
+            task.future.completeExceptionally(closed);
+        }
+        cache.clear();
+    }
+
+    private ByteBuffer lookup(String kid) {
+        Cached cached = cache.get(kid);
+        if (cached == null) return null;
+        if (cached.wrapper != wrapper.get() || System.nanoTime() - cached.expiresAt > 0) {
+            cache.remove(kid, cached);
+            return null;
+        }
+        return cached.response.duplicate();
+    }
+
+    //Drops expired entries, then arbitrary ones until there is a tenth of the cache free again
+    private void evict() {
+        if (!evicting.compareAndSet(false, true)) return;
+        try {
+            long now = System.nanoTime();
+            JweWrapper current = wrapper.get();
+            Iterator<Cached> values = cache.values().iterator();
+            while (values.hasNext()) {
+                Cached cached = values.next();
+                if (cached.wrapper != current || now - cached.expiresAt > 0) values.remove();
+            }
+            int target = maxCached - maxCached / 10;
+            values = cache.values().iterator();
+            while (cache.size() > target && values.hasNext()) {
+                values.next();
+                values.remove();
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    //Decrypts protectedKey into key, which is cleared when it is null
+    private void decrypt(String kid, byte[] protectedKey, byte[] key) throws CryptoException {
+        byte[] cleartext = new byte[protectedKey.length];
+        try {
+            int length;
+            try {
+                length = cryptoUtils.decrypt(masterKey, protectedKey, 0, protectedKey.length, cleartext, 0);
+            } catch (CryptoException e) {
+                throw new CryptoException("Unable to decrypt key " + kid + " with the master key", e);
+            }
+            if (length != KEY_LENGTH) throw new CryptoException("Key " + kid + " must be a 256 bit AES key");
+            if (key != null) System.arraycopy(cleartext, 0, key, 0, length);
+        } finally {
+            Arrays.fill(cleartext, (byte) 0);
+        }
+    }
+
+    private static final class Cached {
+
+        final ByteBuffer response;
+        final JweWrapper wrapper;
+        final long expiresAt;
+
+        Cached(ByteBuffer response, JweWrapper wrapper, long expiresAt) {
+            this.response = response;
+            this.wrapper = wrapper;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final class WrapTask implements Runnable {
+
+        private final String kid;
+        private final byte[] protectedKey;
+        private final JweWrapper jweWrapper;
+        private final CompletableFuture<ByteBuffer> future;
+
+        WrapTask(String kid, byte[] protectedKey, JweWrapper jweWrapper, CompletableFuture<ByteBuffer> future) {
+            this.kid = kid;
+            this.protectedKey = protectedKey;
+            this.jweWrapper = jweWrapper;
+            this.future = future;
+        }
+
+        @Override
+        public void run() {
+            byte[] key = new byte[KEY_LENGTH];
+            try {
+                decrypt(kid, protectedKey, key);
+                String jwe = jweWrapper.wrap(kid, key);
+                ByteBuffer response = HttpResponses.ok(KeyRepresentation.toJson(kid, jwe).getBytes(StandardCharsets.UTF_8));
+                wraps.incrementAndGet();
+
+                //A key wrapped for a certificate that was replaced meanwhile still answers its requests, but isn't kept
+                if (wrapper.get() == jweWrapper) {
+                    cache.put(kid, new Cached(response, jweWrapper, System.nanoTime() + ttlNanos));
+                    if (cache.size() > maxCached) evict();
+                }
+                //Cached before the kid is released, so the next request finds one or the other
+                inFlight.remove(kid, this);
+                future.complete(response);
+            } catch (CryptoException | RuntimeException e) {
+                System.out.println("Unable to wrap key " + kid + ": " + e.getMessage());
+                inFlight.remove(kid, this);
+                future.completeExceptionally(e);
+            } finally {
+                Arrays.fill(key, (byte) 0);
+            }
+        }
+    }
+
+}
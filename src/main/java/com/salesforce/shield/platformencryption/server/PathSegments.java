@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.server;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Percent-encoding of a kid as one URL path segment (RFC 3986).  Unlike URLEncoder, which encodes HTML form
+ * values, a space is %20 and a '+' stays a '+' on the way back.  Kids made of unreserved characters, as
+ * generated ones are, pass through both ways unchanged.
+ */
+public final class PathSegments {
+
+    private PathSegments() {
+    }
+
+    public static String encode(String segment) {
+        if (isUnreserved(segment)) return segment;
+        StringBuilder encoded = new StringBuilder(segment.length() * 3);
+        for (byte b : segment.getBytes(StandardCharsets.UTF_8)) {
+            if (isUnreserved((char) b)) {
+                encoded.append((char) b);
+            } else {
+                encoded.append('%').append(Character.toUpperCase(Character.forDigit((b >> 4) & 0xf, 16)))
+                        .append(Character.toUpperCase(Character.forDigit(b & 0xf, 16)));
+            }
+        }
+        return encoded.toString();
+    }
+
+    /**
+     * @throws IllegalArgumentException if a '%' isn't followed by two hex digits
+     */
+    public static String decode(String segment) {
+        if (segment.indexOf('%') < 0) return segment;
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream(segment.length());
+        int from = 0;
+        for (int i = segment.indexOf('%'); i >= 0; i = segment.indexOf('%', from)) {
+            byte[] run = segment.substring(from, i).getBytes(StandardCharsets.UTF_8);
+            decoded.write(run, 0, run.length);
+            int high = i + 2 < segment.length() ? Character.digit(segment.charAt(i + 1), 16) : -1;
+            int low = high < 0 ? -1 : Character.digit(segment.charAt(i + 2), 16);
+            if (low < 0) throw new IllegalArgumentException("Malformed percent-encoding in " + segment);
+            decoded.write((high << 4) | low);
+            from = i + 3;
+        }
+        byte[] run = segment.substring(from).getBytes(StandardCharsets.UTF_8);
+        decoded.write(run, 0, run.length);
+        return new String(decoded.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static boolean isUnreserved(String segment) {
+        for (int i = 0; i < segment.length(); i++) {
+            if (!isUnreserved(segment.charAt(i))) return false;
+        }
+        return true;
+    }
+
+    private static boolean isUnreserved(char c) {
+        return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')
+                || c == '-' || c == '.' || c == '_' || c == '~';
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A keep-alive HTTP/1.1 client connection from one EventLoop to another node of the cluster.  Forwarded
+ * requests are pipelined on it and their responses handed back in order, on the loop's own thread, so
+ * forwarding never blocks the loop.  When the peer can't be reached, goes away or stalls, every request
+ * still waiting on it fails and the connection is reopened by the next request.
+ */
+final class PeerConnection {
+
+    /**
+     * Marks a request that another node already forwarded, so rings that disagree can't bounce it around.
+     */
+    static final String FORWARDED_HEADER = "X-Keywrapper-Forwarded";
+
+    private static final int MAX_RESPONSE = 65536;
+    private static final long TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+    interface Callback {
+        void completed(ByteBuffer response);
+
+        void failed();
+    }
+
+    private final String node;
+    private final InetSocketAddress address;
+    private final Selector selector;
+    private final ArrayDeque<ByteBuffer> out = new ArrayDeque<ByteBuffer>();
+    private final ArrayDeque<Callback> waiting = new ArrayDeque<Callback>();
+    private SocketChannel channel;
+    private SelectionKey selectionKey;
+    private boolean connected;
+    private ByteBuffer in = ByteBuffer.allocate(4096);
+    private long lastProgress;
+
+    PeerConnection(String node, InetSocketAddress address, Selector selector) {
+        this.node = node;
+        this.address = address;
+        this.selector = selector;
+    }
+
+    /**
+     * Requests kid from the peer.  callback is called exactly once, possibly before this returns.
+     */
+    void send(String kid, Callback callback) {
+        try {
+            if (channel == null) open();
+        } catch (IOException e) {
+            callback.failed();
+            return;
+        }
+        if (waiting.isEmpty()) lastProgress = System.nanoTime();
+        out.add(ByteBuffer.wrap(("GET /" + PathSegments.encode(kid) + " HTTP/1.1\r\nHost: " + node + "\r\n" + FORWARDED_HEADER + ": 1\r\n\r\n").getBytes(StandardCharsets.UTF_8)));
+        waiting.add(callback);
+        if (connected) {
+            try {
+                flush();
+            } catch (IOException e) {
+                reset();
+            }
+        }
+    }
+
+    void onSelected() {
+        try {
+            if (selectionKey.isValid() && selectionKey.isConnectable()) {
+                if (!channel.finishConnect()) return;
+                connected = true;
+            }
+            if (selectionKey.isValid()) flush();
+            if (selectionKey.isValid() && selectionKey.isReadable()) read();
+        } catch (IOException e) {
+            reset();
+        }
+    }
+
+    /**
+     * Gives up on a peer that has answered nothing for too long.
+     *
+     * @return true while requests are waiting on the peer
+     */
+    boolean expire(long now) {
+        if (waiting.isEmpty()) return false;
+        if (now - lastProgress > TIMEOUT_NANOS) reset();
+        return !waiting.isEmpty();
+    }
+
+    void close() {
+        reset();
+    }
+
+    private void open() throws IOException {
+        channel = SocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            connected = channel.connect(address);
+            selectionKey = channel.register(selector, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, this);
+        } catch (IOException e) {
+            channel.close();
+            channel = null;
+            throw e;
+        }
+    }
+
+    private void flush() throws IOException {
+        if (!connected) return;
+        while (!out.isEmpty()) {
+            ByteBuffer head = out.peek();
+            channel.write(head);
+            if (head.hasRemaining()) {
+                selectionKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+            out.poll();
+        }
+        selectionKey.interestOps(SelectionKey.OP_READ);
+    }
+
+    private void read() throws IOException {
+        if (channel.read(in) < 0) {
+            reset();
+            return;
+        }
+
+        in.flip();
+        while (!waiting.isEmpty()) {
+            int headEnd = headEnd(in);
+            if (headEnd < 0) break;
+            int length = contentLength(in.array(), in.position(), headEnd);
+            if (length < 0 || headEnd + length - in.position() > MAX_RESPONSE) {
+                reset();
+                return;
+            }
+            if (in.limit() < headEnd + length) break;
+
+            byte[] response = new byte[headEnd + length - in.position()];
+            in.get(response);
+            lastProgress = System.nanoTime();
+            waiting.poll().completed(ByteBuffer.wrap(response).asReadOnlyBuffer());
+        }
+        in.compact();
+
+        if (!in.hasRemaining()) {
+            if (in.capacity() >= MAX_RESPONSE) {
+                reset();
+                return;
+            }
+            ByteBuffer larger = ByteBuffer.allocate(Math.min(MAX_RESPONSE, in.capacity() * 2));
+            in.flip();
+            larger.put(in);
+            in = larger;
+        }
+    }
+
+    private void reset() {
+        if (channel != null) {
+            selectionKey.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                //nothing useful to do
+            }
+        }
+        channel = null;
+        selectionKey = null;
+        connected = false;
+        out.clear();
+        in.clear();
+
+        //Callbacks retry on the next owner, which may send on this connection's loop, so fail them after resetting
+        List<Callback> failed = new ArrayList<Callback>(waiting);
+        waiting.clear();
+        for (Callback callback : failed) callback.failed();
+    }
+
+    private static int headEnd(ByteBuffer buf) {
+        byte[] array = buf.array();
+        for (int i = buf.position(); i + 3 < buf.limit(); i++) {
+            if (array[i] == '\r' && array[i + 1] == '\n' && array[i + 2] == '\r' && array[i + 3] == '\n') return i + 4;
+        }
+        return -1;
+    }
+
+    //Every response a KeyService sends has a Content-Length, anything else is not a node of ours
+    private static int contentLength(byte[] buf, int start, int end) {
+        String head = new String(buf, start, end - start, StandardCharsets.ISO_8859_1);
+        for (String header : head.split("\r\n")) {
+            int colon = header.indexOf(':');
+            if (colon < 0 || !header.substring(0, colon).trim().equalsIgnoreCase("Content-Length")) continue;
+            try {
+                return Integer.parseInt(header.substring(colon + 1).trim());
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+}
@@ -0,0 +1,438 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.server;
+
+import com.salesforce.shield.platformencryption.cli.RecoverSplitEncryptionKey;
+import com.salesforce.shield.platformencryption.cli.WrapAWSEncryptionKey;
+import com.salesforce.shield.platformencryption.cli.WrapEncryptionKey;
+import com.salesforce.shield.platformencryption.metrics.Instrumentation;
+import com.salesforce.shield.platformencryption.util.CryptoException;
+import com.salesforce.shield.platformencryption.util.CryptoUtils;
+import com.salesforce.shield.platformencryption.util.KeyRepresentation;
+import com.salesforce.shield.platformencryption.util.SSSUtils;
+import org.apache.commons.cli.*;
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Long running process that runs WrapEncryptionKey, WrapAWSEncryptionKey and RecoverSplitEncryptionKey for
+ * the bin scripts, so each call costs a local round trip instead of a JVM start, class loading and JIT
+ * warm-up.  The ciphers, jose4j and the CLIs' certificate caches stay warm between calls, and calls run
+ * concurrently on a fixed pool of threads.
+ *
+ * Java 8 has no Unix domain sockets, so the daemon listens on an ephemeral loopback TCP port instead and
+ * writes "port token" to a rendezvous file readable only by its owner, ~/.keywrapper/daemon by default.
+ * A request is NUL terminated fields: token, command, working directory, argument count, arguments.  The
+ * response is the command's output, one line per output line, prefixed with 1 for stdout or 2 for stderr,
+ * and the connection is closed when the command has finished.  Commands have no stdin, so the scripts run
+ * a command in its own JVM when it reads from "-".
+ */
+public class WrapperDaemon {
+
+    static final String STOP = "Stop";
+
+    private static final int MAX_FIELD_LENGTH = 1 << 16;
+    private static final int MAX_ARGUMENTS = 4096;
+    private static final int REQUEST_TIMEOUT_MILLIS = 10000;
+    private static final int SHUTDOWN_SECONDS = 30;
+    private static final byte STDOUT = '1';
+    private static final byte STDERR = '2';
+
+    private static final Map<String, Command> COMMANDS = new HashMap<String, Command>();
+
+    static {
+        COMMANDS.put("WrapEncryptionKey", new Command() {
+            @Override
+            public void run(String[] args, File dir, InputStream in, PrintStream out, PrintStream err) {
+                WrapEncryptionKey.run(args, dir, in, out, err);
+            }
+        });
+        //Only loaded when called, so the daemon runs without the AWS SDK on the class path
+        COMMANDS.put("WrapAWSEncryptionKey", new Command() {
+            @Override
+            public void run(String[] args, File dir, InputStream in, PrintStream out, PrintStream err) {
+                WrapAWSEncryptionKey.run(args, dir, in, out, err);
+            }
+        });
+        COMMANDS.put("RecoverSplitEncryptionKey", new Command() {
+            @Override
+            public void run(String[] args, File dir, InputStream in, PrintStream out, PrintStream err) {
+                RecoverSplitEncryptionKey.run(args, dir, in, out, err);
+            }
+        });
+    }
+
+    private final File rendezvous;
+    private final byte[] token;
+    private final ExecutorService executor;
+    private ServerSocket serverSocket;
+    private String published;
+
+    public WrapperDaemon(File rendezvous, int threads) {
+        this.rendezvous = rendezvous;
+        byte[] random = new byte[32];
+        new SecureRandom().nextBytes(random);
+        this.token = Hex.encodeHexString(random).getBytes(StandardCharsets.US_ASCII);
+        final AtomicInteger count = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "wrapper-daemon-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Runs every command once per iteration against a throwaway RSA key, so the JIT has compiled the wrap,
+     * split and recover paths before the first request arrives.
+     */
+    public static void warmUp(int iterations) throws CryptoException {
+        KeyPair keyPair;
+        try {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+            generator.initialize(2048);
+            keyPair = generator.generateKeyPair();
+        } catch (GeneralSecurityException e) {
+            throw new CryptoException(e);
+        }
+        CryptoUtils cryptoUtils = new CryptoUtils();
+        SSSUtils sssUtils = new SSSUtils(3, 2);
+        for (int i = 0; i < iterations; i++) {
+            byte[] key = cryptoUtils.generateAESKey();
+            new KeyRepresentation(UUID.randomUUID().toString(), key, keyPair.getPublic()).getJwe();
+            String[] parts = sssUtils.split(key);
+            try {
+                if (!Arrays.equals(key, sssUtils.recover(new String[]{parts[2], parts[0]})))
+                    throw new CryptoException("Shamir recovery failed during warm-up");
+            } catch (DecoderException e) {
+                throw new CryptoException(e);
+            }
+        }
+    }
+
+    /**
+     * Binds to an ephemeral loopback port, publishes it in the rendezvous file and serves requests on the
+     * calling thread until close() is called or a client sends Stop.
+     */
+    public void serve() throws IOException {
+
+        serverSocket = new ServerSocket(0, 128, InetAddress.getLoopbackAddress());
+        published = serverSocket.getLocalPort() + " " + new String(token, StandardCharsets.US_ASCII) + "\n";
+        publish(published);
+        System.out.println("Wrapper daemon listening on " + serverSocket.getLocalSocketAddress() + ", published in " + rendezvous);
+
+        try {
+            while (true) {
+                final Socket socket = serverSocket.accept();
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        handle(socket);
+                    }
+                });
+            }
+        } catch (SocketException e) {
+            //close() was called
+        } finally {
+            //Let running commands, a Stop included, finish writing their output
+            executor.shutdown();
+            try {
+                executor.awaitTermination(SHUTDOWN_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public synchronized void close() {
+        try {
+            if (serverSocket != null) serverSocket.close();
+        } catch (IOException e) {
+            //closing anyway
+        }
+        //Leave the file alone if another daemon has replaced it since
+        try {
+            if (published != null && rendezvous.exists()
+                    && published.equals(new String(Files.readAllBytes(rendezvous.toPath()), StandardCharsets.US_ASCII))) {
+                Files.delete(rendezvous.toPath());
+            }
+        } catch (IOException e) {
+            System.out.println("Unable to remove " + rendezvous + ": " + e.getMessage());
+        }
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    //Written to a private temporary file first and moved into place, so clients never read half of it
+    private void publish(String contents) throws IOException {
+        File dir = rendezvous.getAbsoluteFile().getParentFile();
+        if (!dir.isDirectory()) {
+            if (!dir.mkdirs()) throw new IOException("Unable to create directory " + dir);
+            ownerOnly(dir.toPath(), "rwx------");
+        }
+        Path temporary = Files.createTempFile(dir.toPath(), rendezvous.getName(), ".tmp");
+        try {
+            ownerOnly(temporary, "rw-------");
+            Files.write(temporary, contents.getBytes(StandardCharsets.US_ASCII));
+            Files.move(temporary, rendezvous.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    private static void ownerOnly(Path path, String permissions) throws IOException {
+        try {
+            Files.setPosixFilePermissions(path, PosixFilePermissions.fromString(permissions));
+        } catch (UnsupportedOperationException e) {
+            //not a POSIX file system, the file keeps the permissions of its directory
+        }
+    }
+
+    private void handle(Socket socket) {
+        try {
+            socket.setSoTimeout(REQUEST_TIMEOUT_MILLIS);
+            InputStream input = new BufferedInputStream(socket.getInputStream());
+            OutputStream output = new BufferedOutputStream(socket.getOutputStream());
+
+            byte[] presented = readField(input);
+            if (!MessageDigest.isEqual(token, presented)) return;
+
+            String command = new String(readField(input), StandardCharsets.UTF_8);
+            File dir = new File(new String(readField(input), StandardCharsets.UTF_8));
+            int count;
+            try {
+                count = Integer.parseInt(new String(readField(input), StandardCharsets.US_ASCII));
+            } catch (NumberFormatException e) {
+                return;
+            }
+            if (count < 0 || count > MAX_ARGUMENTS) return;
+            String[] args = new String[count];
+            for (int i = 0; i < count; i++) args[i] = new String(readField(input), StandardCharsets.UTF_8);
+            //The command may run for as long as it needs
+            socket.setSoTimeout(0);
+
+            LineChannel stdout = new LineChannel(output, STDOUT);
+            LineChannel stderr = new LineChannel(output, STDERR);
+            PrintStream out = new PrintStream(stdout, true, "UTF-8");
+            PrintStream err = new PrintStream(stderr, true, "UTF-8");
+            try {
+                run(command, args, dir, out, err);
+            } finally {
+                out.flush();
+                err.flush();
+                stdout.finish();
+                stderr.finish();
+                output.flush();
+            }
+
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        } catch (IOException e) {
+            //the client went away
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                //closed anyway
+            }
+        }
+    }
+
+    private void run(String name, String[] args, File dir, PrintStream out, PrintStream err) {
+        if (STOP.equals(name)) {
+            out.println("Stopping the wrapper daemon");
+            close();
+            return;
+        }
+        Command command = COMMANDS.get(name);
+        if (command == null) {
+            err.println("ERROR: Unknown command " + name);
+            return;
+        }
+        if (!dir.isAbsolute() || !dir.isDirectory()) {
+            err.println("ERROR: Working directory " + dir + " does not exist");
+            return;
+        }
+        try {
+            command.run(args, dir, new ByteArrayInputStream(new byte[0]), out, err);
+        } catch (RuntimeException e) {
+            e.printStackTrace(err);
+        } catch (LinkageError e) {
+            err.println("ERROR: " + name + " is not available in this daemon: " + e);
+        }
+    }
+
+    private static byte[] readField(InputStream input) throws IOException {
+        ByteArrayOutputStream field = new ByteArrayOutputStream();
+        int b;
+        while ((b = input.read()) != 0) {
+            if (b < 0) throw new IOException("Request ended early");
+            if (field.size() == MAX_FIELD_LENGTH) throw new IOException("Request field too long");
+            field.write(b);
+        }
+        return field.toByteArray();
+    }
+
+    interface Command {
+
+        void run(String[] args, File dir, InputStream in, PrintStream out, PrintStream err);
+
+    }
+
+    //Writes whole lines to the shared connection, each prefixed with the channel it came from
+    private static final class LineChannel extends OutputStream {
+
+        private final OutputStream connection;
+        private final byte channel;
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+
+        LineChannel(OutputStream connection, byte channel) {
+            this.connection = connection;
+            this.channel = channel;
+        }
+
+        @Override
+        public synchronized void write(int b) throws IOException {
+            if (b == '\n') {
+                emit();
+            } else {
+                line.write(b);
+            }
+        }
+
+        @Override
+        public synchronized void write(byte[] bytes, int offset, int length) throws IOException {
+            int end = offset + length;
+            for (int i = offset; i < end; i++) {
+                if (bytes[i] == '\n') {
+                    line.write(bytes, offset, i - offset);
+                    emit();
+                    offset = i + 1;
+                }
+            }
+            line.write(bytes, offset, end - offset);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            synchronized (connection) {
+                connection.flush();
+            }
+        }
+
+        //The commands close their output when they are done with it, the connection outlives that
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+
+        synchronized void finish() throws IOException {
+            if (line.size() > 0) emit();
+        }
+
+        private void emit() throws IOException {
+            synchronized (connection) {
+                connection.write(channel);
+                line.writeTo(connection);
+                connection.write('\n');
+            }
+            line.reset();
+        }
+    }
+
+    public static void main(String[] args) {
+
+        CommandLineParser parser = new DefaultParser();
+        Options options = new Options();
+        options.addOption( "h","help", false, "Help for WrapperDaemon" );
+        options.addOption( "r", "rendezvous", true, "File to publish the port and token in, defaults to ~/.keywrapper/daemon (optional)" );
+        options.addOption( "t", "threads", true, "Number of requests to run at once, defaults to all cores (optional)" );
+        options.addOption( "w", "warmup", true, "Warm-up iterations before accepting requests, defaults to 200 (optional)" );
+
+        try {
+
+            CommandLine line = parser.parse( options, args );
+
+            if(line.hasOption( "help" )) {
+                HelpFormatter formatter = new HelpFormatter();
+                formatter.printHelp( "WrapperDaemon", options );
+            } else {
+
+                File rendezvous = line.hasOption( "r" ) ? new File(line.getOptionValue( "r" ))
+                        : new File(new File(System.getProperty("user.home"), ".keywrapper"), "daemon");
+                int threads = Integer.parseInt(line.getOptionValue("t", String.valueOf(Runtime.getRuntime().availableProcessors())));
+                if (threads < 1) throw new ParseException("Please choose at least 1 thread.");
+                int warmup = Integer.parseInt(line.getOptionValue("w", "200"));
+                if (warmup < 0) throw new ParseException("Please choose 0 or more warm-up iterations.");
+
+                Instrumentation.registerMBean();
+                long start = System.nanoTime();
+                warmUp(warmup);
+                System.out.println("Warmed up in " + (System.nanoTime() - start) / 1000000 + " ms");
+
+                final WrapperDaemon daemon = new WrapperDaemon(rendezvous, threads);
+                Runtime.getRuntime().addShutdownHook(new Thread() {
+                    @Override
+                    public void run() {
+                        daemon.close();
+                    }
+                });
+                daemon.serve();
+            }
+
+        } catch( ParseException e ) {
+            System.out.println( "ERROR: " + e.getMessage() );
+        } catch (NumberFormatException e) {
+            System.out.println( "ERROR: " + e.getMessage() );
+        } catch (CryptoException e) {
+            System.out.println( "ERROR: " + e.getMessage() );
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+    }
+
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.util;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+import org.jose4j.json.JsonUtil;
+import org.jose4j.lang.JoseException;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.PublicKey;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Wraps a stream of NDJSON key records ({"kid":"...","key":"<hex>"}) into NDJSON {"kid","jwe"} records.
+ * Records are wrapped on a fixed worker pool but written in input order, and at most a bounded
+ * window of records is in flight at any time so memory use does not depend on the input size.
+ * When a record carries no key a 256 bit AES key is generated and returned hex encoded in a "key" field.
+ * If a KeyStoreFile is given, each key representation is also appended to it, in the same order.
+ */
+public class BulkKeyWrapper {
+
+    private static final int WINDOW_PER_THREAD = 64;
+
+    private final JweWrapper jweWrapper;
+    private final int threads;
+    private final int window;
+    private final CryptoUtils cryptoUtils = new CryptoUtils();
+    private final KeyStoreFile keyStore;
+
+    public BulkKeyWrapper(PublicKey wrappingKey, int threads) throws CryptoException {
+        this(wrappingKey, threads, null);
+    }
+
+    public BulkKeyWrapper(PublicKey wrappingKey, int threads, KeyStoreFile keyStore) throws CryptoException {
+        if (threads < 1) throw new IllegalArgumentException("threads must be at least 1");
+        this.jweWrapper = new JweWrapper(wrappingKey);
+        this.threads = threads;
+        this.window = threads * WINDOW_PER_THREAD;
+        this.keyStore = keyStore;
+    }
+
+    /**
+     * Reads records from in until end of stream and writes one output line per record to out.
+     *
+     * @return the number of records written
+     */
+    public long wrap(BufferedReader in, Writer out) throws IOException, CryptoException {
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        ArrayDeque<Future<WrappedKey>> pending = new ArrayDeque<Future<WrappedKey>>(window);
+        long written = 0;
+        long lineNumber = 0;
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                lineNumber++;
+                if (line.trim().isEmpty()) continue;
+                if (pending.size() >= window) {
+                    writeRecord(pending.poll(), out);
+                    written++;
+                }
+                pending.add(executor.submit(new WrapTask(line, lineNumber)));
+            }
+            while (!pending.isEmpty()) {
+                writeRecord(pending.poll(), out);
+                written++;
+            }
+            out.flush();
+            if (keyStore != null) keyStore.sync();
+        } finally {
+            executor.shutdownNow();
+        }
+        return written;
+    }
+
+    private void writeRecord(Future<WrappedKey> record, Writer out) throws IOException, CryptoException {
+        try {
+            WrappedKey wrappedKey = record.get();
+            if (keyStore != null) {
+                keyStore.put(wrappedKey.kid, KeyRepresentation.toJson(wrappedKey.kid, wrappedKey.jwe).getBytes(StandardCharsets.UTF_8));
+            }
+            out.write(wrappedKey.output);
+            out.write('\n');
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a wrapped key");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof CryptoException) throw (CryptoException) e.getCause();
+            throw new CryptoException(e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+        }
+    }
+
+    private static final class WrappedKey {
+
+        final String kid;
+        final String jwe;
+        final String output;
+
+        WrappedKey(String kid, String jwe, String output) {
+            this.kid = kid;
+            this.jwe = jwe;
+            this.output = output;
+        }
+    }
+
+    private class WrapTask implements Callable<WrappedKey> {
+
+        private final String line;
+        private final long lineNumber;
+
+        WrapTask(String line, long lineNumber) {
+            this.line = line;
+            this.lineNumber = lineNumber;
+        }
+
+        @Override
+        public WrappedKey call() throws CryptoException {
+
+            Map<String, Object> record;
+            try {
+                record = JsonUtil.parseJson(line);
+            } catch (JoseException e) {
+                throw new CryptoException("Line " + lineNumber + ": unable to parse record", e);
+            }
+
+            Object kid = record.get("kid");
+            if (!(kid instanceof String) || ((String) kid).isEmpty())
+                throw new CryptoException("Line " + lineNumber + ": record has no kid");
+
+            byte[] key;
+            boolean generated = false;
+            Object hexEncodedKey = record.get("key");
+            if (hexEncodedKey == null) {
+                key = cryptoUtils.generateAESKey();
+                generated = true;
+            } else {
+                try {
+                    key = Hex.decodeHex(String.valueOf(hexEncodedKey));
+                } catch (DecoderException e) {
+                    throw new CryptoException("Line " + lineNumber + ": unable to hex decode AES key", e);
+                }
+                if (key.length != 32)
+                    throw new CryptoException("Line " + lineNumber + ": key must be a Hex encoded 256 bit AES key");
+            }
+
+            String jwe = jweWrapper.wrap((String) kid, key);
+
+            Map<String, Object> output = new LinkedHashMap<String, Object>();
+            output.put("kid", kid);
+            output.put("jwe", jwe);
+            if (generated) output.put("key", Hex.encodeHexString(key));
+            return new WrappedKey((String) kid, jwe, JsonUtil.toJson(output));
+        }
+    }
+
+}
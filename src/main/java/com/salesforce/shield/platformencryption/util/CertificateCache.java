@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.util;
+
+import com.salesforce.shield.platformencryption.metrics.Instrumentation;
+import com.salesforce.shield.platformencryption.metrics.Stage;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.PublicKey;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Parses BYOK wrapping certificates once and hands out their public keys.  An entry is parsed again when
+ * the file's size or modification time changes, so a replaced certificate is picked up.  A long running
+ * process sees any number of paths, so only the most recently used ones are kept.
+ */
+public class CertificateCache {
+
+    public static final int DEFAULT_MAX_ENTRIES = 64;
+
+    private final Map<String, Entry> certificates;
+
+    public CertificateCache() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    public CertificateCache(final int maxEntries) {
+        if (maxEntries < 1) throw new IllegalArgumentException("A certificate cache needs room for at least 1 entry");
+        this.certificates = Collections.synchronizedMap(new LinkedHashMap<String, CertificateCache.Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CertificateCache.Entry> eldest) {
+                return size() > maxEntries;
+            }
+        });
+    }
+
+    public PublicKey getPublicKey(File file) throws IOException, CryptoException {
+        return getCertificate(file).getPublicKey();
+    }
+
+    public X509Certificate getCertificate(File file) throws IOException, CryptoException {
+
+        String path = file.getCanonicalPath();
+        long modified = file.lastModified();
+        long length = file.length();
+        Entry entry = certificates.get(path);
+        if (entry == null || entry.modified != modified || entry.length != length) {
+            entry = new Entry(parse(file), modified, length);
+            certificates.put(path, entry);
+        }
+        return entry.certificate;
+    }
+
+    public int size() {
+        return certificates.size();
+    }
+
+    /**
+     * Parses an X.509 certificate in PEM or DER form.
+     */
+    public static X509Certificate parse(File file) throws IOException, CryptoException {
+        long started = Instrumentation.begin();
+        try (InputStream inputStream = new FileInputStream(file)) {
+            CertificateFactory certificateFactory = CertificateFactory.getInstance("X.509");
+            X509Certificate certificate = (X509Certificate) certificateFactory.generateCertificate(inputStream);
+            Instrumentation.end(Stage.CERTIFICATE_PARSE, started);
+            return certificate;
+        } catch (CertificateException e) {
+            Instrumentation.failed(Stage.CERTIFICATE_PARSE, started, e);
+            throw new CryptoException("Unable to parse certificate " + file, e);
+        } catch (IOException e) {
+            Instrumentation.failed(Stage.CERTIFICATE_PARSE, started, e);
+            throw e;
+        }
+    }
+
+    private static final class Entry {
+
+        final X509Certificate certificate;
+        final long modified;
+        final long length;
+
+        Entry(X509Certificate certificate, long modified, long length) {
+            this.certificate = certificate;
+            this.modified = modified;
+            this.length = length;
+        }
+    }
+
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.util;
+
+import javax.crypto.Cipher;
+import java.security.GeneralSecurityException;
+
+/**
+ * Hands out one Cipher per thread for a transformation, so hot paths re-init a cached instance instead
+ * of paying for Cipher.getInstance on every call.
+ */
+final class CipherPool {
+
+    private final String transformation;
+    private final ThreadLocal<Cipher> ciphers = new ThreadLocal<Cipher>();
+
+    CipherPool(String transformation) {
+        this.transformation = transformation;
+    }
+
+    Cipher get() throws CryptoException {
+        Cipher cipher = ciphers.get();
+        if (cipher == null) {
+            try {
+                cipher = CryptoProviders.cipher(transformation);
+            } catch (GeneralSecurityException e) {
+                throw new CryptoException("Unable to create cipher " + transformation, e);
+            }
+            ciphers.set(cipher);
+        }
+        return cipher;
+    }
+
+}
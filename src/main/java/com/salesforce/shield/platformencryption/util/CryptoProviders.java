@@ -0,0 +1,367 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.util;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchProviderException;
+import java.security.Provider;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Chooses the JCA provider for each cipher the wrapper uses.
+ *
+ * By default every cipher comes from the JDK's preferred provider.  The keywrapper.providers system property
+ * pins a provider per primitive, e.g. -Dkeywrapper.providers=oaep=SunJCE,gcm=BC, and "auto" picks the fastest
+ * provider that gives correct output for every primitive not pinned, e.g. -Dkeywrapper.providers=auto,cbc=SunJCE.
+ * The chosen providers are logged as a keywrapper.providers value, so a tuned choice can be pinned from then on.
+ * BouncyCastle is available as "BC" without being installed in java.security.
+ */
+public final class CryptoProviders {
+
+    public static final String PROPERTY = "keywrapper.providers";
+
+    private static final Logger LOG = Logger.getLogger(CryptoProviders.class.getName());
+    private static final String AUTO = "auto";
+    private static final String BC = "BC";
+    private static final long WARMUP_NANOS = 100_000_000L;
+    private static final long MEASURE_NANOS = 200_000_000L;
+
+    public enum Primitive {
+        RSA_OAEP("oaep", JweWrapper.RSA_OAEP, 32),
+        AES_GCM("gcm", "AES/GCM/NoPadding", 32),
+        AES_CBC("cbc", "AES/CBC/PKCS5Padding", 64);
+
+        private final String id;
+        private final String transformation;
+        //Plaintext length tuned for: a CEK for OAEP, a DEK for GCM and a short string for CBC
+        private final int benchmarkLength;
+
+        Primitive(String id, String transformation, int benchmarkLength) {
+            this.id = id;
+            this.transformation = transformation;
+            this.benchmarkLength = benchmarkLength;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getTransformation() {
+            return transformation;
+        }
+
+        static Primitive forTransformation(String transformation) {
+            for (Primitive primitive : values()) {
+                if (primitive.transformation.equalsIgnoreCase(transformation)) return primitive;
+            }
+            return null;
+        }
+    }
+
+    //Null entries use the JDK's preferred provider
+    private static volatile Map<Primitive, Provider> selected;
+    private static volatile String configurationError;
+    private static Provider bouncyCastle;
+
+    private CryptoProviders() {
+    }
+
+    /**
+     * @return a new Cipher for transformation from the provider chosen for it
+     */
+    public static Cipher cipher(String transformation) throws GeneralSecurityException {
+        Map<Primitive, Provider> providers = selected();
+        //A typo in the property must not silently fall back to the default providers
+        if (configurationError != null) throw new NoSuchProviderException(configurationError);
+        Primitive primitive = Primitive.forTransformation(transformation);
+        Provider provider = primitive == null ? null : providers.get(primitive);
+        return provider == null ? Cipher.getInstance(transformation) : Cipher.getInstance(transformation, provider);
+    }
+
+    /**
+     * Replaces the selection made from the system property, with the same syntax.  Ciphers already handed out
+     * keep their provider, so call this before the first wrap.
+     *
+     * @return the selection as a keywrapper.providers value
+     * @throws IllegalArgumentException for an unknown primitive or a provider that does not support it
+     */
+    public static synchronized String configure(String specification) {
+        Map<Primitive, Provider> providers = parse(specification);
+        selected = providers;
+        configurationError = null;
+        return describe(providers);
+    }
+
+    /**
+     * @return the current selection as a keywrapper.providers value, "default" for the JDK's preferred provider
+     */
+    public static String selection() {
+        Map<Primitive, Provider> providers = selected();
+        if (configurationError != null) return configurationError;
+        return describe(providers);
+    }
+
+    private static Map<Primitive, Provider> selected() {
+        Map<Primitive, Provider> providers = selected;
+        if (providers == null) {
+            synchronized (CryptoProviders.class) {
+                providers = selected;
+                if (providers == null) {
+                    try {
+                        providers = parse(System.getProperty(PROPERTY));
+                    } catch (IllegalArgumentException e) {
+                        configurationError = "Invalid -D" + PROPERTY + ": " + e.getMessage();
+                        providers = new EnumMap<Primitive, Provider>(Primitive.class);
+                    }
+                    selected = providers;
+                }
+            }
+        }
+        return providers;
+    }
+
+    private static Map<Primitive, Provider> parse(String specification) {
+        Map<Primitive, Provider> providers = new EnumMap<Primitive, Provider>(Primitive.class);
+        if (specification == null || specification.trim().isEmpty()) return providers;
+
+        boolean auto = false;
+        for (String entry : specification.split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) continue;
+            if (entry.equalsIgnoreCase(AUTO)) {
+                auto = true;
+                continue;
+            }
+            int equals = entry.indexOf('=');
+            if (equals < 0) throw new IllegalArgumentException("Expected primitive=provider or auto, not " + entry);
+            Primitive primitive = primitive(entry.substring(0, equals).trim());
+            String name = entry.substring(equals + 1).trim();
+            if (name.equalsIgnoreCase("default")) {
+                providers.put(primitive, null);
+                continue;
+            }
+            Provider provider = provider(name);
+            if (provider == null) throw new IllegalArgumentException("Unknown provider " + name);
+            try {
+                Cipher.getInstance(primitive.transformation, provider);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalArgumentException(name + " does not support " + primitive.transformation);
+            }
+            providers.put(primitive, provider);
+        }
+
+        if (auto) {
+            for (Primitive primitive : Primitive.values()) {
+                if (!providers.containsKey(primitive)) providers.put(primitive, tune(primitive));
+            }
+        }
+        if (auto || !providers.isEmpty()) LOG.info("Crypto providers: -D" + PROPERTY + "=" + describe(providers));
+        return providers;
+    }
+
+    private static Primitive primitive(String id) {
+        for (Primitive primitive : Primitive.values()) {
+            if (primitive.id.equalsIgnoreCase(id)) return primitive;
+        }
+        throw new IllegalArgumentException("Unknown primitive " + id + ", expected oaep, gcm or cbc");
+    }
+
+    private static synchronized Provider provider(String name) {
+        Provider provider = Security.getProvider(name);
+        if (provider == null && name.equalsIgnoreCase(BC)) {
+            if (bouncyCastle == null) bouncyCastle = new BouncyCastleProvider();
+            provider = bouncyCastle;
+        }
+        return provider;
+    }
+
+    private static String describe(Map<Primitive, Provider> providers) {
+        StringBuilder description = new StringBuilder();
+        for (Primitive primitive : Primitive.values()) {
+            if (description.length() > 0) description.append(',');
+            Provider provider = providers.get(primitive);
+            description.append(primitive.id).append('=').append(provider == null ? "default" : provider.getName());
+        }
+        return description.toString();
+    }
+
+    private static List<Provider> candidates(Primitive primitive) {
+        List<Provider> candidates = new ArrayList<Provider>();
+        List<Provider> installed = new ArrayList<Provider>(Arrays.asList(Security.getProviders()));
+        if (Security.getProvider(BC) == null) installed.add(provider(BC));
+        for (Provider provider : installed) {
+            try {
+                Cipher.getInstance(primitive.transformation, provider);
+                candidates.add(provider);
+            } catch (GeneralSecurityException e) {
+                //Doesn't implement this primitive
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * Benchmarks every provider of primitive that agrees with the JDK's preferred provider, and returns the
+     * fastest, or null when none could be measured.
+     */
+    private static Provider tune(Primitive primitive) {
+        Provider fastest = null;
+        double fastestRate = 0;
+        StringBuilder results = new StringBuilder();
+        Workload workload;
+        try {
+            workload = new Workload(primitive);
+        } catch (GeneralSecurityException e) {
+            LOG.log(Level.WARNING, "Unable to tune " + primitive.id + ", using the default provider", e);
+            return null;
+        }
+
+        for (Provider provider : candidates(primitive)) {
+            double rate;
+            try {
+                if (!workload.agrees(provider)) {
+                    LOG.warning(provider.getName() + " " + primitive.transformation + " disagrees with the default provider, skipping it");
+                    continue;
+                }
+                rate = workload.measure(provider);
+            } catch (GeneralSecurityException e) {
+                LOG.log(Level.FINE, provider.getName() + " " + primitive.transformation + " is unusable", e);
+                continue;
+            } catch (RuntimeException e) {
+                //Some providers reject keys from others, or refuse to run unsigned
+                LOG.log(Level.FINE, provider.getName() + " " + primitive.transformation + " is unusable", e);
+                continue;
+            }
+            results.append(String.format(" %s %.0f ops/s", provider.getName(), rate));
+            if (rate > fastestRate) {
+                fastest = provider;
+                fastestRate = rate;
+            }
+        }
+
+        LOG.info(primitive.id + ":" + results + " -> " + (fastest == null ? "default" : fastest.getName()));
+        return fastest;
+    }
+
+    //One primitive's correctness check and benchmark, against the JDK's preferred provider
+    private static final class Workload {
+
+        final Primitive primitive;
+        final Provider referenceProvider;
+        final Key encryptKey;
+        final Key decryptKey;
+        final byte[] plaintext;
+        final byte[] iv;
+
+        Workload(Primitive primitive) throws GeneralSecurityException {
+            this.primitive = primitive;
+            this.referenceProvider = Cipher.getInstance(primitive.transformation).getProvider();
+            SecureRandom random = new SecureRandom();
+            if (primitive == Primitive.RSA_OAEP) {
+                KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+                //Generating a 4096 bit key takes seconds, and the providers rank the same at 2048 bits
+                generator.initialize(2048);
+                KeyPair pair = generator.generateKeyPair();
+                encryptKey = pair.getPublic();
+                decryptKey = pair.getPrivate();
+            } else {
+                byte[] key = new byte[32];
+                random.nextBytes(key);
+                encryptKey = new SecretKeySpec(key, "AES");
+                decryptKey = encryptKey;
+            }
+            plaintext = new byte[primitive.benchmarkLength];
+            random.nextBytes(plaintext);
+            iv = new byte[primitive == Primitive.AES_CBC ? CryptoUtils.CBC_IV_LENGTH : CryptoUtils.GCM_IV_LENGTH];
+            random.nextBytes(iv);
+        }
+
+        /**
+         * OAEP output is randomized, so each side has to decrypt the other's.  The AES modes must match byte for byte.
+         */
+        boolean agrees(Provider provider) throws GeneralSecurityException {
+            Cipher reference = Cipher.getInstance(primitive.transformation, referenceProvider);
+            Cipher candidate = Cipher.getInstance(primitive.transformation, provider);
+            init(reference, Cipher.ENCRYPT_MODE, encryptKey, iv);
+            byte[] expected = reference.doFinal(plaintext);
+            init(candidate, Cipher.ENCRYPT_MODE, encryptKey, iv);
+            byte[] actual = candidate.doFinal(plaintext);
+
+            if (primitive == Primitive.RSA_OAEP) {
+                init(reference, Cipher.DECRYPT_MODE, decryptKey, iv);
+                if (!Arrays.equals(plaintext, reference.doFinal(actual))) return false;
+            } else if (!Arrays.equals(expected, actual)) {
+                return false;
+            }
+            init(candidate, Cipher.DECRYPT_MODE, decryptKey, iv);
+            return Arrays.equals(plaintext, candidate.doFinal(expected));
+        }
+
+        /**
+         * @return encryptions per second, the operation wrapping repeats, after a warm-up
+         */
+        double measure(Provider provider) throws GeneralSecurityException {
+            Cipher cipher = Cipher.getInstance(primitive.transformation, provider);
+            byte[] nonce = iv.clone();
+            long counter = 0;
+            long start = System.nanoTime();
+            while (System.nanoTime() - start < WARMUP_NANOS) {
+                encrypt(cipher, nonce, counter++);
+            }
+
+            long operations = 0;
+            start = System.nanoTime();
+            long elapsed;
+            do {
+                for (int i = 0; i < 16; i++) encrypt(cipher, nonce, counter++);
+                operations += 16;
+                elapsed = System.nanoTime() - start;
+            } while (elapsed < MEASURE_NANOS);
+            return operations * 1e9 / elapsed;
+        }
+
+        private void encrypt(Cipher cipher, byte[] nonce, long counter) throws GeneralSecurityException {
+            //GCM refuses to encrypt twice under one IV
+            for (int i = 0; i < 8; i++) nonce[i] = (byte) (counter >>> (i * 8));
+            init(cipher, Cipher.ENCRYPT_MODE, encryptKey, nonce);
+            cipher.doFinal(plaintext);
+        }
+
+        private void init(Cipher cipher, int mode, Key key, byte[] nonce) throws GeneralSecurityException {
+            AlgorithmParameterSpec parameters = null;
+            if (primitive == Primitive.AES_GCM) {
+                parameters = new GCMParameterSpec(CryptoUtils.GCM_TAG_LENGTH * 8, nonce);
+            } else if (primitive == Primitive.AES_CBC) {
+                parameters = new IvParameterSpec(nonce);
+            }
+            if (parameters == null) {
+                cipher.init(mode, key);
+            } else {
+                cipher.init(mode, key, parameters);
+            }
+        }
+    }
+}
@@ -7,23 +7,37 @@
 
 package com.salesforce.shield.platformencryption.util;
 
+import com.salesforce.shield.platformencryption.metrics.Instrumentation;
+import com.salesforce.shield.platformencryption.metrics.Stage;
 import org.apache.commons.codec.binary.Hex;
 
 import javax.crypto.Cipher;
-import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
 
 
 public class CryptoUtils {
 
-    private static final int AES_BIT_LENGTH = 256;
     private static final String AES = "AES";
     private static final String CIPHER_SPEC = "AES/CBC/PKCS5Padding";
+    private static final String GCM_CIPHER_SPEC = "AES/GCM/NoPadding";
+
+    public static final int CBC_IV_LENGTH = 16;
+    public static final int GCM_IV_LENGTH = 12;
+    public static final int GCM_TAG_LENGTH = 16;
+
+    private static final CipherPool CBC_CIPHERS = new CipherPool(CIPHER_SPEC);
+    private static final CipherPool GCM_CIPHERS = new CipherPool(GCM_CIPHER_SPEC);
+    private static final ThreadLocal<byte[]> IVS = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[CBC_IV_LENGTH];
+        }
+    };
 
 
 
@@ -37,79 +51,213 @@ public class CryptoUtils {
 
     public String encrypt(byte[]key, byte[] cleartext) throws CryptoException {
 
+        // IV and encrypted part, written straight into one exactly sized buffer.
+        byte[] encryptedIVAndText = new byte[cbcOutputSize(cleartext.length)];
+        encrypt(secretKey(key), cleartext, 0, cleartext.length, encryptedIVAndText, 0);
+        return Hex.encodeHexString(encryptedIVAndText);
+
+    }
+
+    public String decrypt(byte[]key, String hexEncodedCiphertext) throws CryptoException {
 
         try {
-            // Generating IV.
-            int ivSize = 16;
-            byte[] iv = new byte[ivSize];
-            SecureRandom random = new SecureRandom();
-            random.nextBytes(iv);
-            IvParameterSpec ivParameterSpec = new IvParameterSpec(iv);
-
-            // Encrypt.
-            SecretKeySpec secretKeySpec = new SecretKeySpec(key, AES);
-            Cipher cipher = Cipher.getInstance(CIPHER_SPEC);
-            cipher.init(Cipher.ENCRYPT_MODE, secretKeySpec, ivParameterSpec);
-            byte[] encrypted = cipher.doFinal(cleartext);
-
-            // Combine IV and encrypted part.
-            byte[] encryptedIVAndText = new byte[ivSize + encrypted.length];
-            System.arraycopy(iv, 0, encryptedIVAndText, 0, ivSize);
-            System.arraycopy(encrypted, 0, encryptedIVAndText, ivSize, encrypted.length);
-            return Hex.encodeHexString(encryptedIVAndText);
+            byte[] cipherTextBytes = Hex.decodeHex(hexEncodedCiphertext);
+
+            // Decrypt in place, the cleartext is never longer than the ciphertext.
+            int length = decrypt(secretKey(key), cipherTextBytes, 0, cipherTextBytes.length, cipherTextBytes, 0);
 
+            return new String(cipherTextBytes, 0, length, StandardCharsets.UTF_8);
+
+        } catch (CryptoException e) {
+            throw e;
         } catch (Exception e) {
             throw new CryptoException(e);
         }
 
     }
 
-    public String decrypt(byte[]key, String hexEncodedCiphertext) throws CryptoException {
-
-        try {
-            byte[] cipherTextBytes = Hex.decodeHex(hexEncodedCiphertext);
 
-            int ivSize = 16;
-            int keySize = 16;
+    /**
+     * Wraps raw AES key bytes for the allocation-free methods below, so callers can build it once and reuse it.
+     */
+    public SecretKey secretKey(byte[] key) {
+        return new SecretKeySpec(key, AES);
+    }
 
-            // Extract IV.
-            byte[] iv = new byte[ivSize];
-            System.arraycopy(cipherTextBytes, 0, iv, 0, iv.length);
-            IvParameterSpec ivParameterSpec = new IvParameterSpec(iv);
+    public static int cbcOutputSize(int cleartextLength) {
+        return CBC_IV_LENGTH + (cleartextLength / 16 + 1) * 16;
+    }
 
-            // Extract encrypted part.
-            int encryptedSize = cipherTextBytes.length - ivSize;
-            byte[] encryptedBytes = new byte[encryptedSize];
-            System.arraycopy(cipherTextBytes, ivSize, encryptedBytes, 0, encryptedSize);
+    public static int gcmOutputSize(int cleartextLength) {
+        return GCM_IV_LENGTH + cleartextLength + GCM_TAG_LENGTH;
+    }
 
-            // Decrypt.
-            SecretKeySpec secretKeySpec = new SecretKeySpec(key, AES);
-            Cipher cipherDecrypt = Cipher.getInstance(CIPHER_SPEC);
-            cipherDecrypt.init(Cipher.DECRYPT_MODE, secretKeySpec, ivParameterSpec);
-            byte[] decrypted = cipherDecrypt.doFinal(encryptedBytes);
+    /**
+     * AES-256-CBC encrypts in[inOffset, inOffset + length) and writes IV || ciphertext at out[outOffset].
+     * out needs room for cbcOutputSize(length) bytes.
+     *
+     * @return the number of bytes written
+     */
+    public int encrypt(SecretKey key, byte[] in, int inOffset, int length, byte[] out, int outOffset) throws CryptoException {
+        try {
+            byte[] iv = IVS.get();
+            RandomSource.nextBytes(iv);
+            Cipher cipher = CBC_CIPHERS.get();
+            cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv, 0, CBC_IV_LENGTH));
+            System.arraycopy(iv, 0, out, outOffset, CBC_IV_LENGTH);
+            return CBC_IV_LENGTH + cipher.doFinal(in, inOffset, length, out, outOffset + CBC_IV_LENGTH);
+        } catch (CryptoException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new CryptoException(e);
+        }
+    }
 
-            return new String(decrypted);
+    /**
+     * Decrypts IV || ciphertext as written by encrypt into out[outOffset].  out may be the input array.
+     *
+     * @return the number of cleartext bytes written
+     */
+    public int decrypt(SecretKey key, byte[] in, int inOffset, int length, byte[] out, int outOffset) throws CryptoException {
+        try {
+            Cipher cipher = CBC_CIPHERS.get();
+            cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(in, inOffset, CBC_IV_LENGTH));
+            return cipher.doFinal(in, inOffset + CBC_IV_LENGTH, length - CBC_IV_LENGTH, out, outOffset);
+        } catch (CryptoException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new CryptoException(e);
+        }
+    }
 
+    /**
+     * AES-256-CBC encrypts the remaining bytes of cleartext and puts IV || ciphertext into out.
+     *
+     * @return the number of bytes written
+     */
+    public int encrypt(SecretKey key, ByteBuffer cleartext, ByteBuffer out) throws CryptoException {
+        try {
+            byte[] iv = IVS.get();
+            RandomSource.nextBytes(iv);
+            Cipher cipher = CBC_CIPHERS.get();
+            cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv, 0, CBC_IV_LENGTH));
+            out.put(iv, 0, CBC_IV_LENGTH);
+            return CBC_IV_LENGTH + cipher.doFinal(cleartext, out);
+        } catch (CryptoException e) {
+            throw e;
         } catch (Exception e) {
             throw new CryptoException(e);
         }
+    }
 
+    /**
+     * Decrypts the remaining IV || ciphertext bytes of ciphertext into out.
+     *
+     * @return the number of cleartext bytes written
+     */
+    public int decrypt(SecretKey key, ByteBuffer ciphertext, ByteBuffer out) throws CryptoException {
+        try {
+            byte[] iv = IVS.get();
+            ciphertext.get(iv, 0, CBC_IV_LENGTH);
+            Cipher cipher = CBC_CIPHERS.get();
+            cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(iv, 0, CBC_IV_LENGTH));
+            return cipher.doFinal(ciphertext, out);
+        } catch (CryptoException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new CryptoException(e);
+        }
     }
 
+    /**
+     * AES-256-GCM encrypts in[inOffset, inOffset + length) and writes IV || ciphertext || tag at out[outOffset].
+     * out needs room for gcmOutputSize(length) bytes.  aad may be null.
+     *
+     * @return the number of bytes written
+     */
+    public int encryptGcm(SecretKey key, byte[] aad, byte[] in, int inOffset, int length, byte[] out, int outOffset) throws CryptoException {
+        try {
+            byte[] iv = IVS.get();
+            RandomSource.nextBytes(iv);
+            Cipher cipher = GCM_CIPHERS.get();
+            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_LENGTH * 8, iv, 0, GCM_IV_LENGTH));
+            if (aad != null) cipher.updateAAD(aad);
+            System.arraycopy(iv, 0, out, outOffset, GCM_IV_LENGTH);
+            return GCM_IV_LENGTH + cipher.doFinal(in, inOffset, length, out, outOffset + GCM_IV_LENGTH);
+        } catch (CryptoException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new CryptoException(e);
+        }
+    }
 
-    public byte[] generateAESKey() throws CryptoException {
+    /**
+     * Verifies and decrypts IV || ciphertext || tag as written by encryptGcm into out[outOffset].
+     *
+     * @return the number of cleartext bytes written
+     */
+    public int decryptGcm(SecretKey key, byte[] aad, byte[] in, int inOffset, int length, byte[] out, int outOffset) throws CryptoException {
+        try {
+            Cipher cipher = GCM_CIPHERS.get();
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_LENGTH * 8, in, inOffset, GCM_IV_LENGTH));
+            if (aad != null) cipher.updateAAD(aad);
+            return cipher.doFinal(in, inOffset + GCM_IV_LENGTH, length - GCM_IV_LENGTH, out, outOffset);
+        } catch (CryptoException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new CryptoException(e);
+        }
+    }
 
-        KeyGenerator keygen;
+    /**
+     * AES-256-GCM encrypts the remaining bytes of cleartext and puts IV || ciphertext || tag into out.
+     * aad may be null.
+     *
+     * @return the number of bytes written
+     */
+    public int encryptGcm(SecretKey key, byte[] aad, ByteBuffer cleartext, ByteBuffer out) throws CryptoException {
         try {
-            keygen = KeyGenerator.getInstance(AES);
-        } catch (NoSuchAlgorithmException e) {
+            byte[] iv = IVS.get();
+            RandomSource.nextBytes(iv);
+            Cipher cipher = GCM_CIPHERS.get();
+            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_LENGTH * 8, iv, 0, GCM_IV_LENGTH));
+            if (aad != null) cipher.updateAAD(aad);
+            out.put(iv, 0, GCM_IV_LENGTH);
+            return GCM_IV_LENGTH + cipher.doFinal(cleartext, out);
+        } catch (CryptoException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new CryptoException(e);
+        }
+    }
 
+    /**
+     * Verifies and decrypts the remaining IV || ciphertext || tag bytes of ciphertext into out.
+     *
+     * @return the number of cleartext bytes written
+     */
+    public int decryptGcm(SecretKey key, byte[] aad, ByteBuffer ciphertext, ByteBuffer out) throws CryptoException {
+        try {
+            byte[] iv = IVS.get();
+            ciphertext.get(iv, 0, GCM_IV_LENGTH);
+            Cipher cipher = GCM_CIPHERS.get();
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_LENGTH * 8, iv, 0, GCM_IV_LENGTH));
+            if (aad != null) cipher.updateAAD(aad);
+            return cipher.doFinal(ciphertext, out);
+        } catch (CryptoException e) {
+            throw e;
+        } catch (Exception e) {
             throw new CryptoException(e);
         }
+    }
+
+
+    public byte[] generateAESKey() throws CryptoException {
 
-        keygen.init(AES_BIT_LENGTH);
-        SecretKey key = keygen.generateKey();
-        return key.getEncoded();
+        long started = Instrumentation.begin();
+        byte[] key = RandomSource.key();
+        Instrumentation.end(Stage.KEY_GENERATION, started);
+        return key;
 
     }
 
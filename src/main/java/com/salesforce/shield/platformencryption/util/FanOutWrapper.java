@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.util;
+
+import com.salesforce.shield.platformencryption.metrics.Instrumentation;
+import com.salesforce.shield.platformencryption.metrics.Stage;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Wraps one DEK for many BYOK wrapping keys at once, producing one compact JWE per recipient in the same
+ * format as JweWrapper.
+ *
+ * The protected header only depends on the kid, so every recipient's JWE can share one CEK, IV and AES-GCM
+ * ciphertext and tag: those are computed once per call, and only the RSA-OAEP encryption of the CEK is done
+ * per recipient, in parallel on a fork-join pool.  Every recipient already receives the same DEK, so sharing
+ * the CEK between them discloses nothing a recipient couldn't decrypt anyway.
+ */
+public class FanOutWrapper {
+
+    private static final int MAX_CACHED_HEADERS = 10000;
+    //RSA-OAEP encryptions per fork-join task, a public key operation is too cheap to split further
+    private static final int RECIPIENTS_PER_TASK = 4;
+
+    private final PublicKey[] recipients;
+    private final int[] encryptedKeyLengths;
+    private final ForkJoinPool pool;
+    private final ConcurrentHashMap<String, byte[]> headers = new ConcurrentHashMap<String, byte[]>();
+
+    public FanOutWrapper(List<PublicKey> recipients, ForkJoinPool pool) throws CryptoException {
+        if (recipients.isEmpty()) throw new CryptoException("At least one BYOK wrapping key is required");
+        this.recipients = recipients.toArray(new PublicKey[recipients.size()]);
+        this.encryptedKeyLengths = new int[this.recipients.length];
+        for (int i = 0; i < this.recipients.length; i++) {
+            if (!(this.recipients[i] instanceof RSAPublicKey)) throw new CryptoException("The BYOK wrapping key must be an RSA public key");
+            encryptedKeyLengths[i] = (((RSAPublicKey) this.recipients[i]).getModulus().bitLength() + 7) / 8;
+        }
+        this.pool = pool;
+    }
+
+    public int getRecipientCount() {
+        return recipients.length;
+    }
+
+    /**
+     * @return the compact serialization of key for each recipient, in the order the recipients were given
+     */
+    public String[] wrap(String kid, byte[] key) throws CryptoException {
+
+        byte[] header = headers.get(kid);
+        if (header == null) {
+            header = JweWrapper.encodeHeader(kid);
+            if (headers.size() < MAX_CACHED_HEADERS) headers.put(kid, header);
+        }
+
+        long started = Instrumentation.begin();
+        JweWrapper.WrapState state = JweWrapper.state();
+        byte[] cek = new byte[JweWrapper.CEK_LENGTH];
+        long gcmStarted = started;
+        try {
+            RandomSource.nextBytes(cek);
+            RandomSource.nextBytes(state.iv);
+
+            //Shared by every recipient: . BASE64URL(IV) . BASE64URL(ciphertext) . BASE64URL(tag)
+            gcmStarted = Instrumentation.begin();
+            state.gcm.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(cek, "AES"), new GCMParameterSpec(JweWrapper.TAG_LENGTH * 8, state.iv));
+            state.gcm.updateAAD(header);
+            byte[] ciphertext = state.ensureCiphertext(key.length + JweWrapper.TAG_LENGTH);
+            int ciphertextLength = state.gcm.doFinal(key, 0, key.length, ciphertext, 0) - JweWrapper.TAG_LENGTH;
+            Instrumentation.end(Stage.AES_GCM, gcmStarted);
+
+            byte[] tail = new byte[3 + JweWrapper.encodedLength(JweWrapper.IV_LENGTH)
+                    + JweWrapper.encodedLength(ciphertextLength) + JweWrapper.encodedLength(JweWrapper.TAG_LENGTH)];
+            int pos = 0;
+            tail[pos++] = '.';
+            pos = JweWrapper.encode(state.iv, 0, JweWrapper.IV_LENGTH, tail, pos);
+            tail[pos++] = '.';
+            pos = JweWrapper.encode(ciphertext, 0, ciphertextLength, tail, pos);
+            tail[pos++] = '.';
+            JweWrapper.encode(ciphertext, ciphertextLength, JweWrapper.TAG_LENGTH, tail, pos);
+
+            String[] jwes = new String[recipients.length];
+            RecipientTask task = new RecipientTask(kid, header, cek, tail, jwes, started, 0, recipients.length);
+            if (recipients.length <= RECIPIENTS_PER_TASK) {
+                task.compute();
+            } else {
+                pool.invoke(task);
+            }
+            return jwes;
+        } catch (UncheckedCryptoException e) {
+            throw e.getCause();
+        } catch (GeneralSecurityException e) {
+            Instrumentation.failed(Stage.AES_GCM, gcmStarted, e);
+            Instrumentation.failed(Stage.WRAP, started, e);
+            throw new CryptoException("Unable to wrap key " + kid, e);
+        } finally {
+            Arrays.fill(cek, (byte) 0);
+        }
+    }
+
+    //Splits a range of recipients in half until it is small enough to wrap on one worker
+    private final class RecipientTask extends RecursiveAction {
+
+        private final String kid;
+        private final byte[] header;
+        private final byte[] cek;
+        private final byte[] tail;
+        private final String[] jwes;
+        private final long started;
+        private final int from;
+        private final int to;
+
+        RecipientTask(String kid, byte[] header, byte[] cek, byte[] tail, String[] jwes, long started, int from, int to) {
+            this.kid = kid;
+            this.header = header;
+            this.cek = cek;
+            this.tail = tail;
+            this.jwes = jwes;
+            this.started = started;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > RECIPIENTS_PER_TASK) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new RecipientTask(kid, header, cek, tail, jwes, started, from, middle),
+                        new RecipientTask(kid, header, cek, tail, jwes, started, middle, to));
+                return;
+            }
+            JweWrapper.WrapState state = JweWrapper.state();
+            for (int i = from; i < to; i++) {
+                long oaepStarted = Instrumentation.begin();
+                try {
+                    state.oaep.init(Cipher.ENCRYPT_MODE, recipients[i], RandomSource.current());
+                    byte[] encryptedKey = state.ensureEncryptedKey(encryptedKeyLengths[i]);
+                    int wrappedKeyLength = state.oaep.doFinal(cek, 0, cek.length, encryptedKey, 0);
+                    Instrumentation.end(Stage.RSA_OAEP, oaepStarted);
+
+                    byte[] out = state.ensureOut(header.length + 1 + JweWrapper.encodedLength(wrappedKeyLength) + tail.length);
+                    int pos = header.length;
+                    System.arraycopy(header, 0, out, 0, pos);
+                    out[pos++] = '.';
+                    pos = JweWrapper.encode(encryptedKey, 0, wrappedKeyLength, out, pos);
+                    System.arraycopy(tail, 0, out, pos, tail.length);
+                    jwes[i] = new String(out, 0, pos + tail.length, StandardCharsets.US_ASCII);
+                    //Each JWE's wrap time runs from the start of the fan-out, the shared AES-GCM step included
+                    Instrumentation.end(Stage.WRAP, started);
+                } catch (GeneralSecurityException e) {
+                    Instrumentation.failed(Stage.RSA_OAEP, oaepStarted, e);
+                    Instrumentation.failed(Stage.WRAP, started, e);
+                    throw new UncheckedCryptoException(new CryptoException("Unable to wrap key " + kid + " for recipient " + i, e));
+                }
+            }
+        }
+    }
+
+}
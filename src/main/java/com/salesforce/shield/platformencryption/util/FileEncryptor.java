@@ -0,0 +1,249 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.util;
+
+import javax.crypto.SecretKey;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Encrypts and decrypts files of any size in independent AES-256-GCM chunks.
+ *
+ * The input is memory-mapped one chunk at a time and chunks are processed in parallel on a fork-join pool,
+ * each thread writing through the output FileChannel at the chunk's fixed offset.  Each leaf task allocates one
+ * chunk buffer for its few chunks, so heap use is at most a chunk buffer per worker whatever the file size.
+ *
+ * Decryption writes to a temporary file next to the output, which only replaces the output once every chunk
+ * has been authenticated.
+ *
+ * File layout:
+ * header  : magic "COKF" | version (1) | chunk size (int) | plaintext length (long) | reserved (int)
+ * chunk i : IV (12) | ciphertext | tag (16), at HEADER_LENGTH + i * (chunk size + 28)
+ *
+ * Every chunk is authenticated with the header and its own index as AAD, so chunks can't be reordered,
+ * dropped or moved between files, and any single chunk can be decrypted on its own.
+ */
+public class FileEncryptor {
+
+    public static final int HEADER_LENGTH = 24;
+    public static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+    //Bounds the buffer each worker allocates, also for a chunk size read from an unauthenticated header
+    public static final int MAX_CHUNK_SIZE = 64 << 20;
+
+    private static final int MAGIC = 0x434f4b46;
+    private static final int VERSION = 1;
+    private static final int CHUNK_OVERHEAD = CryptoUtils.GCM_IV_LENGTH + CryptoUtils.GCM_TAG_LENGTH;
+
+    private final CryptoUtils cryptoUtils = new CryptoUtils();
+    private final SecretKey key;
+    private final ForkJoinPool pool;
+
+    public FileEncryptor(byte[] key, ForkJoinPool pool) {
+        this.key = cryptoUtils.secretKey(key);
+        this.pool = pool;
+    }
+
+    public void encrypt(File in, File out, int chunkSize) throws IOException, CryptoException {
+        if (chunkSize < 1 || chunkSize > MAX_CHUNK_SIZE) throw new IllegalArgumentException("chunk size must be between 1 and " + MAX_CHUNK_SIZE);
+
+        try (FileChannel source = FileChannel.open(in.toPath(), StandardOpenOption.READ);
+             FileChannel target = FileChannel.open(out.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+
+            Header header = new Header(chunkSize, source.size());
+            writeFully(target, header.encode(), 0);
+            run(new ChunkTask(source, target, header, true, 0, header.chunkCount()));
+            target.force(true);
+        }
+    }
+
+    /**
+     * Decrypts in to out.  Nothing is left at out unless every chunk is authentic.
+     */
+    public void decrypt(File in, File out) throws IOException, CryptoException {
+
+        File dir = out.getAbsoluteFile().getParentFile();
+        Path temporary = Files.createTempFile(dir.toPath(), out.getName(), ".tmp");
+        try {
+            try (FileChannel source = FileChannel.open(in.toPath(), StandardOpenOption.READ);
+                 FileChannel target = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+
+                Header header = Header.read(source);
+                if (source.size() != header.encryptedSize()) throw new CryptoException("Encrypted file is truncated or has trailing data");
+                run(new ChunkTask(source, target, header, false, 0, header.chunkCount()));
+                target.force(true);
+            }
+            Files.move(temporary, out.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    /**
+     * Decrypts a single chunk of an encrypted file without touching the rest of it.
+     */
+    public byte[] decryptChunk(File in, long chunk) throws IOException, CryptoException {
+
+        try (FileChannel source = FileChannel.open(in.toPath(), StandardOpenOption.READ)) {
+            Header header = Header.read(source);
+            if (chunk < 0 || chunk >= header.chunkCount()) throw new CryptoException("No chunk " + chunk + " in " + in);
+            ByteBuffer plaintext = ByteBuffer.allocate(header.plaintextLength(chunk));
+            new ChunkTask(source, null, header, false, chunk, chunk + 1).decrypt(chunk, plaintext);
+            return plaintext.array();
+        }
+    }
+
+    private void run(ChunkTask task) throws IOException, CryptoException {
+        try {
+            pool.invoke(task);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } catch (UncheckedCryptoException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) position += channel.write(buffer, position);
+    }
+
+    private static final class Header {
+
+        final int chunkSize;
+        final long length;
+
+        Header(int chunkSize, long length) {
+            this.chunkSize = chunkSize;
+            this.length = length;
+        }
+
+        static Header read(FileChannel channel) throws IOException, CryptoException {
+            ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, buffer.position()) < 0) throw new CryptoException("Not an encrypted file, header is truncated");
+            }
+            buffer.flip();
+            if (buffer.getInt() != MAGIC) throw new CryptoException("Not an encrypted file");
+            if (buffer.getInt() != VERSION) throw new CryptoException("Unsupported encrypted file version");
+            int chunkSize = buffer.getInt();
+            long length = buffer.getLong();
+            if (chunkSize < 1 || chunkSize > MAX_CHUNK_SIZE || length < 0) throw new CryptoException("Corrupt encrypted file header");
+            return new Header(chunkSize, length);
+        }
+
+        ByteBuffer encode() {
+            ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH);
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(chunkSize).putLong(length).putInt(0);
+            buffer.flip();
+            return buffer;
+        }
+
+        long chunkCount() {
+            return (length + chunkSize - 1) / chunkSize;
+        }
+
+        int plaintextLength(long chunk) {
+            return (int) Math.min(chunkSize, length - chunk * chunkSize);
+        }
+
+        long plaintextOffset(long chunk) {
+            return chunk * chunkSize;
+        }
+
+        long encryptedOffset(long chunk) {
+            return HEADER_LENGTH + chunk * (chunkSize + (long) CHUNK_OVERHEAD);
+        }
+
+        long encryptedSize() {
+            if (length == 0) return HEADER_LENGTH;
+            return encryptedOffset(chunkCount() - 1) + CHUNK_OVERHEAD + plaintextLength(chunkCount() - 1);
+        }
+
+        //Header bytes followed by the chunk index
+        byte[] aad(long chunk) {
+            ByteBuffer aad = ByteBuffer.allocate(HEADER_LENGTH + 8);
+            aad.put(encode()).putLong(chunk);
+            return aad.array();
+        }
+    }
+
+    //Splits a range of chunks in half until it is small enough to process on one worker
+    private final class ChunkTask extends RecursiveAction {
+
+        private static final int CHUNKS_PER_TASK = 4;
+
+        private final FileChannel source;
+        private final FileChannel target;
+        private final Header header;
+        private final boolean encrypt;
+        private final long from;
+        private final long to;
+
+        ChunkTask(FileChannel source, FileChannel target, Header header, boolean encrypt, long from, long to) {
+            this.source = source;
+            this.target = target;
+            this.header = header;
+            this.encrypt = encrypt;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > CHUNKS_PER_TASK) {
+                long middle = (from + to) >>> 1;
+                invokeAll(new ChunkTask(source, target, header, encrypt, from, middle),
+                        new ChunkTask(source, target, header, encrypt, middle, to));
+                return;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(header.chunkSize + CHUNK_OVERHEAD);
+            try {
+                for (long chunk = from; chunk < to; chunk++) {
+                    buffer.clear();
+                    if (encrypt) {
+                        encrypt(chunk, buffer);
+                        writeFully(target, buffer, header.encryptedOffset(chunk));
+                    } else {
+                        decrypt(chunk, buffer);
+                        writeFully(target, buffer, header.plaintextOffset(chunk));
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } catch (CryptoException e) {
+                throw new UncheckedCryptoException(e);
+            }
+        }
+
+        void encrypt(long chunk, ByteBuffer out) throws IOException, CryptoException {
+            MappedByteBuffer plaintext = source.map(FileChannel.MapMode.READ_ONLY, header.plaintextOffset(chunk), header.plaintextLength(chunk));
+            cryptoUtils.encryptGcm(key, header.aad(chunk), plaintext, out);
+            out.flip();
+        }
+
+        void decrypt(long chunk, ByteBuffer out) throws IOException, CryptoException {
+            MappedByteBuffer ciphertext = source.map(FileChannel.MapMode.READ_ONLY, header.encryptedOffset(chunk), header.plaintextLength(chunk) + CHUNK_OVERHEAD);
+            try {
+                cryptoUtils.decryptGcm(key, header.aad(chunk), ciphertext, out);
+            } catch (CryptoException e) {
+                throw new CryptoException("Chunk " + chunk + " failed authentication", e);
+            }
+            out.flip();
+        }
+    }
+
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.util;
+
+/**
+ * Table-driven arithmetic in GF(2^8) with the AES polynomial x^8 + x^4 + x^3 + x + 1, the same field the
+ * codahale Shamir scheme uses, so shares from either implementation interpolate to the same secret.
+ * Addition is XOR; multiplication and division go through log and exp tables.
+ */
+final class GF256 {
+
+    private static final int POLYNOMIAL = 0x11b;
+
+    //EXP is doubled so LOG[a] + LOG[b] never needs reducing mod 255
+    static final byte[] EXP = new byte[510];
+    static final int[] LOG = new int[256];
+
+    static {
+        int x = 1;
+        for (int i = 0; i < 255; i++) {
+            EXP[i] = (byte) x;
+            EXP[i + 255] = (byte) x;
+            LOG[x] = i;
+            //x *= 3, the generator: x * 2 reduced by the polynomial, xor x
+            int doubled = x << 1;
+            if ((doubled & 0x100) != 0) doubled ^= POLYNOMIAL;
+            x = doubled ^ x;
+        }
+    }
+
+    private GF256() {
+    }
+
+    static int mul(int a, int b) {
+        if (a == 0 || b == 0) return 0;
+        return EXP[LOG[a] + LOG[b]] & 0xff;
+    }
+
+    static int div(int a, int b) {
+        if (b == 0) throw new ArithmeticException("division by zero in GF(256)");
+        if (a == 0) return 0;
+        return EXP[LOG[a] + 255 - LOG[b]] & 0xff;
+    }
+
+    /**
+     * @return the Lagrange basis weights at x = 0 for the distinct, non-zero points xs
+     */
+    static int[] lagrangeAtZero(int[] xs) {
+        int[] weights = new int[xs.length];
+        for (int j = 0; j < xs.length; j++) {
+            int numerator = 1;
+            int denominator = 1;
+            for (int m = 0; m < xs.length; m++) {
+                if (m == j) continue;
+                numerator = mul(numerator, xs[m]);
+                denominator = mul(denominator, xs[m] ^ xs[j]);
+            }
+            weights[j] = div(numerator, denominator);
+        }
+        return weights;
+    }
+
+}
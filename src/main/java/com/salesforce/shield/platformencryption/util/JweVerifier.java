@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.util;
+
+import org.apache.commons.codec.binary.Hex;
+import org.jose4j.json.JsonUtil;
+import org.jose4j.lang.JoseException;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.interfaces.RSAPrivateKey;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Map;
+
+/**
+ * Reads back the Cache-Only Key JWEs a JweWrapper produces, given the private key of the wrapping certificate.
+ *
+ * verify() checks the compact serialization and its protected header (alg RSA-OAEP, enc A256GCM and the
+ * expected kid), unwraps the CEK, decrypts and authenticates the DEK, and returns the SHA-256 fingerprint of
+ * the DEK rather than the DEK itself.  Thread-safe: each thread reuses its own Cipher instances.
+ */
+public class JweVerifier {
+
+    public enum Problem {
+        MALFORMED_JWE, WRONG_KID, WRONG_ALGORITHM, UNWRAP_FAILED, DECRYPT_FAILED, WRONG_KEY_LENGTH
+    }
+
+    private static final ThreadLocal<VerifyState> STATE = new ThreadLocal<VerifyState>() {
+        @Override
+        protected VerifyState initialValue() {
+            return new VerifyState();
+        }
+    };
+
+    private final PrivateKey unwrappingKey;
+
+    public JweVerifier(PrivateKey unwrappingKey) throws CryptoException {
+        if (!(unwrappingKey instanceof RSAPrivateKey)) throw new CryptoException("The unwrapping key must be an RSA private key");
+        this.unwrappingKey = unwrappingKey;
+    }
+
+    /**
+     * @return the outcome of checking jwe, which should carry kid in its header
+     */
+    public Result verify(String kid, String jwe) {
+
+        Parsed parsed = parse(kid, jwe);
+        if (parsed.failure != null) return parsed.failure;
+        byte[] encryptedKey = parsed.encryptedKey, iv = parsed.iv, ciphertext = parsed.ciphertext, tag = parsed.tag;
+
+        VerifyState state = STATE.get();
+        byte[] cek = null;
+        try {
+            state.oaep.init(Cipher.DECRYPT_MODE, unwrappingKey);
+            cek = state.oaep.doFinal(encryptedKey);
+        } catch (GeneralSecurityException e) {
+            return Result.failed(Problem.UNWRAP_FAILED, "RSA-OAEP: " + e.getMessage());
+        }
+
+        byte[] key = null;
+        try {
+            if (cek.length != JweWrapper.CEK_LENGTH) return Result.failed(Problem.UNWRAP_FAILED, "CEK of " + cek.length + " bytes");
+            state.gcm.init(Cipher.DECRYPT_MODE, new SecretKeySpec(cek, "AES"), new GCMParameterSpec(JweWrapper.TAG_LENGTH * 8, iv));
+            state.gcm.updateAAD(parsed.header.getBytes(StandardCharsets.US_ASCII));
+            byte[] sealed = Arrays.copyOf(ciphertext, ciphertext.length + tag.length);
+            System.arraycopy(tag, 0, sealed, ciphertext.length, tag.length);
+            key = state.gcm.doFinal(sealed);
+            if (key.length != 32) return Result.failed(Problem.WRONG_KEY_LENGTH, "key of " + key.length + " bytes");
+            return Result.verified(Hex.encodeHexString(state.sha256.digest(key)));
+        } catch (GeneralSecurityException e) {
+            return Result.failed(Problem.DECRYPT_FAILED, "AES-GCM: " + e.getMessage());
+        } finally {
+            Arrays.fill(cek, (byte) 0);
+            if (key != null) Arrays.fill(key, (byte) 0);
+        }
+    }
+
+    /**
+     * Checks everything verify() does short of decrypting, for callers without the private key.
+     *
+     * @return the outcome, with no fingerprint
+     */
+    public static Result inspect(String kid, String jwe) {
+        Parsed parsed = parse(kid, jwe);
+        return parsed.failure != null ? parsed.failure : Result.verified(null);
+    }
+
+    private static Parsed parse(String kid, String jwe) {
+
+        Parsed parsed = new Parsed();
+        String[] parts = jwe.split("\\.", -1);
+        if (parts.length != 5) return parsed.fail(Problem.MALFORMED_JWE, "expected 5 parts, found " + parts.length);
+
+        Map<String, Object> header;
+        try {
+            Base64.Decoder decoder = Base64.getUrlDecoder();
+            header = JsonUtil.parseJson(new String(decoder.decode(parts[0]), StandardCharsets.UTF_8));
+            parsed.encryptedKey = decoder.decode(parts[1]);
+            parsed.iv = decoder.decode(parts[2]);
+            parsed.ciphertext = decoder.decode(parts[3]);
+            parsed.tag = decoder.decode(parts[4]);
+        } catch (IllegalArgumentException e) {
+            return parsed.fail(Problem.MALFORMED_JWE, "invalid Base64URL: " + e.getMessage());
+        } catch (JoseException e) {
+            return parsed.fail(Problem.MALFORMED_JWE, "protected header is not JSON");
+        }
+        parsed.header = parts[0];
+
+        if (!"RSA-OAEP".equals(header.get("alg")) || !"A256GCM".equals(header.get("enc")))
+            return parsed.fail(Problem.WRONG_ALGORITHM, "alg " + header.get("alg") + ", enc " + header.get("enc"));
+        if (!kid.equals(header.get("kid")))
+            return parsed.fail(Problem.WRONG_KID, "header kid " + header.get("kid"));
+        if (parsed.iv.length != JweWrapper.IV_LENGTH || parsed.tag.length != JweWrapper.TAG_LENGTH)
+            return parsed.fail(Problem.MALFORMED_JWE, "IV of " + parsed.iv.length + " bytes, tag of " + parsed.tag.length + " bytes");
+        return parsed;
+    }
+
+    /**
+     * @return the hex SHA-256 fingerprint verify() reports for key
+     */
+    public static String fingerprint(byte[] key) {
+        return Hex.encodeHexString(STATE.get().sha256.digest(key));
+    }
+
+    public static final class Result {
+
+        private final Problem problem;
+        private final String detail;
+        private final String fingerprint;
+
+        private Result(Problem problem, String detail, String fingerprint) {
+            this.problem = problem;
+            this.detail = detail;
+            this.fingerprint = fingerprint;
+        }
+
+        static Result verified(String fingerprint) {
+            return new Result(null, null, fingerprint);
+        }
+
+        static Result failed(Problem problem, String detail) {
+            return new Result(problem, detail, null);
+        }
+
+        public boolean isVerified() {
+            return problem == null;
+        }
+
+        /**
+         * @return why the JWE failed verification, null if it passed
+         */
+        public Problem getProblem() {
+            return problem;
+        }
+
+        public String getDetail() {
+            return detail;
+        }
+
+        /**
+         * @return the hex SHA-256 fingerprint of the DEK, null if the JWE failed verification or was only inspected
+         */
+        public String getFingerprint() {
+            return fingerprint;
+        }
+    }
+
+    //The decoded parts of a compact serialization, or why it could not be decoded
+    private static final class Parsed {
+
+        String header;
+        byte[] encryptedKey;
+        byte[] iv;
+        byte[] ciphertext;
+        byte[] tag;
+        Result failure;
+
+        Parsed fail(Problem problem, String detail) {
+            failure = Result.failed(problem, detail);
+            return this;
+        }
+    }
+
+    private static final class VerifyState {
+
+        final Cipher oaep;
+        final Cipher gcm;
+        final MessageDigest sha256;
+
+        VerifyState() {
+            try {
+                oaep = CryptoProviders.cipher(JweWrapper.RSA_OAEP);
+                gcm = CryptoProviders.cipher(JweWrapper.AES_GCM);
+                sha256 = MessageDigest.getInstance("SHA-256");
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("RSA-OAEP, AES-GCM and SHA-256 must be available: " + e.getMessage(), e);
+            }
+        }
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.util;
+
+import com.salesforce.shield.platformencryption.metrics.Instrumentation;
+import com.salesforce.shield.platformencryption.metrics.Stage;
+import org.jose4j.json.JsonUtil;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Long-lived, thread-safe producer of Cache-Only Key JWEs for one RSA wrapping key.
+ *
+ * The output is the same compact serialization jose4j produces for RSA-OAEP / A256GCM with a kid header:
+ * BASE64URL(header) . BASE64URL(RSA-OAEP(CEK)) . BASE64URL(IV) . BASE64URL(AES-GCM(DEK)) . BASE64URL(tag)
+ * The Base64URL header is cached per kid, and each thread reuses its own Cipher instances and buffers.
+ */
+public class JweWrapper {
+
+    static final String RSA_OAEP = "RSA/ECB/OAEPWithSHA-1AndMGF1Padding";
+    static final String AES_GCM = "AES/GCM/NoPadding";
+    static final int CEK_LENGTH = 32;
+    static final int IV_LENGTH = 12;
+    static final int TAG_LENGTH = 16;
+
+    private static final int MAX_CACHED_HEADERS = 10000;
+    private static final byte[] BASE64URL = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".getBytes(StandardCharsets.US_ASCII);
+
+    private static final ThreadLocal<WrapState> STATE = new ThreadLocal<WrapState>() {
+        @Override
+        protected WrapState initialValue() {
+            return new WrapState();
+        }
+    };
+
+    private final PublicKey wrappingKey;
+    private final int encryptedKeyLength;
+    private final ConcurrentHashMap<String, byte[]> headers = new ConcurrentHashMap<String, byte[]>();
+
+    public JweWrapper(PublicKey wrappingKey) throws CryptoException {
+        if (!(wrappingKey instanceof RSAPublicKey)) throw new CryptoException("The BYOK wrapping key must be an RSA public key");
+        this.wrappingKey = wrappingKey;
+        this.encryptedKeyLength = (((RSAPublicKey) wrappingKey).getModulus().bitLength() + 7) / 8;
+    }
+
+    public PublicKey getWrappingKey() {
+        return wrappingKey;
+    }
+
+    /**
+     * @return the compact serialization of key wrapped for this wrapping key with kid in the protected header
+     */
+    public String wrap(String kid, byte[] key) throws CryptoException {
+        WrapState state = state();
+        int length = wrapInto(state, kid, key);
+        return new String(state.out, 0, length, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Writes the ASCII compact serialization into out, which must have room for it.
+     */
+    public void wrap(String kid, byte[] key, ByteBuffer out) throws CryptoException {
+        WrapState state = state();
+        int length = wrapInto(state, kid, key);
+        out.put(state.out, 0, length);
+    }
+
+    /**
+     * @return the ASCII bytes of BASE64URL(UTF8(JWE Protected Header)) for kid
+     */
+    public byte[] headerPrefix(String kid) {
+        byte[] header = headers.get(kid);
+        if (header == null) {
+            header = encodeHeader(kid);
+            if (headers.size() < MAX_CACHED_HEADERS) headers.put(kid, header);
+        }
+        return header;
+    }
+
+    private int wrapInto(WrapState state, String kid, byte[] key) throws CryptoException {
+
+        long started = Instrumentation.begin();
+        byte[] header = headerPrefix(kid);
+        byte[] cek = state.cek;
+        Stage stage = Stage.RSA_OAEP;
+        long stageStarted = started;
+        try {
+            RandomSource.nextBytes(cek);
+            RandomSource.nextBytes(state.iv);
+
+            stageStarted = Instrumentation.begin();
+            state.oaep.init(Cipher.ENCRYPT_MODE, wrappingKey, RandomSource.current());
+            byte[] encryptedKey = state.ensureEncryptedKey(encryptedKeyLength);
+            int wrappedKeyLength = state.oaep.doFinal(cek, 0, cek.length, encryptedKey, 0);
+            Instrumentation.end(Stage.RSA_OAEP, stageStarted);
+
+            stage = Stage.AES_GCM;
+            stageStarted = Instrumentation.begin();
+            state.gcm.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(cek, "AES"), new GCMParameterSpec(TAG_LENGTH * 8, state.iv));
+            state.gcm.updateAAD(header);
+            byte[] ciphertext = state.ensureCiphertext(key.length + TAG_LENGTH);
+            int ciphertextLength = state.gcm.doFinal(key, 0, key.length, ciphertext, 0) - TAG_LENGTH;
+            Instrumentation.end(Stage.AES_GCM, stageStarted);
+
+            byte[] out = state.ensureOut(header.length + 4
+                    + encodedLength(wrappedKeyLength) + encodedLength(IV_LENGTH)
+                    + encodedLength(ciphertextLength) + encodedLength(TAG_LENGTH));
+            int pos = header.length;
+            System.arraycopy(header, 0, out, 0, pos);
+            out[pos++] = '.';
+            pos = encode(encryptedKey, 0, wrappedKeyLength, out, pos);
+            out[pos++] = '.';
+            pos = encode(state.iv, 0, IV_LENGTH, out, pos);
+            out[pos++] = '.';
+            pos = encode(ciphertext, 0, ciphertextLength, out, pos);
+            out[pos++] = '.';
+            pos = encode(ciphertext, ciphertextLength, TAG_LENGTH, out, pos);
+            Instrumentation.end(Stage.WRAP, started);
+            return pos;
+        } catch (GeneralSecurityException e) {
+            Instrumentation.failed(stage, stageStarted, e);
+            Instrumentation.failed(Stage.WRAP, started, e);
+            throw new CryptoException("Unable to wrap key " + kid, e);
+        } finally {
+            Arrays.fill(cek, (byte) 0);
+        }
+    }
+
+    //Same header, member order and escaping jose4j produces
+    static byte[] encodeHeader(String kid) {
+        Map<String, Object> header = new LinkedHashMap<String, Object>();
+        header.put("alg", "RSA-OAEP");
+        header.put("enc", "A256GCM");
+        header.put("kid", kid);
+        byte[] json = JsonUtil.toJson(header).getBytes(StandardCharsets.UTF_8);
+        byte[] encoded = new byte[encodedLength(json.length)];
+        encode(json, 0, json.length, encoded, 0);
+        return encoded;
+    }
+
+    static int encodedLength(int length) {
+        return (length * 4 + 2) / 3;
+    }
+
+    //Unpadded Base64URL of src[offset, offset + length) written at dst[pos], returns the new position
+    static int encode(byte[] src, int offset, int length, byte[] dst, int pos) {
+        int end = offset + length;
+        int i = offset;
+        for (; i + 2 < end; i += 3) {
+            int bits = (src[i] & 0xff) << 16 | (src[i + 1] & 0xff) << 8 | (src[i + 2] & 0xff);
+            dst[pos++] = BASE64URL[bits >>> 18];
+            dst[pos++] = BASE64URL[(bits >>> 12) & 0x3f];
+            dst[pos++] = BASE64URL[(bits >>> 6) & 0x3f];
+            dst[pos++] = BASE64URL[bits & 0x3f];
+        }
+        if (end - i == 1) {
+            int bits = (src[i] & 0xff) << 16;
+            dst[pos++] = BASE64URL[bits >>> 18];
+            dst[pos++] = BASE64URL[(bits >>> 12) & 0x3f];
+        } else if (end - i == 2) {
+            int bits = (src[i] & 0xff) << 16 | (src[i + 1] & 0xff) << 8;
+            dst[pos++] = BASE64URL[bits >>> 18];
+            dst[pos++] = BASE64URL[(bits >>> 12) & 0x3f];
+            dst[pos++] = BASE64URL[(bits >>> 6) & 0x3f];
+        }
+        return pos;
+    }
+
+    static WrapState state() {
+        return STATE.get();
+    }
+
+    //Per-thread ciphers and scratch buffers, reused across wraps and wrapping keys
+    static final class WrapState {
+
+        final Cipher oaep;
+        final Cipher gcm;
+        final byte[] cek = new byte[CEK_LENGTH];
+        final byte[] iv = new byte[IV_LENGTH];
+        byte[] encryptedKey = new byte[512];
+        byte[] ciphertext = new byte[64];
+        byte[] out = new byte[1024];
+
+        WrapState() {
+            try {
+                oaep = CryptoProviders.cipher(RSA_OAEP);
+                gcm = CryptoProviders.cipher(AES_GCM);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("RSA-OAEP and AES-GCM must be available: " + e.getMessage(), e);
+            }
+        }
+
+        byte[] ensureEncryptedKey(int length) {
+            if (encryptedKey.length < length) encryptedKey = new byte[length];
+            return encryptedKey;
+        }
+
+        byte[] ensureCiphertext(int length) {
+            if (ciphertext.length < length) ciphertext = new byte[length];
+            return ciphertext;
+        }
+
+        byte[] ensureOut(int length) {
+            if (out.length < length) out = new byte[length];
+            return out;
+        }
+    }
+
+}
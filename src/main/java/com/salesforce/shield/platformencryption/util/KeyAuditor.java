@@ -0,0 +1,306 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.util;
+
+import org.jose4j.json.JsonUtil;
+import org.jose4j.lang.JoseException;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Reads back key representations in bulk: each one is parsed and its JWE verified with a JweVerifier on a
+ * fixed worker pool, with a bounded window of entries in flight, and the outcomes are gathered into a Report.
+ * Given the known DEK fingerprints by kid, every key that decrypts is also checked against its fingerprint.
+ */
+public class KeyAuditor {
+
+    public static final String NOT_A_REPRESENTATION = "NOT_A_REPRESENTATION";
+    public static final String UNREADABLE = "UNREADABLE";
+    public static final String FINGERPRINT_MISMATCH = "FINGERPRINT_MISMATCH";
+
+    private static final int WINDOW_PER_THREAD = 64;
+    private static final int MAX_LISTED_FAILURES = 100;
+
+    private final JweVerifier verifier;
+    private final int threads;
+    private final int window;
+    private final Map<String, String> fingerprints;
+
+    /**
+     * @param fingerprints known hex SHA-256 DEK fingerprints by kid, or null to skip the comparison
+     */
+    public KeyAuditor(JweVerifier verifier, int threads, Map<String, String> fingerprints) {
+        if (threads < 1) throw new IllegalArgumentException("threads must be at least 1");
+        this.verifier = verifier;
+        this.threads = threads;
+        this.window = threads * WINDOW_PER_THREAD;
+        this.fingerprints = fingerprints;
+    }
+
+    /**
+     * Audits every key representation file in dir.  KMS backup files are skipped.
+     *
+     * @param verifiedOut if not null, receives a "kid fingerprint" line for every verified key
+     */
+    public Report audit(final File dir, Writer verifiedOut) throws IOException {
+        DirectoryStream<Path> files = Files.newDirectoryStream(dir.toPath());
+        try {
+            final Iterator<Path> paths = files.iterator();
+            return audit(new Iterator<Callable<Outcome>>() {
+
+                private Path next = advance();
+
+                private Path advance() {
+                    while (paths.hasNext()) {
+                        Path path = paths.next();
+                        if (Files.isRegularFile(path) && !path.getFileName().toString().endsWith(".backup")) return path;
+                    }
+                    return null;
+                }
+
+                @Override
+                public boolean hasNext() {
+                    return next != null;
+                }
+
+                @Override
+                public Callable<Outcome> next() {
+                    final Path path = next;
+                    next = advance();
+                    return new Callable<Outcome>() {
+                        @Override
+                        public Outcome call() {
+                            try {
+                                return check(path.getFileName().toString(), null, Files.readAllBytes(path));
+                            } catch (IOException e) {
+                                return new Outcome(path.getFileName().toString(), null, UNREADABLE, e.toString(), null);
+                            }
+                        }
+                    };
+                }
+            }, verifiedOut);
+        } finally {
+            files.close();
+        }
+    }
+
+    /**
+     * Audits every key representation in keyStore.  Each representation must carry the kid it is stored under.
+     *
+     * @param verifiedOut if not null, receives a "kid fingerprint" line for every verified key
+     */
+    public Report audit(final KeyStoreFile keyStore, Writer verifiedOut) throws IOException {
+        List<Callable<Outcome>> tasks = new ArrayList<Callable<Outcome>>();
+        for (final String kid : keyStore.kids()) {
+            if (kid.endsWith(".backup")) continue;
+            tasks.add(new Callable<Outcome>() {
+                @Override
+                public Outcome call() {
+                    ByteBuffer value = keyStore.get(kid);
+                    if (value == null) return new Outcome(kid, kid, UNREADABLE, "deleted during the audit", null);
+                    byte[] body = new byte[value.remaining()];
+                    value.get(body);
+                    return check(kid, kid, body);
+                }
+            });
+        }
+        return audit(tasks.iterator(), verifiedOut);
+    }
+
+    private Report audit(Iterator<Callable<Outcome>> tasks, Writer verifiedOut) throws IOException {
+
+        long start = System.nanoTime();
+        Report report = new Report();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        ArrayDeque<Future<Outcome>> pending = new ArrayDeque<Future<Outcome>>(window);
+        try {
+            while (tasks.hasNext()) {
+                if (pending.size() >= window) record(pending.poll(), report, verifiedOut);
+                pending.add(executor.submit(tasks.next()));
+            }
+            while (!pending.isEmpty()) record(pending.poll(), report, verifiedOut);
+            if (verifiedOut != null) verifiedOut.flush();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        if (fingerprints != null) report.unseen = fingerprints.size() - report.knownKids;
+        report.nanos = System.nanoTime() - start;
+        return report;
+    }
+
+    private void record(Future<Outcome> future, Report report, Writer verifiedOut) throws IOException {
+        Outcome outcome;
+        try {
+            outcome = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a key to be verified");
+        } catch (ExecutionException e) {
+            throw new IOException("Unable to verify a key", e.getCause());
+        }
+
+        report.entries++;
+        if (fingerprints != null && outcome.kid != null && fingerprints.containsKey(outcome.kid)) report.knownKids++;
+        if (outcome.fingerprint != null && fingerprints != null) {
+            String expected = fingerprints.get(outcome.kid);
+            if (expected == null) {
+                report.fingerprintsUnknown++;
+            } else {
+                report.fingerprintsChecked++;
+                if (!expected.equalsIgnoreCase(outcome.fingerprint)) {
+                    outcome = new Outcome(outcome.name, outcome.kid, FINGERPRINT_MISMATCH, "expected " + expected + ", found " + outcome.fingerprint, null);
+                }
+            }
+        }
+
+        if (outcome.status == null) {
+            report.verified++;
+            if (verifiedOut != null) verifiedOut.write(outcome.kid + " " + outcome.fingerprint + "\n");
+        } else {
+            Long count = report.problems.get(outcome.status);
+            report.problems.put(outcome.status, count == null ? 1 : count + 1);
+            if (report.failures.size() < MAX_LISTED_FAILURES) {
+                report.failures.add(outcome.name + ": " + outcome.status + (outcome.detail == null ? "" : " (" + outcome.detail + ")"));
+            }
+        }
+    }
+
+    private Outcome check(String name, String storedKid, byte[] body) {
+        Map<String, Object> representation;
+        try {
+            representation = JsonUtil.parseJson(new String(body, StandardCharsets.UTF_8));
+        } catch (JoseException e) {
+            return new Outcome(name, null, NOT_A_REPRESENTATION, "not JSON", null);
+        }
+        Object kid = representation.get("kid");
+        Object jwe = representation.get("jwe");
+        if (!(kid instanceof String) || !(jwe instanceof String)) {
+            return new Outcome(name, null, NOT_A_REPRESENTATION, "no kid and jwe members", null);
+        }
+        if (storedKid != null && !storedKid.equals(kid)) {
+            return new Outcome(name, (String) kid, JweVerifier.Problem.WRONG_KID.name(), "stored under " + storedKid + ", representation kid " + kid, null);
+        }
+
+        JweVerifier.Result result = verifier.verify((String) kid, (String) jwe);
+        if (!result.isVerified()) return new Outcome(name, (String) kid, result.getProblem().name(), result.getDetail(), null);
+        return new Outcome(name, (String) kid, null, null, result.getFingerprint());
+    }
+
+    /**
+     * Reads "kid fingerprint" lines, the format audit() writes verified keys in.  Blank lines and lines
+     * starting with # are skipped.
+     */
+    public static Map<String, String> readFingerprints(BufferedReader in) throws IOException {
+        Map<String, String> fingerprints = new HashMap<String, String>();
+        String line;
+        int lineNumber = 0;
+        while ((line = in.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            int space = line.lastIndexOf(' ');
+            if (space < 0) throw new IOException("Line " + lineNumber + ": expected a kid and a fingerprint");
+            fingerprints.put(line.substring(0, space).trim(), line.substring(space + 1));
+        }
+        return fingerprints;
+    }
+
+    //status is null for a verified key
+    private static final class Outcome {
+
+        final String name;
+        final String kid;
+        final String status;
+        final String detail;
+        final String fingerprint;
+
+        Outcome(String name, String kid, String status, String detail, String fingerprint) {
+            this.name = name;
+            this.kid = kid;
+            this.status = status;
+            this.detail = detail;
+            this.fingerprint = fingerprint;
+        }
+    }
+
+    public static final class Report {
+
+        private long entries;
+        private long verified;
+        private final Map<String, Long> problems = new TreeMap<String, Long>();
+        private final List<String> failures = new ArrayList<String>();
+        private long fingerprintsChecked;
+        private long fingerprintsUnknown;
+        private long knownKids;
+        private long unseen;
+        private long nanos;
+
+        public long getEntries() {
+            return entries;
+        }
+
+        public long getVerified() {
+            return verified;
+        }
+
+        public long getFailed() {
+            return entries - verified;
+        }
+
+        /**
+         * @return the number of failed entries by problem
+         */
+        public Map<String, Long> getProblems() {
+            return problems;
+        }
+
+        public void print(PrintStream out) {
+            double seconds = nanos / 1e9;
+            out.println("Audited " + entries + " key representations in " + String.format("%.1f", seconds) + " s ("
+                    + String.format("%.0f", seconds > 0 ? entries / seconds : 0) + "/s)");
+            out.println("  verified: " + verified);
+            out.println("  failed:   " + getFailed());
+            for (Map.Entry<String, Long> problem : problems.entrySet()) {
+                out.println("    " + problem.getKey() + ": " + problem.getValue());
+            }
+            if (fingerprintsChecked + fingerprintsUnknown + unseen > 0) {
+                out.println("  fingerprints compared: " + fingerprintsChecked);
+                out.println("  verified kids without a known fingerprint: " + fingerprintsUnknown);
+                out.println("  known fingerprints with no representation: " + unseen);
+            }
+            if (!failures.isEmpty()) {
+                out.println("");
+                out.println(failures.size() < getFailed() ? "First " + failures.size() + " failures:" : "Failures:");
+                for (String failure : failures) out.println("  " + failure);
+            }
+        }
+    }
+}
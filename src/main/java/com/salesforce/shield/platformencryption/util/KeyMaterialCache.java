@@ -0,0 +1,448 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.util;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Cache of DEKs and their JWEs by kid, held outside the Java heap.  Every entry lives in a fixed size slot of a
+ * direct buffer and the index from kid to slot is built from primitive arrays, so millions of entries add no
+ * objects for the garbage collector to trace, and the collector never copies key material around.
+ *
+ * The cache is split into segments by kid hash.  A full segment evicts with CLOCK, an approximation of LRU, and
+ * entries older than the time to live read as absent and are evicted first.  A slot is zeroed whenever its entry
+ * is evicted, removed or replaced, and on close().
+ *
+ * Reads take no lock: they copy out of the slot under a StampedLock optimistic read and fall back to the read
+ * lock only if a writer changed the segment meanwhile.  Writes lock their segment.
+ *
+ * Keys copied out by getKey() are on the heap again, callers should zero them once used.  Direct memory is
+ * limited by -XX:MaxDirectMemorySize, size it for maxEntries * slotSize().
+ */
+public class KeyMaterialCache implements AutoCloseable {
+
+    public static final int MAX_KID_LENGTH = 128;
+    public static final int MAX_KEY_LENGTH = 32;
+
+    private static final int MAX_SEGMENTS = 64;
+    private static final int MAX_SLAB_BYTES = 1 << 30;
+
+    //Slot layout: kid, key and JWE lengths, then the kid as chars, the key and the JWE as ASCII
+    private static final int KID_LENGTH = 0;
+    private static final int KEY_LENGTH = 2;
+    private static final int JWE_LENGTH = 4;
+    private static final int KID = 8;
+    private static final int KEY = KID + 2 * MAX_KID_LENGTH;
+    private static final int JWE = KEY + MAX_KEY_LENGTH;
+
+    private final int maxJweLength;
+    private final int slotSize;
+    private final long timeToLive;
+    private final int slotsPerSlab;
+    private final ByteBuffer[] slabs;
+    private final Segment[] segments;
+    private volatile boolean closed;
+
+    /**
+     * @param maxEntries   entries held before the least recently used are evicted.  Each segment is bounded on its
+     *                     own, so eviction may start slightly before the cache as a whole is full
+     * @param maxJweLength longest JWE accepted, about 700 characters for a 2048 bit wrapping certificate
+     * @param timeToLive   how long an entry stays readable after it is put, 0 for no limit
+     */
+    public KeyMaterialCache(int maxEntries, int maxJweLength, long timeToLive, TimeUnit unit) {
+        if (maxEntries < 1) throw new IllegalArgumentException("maxEntries must be positive");
+        if (maxJweLength < 1) throw new IllegalArgumentException("maxJweLength must be positive");
+        if (timeToLive < 0) throw new IllegalArgumentException("timeToLive must not be negative");
+        this.maxJweLength = maxJweLength;
+        this.slotSize = (JWE + maxJweLength + 7) & ~7;
+        if (slotSize > MAX_SLAB_BYTES) throw new IllegalArgumentException("maxJweLength is too large");
+        this.timeToLive = unit.toNanos(timeToLive);
+
+        int segmentCount = Integer.highestOneBit(Math.max(1, Math.min(MAX_SEGMENTS, maxEntries / 16)));
+        int slotsPerSegment = (maxEntries + segmentCount - 1) / segmentCount;
+        long slots = (long) slotsPerSegment * segmentCount;
+
+        slotsPerSlab = MAX_SLAB_BYTES / slotSize;
+        slabs = new ByteBuffer[(int) ((slots + slotsPerSlab - 1) / slotsPerSlab)];
+        for (int i = 0; i < slabs.length; i++) {
+            long slabSlots = Math.min(slotsPerSlab, slots - (long) i * slotsPerSlab);
+            slabs[i] = ByteBuffer.allocateDirect((int) slabSlots * slotSize);
+        }
+
+        segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) segments[i] = new Segment(i * slotsPerSegment, slotsPerSegment);
+    }
+
+    /**
+     * Adds or replaces the entry for kid.  The caller keeps ownership of key.
+     */
+    public void put(String kid, byte[] key, String jwe) {
+        if (kid.isEmpty() || kid.length() > MAX_KID_LENGTH)
+            throw new IllegalArgumentException("kid must be 1 to " + MAX_KID_LENGTH + " characters");
+        if (key.length > MAX_KEY_LENGTH)
+            throw new IllegalArgumentException("key must be at most " + MAX_KEY_LENGTH + " bytes");
+        if (jwe.length() > maxJweLength)
+            throw new IllegalArgumentException("jwe must be at most " + maxJweLength + " characters");
+        if (closed) throw new IllegalStateException("The cache is closed");
+
+        long hash = hash(kid);
+        Segment segment = segmentFor(hash);
+        long stamp = segment.lock.writeLock();
+        try {
+            segment.put(hash, kid, key, jwe.getBytes(StandardCharsets.US_ASCII));
+        } finally {
+            segment.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Copies the key for kid into the start of key, which must hold MAX_KEY_LENGTH bytes.
+     *
+     * @return the length of the key, or -1 if there is no entry for kid
+     */
+    public int getKey(String kid, byte[] key) {
+        if (key.length < MAX_KEY_LENGTH) throw new IllegalArgumentException("key must hold " + MAX_KEY_LENGTH + " bytes");
+        long hash = hash(kid);
+        Segment segment = segmentFor(hash);
+        long stamp = segment.lock.tryOptimisticRead();
+        int length = segment.readKey(hash, kid, key);
+        if (!segment.lock.validate(stamp)) {
+            stamp = segment.lock.readLock();
+            try {
+                length = segment.readKey(hash, kid, key);
+            } finally {
+                segment.lock.unlockRead(stamp);
+            }
+        }
+        return length;
+    }
+
+    /**
+     * @return the JWE for kid, or null if there is no entry for kid
+     */
+    public String getJwe(String kid) {
+        long hash = hash(kid);
+        Segment segment = segmentFor(hash);
+        long stamp = segment.lock.tryOptimisticRead();
+        byte[] jwe = segment.readJwe(hash, kid);
+        if (!segment.lock.validate(stamp)) {
+            stamp = segment.lock.readLock();
+            try {
+                jwe = segment.readJwe(hash, kid);
+            } finally {
+                segment.lock.unlockRead(stamp);
+            }
+        }
+        return jwe == null ? null : new String(jwe, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Removes and zeroes the entry for kid.
+     *
+     * @return false if there was no entry for kid
+     */
+    public boolean remove(String kid) {
+        long hash = hash(kid);
+        Segment segment = segmentFor(hash);
+        long stamp = segment.lock.writeLock();
+        try {
+            int position = segment.find(hash, kid);
+            if (position < 0) return false;
+            segment.evict(segment.tableSlots[position]);
+            return true;
+        } finally {
+            segment.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Zeroes the entries that have outlived the time to live.  Expired entries already read as absent, this
+     * wipes them without waiting for eviction to reach them.
+     *
+     * @return the number of entries removed
+     */
+    public int evictExpired() {
+        if (timeToLive == 0) return 0;
+        int evicted = 0;
+        for (Segment segment : segments) {
+            long stamp = segment.lock.writeLock();
+            try {
+                long now = System.nanoTime();
+                for (int slot = 0; slot < segment.slots; slot++) {
+                    if (segment.slotHashes[slot] != 0 && segment.expired(slot, now)) {
+                        segment.evict(slot);
+                        evicted++;
+                    }
+                }
+            } finally {
+                segment.lock.unlockWrite(stamp);
+            }
+        }
+        return evicted;
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            long stamp = segment.lock.readLock();
+            try {
+                size += segment.count;
+            } finally {
+                segment.lock.unlockRead(stamp);
+            }
+        }
+        return size;
+    }
+
+    public long evictions() {
+        long evictions = 0;
+        for (Segment segment : segments) {
+            long stamp = segment.lock.readLock();
+            try {
+                evictions += segment.evictions;
+            } finally {
+                segment.lock.unlockRead(stamp);
+            }
+        }
+        return evictions;
+    }
+
+    /**
+     * @return bytes of direct memory taken by each entry
+     */
+    public int slotSize() {
+        return slotSize;
+    }
+
+    /**
+     * Zeroes every entry.  The direct buffers are released when the cache is garbage collected.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (Segment segment : segments) {
+            long stamp = segment.lock.writeLock();
+            try {
+                for (int slot = 0; slot < segment.slots; slot++) {
+                    if (segment.slotHashes[slot] != 0) segment.evict(slot);
+                }
+            } finally {
+                segment.lock.unlockWrite(stamp);
+            }
+        }
+    }
+
+    private Segment segmentFor(long hash) {
+        return segments[(int) (hash >>> 40) & (segments.length - 1)];
+    }
+
+    //FNV-1a over the kid's chars, mixed with the MurmurHash3 finalizer; 0 is kept free to mark empty positions
+    static long hash(String kid) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < kid.length(); i++) {
+            hash ^= kid.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash == 0 ? 1 : hash;
+    }
+
+    /**
+     * A fixed range of slots with an open addressing index over them.  Everything except the readers' CLOCK bits
+     * is written under the write lock; readers may see a segment mid-change, so they clamp whatever they read and
+     * rely on validation to discard it.
+     */
+    private final class Segment {
+
+        final StampedLock lock = new StampedLock();
+        final int firstSlot;
+        final int slots;
+
+        //Linear probing table of kid hash to slot, 0 marks an empty position
+        final int mask;
+        final long[] tableHashes;
+        final int[] tableSlots;
+
+        //Per slot: the kid hash (0 for a free slot), when it was written and the CLOCK reference bit
+        final long[] slotHashes;
+        final long[] written;
+        final byte[] referenced;
+
+        final int[] free;
+        int freeCount;
+        int hand;
+        int count;
+        long evictions;
+
+        Segment(int firstSlot, int slots) {
+            this.firstSlot = firstSlot;
+            this.slots = slots;
+            int tableSize = Integer.highestOneBit(Math.max(2, slots * 2 - 1)) << 1;
+            this.mask = tableSize - 1;
+            this.tableHashes = new long[tableSize];
+            this.tableSlots = new int[tableSize];
+            this.slotHashes = new long[slots];
+            this.written = new long[slots];
+            this.referenced = new byte[slots];
+            this.free = new int[slots];
+            for (int i = 0; i < slots; i++) free[i] = slots - 1 - i;
+            this.freeCount = slots;
+        }
+
+        int find(long hash, String kid) {
+            for (int position = (int) hash & mask, probes = 0; probes <= mask; position = (position + 1) & mask, probes++) {
+                long candidate = tableHashes[position];
+                if (candidate == 0) return -1;
+                if (candidate == hash && kidEquals(tableSlots[position], kid)) return position;
+            }
+            return -1;
+        }
+
+        boolean kidEquals(int slot, String kid) {
+            ByteBuffer slab = slab(slot);
+            int offset = offset(slot);
+            if (slab.getShort(offset + KID_LENGTH) != kid.length()) return false;
+            for (int i = 0; i < kid.length(); i++) {
+                if (slab.getChar(offset + KID + 2 * i) != kid.charAt(i)) return false;
+            }
+            return true;
+        }
+
+        boolean expired(int slot, long now) {
+            return timeToLive != 0 && now - written[slot] >= timeToLive;
+        }
+
+        int readKey(long hash, String kid, byte[] key) {
+            int position = find(hash, kid);
+            if (position < 0) return -1;
+            int slot = tableSlots[position];
+            if (expired(slot, System.nanoTime())) return -1;
+            referenced[slot] = 1;
+            ByteBuffer slab = slab(slot);
+            int offset = offset(slot);
+            int length = slab.getShort(offset + KEY_LENGTH);
+            if (length < 0 || length > MAX_KEY_LENGTH) return -1;
+            for (int i = 0; i < length; i++) key[i] = slab.get(offset + KEY + i);
+            return length;
+        }
+
+        byte[] readJwe(long hash, String kid) {
+            int position = find(hash, kid);
+            if (position < 0) return null;
+            int slot = tableSlots[position];
+            if (expired(slot, System.nanoTime())) return null;
+            referenced[slot] = 1;
+            ByteBuffer slab = slab(slot);
+            int offset = offset(slot);
+            int length = slab.getInt(offset + JWE_LENGTH);
+            if (length < 0 || length > maxJweLength) return null;
+            byte[] jwe = new byte[length];
+            for (int i = 0; i < length; i++) jwe[i] = slab.get(offset + JWE + i);
+            return jwe;
+        }
+
+        void put(long hash, String kid, byte[] key, byte[] jwe) {
+            int slot;
+            int position = find(hash, kid);
+            if (position >= 0) {
+                slot = tableSlots[position];
+            } else {
+                if (freeCount == 0) evictOne();
+                slot = free[--freeCount];
+                insert(hash, slot);
+                slotHashes[slot] = hash;
+                count++;
+            }
+
+            ByteBuffer slab = slab(slot);
+            int offset = offset(slot);
+            zero(slab, offset);
+            slab.putShort(offset + KID_LENGTH, (short) kid.length());
+            slab.putShort(offset + KEY_LENGTH, (short) key.length);
+            slab.putInt(offset + JWE_LENGTH, jwe.length);
+            for (int i = 0; i < kid.length(); i++) slab.putChar(offset + KID + 2 * i, kid.charAt(i));
+            for (int i = 0; i < key.length; i++) slab.put(offset + KEY + i, key[i]);
+            for (int i = 0; i < jwe.length; i++) slab.put(offset + JWE + i, jwe[i]);
+            written[slot] = System.nanoTime();
+            referenced[slot] = 1;
+        }
+
+        //CLOCK: sweep the hand past recently read entries, clearing their bits, and evict the first one that is
+        //expired or has not been read since the last sweep
+        void evictOne() {
+            long now = System.nanoTime();
+            for (int scanned = 0; ; scanned++) {
+                int slot = hand;
+                hand = hand + 1 == slots ? 0 : hand + 1;
+                if (slotHashes[slot] == 0) continue;
+                //Readers keep setting bits while we sweep, give up on them after two full turns
+                if (referenced[slot] != 0 && !expired(slot, now) && scanned < 2 * slots) {
+                    referenced[slot] = 0;
+                    continue;
+                }
+                evict(slot);
+                evictions++;
+                return;
+            }
+        }
+
+        void evict(int slot) {
+            long hash = slotHashes[slot];
+            for (int position = (int) hash & mask; ; position = (position + 1) & mask) {
+                if (tableHashes[position] == hash && tableSlots[position] == slot) {
+                    delete(position);
+                    break;
+                }
+            }
+            zero(slab(slot), offset(slot));
+            slotHashes[slot] = 0;
+            written[slot] = 0;
+            referenced[slot] = 0;
+            free[freeCount++] = slot;
+            count--;
+        }
+
+        void insert(long hash, int slot) {
+            int position = (int) hash & mask;
+            while (tableHashes[position] != 0) position = (position + 1) & mask;
+            tableSlots[position] = slot;
+            tableHashes[position] = hash;
+        }
+
+        //Backward shift deletion, so probes never need tombstones
+        void delete(int position) {
+            int hole = position;
+            for (int next = (hole + 1) & mask; tableHashes[next] != 0; next = (next + 1) & mask) {
+                int home = (int) tableHashes[next] & mask;
+                boolean reachable = hole <= next ? hole < home && home <= next : hole < home || home <= next;
+                if (reachable) continue;
+                tableHashes[hole] = tableHashes[next];
+                tableSlots[hole] = tableSlots[next];
+                hole = next;
+            }
+            tableHashes[hole] = 0;
+        }
+
+        ByteBuffer slab(int slot) {
+            return slabs[(firstSlot + slot) / slotsPerSlab];
+        }
+
+        int offset(int slot) {
+            return (firstSlot + slot) % slotsPerSlab * slotSize;
+        }
+
+        void zero(ByteBuffer slab, int offset) {
+            for (int i = 0; i < slotSize; i += 8) slab.putLong(offset + i, 0L);
+        }
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.util;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Pool of pre-generated keys ready to issue: a random kid, the Cache-Only Key JWE for the current wrapping
+ * certificate and the DEK encrypted under a master key with CryptoUtils, so no plaintext key sits in the pool.
+ *
+ * take() is a lock-free queue poll.  When the pool drops below the low-water mark a single background task
+ * refills it up to the high-water mark.  Every entry records the certificate it was wrapped for; changing the
+ * certificate drops the pool and entries for the old one are discarded rather than handed out.  If the pool
+ * is empty, take() generates an entry on the calling thread, and poll() returns null.  A refill that fails is
+ * retried after a backoff, so a broken certificate or provider doesn't keep a thread spinning.
+ */
+public class KeyPool implements AutoCloseable {
+
+    private static final long MIN_RETRY_MILLIS = 100;
+    private static final long MAX_RETRY_MILLIS = 30000;
+
+    private final CryptoUtils cryptoUtils = new CryptoUtils();
+    private final byte[] masterKey;
+    private final int lowWater;
+    private final int highWater;
+    private final ScheduledExecutorService executor;
+    private final Runnable refill = new Runnable() {
+        @Override
+        public void run() {
+            refill();
+        }
+    };
+    //Refills that failed in a row, only touched by the refill thread
+    private int failures;
+
+    private final ConcurrentLinkedQueue<Entry> entries = new ConcurrentLinkedQueue<Entry>();
+    //ConcurrentLinkedQueue.size() walks the queue, so the pool keeps its own count
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicBoolean refilling = new AtomicBoolean();
+    private final AtomicReference<Generation> generation = new AtomicReference<Generation>();
+    private final AtomicLong misses = new AtomicLong();
+
+    public KeyPool(PublicKey wrappingKey, byte[] masterKey, int lowWater, int highWater) throws CryptoException {
+        if (masterKey.length != 32) throw new CryptoException("The master key must be a 256 bit AES key");
+        if (lowWater < 0 || highWater < 1 || lowWater >= highWater) throw new IllegalArgumentException("need 0 <= lowWater < highWater");
+        this.masterKey = masterKey.clone();
+        this.lowWater = lowWater;
+        this.highWater = highWater;
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "keypool-refill");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.generation.set(new Generation(0, new JweWrapper(wrappingKey)));
+        refillIfLow();
+    }
+
+    /**
+     * @return a key that has not been handed out before, wrapped for the current certificate
+     */
+    public Entry take() throws CryptoException {
+        Entry entry = poll();
+        if (entry == null) {
+            misses.incrementAndGet();
+            entry = generate(generation.get());
+        }
+        return entry;
+    }
+
+    /**
+     * Like take(), but never generates a key on the calling thread.
+     *
+     * @return a pooled key wrapped for the current certificate, or null if the pool is empty
+     */
+    public Entry poll() {
+        Entry entry;
+        while ((entry = entries.poll()) != null) {
+            size.decrementAndGet();
+            //Read every time, an entry taken while the certificate is switched must be for the new one
+            if (entry.generation == generation.get().id) break;
+        }
+        refillIfLow();
+        return entry;
+    }
+
+    /**
+     * @return the DEK of an entry from this pool, decrypted with the master key.  Clear it once used.
+     */
+    public byte[] getKey(Entry entry) throws CryptoException {
+        byte[] protectedKey;
+        try {
+            protectedKey = Hex.decodeHex(entry.getProtectedKey());
+        } catch (DecoderException e) {
+            throw new CryptoException(e);
+        }
+        try {
+            int length = cryptoUtils.decrypt(cryptoUtils.secretKey(masterKey), protectedKey, 0, protectedKey.length, protectedKey, 0);
+            return Arrays.copyOf(protectedKey, length);
+        } finally {
+            Arrays.fill(protectedKey, (byte) 0);
+        }
+    }
+
+    /**
+     * Switches to a new wrapping certificate.  Pooled entries for the old one are dropped and the pool is
+     * refilled for the new one.
+     */
+    public void setWrappingKey(PublicKey wrappingKey) throws CryptoException {
+        JweWrapper jweWrapper = new JweWrapper(wrappingKey);
+        Generation previous;
+        do {
+            previous = generation.get();
+        } while (!generation.compareAndSet(previous, new Generation(previous.id + 1, jweWrapper)));
+
+        while (entries.poll() != null) size.decrementAndGet();
+        refillIfLow();
+    }
+
+    public PublicKey getWrappingKey() {
+        return generation.get().jweWrapper.getWrappingKey();
+    }
+
+    /**
+     * @return the number of pooled entries, which may include some for a replaced certificate
+     */
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * @return the number of take() calls that found the pool empty and generated a key inline
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        entries.clear();
+        size.set(0);
+        Arrays.fill(masterKey, (byte) 0);
+    }
+
+    private void refillIfLow() {
+        if (size.get() > lowWater || !refilling.compareAndSet(false, true)) return;
+        try {
+            executor.execute(refill);
+        } catch (RejectedExecutionException e) {
+            //closed
+            refilling.set(false);
+        }
+    }
+
+    private void refill() {
+        try {
+            while (size.get() < highWater && !Thread.currentThread().isInterrupted()) {
+                //Read every time, so a refill carries on for a certificate that replaced the old one mid-way
+                Entry entry = generate(generation.get());
+                if (entry.generation != generation.get().id) continue;
+                entries.offer(entry);
+                size.incrementAndGet();
+            }
+            failures = 0;
+        } catch (CryptoException e) {
+            retryLater(e.getMessage());
+            return;
+        } catch (RuntimeException e) {
+            retryLater(e.toString());
+            return;
+        }
+        refilling.set(false);
+        //take() may have drained the pool after the loop's last check
+        if (size.get() <= lowWater && !executor.isShutdown()) refillIfLow();
+    }
+
+    //Keeps refilling set until the retry, so take() doesn't start one sooner
+    private void retryLater(String problem) {
+        failures++;
+        long delay = Math.min(MAX_RETRY_MILLIS, MIN_RETRY_MILLIS << Math.min(failures - 1, 20));
+        System.out.println("Unable to refill key pool, retrying in " + delay + " ms: " + problem);
+        try {
+            executor.schedule(refill, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            //closed
+            refilling.set(false);
+        }
+    }
+
+    private Entry generate(Generation current) throws CryptoException {
+        String kid = RandomSource.kid();
+        byte[] key = cryptoUtils.generateAESKey();
+        try {
+            return new Entry(kid, current.jweWrapper.wrap(kid, key), cryptoUtils.encrypt(masterKey, key), current.id,
+                    current.jweWrapper.getWrappingKey());
+        } finally {
+            Arrays.fill(key, (byte) 0);
+        }
+    }
+
+    private static final class Generation {
+
+        final int id;
+        final JweWrapper jweWrapper;
+
+        Generation(int id, JweWrapper jweWrapper) {
+            this.id = id;
+            this.jweWrapper = jweWrapper;
+        }
+    }
+
+    /**
+     * A key ready to issue.  The protected key is the DEK encrypted under the pool's master key by
+     * CryptoUtils.encrypt, hex encoded, which is also the form RotateKeys -m reads.
+     */
+    public static final class Entry {
+
+        private final String kid;
+        private final String jwe;
+        private final String protectedKey;
+        private final int generation;
+        private final PublicKey wrappingKey;
+
+        Entry(String kid, String jwe, String protectedKey, int generation, PublicKey wrappingKey) {
+            this.kid = kid;
+            this.jwe = jwe;
+            this.protectedKey = protectedKey;
+            this.generation = generation;
+            this.wrappingKey = wrappingKey;
+        }
+
+        public String getKid() {
+            return kid;
+        }
+
+        public String getJwe() {
+            return jwe;
+        }
+
+        public String getProtectedKey() {
+            return protectedKey;
+        }
+
+        /**
+         * @return the public key of the certificate the JWE was wrapped for
+         */
+        public PublicKey getWrappingKey() {
+            return wrappingKey;
+        }
+
+        /**
+         * @return the Cache-Only Key representation, {"kid","jwe"}
+         */
+        @Override
+        public String toString() {
+            return KeyRepresentation.toJson(kid, jwe);
+        }
+    }
+
+}
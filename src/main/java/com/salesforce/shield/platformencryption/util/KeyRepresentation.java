@@ -7,15 +7,23 @@
 
 package com.salesforce.shield.platformencryption.util;
 
-import org.jose4j.jwe.ContentEncryptionAlgorithmIdentifiers;
-import org.jose4j.jwe.JsonWebEncryption;
-import org.jose4j.jwe.KeyManagementAlgorithmIdentifiers;
-import org.jose4j.lang.JoseException;
-
 import java.security.PublicKey;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 public class KeyRepresentation {
 
+    //JweWrappers are thread-safe and keep per-thread ciphers, so one is shared per wrapping key.  A long running
+    //process sees any number of certificates, so only the most recently used ones are kept.
+    private static final int MAX_WRAPPERS = 64;
+    private static final Map<PublicKey, JweWrapper> WRAPPERS = Collections.synchronizedMap(new LinkedHashMap<PublicKey, JweWrapper>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<PublicKey, JweWrapper> eldest) {
+            return size() > MAX_WRAPPERS;
+        }
+    });
+
     private String kid;
     private byte[] key;
     private PublicKey wrappingKey;
@@ -43,31 +51,42 @@ public class KeyRepresentation {
     }
 
     //Note: This is the critical piece of code that properly formats the JWE as expected by CacheOnlyKeys
-    public String getJwe() {
+    public String getJwe() throws CryptoException {
+        return jweWrapper(wrappingKey).wrap(kid, key);
+    }
+
+    //Note: This is the critical piece of code that properly formats the JSON format that carries the kid and JWE
+    public String toJson() throws CryptoException {
+        return toJson(kid, getJwe());
+    }
 
-        String compactSerialization = null;
+    /**
+     * @throws IllegalStateException if the key can't be wrapped, toJson() throws the CryptoException instead
+     */
+    public String toString() {
         try {
-            JsonWebEncryption jwe = new JsonWebEncryption();
-            jwe.setAlgorithmHeaderValue(KeyManagementAlgorithmIdentifiers.RSA_OAEP);
-            jwe.setEncryptionMethodHeaderParameter(ContentEncryptionAlgorithmIdentifiers.AES_256_GCM);
-            jwe.setKeyIdHeaderValue(kid);
-            jwe.setKey(wrappingKey);
-            jwe.setPlaintext(key);
-            compactSerialization = jwe.getCompactSerialization();
-        } catch (JoseException e) {
-            System.out.println(e);
+            return toJson();
+        } catch (CryptoException e) {
+            throw new IllegalStateException(e.getMessage(), e);
         }
-        return compactSerialization;
     }
 
-
-    //Note: This is the critical piece of code that properly formats the JSON format that carries the kid and JWE
-    public String toString() {
+    //The same format for a JWE that was already produced, e.g. by a JweWrapper
+    public static String toJson(String kid, String jwe) {
         StringBuffer jsonRepresentation = new StringBuffer("{");
         jsonRepresentation.append("\"kid\" : \"" + kid + "\",");
-        jsonRepresentation.append("\"jwe\" : \"" + getJwe() + "\"}");
+        jsonRepresentation.append("\"jwe\" : \"" + jwe + "\"}");
         return jsonRepresentation.toString();
     }
 
+    static JweWrapper jweWrapper(PublicKey wrappingKey) throws CryptoException {
+        JweWrapper jweWrapper = WRAPPERS.get(wrappingKey);
+        if (jweWrapper == null) {
+            jweWrapper = new JweWrapper(wrappingKey);
+            WRAPPERS.put(wrappingKey, jweWrapper);
+        }
+        return jweWrapper;
+    }
+
 
 }
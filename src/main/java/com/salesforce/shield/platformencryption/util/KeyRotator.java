@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.util;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+import org.jose4j.json.JsonUtil;
+import org.jose4j.lang.JoseException;
+
+import javax.crypto.SecretKey;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.PublicKey;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Re-wraps existing keys under a new BYOK wrapping certificate.
+ *
+ * The DEK source is a stream of NDJSON {"kid","key"} records, as read and written by bulk mode.  When a master
+ * key is given, each "key" is the hex encoded AES key encrypted under it with CryptoUtils, otherwise it is the
+ * hex encoded AES key itself.  Records whose kid has no existing key representation are skipped, as are kids
+ * already in the journal.  Keys are wrapped on a fixed worker pool, put into the target key store in input
+ * order, and every CHECKPOINT_INTERVAL keys the store is synced and the batch appended to the journal, so an
+ * interrupted rotation loses at most one batch of work.
+ */
+public class KeyRotator {
+
+    private static final int WINDOW_PER_THREAD = 64;
+    private static final int CHECKPOINT_INTERVAL = 4096;
+
+    /**
+     * The set of kids that already have a key representation.
+     */
+    public interface Representations {
+        boolean contains(String kid);
+    }
+
+    private final JweWrapper jweWrapper;
+    private final int threads;
+    private final int window;
+    private final CryptoUtils cryptoUtils = new CryptoUtils();
+    private final SecretKey masterKey;
+
+    private long rotated;
+    private long skipped;
+    private long missing;
+
+    public KeyRotator(PublicKey newWrappingKey, int threads, byte[] masterKey) throws CryptoException {
+        if (threads < 1) throw new IllegalArgumentException("threads must be at least 1");
+        this.jweWrapper = new JweWrapper(newWrappingKey);
+        this.threads = threads;
+        this.window = threads * WINDOW_PER_THREAD;
+        this.masterKey = masterKey == null ? null : cryptoUtils.secretKey(masterKey);
+    }
+
+    public static Representations inKeyStore(final KeyStoreFile keyStore) {
+        return new Representations() {
+            @Override
+            public boolean contains(String kid) {
+                return keyStore.get(kid) != null;
+            }
+        };
+    }
+
+    public static Representations inDirectory(final File dir) {
+        return new Representations() {
+            @Override
+            public boolean contains(String kid) {
+                return new File(dir, kid).isFile();
+            }
+        };
+    }
+
+    /**
+     * Reads DEK records from deks until end of stream and puts a key representation under the new certificate
+     * into target for each one that needs rotating.
+     *
+     * @return the number of keys rotated by this run
+     */
+    public long rotate(BufferedReader deks, Representations existing, KeyStoreFile target, RotationJournal journal) throws IOException, CryptoException {
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        ArrayDeque<Future<String[]>> pending = new ArrayDeque<Future<String[]>>(window);
+        List<String> batch = new ArrayList<String>(CHECKPOINT_INTERVAL);
+        long lineNumber = 0;
+        try {
+            String line;
+            while ((line = deks.readLine()) != null) {
+                lineNumber++;
+                if (line.trim().isEmpty()) continue;
+                Map<String, Object> record = parse(line, lineNumber);
+                String kid = (String) record.get("kid");
+                if (journal.contains(kid)) {
+                    skipped++;
+                    continue;
+                }
+                if (!existing.contains(kid)) {
+                    missing++;
+                    continue;
+                }
+                if (pending.size() >= window) commit(pending.poll(), target, journal, batch);
+                pending.add(executor.submit(new RewrapTask(kid, record.get("key"), lineNumber)));
+            }
+            while (!pending.isEmpty()) commit(pending.poll(), target, journal, batch);
+        } finally {
+            executor.shutdownNow();
+            //Whatever made it into the store is journaled, even when a later record failed
+            checkpoint(target, journal, batch);
+        }
+        return rotated;
+    }
+
+    public long getSkipped() {
+        return skipped;
+    }
+
+    public long getMissing() {
+        return missing;
+    }
+
+    private void commit(Future<String[]> result, KeyStoreFile target, RotationJournal journal, List<String> batch) throws IOException, CryptoException {
+        try {
+            String[] wrapped = result.get();
+            target.put(wrapped[0], KeyRepresentation.toJson(wrapped[0], wrapped[1]).getBytes(StandardCharsets.UTF_8));
+            batch.add(wrapped[0]);
+            rotated++;
+            if (batch.size() >= CHECKPOINT_INTERVAL) checkpoint(target, journal, batch);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a wrapped key");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof CryptoException) throw (CryptoException) e.getCause();
+            throw new CryptoException(e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+        }
+    }
+
+    private static void checkpoint(KeyStoreFile target, RotationJournal journal, List<String> batch) throws IOException {
+        if (batch.isEmpty()) return;
+        //The store has to be durable before the journal claims the keys are done
+        target.sync();
+        journal.append(batch);
+        batch.clear();
+    }
+
+    private static Map<String, Object> parse(String line, long lineNumber) throws CryptoException {
+        Map<String, Object> record;
+        try {
+            record = JsonUtil.parseJson(line);
+        } catch (JoseException e) {
+            throw new CryptoException("Line " + lineNumber + ": unable to parse record", e);
+        }
+        Object kid = record.get("kid");
+        if (!(kid instanceof String) || ((String) kid).isEmpty())
+            throw new CryptoException("Line " + lineNumber + ": record has no kid");
+        if (!(record.get("key") instanceof String))
+            throw new CryptoException("Line " + lineNumber + ": record has no key");
+        return record;
+    }
+
+    private class RewrapTask implements Callable<String[]> {
+
+        private final String kid;
+        private final String protectedKey;
+        private final long lineNumber;
+
+        RewrapTask(String kid, Object protectedKey, long lineNumber) {
+            this.kid = kid;
+            this.protectedKey = (String) protectedKey;
+            this.lineNumber = lineNumber;
+        }
+
+        @Override
+        public String[] call() throws CryptoException {
+
+            byte[] decoded;
+            try {
+                decoded = Hex.decodeHex(protectedKey);
+            } catch (DecoderException e) {
+                throw new CryptoException("Line " + lineNumber + ": unable to hex decode key", e);
+            }
+
+            byte[] key = decoded;
+            try {
+                if (masterKey != null) {
+                    int length;
+                    try {
+                        length = cryptoUtils.decrypt(masterKey, decoded, 0, decoded.length, decoded, 0);
+                    } catch (CryptoException e) {
+                        throw new CryptoException("Line " + lineNumber + ": unable to decrypt key with the master key", e);
+                    }
+                    key = Arrays.copyOf(decoded, length);
+                }
+                if (key.length != 32)
+                    throw new CryptoException("Line " + lineNumber + ": key must be a 256 bit AES key");
+
+                return new String[] { kid, jweWrapper.wrap(kid, key) };
+            } finally {
+                Arrays.fill(decoded, (byte) 0);
+                Arrays.fill(key, (byte) 0);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,660 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.util;
+
+import com.salesforce.shield.platformencryption.metrics.Instrumentation;
+import com.salesforce.shield.platformencryption.metrics.Stage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Single-file, append-only store of key representations (or any bytes) by kid.
+ *
+ * The file is a header followed by a log of records and index blocks:
+ * header : magic "COKS" | version | index offset (long) | tail offset (long) | index capacity | crc32
+ * record : magic "COKR" | body length | body (type, kid length (u16), kid, value) | crc32(body)
+ * index  : magic "COKI" | capacity | capacity * (kid hash (int), record offset (long)) | crc32
+ *
+ * The index block named by the header is an open-addressed hash table over kid that readers probe directly
+ * in the memory-mapped file, so a lookup returns a slice of the mapping without copying or opening anything.
+ * Records appended after that index block are found by scanning from the tail offset on open and are kept
+ * in a small in-memory overlay until the next checkpoint writes a fresh index block.
+ *
+ * Appends are crash safe: the header only ever points at a fully written and forced index block, and on
+ * open a writable store truncates anything after the last record with a valid checksum.  compact() rewrites
+ * the live records into a new file and atomically renames it over the old one, and runs by itself when more
+ * than half of a large file is superseded records and old index blocks.
+ *
+ * A writable store holds an exclusive lock on the file, so writers in other processes wait their turn.  The
+ * lock belongs to the process, so opening a store for writing again in the same process, from another
+ * thread say, returns the store that is already open, and it stays open until every open has been closed.
+ *
+ * A store open read-only in another process follows the writer with refresh(), which scans just the records
+ * appended since it last looked.
+ *
+ * The whole file is mapped with a single mapping, which limits a store to 2GB.
+ */
+public class KeyStoreFile {
+
+    private static final int MAGIC = 0x434f4b53;
+    private static final int RECORD_MAGIC = 0x434f4b52;
+    private static final int INDEX_MAGIC = 0x434f4b49;
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 32;
+    private static final int INDEX_SLOT = 12;
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    //Overlay size, relative to the indexed entries, that triggers a new index block
+    private static final int CHECKPOINT_RATIO = 4;
+    private static final int MIN_CHECKPOINT = 1024;
+    //Smaller files are left alone however much of them is dead
+    private static final long MIN_COMPACT_LENGTH = 1 << 20;
+
+    //Stores open for writing in this process, by canonical path
+    private static final Map<String, Writer> WRITERS = new HashMap<String, Writer>();
+
+    private final File file;
+    private final boolean writable;
+    private Writer writer;
+    private FileChannel channel;
+    private long end;
+    //Where the scan for appended records stopped, the end of the last complete one
+    private long scanned;
+    private Object fileKey;
+    //Bytes of superseded records, delete records and old index blocks, exact after a checkpoint and
+    //counted up from there on each append
+    private long dead;
+    private volatile View view;
+    //kid -> offset of the latest record for kid appended after the current index block
+    private final Map<String, Long> overlay = new ConcurrentHashMap<String, Long>();
+
+    private KeyStoreFile(File file, boolean writable) {
+        this.file = file;
+        this.writable = writable;
+    }
+
+    /**
+     * Opens, or when writable creates, the store in file.
+     */
+    public static KeyStoreFile open(File file, boolean writable) throws IOException {
+        if (!writable) {
+            KeyStoreFile store = new KeyStoreFile(file, false);
+            store.load();
+            return store;
+        }
+
+        String path = file.getCanonicalPath();
+        Writer writer;
+        synchronized (WRITERS) {
+            writer = WRITERS.get(path);
+            if (writer == null) {
+                writer = new Writer(path);
+                WRITERS.put(path, writer);
+            }
+            writer.opens++;
+        }
+        boolean opened = false;
+        try {
+            synchronized (writer) {
+                if (writer.store == null) {
+                    KeyStoreFile store = new KeyStoreFile(file, true);
+                    store.load();
+                    store.writer = writer;
+                    writer.store = store;
+                }
+                opened = true;
+                return writer.store;
+            }
+        } finally {
+            if (!opened && writer.release()) writer.forget();
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return a read-only slice of the stored value, or null if there is no value for kid
+     */
+    public ByteBuffer get(String kid) {
+        byte[] kidBytes = kid.getBytes(StandardCharsets.UTF_8);
+        //The overlay has to be read before the view, see checkpoint()
+        Long latest = overlay.get(kid);
+        View current = view;
+        long offset;
+        if (latest != null) {
+            offset = latest;
+            current = view(offset + 12);
+        } else {
+            offset = current.index == null ? 0 : current.index.find(current.map, hash(kid), kidBytes);
+        }
+        if (offset == 0) return null;
+        return value(current.map, offset, kidBytes.length);
+    }
+
+    public String getString(String kid) {
+        ByteBuffer value = get(kid);
+        return value == null ? null : StandardCharsets.UTF_8.decode(value).toString();
+    }
+
+    public synchronized void put(String kid, byte[] value) throws IOException {
+        long started = Instrumentation.begin();
+        try {
+            append(PUT, kid, value);
+        } catch (IOException e) {
+            Instrumentation.failed(Stage.FILE_APPEND, started, e);
+            throw e;
+        }
+        Instrumentation.end(Stage.FILE_APPEND, started);
+    }
+
+    public synchronized void delete(String kid) throws IOException {
+        if (get(kid) != null) append(DELETE, kid, new byte[0]);
+    }
+
+    /**
+     * @return every kid with a value, in no particular order
+     */
+    public List<String> kids() {
+        List<String> kids = new ArrayList<String>();
+        Map<String, Long> appended = new HashMap<String, Long>(overlay);
+        View current = view(end);
+        if (current.index != null) {
+            for (int slot = 0; slot < current.index.capacity; slot++) {
+                long offset = current.index.offset(current.map, slot);
+                if (offset == 0) continue;
+                String kid = kid(current.map, offset);
+                if (!appended.containsKey(kid)) kids.add(kid);
+            }
+        }
+        for (Map.Entry<String, Long> entry : appended.entrySet()) {
+            if (type(view(entry.getValue() + 12).map, entry.getValue()) == PUT) kids.add(entry.getKey());
+        }
+        return kids;
+    }
+
+    public int size() {
+        return kids().size();
+    }
+
+    /**
+     * Forces appended records to disk.
+     */
+    public synchronized void sync() throws IOException {
+        if (!writable) return;
+        long started = Instrumentation.begin();
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            Instrumentation.failed(Stage.FILE_SYNC, started, e);
+            throw e;
+        }
+        Instrumentation.end(Stage.FILE_SYNC, started);
+    }
+
+    /**
+     * Writes an index block covering every record and points the header at it, so the next open
+     * doesn't have to scan the appended records.
+     */
+    public synchronized void checkpoint() throws IOException {
+        if (!writable || overlay.isEmpty()) return;
+
+        List<Long> offsets = liveOffsets();
+        long indexOffset = end;
+        ByteBuffer mapped = view(end).map;
+        ByteBuffer block = encodeIndex(mapped, offsets);
+        long live = HEADER_LENGTH + block.capacity();
+        for (long offset : offsets) live += recordLength(mapped, offset);
+        write(block, indexOffset);
+        end = indexOffset + block.capacity();
+        channel.force(false);
+
+        writeHeader(channel, indexOffset, end, capacityFor(offsets.size()));
+        channel.force(false);
+
+        //Publish the new index before dropping the overlay it replaces, readers check the overlay first
+        view = new View(map(), new Index(indexOffset, capacityFor(offsets.size())));
+        overlay.clear();
+        dead = end - live;
+    }
+
+    /**
+     * Rewrites the live records and a fresh index into a new file and atomically replaces this one with it.
+     */
+    public synchronized void compact() throws IOException {
+        if (!writable) throw new IOException("Key store " + file + " is open read-only");
+
+        //Fold the overlay into an index first, so readers never need the overlay of the old file
+        checkpoint();
+
+        File compacted = new File(file.getPath() + ".compact");
+        ByteBuffer mapped = view(end).map;
+        List<Long> offsets = liveOffsets();
+        List<Long> newOffsets = new ArrayList<Long>(offsets.size());
+        try (FileChannel target = FileChannel.open(compacted.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long position = HEADER_LENGTH;
+            for (long offset : offsets) {
+                ByteBuffer record = mapped.duplicate();
+                record.position((int) offset).limit((int) (offset + recordLength(mapped, offset)));
+                newOffsets.add(position);
+                while (record.hasRemaining()) position += target.write(record, position);
+            }
+            MappedByteBuffer newMapping = target.map(FileChannel.MapMode.READ_ONLY, 0, position);
+            ByteBuffer block = encodeIndex(newMapping, newOffsets);
+            long indexOffset = position;
+            while (block.hasRemaining()) position += target.write(block, position);
+            writeHeader(target, indexOffset, position, capacityFor(newOffsets.size()));
+            target.force(true);
+        }
+
+        Files.move(compacted.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        channel.close();
+        load();
+    }
+
+    /**
+     * Catches a read-only store up with the records another process has appended to the file since it was
+     * opened or last refreshed.  Only the new records are read, and readers see each kid's old or new value.
+     *
+     * @return the kids put or deleted by the new records, or null if the file was replaced or truncated,
+     * for example by compact(), and has to be opened again
+     */
+    public synchronized List<String> refresh() throws IOException {
+        if (writable) throw new IOException("Key store " + file + " is open for writing, only read-only stores are refreshed");
+
+        Object currentKey;
+        try {
+            currentKey = fileKey(file);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        long size = channel.size();
+        if ((fileKey != null && !fileKey.equals(currentKey)) || size < scanned) return null;
+        if (size == scanned) return Collections.emptyList();
+
+        end = size;
+        ByteBuffer mapped = view(end).map;
+        Map<String, Long> appended = new LinkedHashMap<String, Long>();
+        scanned = scan(mapped, scanned, appended);
+        overlay.putAll(appended);
+        adoptIndex(mapped);
+        return new ArrayList<String>(appended.keySet());
+    }
+
+    /**
+     * Closes the store, releasing the writer's lock once every open of it in this process has been closed.
+     * Records appended since the last index block are left for the next open to scan, rather than writing a
+     * whole new index block for every small update.
+     */
+    public void close() throws IOException {
+        if (writer == null) {
+            closeChannel();
+            return;
+        }
+        synchronized (writer) {
+            if (writer.store != this || !writer.release()) return;
+            try {
+                closeChannel();
+            } finally {
+                writer.store = null;
+                writer.forget();
+            }
+        }
+    }
+
+    private synchronized void closeChannel() throws IOException {
+        if (writable && !overlay.isEmpty()) channel.force(false);
+        channel.close();
+    }
+
+    private void load() throws IOException {
+        if (writable) {
+            lock();
+            if (channel.size() == 0) {
+                writeHeader(channel, 0, HEADER_LENGTH, 0);
+                channel.force(true);
+            }
+        } else {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        }
+
+        end = channel.size();
+        MappedByteBuffer header = map();
+        if (end < HEADER_LENGTH || header.getInt(0) != MAGIC) throw new IOException(file + " is not a key store");
+        if (header.getInt(4) != VERSION) throw new IOException("Unsupported key store version in " + file);
+        if (header.getInt(28) != crc(header, 0, 28)) throw new IOException("Corrupt key store header in " + file);
+
+        long indexOffset = header.getLong(8);
+        long tail = header.getLong(16);
+        Index index = indexOffset == 0 ? null : new Index(indexOffset, header.getInt(24));
+
+        Map<String, Long> appended = new HashMap<String, Long>();
+        scanned = scan(header, tail, appended);
+        if (scanned < end && writable) {
+            System.out.println("Truncating incomplete append at offset " + scanned + " in " + file);
+            channel.truncate(scanned);
+            channel.force(true);
+            end = scanned;
+        }
+        fileKey = fileKey(file);
+        dead = 0;
+
+        view = new View(map(), index);
+        overlay.clear();
+        overlay.putAll(appended);
+    }
+
+    //Opens the file for writing and waits for the exclusive lock on it
+    private void lock() throws IOException {
+        while (true) {
+            Object before = Files.exists(file.toPath()) ? fileKey(file) : null;
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                channel.lock();
+            } catch (OverlappingFileLockException e) {
+                channel.close();
+                throw new IOException("Key store " + file + " is already open for writing in this process");
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+            //The writer we waited for may have compacted the store, leaving us the lock on the file it replaced
+            if (before == null || before.equals(fileKey(file))) return;
+            channel.close();
+        }
+    }
+
+    private static Object fileKey(File file) throws IOException {
+        return Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+    }
+
+    //Collects records after the indexed tail, returning where the last complete entry ends
+    private long scan(ByteBuffer mapped, long position, Map<String, Long> appended) {
+        long limit = Math.min(end, mapped.capacity());
+        while (position < limit) {
+            long next = validEntryEnd(mapped, position, limit);
+            if (next < 0) break;
+            if (mapped.getInt((int) position) == RECORD_MAGIC) appended.put(kid(mapped, position), position);
+            position = next;
+        }
+        return position;
+    }
+
+    //Probes the writer's latest index block once the scan has passed it, so the overlay only holds the records after it
+    private void adoptIndex(ByteBuffer mapped) {
+        //The writer may be rewriting the header right now
+        if (mapped.getInt(28) != crc(mapped, 0, 28)) return;
+        long indexOffset = mapped.getLong(8);
+        Index current = view.index;
+        if (indexOffset == 0 || indexOffset >= scanned || (current != null && indexOffset <= current.offset)) return;
+        if (mapped.getInt((int) indexOffset) != INDEX_MAGIC) return;
+
+        //Publish the new index before dropping the overlay entries it covers, as checkpoint() does
+        view = new View(view.map, new Index(indexOffset, mapped.getInt((int) indexOffset + 4)));
+        Iterator<Long> offsets = overlay.values().iterator();
+        while (offsets.hasNext()) {
+            if (offsets.next() < indexOffset) offsets.remove();
+        }
+    }
+
+    //Returns the end of the record or index block at position, or -1 if it is incomplete or corrupt
+    private static long validEntryEnd(ByteBuffer mapped, long position, long end) {
+        if (position + 8 > end) return -1;
+        int magic = mapped.getInt((int) position);
+        int length = mapped.getInt((int) position + 4);
+        long bodyLength;
+        if (magic == RECORD_MAGIC) bodyLength = length;
+        else if (magic == INDEX_MAGIC) bodyLength = (long) length * INDEX_SLOT;
+        else return -1;
+        if (bodyLength < 0 || position + 12 + bodyLength > end) return -1;
+        if (mapped.getInt((int) (position + 8 + bodyLength)) != crc(mapped, (int) position + 8, (int) bodyLength)) return -1;
+        return position + 12 + bodyLength;
+    }
+
+    private void append(byte type, String kid, byte[] value) throws IOException {
+        if (!writable) throw new IOException("Key store " + file + " is open read-only");
+        byte[] kidBytes = kid.getBytes(StandardCharsets.UTF_8);
+        if (kidBytes.length > 0xffff) throw new IOException("kid is too long");
+
+        long previous = offset(kid, kidBytes);
+        int bodyLength = 3 + kidBytes.length + value.length;
+        ByteBuffer record = ByteBuffer.allocate(12 + bodyLength);
+        record.putInt(RECORD_MAGIC).putInt(bodyLength);
+        record.put(type).putShort((short) kidBytes.length).put(kidBytes).put(value);
+        record.putInt(crc(record, 8, bodyLength));
+        record.flip();
+
+        long offset = end;
+        write(record, offset);
+        end = offset + record.capacity();
+        overlay.put(kid, offset);
+        if (previous != 0) {
+            ByteBuffer mapped = view(previous + 12).map;
+            if (type(mapped, previous) == PUT) dead += recordLength(mapped, previous);
+        }
+        if (type == DELETE) dead += record.capacity();
+
+        Index current = view.index;
+        int indexed = current == null ? 0 : current.capacity / 2;
+        if (overlay.size() > Math.max(MIN_CHECKPOINT, indexed / CHECKPOINT_RATIO)) checkpoint();
+        if (end > MIN_COMPACT_LENGTH && dead > end / 2) compact();
+    }
+
+    private void write(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) position += channel.write(buffer, position);
+    }
+
+    //Offsets of the latest PUT record for every live kid
+    private List<Long> liveOffsets() {
+        ByteBuffer mapped = view(end).map;
+        List<Long> offsets = new ArrayList<Long>();
+        Index current = view.index;
+        if (current != null) {
+            for (int slot = 0; slot < current.capacity; slot++) {
+                long offset = current.offset(mapped, slot);
+                if (offset != 0 && !overlay.containsKey(kid(mapped, offset))) offsets.add(offset);
+            }
+        }
+        for (long offset : overlay.values()) {
+            if (type(mapped, offset) == PUT) offsets.add(offset);
+        }
+        return offsets;
+    }
+
+    private static ByteBuffer encodeIndex(ByteBuffer mapped, List<Long> offsets) {
+        int capacity = capacityFor(offsets.size());
+        ByteBuffer block = ByteBuffer.allocate(12 + capacity * INDEX_SLOT);
+        block.putInt(INDEX_MAGIC).putInt(capacity);
+        for (long offset : offsets) {
+            int hash = hash(kid(mapped, offset));
+            int slot = hash & (capacity - 1);
+            while (block.getLong(8 + slot * INDEX_SLOT + 4) != 0) slot = (slot + 1) & (capacity - 1);
+            block.putInt(8 + slot * INDEX_SLOT, hash).putLong(8 + slot * INDEX_SLOT + 4, offset);
+        }
+        block.putInt(8 + capacity * INDEX_SLOT, crc(block, 8, capacity * INDEX_SLOT));
+        block.position(0);
+        return block;
+    }
+
+    //Power of two with a load factor of at most one half
+    private static int capacityFor(int entries) {
+        int capacity = 16;
+        while (capacity < entries * 2) capacity <<= 1;
+        return capacity;
+    }
+
+    private static void writeHeader(FileChannel channel, long indexOffset, long tail, int capacity) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        header.putInt(MAGIC).putInt(VERSION).putLong(indexOffset).putLong(tail).putInt(capacity);
+        header.putInt(crc(header, 0, 28));
+        header.flip();
+        while (header.hasRemaining()) channel.write(header, header.position());
+    }
+
+    //The current view, remapped first if its mapping doesn't reach limit yet
+    private View view(long limit) {
+        View current = view;
+        if (limit <= current.map.capacity()) return current;
+        synchronized (this) {
+            if (limit <= view.map.capacity()) return view;
+            try {
+                view = new View(map(), view.index);
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to map key store " + file, e);
+            }
+            return view;
+        }
+    }
+
+    private MappedByteBuffer map() throws IOException {
+        long size = channel.size();
+        if (size > Integer.MAX_VALUE) throw new IOException("Key store " + file + " is larger than 2GB");
+        return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+    }
+
+    //Offset of the latest record for kid, a put or a delete, or 0 if there is none.  Only for writers.
+    private long offset(String kid, byte[] kidBytes) {
+        Long latest = overlay.get(kid);
+        if (latest != null) return latest;
+        View current = view;
+        return current.index == null ? 0 : current.index.find(current.map, hash(kid), kidBytes);
+    }
+
+    private static int recordLength(ByteBuffer mapped, long offset) {
+        return 12 + mapped.getInt((int) offset + 4);
+    }
+
+    private static ByteBuffer value(ByteBuffer mapped, long offset, int kidLength) {
+        if (type(mapped, offset) != PUT) return null;
+        int bodyLength = mapped.getInt((int) offset + 4);
+        ByteBuffer value = mapped.duplicate();
+        value.position((int) offset + 11 + kidLength).limit((int) offset + 8 + bodyLength);
+        return value.slice().asReadOnlyBuffer();
+    }
+
+    private static byte type(ByteBuffer mapped, long offset) {
+        return mapped.get((int) offset + 8);
+    }
+
+    private static String kid(ByteBuffer mapped, long offset) {
+        int kidLength = mapped.getShort((int) offset + 9) & 0xffff;
+        byte[] kid = new byte[kidLength];
+        for (int i = 0; i < kidLength; i++) kid[i] = mapped.get((int) offset + 11 + i);
+        return new String(kid, StandardCharsets.UTF_8);
+    }
+
+    private static boolean kidEquals(ByteBuffer mapped, long offset, byte[] kid) {
+        if ((mapped.getShort((int) offset + 9) & 0xffff) != kid.length) return false;
+        for (int i = 0; i < kid.length; i++) {
+            if (mapped.get((int) offset + 11 + i) != kid[i]) return false;
+        }
+        return true;
+    }
+
+    static int hash(String kid) {
+        int h = kid.hashCode() * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    private static int crc(ByteBuffer buffer, int offset, int length) {
+        CRC32 crc = new CRC32();
+        ByteBuffer region = buffer.duplicate();
+        region.limit(offset + length).position(offset);
+        crc.update(region);
+        return (int) crc.getValue();
+    }
+
+    //The store open for writing at one path, shared by everyone in this process who opened it.  A Writer stays
+    //in WRITERS until its channel is closed, so the next open waits for that rather than failing to lock.
+    private static final class Writer {
+
+        final String path;
+        //Guarded by WRITERS
+        int opens;
+        //Guarded by this
+        KeyStoreFile store;
+
+        Writer(String path) {
+            this.path = path;
+        }
+
+        //@return whether that was the last open
+        boolean release() {
+            synchronized (WRITERS) {
+                return --opens == 0;
+            }
+        }
+
+        void forget() {
+            synchronized (WRITERS) {
+                if (opens == 0 && WRITERS.get(path) == this) WRITERS.remove(path);
+            }
+        }
+    }
+
+    //A mapping of the file together with the index block to probe in it, swapped as one
+    private static final class View {
+
+        final MappedByteBuffer map;
+        final Index index;
+
+        View(MappedByteBuffer map, Index index) {
+            this.map = map;
+            this.index = index;
+        }
+    }
+
+    //An index block in the mapped file
+    private static final class Index {
+
+        final long offset;
+        final int capacity;
+
+        Index(long offset, int capacity) {
+            this.offset = offset;
+            this.capacity = capacity;
+        }
+
+        long offset(ByteBuffer mapped, int slot) {
+            return mapped.getLong((int) (offset + 8 + (long) slot * INDEX_SLOT + 4));
+        }
+
+        long find(ByteBuffer mapped, int hash, byte[] kid) {
+            int slot = hash & (capacity - 1);
+            while (true) {
+                long base = offset + 8 + (long) slot * INDEX_SLOT;
+                long record = mapped.getLong((int) base + 4);
+                if (record == 0) return 0;
+                if (mapped.getInt((int) base) == hash && kidEquals(mapped, record, kid)) return record;
+                slot = (slot + 1) & (capacity - 1);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.util;
+
+/**
+ * Why a KeyWrappingService request failed.  Futures from the service complete exceptionally with this.
+ */
+public class KeyWrappingException extends CryptoException {
+
+    public enum Reason {
+        /** The service's queue was full, retry later or shed the request */
+        REJECTED,
+        /** The service was closed */
+        SHUT_DOWN,
+        /** The request itself was invalid, e.g. a key that is not 256 bits */
+        INVALID_REQUEST,
+        /** Key generation, wrapping, splitting or recovery failed */
+        CRYPTO_FAILURE
+    }
+
+    private final Reason reason;
+
+    public KeyWrappingException(Reason reason, String message) {
+        super(message);
+        this.reason = reason;
+    }
+
+    public KeyWrappingException(Reason reason, String message, Throwable cause) {
+        super(message, cause);
+        this.reason = reason;
+    }
+
+    public Reason getReason() {
+        return reason;
+    }
+
+}
@@ -0,0 +1,492 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.util;
+
+import org.apache.commons.codec.DecoderException;
+
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * Asynchronous wrapping API for services that embed the key wrapper: generate and wrap, wrap an existing key,
+ * Shamir split and recover, each returning a CompletableFuture.
+ *
+ * Work runs on a pool with a bounded queue.  Submitting never blocks: when the queue is full the returned future
+ * has already failed with a KeyWrappingException of reason REJECTED, so event loop threads can call in freely and
+ * shed load on rejection.  Every failure is a KeyWrappingException with a reason, never a null result.  Futures
+ * derived with thenApply() and friends see it wrapped in a CompletionException, as usual.
+ *
+ * With a KeyPool set, keys generated under a random kid come from the pool instead, and generateAndWrap(null)
+ * completes on the calling thread without queueing.  Requests fall back to generating a key while the pool is
+ * empty.
+ */
+public class KeyWrappingService implements AutoCloseable {
+
+    //Batches are wrapped in chunks, so one batch can't hold a thread for long or fill the queue on its own
+    private static final int BATCH_CHUNK = 64;
+    private static final int KEY_LENGTH = 32;
+
+    private final JweWrapper jweWrapper;
+    private final CryptoUtils cryptoUtils = new CryptoUtils();
+    private final Executor executor;
+    private final ThreadPoolExecutor pool;
+    private volatile KeyPool keyPool;
+    //Keys in the largest batch the pool's queue can hold, unlimited on the caller's executor
+    private final int maxBatch;
+    private volatile boolean closed;
+
+    /**
+     * Runs on its own pool of threads with room for queueCapacity waiting requests.
+     */
+    public KeyWrappingService(PublicKey wrappingKey, int threads, int queueCapacity) throws CryptoException {
+        if (threads < 1) throw new IllegalArgumentException("threads must be at least 1");
+        if (queueCapacity < 1) throw new IllegalArgumentException("queueCapacity must be at least 1");
+        this.jweWrapper = new JweWrapper(wrappingKey);
+        final AtomicInteger count = new AtomicInteger();
+        this.pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueCapacity), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "keywrapping-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.executor = pool;
+        this.maxBatch = (int) Math.min(Integer.MAX_VALUE, (long) queueCapacity * BATCH_CHUNK);
+    }
+
+    /**
+     * Runs on the caller's executor, which should bound its queue and reject with RejectedExecutionException
+     * when it is full.  close() leaves the executor running.
+     */
+    public KeyWrappingService(PublicKey wrappingKey, Executor executor) throws CryptoException {
+        this.jweWrapper = new JweWrapper(wrappingKey);
+        this.pool = null;
+        this.executor = executor;
+        this.maxBatch = Integer.MAX_VALUE;
+    }
+
+    /**
+     * Generates a 256 bit AES key and wraps it.
+     *
+     * @param kid the key identifier, or null for a random UUID
+     */
+    public CompletableFuture<WrappedKey> generateAndWrap(final String kid) {
+        if (kid != null && kid.isEmpty()) return invalid("The kid must not be empty");
+        if (kid == null && !closed) {
+            WrappedKey pooled = pooled();
+            if (pooled != null) return CompletableFuture.completedFuture(pooled);
+        }
+        return submit(new Task<WrappedKey>() {
+            @Override
+            WrappedKey call() throws CryptoException {
+                return generateAndWrapNow(kid);
+            }
+        });
+    }
+
+    /**
+     * Wraps an existing 256 bit AES key.  The key is copied, the caller may clear it as soon as this returns.
+     */
+    public CompletableFuture<WrappedKey> wrap(final String kid, byte[] key) {
+        if (kid == null || kid.isEmpty()) return invalid("A kid is required");
+        if (key == null || key.length != KEY_LENGTH) return invalid("The key must be a 256 bit AES key");
+        final byte[] copy = key.clone();
+        return submit(new Task<WrappedKey>() {
+            @Override
+            WrappedKey call() throws CryptoException {
+                return wrapNow(kid, copy);
+            }
+
+            @Override
+            void abandon() {
+                Arrays.fill(copy, (byte) 0);
+            }
+        });
+    }
+
+    /**
+     * Generates and wraps a key for each kid.  The batch fails as a whole if any part of it is rejected or fails,
+     * and then the keys generated for it are cleared.
+     */
+    public CompletableFuture<List<WrappedKey>> generateAndWrapAll(final List<String> kids) {
+        for (String kid : kids) {
+            if (kid != null && kid.isEmpty()) return invalid("The kid must not be empty");
+        }
+        if (kids.size() > maxBatch) return invalid("Batches are limited to " + maxBatch + " keys");
+        final List<String> copy = new ArrayList<String>(kids);
+        return submitAll(copy.size(), new Batch() {
+            @Override
+            WrappedKey call(int i) throws CryptoException {
+                return generateAndWrapNow(copy.get(i));
+            }
+        });
+    }
+
+    /**
+     * Wraps each existing key under its kid, in the map's iteration order.  The keys are copied.  The batch fails
+     * as a whole if any part of it is rejected or fails, and then every copy is cleared.
+     */
+    public CompletableFuture<List<WrappedKey>> wrapAll(Map<String, byte[]> keys) {
+        final List<String> kids = new ArrayList<String>(keys.size());
+        for (Map.Entry<String, byte[]> entry : keys.entrySet()) {
+            if (entry.getKey() == null || entry.getKey().isEmpty()) return invalid("A kid is required");
+            if (entry.getValue() == null || entry.getValue().length != KEY_LENGTH) return invalid("The key for " + entry.getKey() + " must be a 256 bit AES key");
+            kids.add(entry.getKey());
+        }
+        if (kids.size() > maxBatch) return invalid("Batches are limited to " + maxBatch + " keys");
+        final byte[][] copies = new byte[kids.size()][];
+        int i = 0;
+        for (byte[] key : keys.values()) copies[i++] = key.clone();
+        return submitAll(kids.size(), new Batch() {
+            @Override
+            WrappedKey call(int i) throws CryptoException {
+                return wrapNow(kids.get(i), copies[i]);
+            }
+
+            @Override
+            void discard(int from, int to) {
+                for (int i = from; i < to; i++) Arrays.fill(copies[i], (byte) 0);
+            }
+        });
+    }
+
+    /**
+     * Splits key into n hex encoded Shamir shares, any k of which recover it.  The key is copied.
+     */
+    public CompletableFuture<String[]> split(byte[] key, int n, int k) {
+        final SSSUtils sssUtils;
+        try {
+            sssUtils = new SSSUtils(n, k);
+        } catch (IllegalArgumentException e) {
+            return invalid(e.getMessage());
+        }
+        if (key == null || key.length == 0) return invalid("Nothing to split");
+        if (key.length > SSSUtils.MAX_SECRET_LENGTH) return invalid("Secrets are limited to " + SSSUtils.MAX_SECRET_LENGTH + " bytes");
+        final byte[] copy = key.clone();
+        return submit(new Task<String[]>() {
+            @Override
+            String[] call() {
+                try {
+                    return sssUtils.split(copy);
+                } finally {
+                    Arrays.fill(copy, (byte) 0);
+                }
+            }
+
+            @Override
+            void abandon() {
+                Arrays.fill(copy, (byte) 0);
+            }
+        });
+    }
+
+    /**
+     * Recovers a key from at least k of the n hex encoded shares split() returned.
+     */
+    public CompletableFuture<byte[]> recover(final String[] parts, int n, int k) {
+        final SSSUtils sssUtils;
+        try {
+            sssUtils = new SSSUtils(n, k);
+        } catch (IllegalArgumentException e) {
+            return invalid(e.getMessage());
+        }
+        if (parts == null || parts.length < k) return invalid("At least " + k + " shares are needed");
+        for (String part : parts) {
+            if (part == null) return invalid("Shares must not be null");
+        }
+        final String[] copy = parts.clone();
+        return submit(new Task<byte[]>() {
+            @Override
+            byte[] call() throws CryptoException {
+                try {
+                    return sssUtils.recover(copy);
+                } catch (DecoderException e) {
+                    throw new KeyWrappingException(KeyWrappingException.Reason.INVALID_REQUEST, "Shares must be hex encoded", e);
+                } catch (IllegalArgumentException e) {
+                    throw new KeyWrappingException(KeyWrappingException.Reason.INVALID_REQUEST, "Invalid shares: " + e.getMessage(), e);
+                } catch (CryptoException e) {
+                    //Recovery is arithmetic, what fails is shares that don't fit together
+                    throw new KeyWrappingException(KeyWrappingException.Reason.INVALID_REQUEST, e.getMessage(), e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Issues keys with random kids from keyPool, which must wrap for this service's certificate, or stops when
+     * keyPool is null.  The pool stays the caller's to close.
+     */
+    public void setKeyPool(KeyPool keyPool) {
+        if (keyPool != null && !keyPool.getWrappingKey().equals(jweWrapper.getWrappingKey()))
+            throw new IllegalArgumentException("The key pool wraps keys for a different certificate");
+        this.keyPool = keyPool;
+    }
+
+    /**
+     * @return requests waiting for a thread, -1 when running on the caller's executor
+     */
+    public int queued() {
+        return pool == null ? -1 : pool.getQueue().size();
+    }
+
+    /**
+     * Rejects new requests.  Requests already queued still complete.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        if (pool != null) pool.shutdown();
+    }
+
+    private WrappedKey generateAndWrapNow(String kid) throws CryptoException {
+        if (kid == null) {
+            WrappedKey pooled = pooled();
+            if (pooled != null) return pooled;
+        }
+        byte[] key = cryptoUtils.generateAESKey();
+        String id = kid == null ? RandomSource.kid() : kid;
+        try {
+            return new WrappedKey(id, jweWrapper.wrap(id, key), key);
+        } catch (CryptoException e) {
+            Arrays.fill(key, (byte) 0);
+            throw e;
+        }
+    }
+
+    //A key from the pool, or null when there is none for this service's certificate
+    private WrappedKey pooled() {
+        KeyPool current = keyPool;
+        if (current == null) return null;
+        KeyPool.Entry entry = current.poll();
+        if (entry == null || !entry.getWrappingKey().equals(jweWrapper.getWrappingKey())) return null;
+        try {
+            return new WrappedKey(entry.getKid(), entry.getJwe(), current.getKey(entry));
+        } catch (CryptoException e) {
+            return null;
+        }
+    }
+
+    private WrappedKey wrapNow(String kid, byte[] key) throws CryptoException {
+        try {
+            return new WrappedKey(kid, jweWrapper.wrap(kid, key), null);
+        } finally {
+            Arrays.fill(key, (byte) 0);
+        }
+    }
+
+    private <T> CompletableFuture<T> submit(final Task<T> task) {
+        final CompletableFuture<T> future = new CompletableFuture<T>();
+        if (closed) {
+            future.completeExceptionally(new KeyWrappingException(KeyWrappingException.Reason.SHUT_DOWN, "The key wrapping service is closed"));
+            return future;
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    //Nothing to do if the caller cancelled while the request was queued
+                    if (future.isDone()) {
+                        task.abandon();
+                        return;
+                    }
+                    try {
+                        T result = task.call();
+                        if (!future.complete(result)) task.discard(result);
+                    } catch (KeyWrappingException e) {
+                        future.completeExceptionally(e);
+                    } catch (CryptoException e) {
+                        future.completeExceptionally(new KeyWrappingException(KeyWrappingException.Reason.CRYPTO_FAILURE, e.getMessage(), e));
+                    } catch (RuntimeException e) {
+                        future.completeExceptionally(new KeyWrappingException(KeyWrappingException.Reason.CRYPTO_FAILURE, String.valueOf(e.getMessage()), e));
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            task.abandon();
+            KeyWrappingException.Reason reason = closed ? KeyWrappingException.Reason.SHUT_DOWN : KeyWrappingException.Reason.REJECTED;
+            future.completeExceptionally(new KeyWrappingException(reason, closed ? "The key wrapping service is closed" : "The key wrapping queue is full", e));
+        }
+        return future;
+    }
+
+    private static <T> CompletableFuture<T> invalid(String message) {
+        CompletableFuture<T> future = new CompletableFuture<T>();
+        future.completeExceptionally(new KeyWrappingException(KeyWrappingException.Reason.INVALID_REQUEST, message));
+        return future;
+    }
+
+    /**
+     * Runs keys 0 to size - 1 of a batch in chunks.  When a chunk fails, or the caller cancels the batch, the other
+     * chunks are cancelled, the keys already generated are cleared and batch.discard() is given every chunk that
+     * didn't run to the end, rejected ones included.
+     */
+    private CompletableFuture<List<WrappedKey>> submitAll(final int size, final Batch batch) {
+        final CompletableFuture<List<WrappedKey>> result = new CompletableFuture<List<WrappedKey>>();
+        final AtomicBoolean failed = new AtomicBoolean();
+        final List<CompletableFuture<List<WrappedKey>>> chunks = new ArrayList<CompletableFuture<List<WrappedKey>>>();
+        final AtomicInteger remaining = new AtomicInteger((size + BATCH_CHUNK - 1) / BATCH_CHUNK);
+
+        for (int from = 0; from < size; from += BATCH_CHUNK) {
+            final int start = from;
+            final int end = Math.min(size, from + BATCH_CHUNK);
+            CompletableFuture<List<WrappedKey>> chunk = submit(new Task<List<WrappedKey>>() {
+                @Override
+                List<WrappedKey> call() throws CryptoException {
+                    List<WrappedKey> wrapped = new ArrayList<WrappedKey>(end - start);
+                    try {
+                        for (int i = start; i < end; i++) {
+                            if (failed.get()) throw new CancellationException("Another part of the batch failed");
+                            wrapped.add(batch.call(i));
+                        }
+                        return wrapped;
+                    } catch (CryptoException e) {
+                        destroy(wrapped);
+                        batch.discard(start, end);
+                        throw e;
+                    } catch (RuntimeException e) {
+                        destroy(wrapped);
+                        batch.discard(start, end);
+                        throw e;
+                    }
+                }
+
+                @Override
+                void discard(List<WrappedKey> wrapped) {
+                    destroy(wrapped);
+                }
+
+                @Override
+                void abandon() {
+                    batch.discard(start, end);
+                }
+            });
+            chunks.add(chunk);
+            if (chunk.isCompletedExceptionally()) {
+                //Rejected, so the batch has failed already and the rest is never submitted
+                batch.discard(end, size);
+                break;
+            }
+        }
+
+        for (CompletableFuture<List<WrappedKey>> chunk : chunks) {
+            chunk.whenComplete(new BiConsumer<List<WrappedKey>, Throwable>() {
+                @Override
+                public void accept(List<WrappedKey> wrapped, Throwable failure) {
+                    if (failure != null) {
+                        result.completeExceptionally(failure);
+                    } else if (failed.get()) {
+                        destroy(wrapped);
+                    } else if (remaining.decrementAndGet() == 0) {
+                        List<WrappedKey> all = new ArrayList<WrappedKey>(size);
+                        for (CompletableFuture<List<WrappedKey>> done : chunks) all.addAll(done.join());
+                        result.complete(all);
+                    }
+                }
+            });
+        }
+
+        result.whenComplete(new BiConsumer<List<WrappedKey>, Throwable>() {
+            @Override
+            public void accept(List<WrappedKey> all, Throwable failure) {
+                if (failure == null) return;
+                failed.set(true);
+                for (CompletableFuture<List<WrappedKey>> chunk : chunks) {
+                    chunk.cancel(false);
+                    if (!chunk.isCompletedExceptionally()) destroy(chunk.getNow(null));
+                }
+            }
+        });
+        if (size == 0) result.complete(new ArrayList<WrappedKey>());
+        return result;
+    }
+
+    private static void destroy(List<WrappedKey> wrapped) {
+        if (wrapped == null) return;
+        for (WrappedKey key : wrapped) key.destroy();
+    }
+
+    private abstract static class Task<T> {
+
+        abstract T call() throws CryptoException;
+
+        //Called with a result nobody will see, because the future was cancelled meanwhile
+        void discard(T result) {
+        }
+
+        //Called instead of call() when the task was rejected, or cancelled before it ran
+        void abandon() {
+        }
+    }
+
+    //One key of a batch at a time
+    private abstract static class Batch {
+
+        abstract WrappedKey call(int i) throws CryptoException;
+
+        //Keys from to to - 1 were not all wrapped, and won't be
+        void discard(int from, int to) {
+        }
+    }
+
+    /**
+     * A wrapped key: its kid, the Cache-Only Key JWE and, for generated keys, the plaintext key.
+     */
+    public static final class WrappedKey {
+
+        private final String kid;
+        private final String jwe;
+        private final byte[] key;
+
+        WrappedKey(String kid, String jwe, byte[] key) {
+            this.kid = kid;
+            this.jwe = jwe;
+            this.key = key;
+        }
+
+        public String getKid() {
+            return kid;
+        }
+
+        public String getJwe() {
+            return jwe;
+        }
+
+        /**
+         * @return the generated key, null when an existing key was wrapped.  Clear it with destroy() once stored.
+         */
+        public byte[] getKey() {
+            return key;
+        }
+
+        /**
+         * @return the {"kid","jwe"} key representation
+         */
+        public String toJson() {
+            return KeyRepresentation.toJson(kid, jwe);
+        }
+
+        public void destroy() {
+            if (key != null) Arrays.fill(key, (byte) 0);
+        }
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.util;
+
+import com.salesforce.shield.platformencryption.metrics.Instrumentation;
+import com.salesforce.shield.platformencryption.metrics.Stage;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.SdkClientException;
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.services.kms.AWSKMS;
+import com.amazonaws.services.kms.AWSKMSClientBuilder;
+import com.amazonaws.services.kms.model.GenerateDataKeyRequest;
+import com.amazonaws.services.kms.model.GenerateDataKeyResult;
+import org.apache.commons.codec.binary.Hex;
+import org.jose4j.json.JsonUtil;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates many KMS data keys with one client and wraps each one as a Cache-Only Key representation.
+ *
+ * At most concurrency GenerateDataKey requests are in flight, all of them paced by a shared TokenBucket, and
+ * throttled or failed requests are retried after an exponential backoff with full jitter.  Each returned
+ * plaintext is wrapped on the thread that received it and zeroed straight away.  Results are written in kid
+ * order, either to NDJSON {"kid","jwe","keyId","backup"} records or into a key store as the key representation
+ * under kid and the backup under kid + ".backup", the same as WrapAWSEncryptionKey writes for a single key.
+ */
+public class KmsKeyGenerator {
+
+    private static final int WINDOW_PER_REQUEST = 4;
+    private static final long BACKOFF_BASE_MILLIS = 50;
+    private static final long BACKOFF_CAP_MILLIS = 5000;
+
+    private final AWSKMS kms;
+    private final String keyId;
+    private final JweWrapper jweWrapper;
+    private final int concurrency;
+    private final TokenBucket rateLimiter;
+    private final int maxRetries;
+    private final AtomicLong retries = new AtomicLong();
+
+    public KmsKeyGenerator(AWSKMS kms, String keyId, JweWrapper jweWrapper, int concurrency, TokenBucket rateLimiter, int maxRetries) {
+        if (concurrency < 1) throw new IllegalArgumentException("concurrency must be at least 1");
+        this.kms = kms;
+        this.keyId = keyId;
+        this.jweWrapper = jweWrapper;
+        this.concurrency = concurrency;
+        this.rateLimiter = rateLimiter;
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * Builds a KMS client for batch use: one connection per in-flight request and no SDK retries, so
+     * retries and pacing are left to KmsKeyGenerator.  When endpoint is given, requests go there instead
+     * of the regional KMS endpoint, e.g. to a KmsStub.
+     */
+    public static AWSKMS client(AWSCredentialsProvider credentials, String region, String endpoint, int concurrency) {
+        ClientConfiguration configuration = new ClientConfiguration()
+                .withMaxConnections(concurrency)
+                .withMaxErrorRetry(0);
+        AWSKMSClientBuilder builder = AWSKMSClientBuilder.standard()
+                .withCredentials(credentials)
+                .withClientConfiguration(configuration);
+        if (endpoint != null) {
+            builder.withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(endpoint, region));
+        } else {
+            builder.withRegion(region);
+        }
+        return builder.build();
+    }
+
+    /**
+     * The text of the encrypted backup kept next to each key representation.
+     */
+    public static String backup(String keyId, String hexEncodedCiphertext) {
+        StringBuffer backup = new StringBuffer();
+        backup.append("KeyId:");
+        backup.append(keyId);
+        backup.append("\nHex Encoded Encrypted Backup from KMS: ");
+        backup.append(hexEncodedCiphertext);
+        return backup.toString();
+    }
+
+    /**
+     * Generates and wraps one data key per kid.  Either keyStore or out may be null.
+     *
+     * @return the number of keys generated
+     */
+    public long generate(List<String> kids, KeyStoreFile keyStore, Writer out) throws IOException, CryptoException {
+
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        int window = concurrency * WINDOW_PER_REQUEST;
+        ArrayDeque<Future<GeneratedKey>> pending = new ArrayDeque<Future<GeneratedKey>>(window);
+        long written = 0;
+        try {
+            for (String kid : kids) {
+                if (pending.size() >= window) {
+                    writeRecord(pending.poll(), keyStore, out);
+                    written++;
+                }
+                pending.add(executor.submit(new GenerateTask(kid)));
+            }
+            while (!pending.isEmpty()) {
+                writeRecord(pending.poll(), keyStore, out);
+                written++;
+            }
+            if (out != null) out.flush();
+            if (keyStore != null) keyStore.sync();
+        } finally {
+            executor.shutdownNow();
+        }
+        return written;
+    }
+
+    /**
+     * @return the number of requests retried after throttling or a server error
+     */
+    public long getRetries() {
+        return retries.get();
+    }
+
+    private void writeRecord(Future<GeneratedKey> record, KeyStoreFile keyStore, Writer out) throws IOException, CryptoException {
+        try {
+            GeneratedKey key = record.get();
+            String backup = backup(key.keyId, key.ciphertext);
+            if (keyStore != null) {
+                keyStore.put(key.kid, KeyRepresentation.toJson(key.kid, key.jwe).getBytes(StandardCharsets.UTF_8));
+                keyStore.put(key.kid + ".backup", backup.getBytes(StandardCharsets.UTF_8));
+            }
+            if (out != null) {
+                Map<String, Object> output = new LinkedHashMap<String, Object>();
+                output.put("kid", key.kid);
+                output.put("jwe", key.jwe);
+                output.put("keyId", key.keyId);
+                output.put("backup", key.ciphertext);
+                out.write(JsonUtil.toJson(output));
+                out.write('\n');
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a generated key");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof CryptoException) throw (CryptoException) e.getCause();
+            throw new CryptoException(e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+        }
+    }
+
+    static boolean isRetryable(AmazonServiceException e) {
+        String code = e.getErrorCode();
+        return e.getStatusCode() == 429 || e.getStatusCode() >= 500
+                || "ThrottlingException".equals(code) || "Throttling".equals(code)
+                || "LimitExceededException".equals(code) || "RequestLimitExceeded".equals(code);
+    }
+
+    //Exponential backoff with full jitter, so throttled workers don't retry in lockstep
+    static long backoffMillis(int attempt) {
+        long ceiling = Math.min(BACKOFF_CAP_MILLIS, BACKOFF_BASE_MILLIS << Math.min(attempt, 20));
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        ByteBuffer source = buffer.duplicate();
+        byte[] bytes = new byte[source.remaining()];
+        source.get(bytes);
+        return bytes;
+    }
+
+    private static final class GeneratedKey {
+
+        final String kid;
+        final String jwe;
+        final String keyId;
+        final String ciphertext;
+
+        GeneratedKey(String kid, String jwe, String keyId, String ciphertext) {
+            this.kid = kid;
+            this.jwe = jwe;
+            this.keyId = keyId;
+            this.ciphertext = ciphertext;
+        }
+    }
+
+    private class GenerateTask implements Callable<GeneratedKey> {
+
+        private final String kid;
+
+        GenerateTask(String kid) {
+            this.kid = kid;
+        }
+
+        @Override
+        public GeneratedKey call() throws CryptoException, InterruptedException {
+
+            GenerateDataKeyRequest request = new GenerateDataKeyRequest().withKeyId(keyId).withKeySpec("AES_256");
+            GenerateDataKeyResult response;
+            for (int attempt = 0; ; attempt++) {
+                rateLimiter.acquire();
+                long started = Instrumentation.begin();
+                try {
+                    response = kms.generateDataKey(request);
+                    Instrumentation.end(Stage.KMS_ROUND_TRIP, started);
+                    break;
+                } catch (AmazonServiceException e) {
+                    Instrumentation.failed(Stage.KMS_ROUND_TRIP, started, e);
+                    if (!isRetryable(e) || attempt >= maxRetries)
+                        throw new CryptoException("Unable to generate a data key for " + kid + ": " + e.getErrorMessage(), e);
+                    retries.incrementAndGet();
+                    TimeUnit.MILLISECONDS.sleep(backoffMillis(attempt));
+                } catch (SdkClientException e) {
+                    //No answer from KMS, after the client's own retries
+                    Instrumentation.failed(Stage.KMS_ROUND_TRIP, started, e);
+                    throw new CryptoException("Unable to generate a data key for " + kid + ": " + e.getMessage(), e);
+                }
+            }
+
+            byte[] plaintext = bytes(response.getPlaintext());
+            try {
+                String jwe = jweWrapper.wrap(kid, plaintext);
+                return new GeneratedKey(kid, jwe, response.getKeyId(), Hex.encodeHexString(bytes(response.getCiphertextBlob())));
+            } finally {
+                Arrays.fill(plaintext, (byte) 0);
+                if (response.getPlaintext().hasArray()) Arrays.fill(response.getPlaintext().array(), (byte) 0);
+            }
+        }
+    }
+
+}
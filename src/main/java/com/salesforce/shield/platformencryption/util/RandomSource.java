@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.util;
+
+import org.bouncycastle.crypto.engines.AESEngine;
+import org.bouncycastle.crypto.prng.EntropySource;
+import org.bouncycastle.crypto.prng.EntropySourceProvider;
+import org.bouncycastle.crypto.prng.SP800SecureRandom;
+import org.bouncycastle.crypto.prng.SP800SecureRandomBuilder;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.security.SecureRandomSpi;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Randomness for IVs, keys and kids from a per-thread NIST SP 800-90A CTR_DRBG (AES-256), so concurrent
+ * wrapping threads never share a generator or its lock.
+ *
+ * Each thread's DRBG is seeded from the system SecureRandom, with a unique nonce, and reseeded from it
+ * after every 16MB of output or 10 minutes, whichever comes first.  Output is generated 4KB at a time,
+ * since a single DRBG request costs about as much as 4KB of output, and bytes are cleared from that buffer
+ * as soon as they are handed out.
+ */
+public final class RandomSource {
+
+    public static final int KEY_LENGTH = 32;
+
+    private static final int BUFFER_LENGTH = 4096;
+    private static final int RESEED_REFILLS = 4096;
+    private static final long RESEED_NANOS = TimeUnit.MINUTES.toNanos(10);
+    private static final int NONCE_LENGTH = 16;
+
+    private static final SecureRandom SYSTEM = new SecureRandom();
+
+    private static final EntropySourceProvider SYSTEM_ENTROPY = new EntropySourceProvider() {
+        @Override
+        public EntropySource get(final int bitsRequired) {
+            return new EntropySource() {
+                @Override
+                public boolean isPredictionResistant() {
+                    return false;
+                }
+
+                @Override
+                public byte[] getEntropy() {
+                    byte[] entropy = new byte[(bitsRequired + 7) / 8];
+                    SYSTEM.nextBytes(entropy);
+                    return entropy;
+                }
+
+                @Override
+                public int entropySize() {
+                    return bitsRequired;
+                }
+            };
+        }
+    };
+
+    private static final ThreadLocal<Generator> GENERATORS = new ThreadLocal<Generator>() {
+        @Override
+        protected Generator initialValue() {
+            return new Generator();
+        }
+    };
+
+    private RandomSource() {
+    }
+
+    public static void nextBytes(byte[] bytes) {
+        GENERATORS.get().nextBytes(bytes, 0, bytes.length);
+    }
+
+    public static void nextBytes(byte[] bytes, int offset, int length) {
+        GENERATORS.get().nextBytes(bytes, offset, length);
+    }
+
+    /**
+     * @return a new 256 bit AES key
+     */
+    public static byte[] key() {
+        byte[] key = new byte[KEY_LENGTH];
+        GENERATORS.get().nextBytes(key, 0, KEY_LENGTH);
+        return key;
+    }
+
+    /**
+     * @return a random (version 4) UUID string, the same form of kid UUID.randomUUID() gives
+     */
+    public static String kid() {
+        byte[] bytes = new byte[16];
+        GENERATORS.get().nextBytes(bytes, 0, bytes.length);
+        bytes[6] = (byte) ((bytes[6] & 0x0f) | 0x40);
+        bytes[8] = (byte) ((bytes[8] & 0x3f) | 0x80);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        return new UUID(buffer.getLong(), buffer.getLong()).toString();
+    }
+
+    /**
+     * @return a SecureRandom drawing on the calling thread's DRBG, for APIs such as Cipher.init that take one.
+     * It must only be used by the calling thread.
+     */
+    public static SecureRandom current() {
+        return GENERATORS.get().view;
+    }
+
+    private static final class Generator {
+
+        private final SP800SecureRandom drbg;
+        private final byte[] buffer = new byte[BUFFER_LENGTH];
+        private final SecureRandom view;
+        private int position = BUFFER_LENGTH;
+        private int refills;
+        private long seededAt;
+
+        Generator() {
+            byte[] nonce = new byte[NONCE_LENGTH];
+            SYSTEM.nextBytes(nonce);
+            //The thread and time make each instantiation unique even if the system source repeated itself
+            byte[] personalization = ByteBuffer.allocate(16).putLong(Thread.currentThread().getId()).putLong(System.nanoTime()).array();
+            drbg = new SP800SecureRandomBuilder(SYSTEM_ENTROPY).setPersonalizationString(personalization)
+                    .buildCTR(new AESEngine(), 256, nonce, false);
+            seededAt = System.nanoTime();
+            view = new SecureRandom(new ViewSpi(this), null) {
+            };
+        }
+
+        void nextBytes(byte[] out, int offset, int length) {
+            while (length > 0) {
+                if (position == buffer.length) refill();
+                int count = Math.min(length, buffer.length - position);
+                System.arraycopy(buffer, position, out, offset, count);
+                Arrays.fill(buffer, position, position + count, (byte) 0);
+                position += count;
+                offset += count;
+                length -= count;
+            }
+        }
+
+        private void refill() {
+            long now = System.nanoTime();
+            if (++refills >= RESEED_REFILLS || now - seededAt > RESEED_NANOS) {
+                drbg.reseed((byte[]) null);
+                refills = 0;
+                seededAt = now;
+            }
+            drbg.nextBytes(buffer);
+            position = 0;
+        }
+    }
+
+    private static final class ViewSpi extends SecureRandomSpi {
+
+        private final Generator generator;
+
+        ViewSpi(Generator generator) {
+            this.generator = generator;
+        }
+
+        @Override
+        protected void engineSetSeed(byte[] seed) {
+            //Seeding is the DRBG's business
+        }
+
+        @Override
+        protected void engineNextBytes(byte[] bytes) {
+            generator.nextBytes(bytes, 0, bytes.length);
+        }
+
+        @Override
+        protected byte[] engineGenerateSeed(int numBytes) {
+            return SYSTEM.generateSeed(numBytes);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Append-only journal of the kids a rotation has finished, one per line.  A kid is only appended once its
+ * new key representation is durable, so a rotation restarted with the same journal can skip it.
+ * A partly written last line, left by a crash, is discarded when the journal is opened.
+ *
+ * The first line names the rotation, e.g. by the new certificate, so a journal left over from an earlier
+ * rotation can't be mistaken for progress on this one.
+ */
+public class RotationJournal implements AutoCloseable {
+
+    private static final String HEADER_PREFIX = "#rotation ";
+
+    private final FileChannel channel;
+    private final String rotation;
+    private final Set<String> completed = new HashSet<String>();
+    private String header;
+
+    private RotationJournal(FileChannel channel, String rotation) {
+        this.channel = channel;
+        this.rotation = rotation;
+    }
+
+    /**
+     * Opens, or creates, the journal in file for the rotation with the given id.
+     */
+    public static RotationJournal open(File file, String rotation) throws IOException {
+
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        RotationJournal journal = new RotationJournal(channel, rotation);
+        try {
+            journal.load();
+            if (journal.header == null) {
+                journal.write(HEADER_PREFIX + rotation + "\n");
+            } else if (!journal.header.equals(HEADER_PREFIX + rotation)) {
+                throw new IOException("Journal " + file + " belongs to a different rotation: " + journal.header.substring(HEADER_PREFIX.length()));
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return journal;
+    }
+
+    private void load() throws IOException {
+
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        byte[] line = new byte[256];
+        int lineLength = 0;
+        long complete = 0;
+        long position = 0;
+        int read;
+        while ((read = channel.read(buffer, position)) > 0) {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                byte b = buffer.get();
+                if (b == '\n') {
+                    String entry = new String(line, 0, lineLength, StandardCharsets.UTF_8);
+                    if (header == null) header = entry;
+                    else if (lineLength > 0) completed.add(entry);
+                    lineLength = 0;
+                    complete = position + buffer.position();
+                } else {
+                    if (lineLength == line.length) line = Arrays.copyOf(line, line.length * 2);
+                    line[lineLength++] = b;
+                }
+            }
+            position += read;
+            buffer.clear();
+        }
+        //drop a torn last line so the next append starts on a fresh one
+        channel.truncate(complete);
+        channel.position(complete);
+    }
+
+    public boolean contains(String kid) {
+        return completed.contains(kid);
+    }
+
+    public int size() {
+        return completed.size();
+    }
+
+    /**
+     * Records kids as rotated and forces them to disk before returning.
+     */
+    public void append(List<String> kids) throws IOException {
+
+        if (kids.isEmpty()) return;
+        StringBuilder lines = new StringBuilder(kids.size() * 40);
+        for (String kid : kids) lines.append(kid).append('\n');
+        write(lines.toString());
+        completed.addAll(kids);
+    }
+
+    private void write(String lines) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(lines.getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) channel.write(buffer);
+        channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+}
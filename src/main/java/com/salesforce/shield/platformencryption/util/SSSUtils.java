@@ -7,45 +7,290 @@
 
 package com.salesforce.shield.platformencryption.util;
 
-import com.codahale.shamir.Scheme;
+import com.salesforce.shield.platformencryption.metrics.Instrumentation;
+import com.salesforce.shield.platformencryption.metrics.Stage;
 import org.apache.commons.codec.DecoderException;
 import org.apache.commons.codec.binary.Hex;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
+/**
+ * Shamir's Secret Sharing over GF(256), splitting a secret into n shares so that any k of them recover it.
+ *
+ * Shares are binary: version (1) | index (1..255) | k | secret length (u16) | share bytes, and split() returns
+ * them hex encoded.  Shares in the original "index digit + hex" string form, as written by earlier versions,
+ * are still recovered; they are told apart by length, a hex encoded binary share always has an even length.
+ */
 public class SSSUtils {
 
-    private Scheme scheme;
+    public static final int VERSION = 1;
+    public static final int HEADER_LENGTH = 5;
+    public static final int MAX_PARTS = 255;
+    public static final int MAX_SECRET_LENGTH = 0xffff;
+
+    //Secrets per fork-join task in the bulk methods
+    private static final int SECRETS_PER_TASK = 64;
+
+    private final int n;
+    private final int k;
 
     public SSSUtils(int n, int k) {
-        this.scheme =  Scheme.of(n, k);
+        if (k < 2) throw new IllegalArgumentException("K must be > 1");
+        if (n < k) throw new IllegalArgumentException("N must be >= K");
+        if (n > MAX_PARTS) throw new IllegalArgumentException("N must be <= " + MAX_PARTS);
+        this.n = n;
+        this.k = k;
+    }
+
+    public int n() {
+        return n;
+    }
+
+    public int k() {
+        return k;
     }
 
+    /**
+     * @return the n hex encoded shares of secret, in index order
+     */
     public String[] split(byte[] secret) {
 
-        final Map<Integer, byte[]> parts = scheme.split(secret);
-        String[] structuredParts = new String[scheme.n()];
-        for (int part : parts.keySet()) {
-            int index = part-1;
-            String secretPart =  Hex.encodeHexString(parts.get(part));
-            String structuredPart = index + secretPart;
-            structuredParts[index] = structuredPart;
+        byte[][] shares = splitShares(secret);
+        String[] structuredParts = new String[n];
+        for (int i = 0; i < n; i++) {
+            structuredParts[i] = Hex.encodeHexString(shares[i]);
         }
         return structuredParts;
 
     }
 
-    public byte[] recover(String[] parts) throws DecoderException {
+    /**
+     * @return the n binary shares of secret, in index order
+     */
+    public byte[][] splitShares(byte[] secret) {
+        return splitShares(secret, RandomSource.current());
+    }
+
+    //Draws the coefficients from random, which tests fix
+    byte[][] splitShares(byte[] secret, SecureRandom random) {
+
+        if (secret.length > MAX_SECRET_LENGTH) throw new IllegalArgumentException("Secrets are limited to " + MAX_SECRET_LENGTH + " bytes");
+
+        byte[][] shares = new byte[n][HEADER_LENGTH + secret.length];
+        for (int i = 0; i < n; i++) {
+            byte[] share = shares[i];
+            share[0] = VERSION;
+            share[1] = (byte) (i + 1);
+            share[2] = (byte) k;
+            share[3] = (byte) (secret.length >>> 8);
+            share[4] = (byte) secret.length;
+        }
+
+        long started = Instrumentation.begin();
+        //One random polynomial of degree k - 1 per secret byte, the secret byte is its constant term
+        int degree = k - 1;
+        byte[] coefficients = new byte[secret.length * degree];
+        byte[] redraw = new byte[1];
+        random.nextBytes(coefficients);
+        try {
+            //A zero top coefficient lowers the degree, and fewer than k shares would recover that byte
+            for (int top = degree - 1; top < coefficients.length; top += degree) {
+                while (coefficients[top] == 0) {
+                    random.nextBytes(redraw);
+                    coefficients[top] = redraw[0];
+                }
+            }
+            for (int x = 1; x <= n; x++) {
+                byte[] share = shares[x - 1];
+                int logX = GF256.LOG[x];
+                for (int b = 0; b < secret.length; b++) {
+                    //Horner's rule from the highest coefficient down, y = y * x + c
+                    int base = b * degree;
+                    int y = coefficients[base + degree - 1] & 0xff;
+                    for (int c = degree - 2; c >= 0; c--) {
+                        y = (y == 0 ? 0 : GF256.EXP[GF256.LOG[y] + logX] & 0xff) ^ (coefficients[base + c] & 0xff);
+                    }
+                    y = (y == 0 ? 0 : GF256.EXP[GF256.LOG[y] + logX] & 0xff) ^ (secret[b] & 0xff);
+                    share[HEADER_LENGTH + b] = (byte) y;
+                }
+            }
+        } finally {
+            Arrays.fill(coefficients, (byte) 0);
+            redraw[0] = 0;
+        }
+        Instrumentation.end(Stage.SSS_SPLIT, started);
+        return shares;
+
+    }
+
+    /**
+     * Recovers a secret from hex encoded shares, or from shares in the original string form.  For the original
+     * form every given share is used, and the result is what was originally split, the UTF-8 bytes of a hex key.
+     */
+    public byte[] recover(String[] parts) throws DecoderException, CryptoException {
+
+        if (parts.length == 0) throw new CryptoException("No shares to recover from");
+        if (isLegacy(parts[0])) return recoverLegacy(parts);
+
+        byte[][] shares = new byte[parts.length][];
+        for (int i = 0; i < parts.length; i++) {
+            if (isLegacy(parts[i])) throw new CryptoException("Share " + (i + 1) + " is in the original format, shares can't be mixed");
+            shares[i] = Hex.decodeHex(parts[i]);
+        }
+        return recoverShares(shares);
+
+    }
+
+    /**
+     * Recovers a secret from at least k of its binary shares, k being read from the shares themselves.
+     */
+    public byte[] recoverShares(byte[][] shares) throws CryptoException {
 
-        Map<Integer, byte[]> providedParts =  new HashMap<Integer, byte[]>();
-        for(int i = 0; i < parts.length; i++) {
-            String pos = parts[i].substring(0,1);
-            String secretPart = parts[i].substring(1);
-            providedParts.put(Integer.parseInt(pos) + 1,Hex.decodeHex(secretPart));
+        if (shares.length == 0) throw new CryptoException("No shares to recover from");
+        for (int i = 0; i < shares.length; i++) {
+            if (shares[i].length < HEADER_LENGTH || shares[i][0] != VERSION)
+                throw new CryptoException("Share " + (i + 1) + " is not a version " + VERSION + " share");
         }
-        return scheme.join(providedParts);
 
+        int required = shares[0][2] & 0xff;
+        int length = (shares[0][3] & 0xff) << 8 | (shares[0][4] & 0xff);
+        if (shares.length < required) throw new CryptoException("At least " + required + " shares are required, only " + shares.length + " given");
+
+        int[] xs = new int[required];
+        for (int i = 0; i < required; i++) {
+            byte[] share = shares[i];
+            if ((share[2] & 0xff) != required || ((share[3] & 0xff) << 8 | (share[4] & 0xff)) != length || share.length != HEADER_LENGTH + length)
+                throw new CryptoException("Share " + (i + 1) + " does not belong with the others");
+            xs[i] = share[1] & 0xff;
+            if (xs[i] == 0) throw new CryptoException("Share " + (i + 1) + " has no index");
+            for (int j = 0; j < i; j++) {
+                if (xs[j] == xs[i]) throw new CryptoException("Share " + (i + 1) + " is a duplicate of share " + (j + 1));
+            }
+        }
+        return interpolate(shares, HEADER_LENGTH, xs, length);
+
+    }
+
+    /**
+     * Splits every secret in secrets, spreading the work over pool.
+     *
+     * @return the shares of each secret, as splitShares would return them, in the same order as secrets
+     */
+    public List<byte[][]> splitAll(List<byte[]> secrets, ForkJoinPool pool) {
+
+        byte[][][] shares = new byte[secrets.size()][][];
+        pool.invoke(new BulkTask(secrets, shares, null, null, 0, secrets.size()));
+        return Arrays.asList(shares);
+
+    }
+
+    /**
+     * Recovers every secret from its set of binary shares, spreading the work over pool.
+     *
+     * @return the secrets, in the same order as shareSets
+     */
+    public List<byte[]> recoverAll(List<byte[][]> shareSets, ForkJoinPool pool) throws CryptoException {
+
+        byte[][] secrets = new byte[shareSets.size()][];
+        try {
+            pool.invoke(new BulkTask(null, null, shareSets, secrets, 0, shareSets.size()));
+        } catch (UncheckedCryptoException e) {
+            throw e.getCause();
+        }
+        return Arrays.asList(secrets);
+
+    }
+
+    /**
+     * @return true if part is a share in the original "index digit + hex" form
+     */
+    public static boolean isLegacy(String part) {
+        return (part.length() & 1) == 1;
+    }
+
+    private static byte[] recoverLegacy(String[] parts) throws DecoderException, CryptoException {
+
+        byte[][] shares = new byte[parts.length][];
+        int[] xs = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            if (!isLegacy(parts[i])) throw new CryptoException("Share " + (i + 1) + " is not in the original format, shares can't be mixed");
+            char pos = parts[i].charAt(0);
+            if (pos < '0' || pos > '9') throw new CryptoException("Share " + (i + 1) + " has no index");
+            xs[i] = pos - '0' + 1;
+            shares[i] = Hex.decodeHex(parts[i].substring(1));
+            if (shares[i].length != shares[0].length) throw new CryptoException("Share " + (i + 1) + " does not belong with the others");
+            for (int j = 0; j < i; j++) {
+                if (xs[j] == xs[i]) throw new CryptoException("Share " + (i + 1) + " is a duplicate of share " + (j + 1));
+            }
+        }
+        return interpolate(shares, 0, xs, shares[0].length);
+
+    }
+
+    //Lagrange interpolation at x = 0 of each byte position, the weights only depend on the share indexes
+    private static byte[] interpolate(byte[][] shares, int offset, int[] xs, int length) {
+
+        int[] weights = GF256.lagrangeAtZero(xs);
+        int[] logWeights = new int[weights.length];
+        for (int j = 0; j < weights.length; j++) logWeights[j] = GF256.LOG[weights[j]];
+
+        byte[] secret = new byte[length];
+        for (int j = 0; j < xs.length; j++) {
+            byte[] share = shares[j];
+            int logWeight = logWeights[j];
+            for (int b = 0; b < length; b++) {
+                int y = share[offset + b] & 0xff;
+                if (y != 0) secret[b] ^= GF256.EXP[GF256.LOG[y] + logWeight];
+            }
+        }
+        return secret;
+
+    }
+
+    //Splits a range of secrets in half until it is small enough to process on one worker
+    private final class BulkTask extends RecursiveAction {
+
+        private final List<byte[]> secrets;
+        private final byte[][][] shares;
+        private final List<byte[][]> shareSets;
+        private final byte[][] recovered;
+        private final int from;
+        private final int to;
+
+        //Splits secrets into shares, or recovers shareSets into recovered
+        BulkTask(List<byte[]> secrets, byte[][][] shares, List<byte[][]> shareSets, byte[][] recovered, int from, int to) {
+            this.secrets = secrets;
+            this.shares = shares;
+            this.shareSets = shareSets;
+            this.recovered = recovered;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > SECRETS_PER_TASK) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new BulkTask(secrets, shares, shareSets, recovered, from, middle),
+                        new BulkTask(secrets, shares, shareSets, recovered, middle, to));
+                return;
+            }
+            for (int i = from; i < to; i++) {
+                if (secrets != null) {
+                    shares[i] = splitShares(secrets.get(i));
+                } else {
+                    try {
+                        recovered[i] = recoverShares(shareSets.get(i));
+                    } catch (CryptoException e) {
+                        throw new UncheckedCryptoException(new CryptoException("Secret " + i + ": " + e.getMessage(), e));
+                    }
+                }
+            }
+        }
     }
 
 }
@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Blocking token-bucket rate limiter: permits are added at a fixed rate up to a burst size, and acquire()
+ * waits until one is available.  Used to keep request rates under a service quota.
+ */
+public class TokenBucket {
+
+    private final double permitsPerNano;
+    private final double burst;
+    private double available;
+    private long refilled;
+
+    public TokenBucket(double permitsPerSecond, int burst) {
+        if (permitsPerSecond <= 0) throw new IllegalArgumentException("rate must be positive");
+        if (burst < 1) throw new IllegalArgumentException("burst must be at least 1");
+        this.permitsPerNano = permitsPerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.burst = burst;
+        this.available = burst;
+        this.refilled = System.nanoTime();
+    }
+
+    /**
+     * Takes one permit, waiting for it if the bucket is empty.
+     */
+    public void acquire() throws InterruptedException {
+        long wait;
+        while ((wait = tryAcquire()) > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    /**
+     * Takes one permit if one is available.
+     *
+     * @return 0 if a permit was taken, otherwise the nanoseconds until one will be
+     */
+    public synchronized long tryAcquire() {
+        long now = System.nanoTime();
+        available = Math.min(burst, available + (now - refilled) * permitsPerNano);
+        refilled = now;
+        if (available >= 1) {
+            available -= 1;
+            return 0;
+        }
+        return Math.max(1, (long) Math.ceil((1 - available) / permitsPerNano));
+    }
+
+}
@@ -0,0 +1,24 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.util;
+
+/**
+ * Carries a CryptoException out of a fork-join task, whose compute() can't throw it, to the caller of
+ * invoke(), which rethrows the cause.  The crypto counterpart of UncheckedIOException.
+ */
+final class UncheckedCryptoException extends RuntimeException {
+
+    UncheckedCryptoException(CryptoException cause) {
+        super(cause);
+    }
+
+    @Override
+    public CryptoException getCause() {
+        return (CryptoException) super.getCause();
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.cli;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LoadGeneratorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void burstsRequestEveryKidOncePerRound() {
+        LoadGenerator.Distribution burst = LoadGenerator.Distribution.burst(10, 20, 0.5);
+        Set<Integer> kids = new HashSet<Integer>();
+        for (long request = 0; request < 10; request++) {
+            assertEquals(request / 10 * 500000000L, burst.dueNanos(request));
+            kids.add(burst.kid(request));
+        }
+        assertEquals(10, kids.size());
+        assertEquals(500000000L, burst.dueNanos(10));
+        assertEquals(burst.kid(0), burst.kid(10));
+    }
+
+    @Test
+    public void zipfFavoursTheFirstKids() {
+        LoadGenerator.Distribution zipf = LoadGenerator.Distribution.zipf(100, 100, 1.0);
+        int[] counts = new int[100];
+        for (long request = 0; request < 100000; request++) counts[zipf.kid(request)]++;
+        assertTrue(counts[0] > counts[1]);
+        assertTrue(counts[1] > counts[50]);
+    }
+
+    @Test
+    public void rejectsBurstPeriodsThatAreNotPositive() throws Exception {
+        assertTrue(run("-m", "burst", "-b", "0").startsWith("ERROR: Seconds between bursts must be positive."));
+        assertTrue(run("-m", "burst", "-b", "-1").startsWith("ERROR: Seconds between bursts must be positive."));
+        assertTrue(run("-m", "burst", "-b", "NaN").startsWith("ERROR: Seconds between bursts must be positive."));
+    }
+
+    @Test
+    public void rejectsZipfExponentsThatAreNotNumbers() throws Exception {
+        assertTrue(run("-m", "zipf", "-z", "-1").startsWith("ERROR: The Zipf exponent must be a non-negative number."));
+        assertTrue(run("-m", "zipf", "-z", "Infinity").startsWith("ERROR: The Zipf exponent must be a non-negative number."));
+        assertTrue(run("-m", "zipf", "-z", "NaN").startsWith("ERROR: The Zipf exponent must be a non-negative number."));
+    }
+
+    //Runs LoadGenerator against an endpoint it must not get as far as calling, returning what it printed
+    private String run(String... distribution) throws Exception {
+        File kids = folder.newFile();
+        Files.write(kids.toPath(), "a\nb\n".getBytes(StandardCharsets.UTF_8));
+        String[] args = new String[4 + distribution.length];
+        args[0] = "-u";
+        args[1] = "http://localhost:1/keys/";
+        args[2] = "-i";
+        args[3] = kids.getPath();
+        System.arraycopy(distribution, 0, args, 4, distribution.length);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PrintStream original = System.out;
+        System.setOut(new PrintStream(out, true, "UTF-8"));
+        try {
+            LoadGenerator.main(args);
+        } finally {
+            System.setOut(original);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.cli;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StartupTrainingTest {
+
+    //A command that fails in the training run leaves its classes out of the AppCDS archive
+    @Test
+    public void runsEveryCoreCommandCleanly() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PrintStream original = System.out;
+        System.setOut(new PrintStream(out, true, "UTF-8"));
+        try {
+            StartupTraining.main(new String[] {"bin/BYOKWrappingCert.crt"});
+        } finally {
+            System.setOut(original);
+        }
+        String output = new String(out.toByteArray(), StandardCharsets.UTF_8);
+        assertFalse(output, output.contains("failed:"));
+        assertTrue(output, output.contains("Training run complete"));
+    }
+}
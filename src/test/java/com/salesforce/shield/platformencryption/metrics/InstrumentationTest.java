@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.metrics;
+
+import com.salesforce.shield.platformencryption.util.KeyStoreFile;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class InstrumentationTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void setUp() {
+        Instrumentation.reset();
+        Instrumentation.setEnabled(true);
+    }
+
+    @After
+    public void tearDown() {
+        Instrumentation.setEnabled(false);
+        Instrumentation.reset();
+    }
+
+    @Test
+    public void collectsNothingWhenOff() {
+        Instrumentation.setEnabled(false);
+        long started = Instrumentation.begin();
+        assertEquals(0, started);
+        Instrumentation.end(Stage.WRAP, started);
+        assertEquals(0, Instrumentation.histogram(Stage.WRAP).getCount());
+    }
+
+    @Test
+    public void countsFailuresByStageAndCause() {
+        long started = Instrumentation.begin();
+        Instrumentation.failed(Stage.KMS_ROUND_TRIP, started, new IOException("timed out"));
+        Instrumentation.failed(Stage.KMS_ROUND_TRIP, started, new IOException("timed out"));
+        assertEquals(2, Instrumentation.statistics(Stage.KMS_ROUND_TRIP).getFailures());
+        assertEquals(Long.valueOf(2), Instrumentation.failures().get("KMS_ROUND_TRIP java.io.IOException"));
+        assertEquals(0, Instrumentation.histogram(Stage.KMS_ROUND_TRIP).getCount());
+    }
+
+    @Test
+    public void timesKeyStoreAppendsAndSyncsApart() throws IOException {
+        KeyStoreFile keyStore = KeyStoreFile.open(new File(folder.getRoot(), "keys.ks"), true);
+        try {
+            keyStore.put("a", "1".getBytes(StandardCharsets.UTF_8));
+            keyStore.put("b", "2".getBytes(StandardCharsets.UTF_8));
+            keyStore.sync();
+        } finally {
+            keyStore.close();
+        }
+        assertEquals(2, Instrumentation.histogram(Stage.FILE_APPEND).getCount());
+        assertEquals(1, Instrumentation.histogram(Stage.FILE_SYNC).getCount());
+        assertEquals(0, Instrumentation.histogram(Stage.FILE_WRITE).getCount());
+    }
+
+    @Test
+    public void definesTheStageEventWhereFlightRecorderExists() throws Exception {
+        Assume.assumeTrue(exists("jdk.jfr.EventFactory"));
+        Instrumentation.watchFlightRecorder();
+        JfrEvents.install();
+        //Without a recording running the event is dropped, but building and filling it must work
+        JfrEvents.commit(Stage.WRAP, 1000, null);
+        JfrEvents.commit(Stage.WRAP, 1000, new IOException());
+        assertTrue(exists("jdk.jfr.FlightRecorder"));
+    }
+
+    private static boolean exists(String name) {
+        try {
+            Class.forName(name);
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+}
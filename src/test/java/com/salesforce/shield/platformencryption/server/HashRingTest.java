@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.server;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HashRingTest {
+
+    private static final int KIDS = 20000;
+
+    @Test
+    public void ownersAreDistinctAndIndependentOfNodeOrder() {
+        HashRing ring = new HashRing(Arrays.asList("a:1", "b:1", "c:1"), 64);
+        HashRing reordered = new HashRing(Arrays.asList("c:1", "a:1", "b:1"), 64);
+        for (int i = 0; i < 1000; i++) {
+            List<String> owners = ring.owners("kid" + i, 2);
+            assertEquals(2, owners.size());
+            assertEquals(2, new HashSet<String>(owners).size());
+            assertEquals(owners, reordered.owners("kid" + i, 2));
+            //The primary is the same whatever the replication
+            assertEquals(owners.get(0), ring.owners("kid" + i, 1).get(0));
+        }
+        //There are only three nodes to replicate to
+        assertEquals(3, ring.owners("kid", 5).size());
+    }
+
+    @Test
+    public void spreadsKidsEvenly() {
+        HashRing ring = new HashRing(Arrays.asList("a:1", "b:1", "c:1", "d:1"), 128);
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (int i = 0; i < KIDS; i++) {
+            String owner = ring.owners("kid" + i, 1).get(0);
+            counts.put(owner, counts.containsKey(owner) ? counts.get(owner) + 1 : 1);
+        }
+        for (int count : counts.values()) {
+            assertTrue(counts.toString(), count > KIDS / 4 * 0.75 && count < KIDS / 4 * 1.25);
+        }
+    }
+
+    @Test
+    public void addingANodeOnlyMovesKidsToIt() {
+        HashRing before = new HashRing(Arrays.asList("a:1", "b:1", "c:1", "d:1"), 128);
+        HashRing after = new HashRing(Arrays.asList("a:1", "b:1", "c:1", "d:1", "e:1"), 128);
+        int moved = 0;
+        for (int i = 0; i < KIDS; i++) {
+            String was = before.owners("kid" + i, 1).get(0);
+            String is = after.owners("kid" + i, 1).get(0);
+            if (!was.equals(is)) {
+                assertEquals("e:1", is);
+                moved++;
+            }
+        }
+        //About a fifth of the kids, not a reshuffle of all of them
+        assertTrue(String.valueOf(moved), moved > KIDS / 5 * 0.75 && moved < KIDS / 5 * 1.25);
+    }
+
+    @Test
+    public void refusesAnEmptyRing() {
+        try {
+            new HashRing(Arrays.<String>asList(), 16);
+            fail("No nodes");
+        } catch (IllegalArgumentException e) {
+            assertEquals("A ring needs at least one node", e.getMessage());
+        }
+        try {
+            new HashRing(Arrays.asList("a:1"), 0);
+            fail("No virtual nodes");
+        } catch (IllegalArgumentException e) {
+            assertEquals("Each node needs at least one virtual node", e.getMessage());
+        }
+    }
+}
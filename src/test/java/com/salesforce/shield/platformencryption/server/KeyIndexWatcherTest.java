@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.server;
+
+import com.salesforce.shield.platformencryption.util.KeyStoreFile;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.function.Predicate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class KeyIndexWatcherTest {
+
+    private static final long TIMEOUT_MILLIS = 30000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File dir;
+    private KeyIndexWatcher watcher;
+    private int sentinels;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = folder.newFolder("keys");
+        watcher = new KeyIndexWatcher();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        watcher.close();
+    }
+
+    @Test
+    public void reloadsWrittenAndDeletedFiles() throws Exception {
+        write("a", "a", "1");
+        KeyIndex index = watcher.watchDirectory(dir, null);
+        watcher.start();
+        assertEquals("1", jwe(index, "a"));
+
+        write("a", "a", "2");
+        write("b", "b", "1");
+        settle(index);
+        assertEquals("2", jwe(index, "a"));
+        assertEquals("1", jwe(index, "b"));
+
+        assertTrue(new File(dir, "a").delete());
+        settle(index);
+        assertNull(index.get("a"));
+        assertNotNull(index.get("b"));
+    }
+
+    @Test
+    public void keepsRenamedKeys() throws Exception {
+        int count = 200;
+        for (int i = 0; i < count; i++) write("old" + i, "k" + i, "1");
+        KeyIndex index = watcher.watchDirectory(dir, null);
+        watcher.start();
+
+        //Many renames land in one batch, so some new names come before their old ones whatever the order
+        for (int i = 0; i < count; i++) {
+            Files.move(new File(dir, "old" + i).toPath(), new File(dir, "new" + i).toPath());
+        }
+        settle(index);
+        for (int i = 0; i < count; i++) assertEquals("k" + i, "1", jwe(index, "k" + i));
+    }
+
+    @Test
+    public void keepsKidsHeldByAnotherFile() throws Exception {
+        write("x", "dup", "x");
+        write("y", "dup", "y");
+        write("z", "other", "z");
+        KeyIndex index = watcher.watchDirectory(dir, null);
+        watcher.start();
+
+        String survivor = jwe(index, "dup").equals("x") ? "y" : "x";
+        String deleted = survivor.equals("x") ? "y" : "x";
+        assertTrue(new File(dir, deleted).delete());
+        settle(index);
+        assertEquals(survivor, jwe(index, "dup"));
+
+        //Rewriting a file with another kid is the same as deleting the old kid from it
+        write(survivor, "moved", "m");
+        settle(index);
+        assertNull(index.get("dup"));
+        assertEquals("m", jwe(index, "moved"));
+        assertEquals("z", jwe(index, "other"));
+    }
+
+    @Test
+    public void appliesTheKidFilter() throws Exception {
+        KeyIndex index = watcher.watchDirectory(dir, new Predicate<String>() {
+            @Override
+            public boolean test(String kid) {
+                return !kid.startsWith("skip");
+            }
+        });
+        watcher.start();
+        write("a", "skip-a", "1");
+        write("b", "keep-b", "1");
+        settle(index);
+        assertNull(index.get("skip-a"));
+        assertNotNull(index.get("keep-b"));
+    }
+
+    @Test
+    public void followsAKeyStore() throws Exception {
+        File file = new File(dir, "keys.ks");
+        KeyStoreFile writer = KeyStoreFile.open(file, true);
+        try {
+            writer.put("a", representation("a", "1"));
+            writer.put("b", representation("b", "1"));
+            writer.sync();
+            KeyIndex index = watcher.watchKeyStore(file, null);
+            watcher.start();
+            assertEquals("1", jwe(index, "a"));
+
+            writer.put("a", representation("a", "2"));
+            writer.delete("b");
+            writer.put("c", representation("c", "1"));
+            writer.sync();
+            await(index, "c");
+            assertEquals("2", jwe(index, "a"));
+            assertNull(index.get("b"));
+
+            //A compacted store is a new file, which the watcher reopens
+            writer.delete("a");
+            writer.compact();
+            writer.put("d", representation("d", "1"));
+            writer.sync();
+            await(index, "d");
+            assertNull(index.get("a"));
+            assertEquals("1", jwe(index, "c"));
+        } finally {
+            writer.close();
+        }
+    }
+
+    private void write(String name, String kid, String jwe) throws IOException {
+        Files.write(new File(dir, name).toPath(), representation(kid, jwe));
+    }
+
+    private static byte[] representation(String kid, String jwe) {
+        return ("{\"kid\" : \"" + kid + "\",\"jwe\" : \"" + jwe + "\"}").getBytes(StandardCharsets.UTF_8);
+    }
+
+    //A sentinel may land in the same batch as the changes before it, and a batch is put in no particular
+    //order, so only a second sentinel, picked up after that batch is done, shows they have all been applied
+    private void settle(KeyIndex index) throws Exception {
+        for (int i = 0; i < 2; i++) {
+            String kid = "keep-sentinel" + sentinels++;
+            write(kid, kid, "s");
+            await(index, kid);
+        }
+    }
+
+    private static void await(KeyIndex index, String kid) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (index.get(kid) == null) {
+            assertTrue("Watcher did not pick up " + kid, System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    static String jwe(KeyIndex index, String kid) {
+        ByteBuffer response = index.get(kid);
+        if (response == null) return null;
+        byte[] bytes = new byte[response.remaining()];
+        response.get(bytes);
+        String text = new String(bytes, StandardCharsets.UTF_8);
+        int start = text.indexOf("\"jwe\" : \"") + 9;
+        return text.substring(start, text.indexOf('"', start));
+    }
+}
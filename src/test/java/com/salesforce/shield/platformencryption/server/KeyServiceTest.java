@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class KeyServiceTest {
+
+    private KeyService service;
+    private Thread serving;
+    private int port;
+
+    @Before
+    public void setUp() throws Exception {
+        Map<String, ByteBuffer> responses = new HashMap<String, ByteBuffer>();
+        responses.put("a", HttpResponses.ok(representation("a")));
+        responses.put("b", HttpResponses.ok(representation("b")));
+        responses.put("a b+c/d", HttpResponses.ok(representation("a b+c/d")));
+        service = new KeyService(new KeyIndex(responses), 2);
+
+        ServerSocket probe = new ServerSocket(0);
+        port = probe.getLocalPort();
+        probe.close();
+        serving = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    service.serve(new InetSocketAddress("127.0.0.1", port));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        serving.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        service.close();
+        serving.join(10000);
+    }
+
+    @Test
+    public void servesRepresentationsByKid() throws Exception {
+        HttpURLConnection connection = connect("/some/named/credential/a?attempt=1", "GET");
+        assertEquals(200, connection.getResponseCode());
+        assertEquals(new String(representation("a"), StandardCharsets.UTF_8), read(connection.getInputStream()));
+
+        assertEquals(404, connect("/c", "GET").getResponseCode());
+        assertEquals(405, connect("/a", "DELETE").getResponseCode());
+    }
+
+    @Test
+    public void decodesTheKidFromItsPathSegment() throws Exception {
+        String segment = PathSegments.encode("a b+c/d");
+        assertEquals("a%20b%2Bc%2Fd", segment);
+        assertEquals("a b+c/d", PathSegments.decode(segment));
+        assertEquals("a", PathSegments.encode("a"));
+
+        HttpURLConnection connection = connect("/some/named/credential/" + segment, "GET");
+        assertEquals(200, connection.getResponseCode());
+        assertEquals(new String(representation("a b+c/d"), StandardCharsets.UTF_8), read(connection.getInputStream()));
+
+        //A '+' in a path is a plus, not a space
+        assertEquals(404, connect("/a+b%2Bc%2Fd", "GET").getResponseCode());
+        assertEquals(400, connect("/a%2", "GET").getResponseCode());
+    }
+
+    @Test
+    public void answersPipelinedRequestsInOrder() throws Exception {
+        Socket socket = connect();
+        try {
+            OutputStream out = socket.getOutputStream();
+            out.write(("GET /b HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                    + "HEAD /a HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                    + "GET /missing HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                    + "GET /a HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+
+            String responses = read(socket.getInputStream());
+            int b = responses.indexOf("\"kid\":\"b\"");
+            int head = responses.indexOf("HTTP/1.1 200", b);
+            int missing = responses.indexOf("HTTP/1.1 404", head);
+            int a = responses.indexOf("\"kid\":\"a\"", missing);
+            assertTrue(responses, b > 0 && head > b && missing > head && a > missing);
+            //The HEAD response carries no body
+            assertEquals(responses.lastIndexOf("\"kid\":\"a\""), a);
+        } finally {
+            socket.close();
+        }
+    }
+
+    private HttpURLConnection connect(String path, String method) throws Exception {
+        //The service may still be binding
+        for (int attempt = 0; ; attempt++) {
+            try {
+                HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + port + path).openConnection();
+                connection.setRequestMethod(method);
+                connection.getResponseCode();
+                return connection;
+            } catch (IOException e) {
+                if (attempt == 50) throw e;
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    private Socket connect() throws Exception {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return new Socket("127.0.0.1", port);
+            } catch (IOException e) {
+                if (attempt == 50) throw e;
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    private static String read(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int read;
+            while ((read = in.read(buf)) > 0) bytes.write(buf, 0, read);
+            return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] representation(String kid) {
+        return ("{\"kid\":\"" + kid + "\",\"jwe\":\"jwe-" + kid + "\"}").getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.server;
+
+import com.salesforce.shield.platformencryption.util.KeyStoreFile;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class KeyShardsTest {
+
+    private static final int KIDS = 400;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void storesEveryKidOnItsOwners() throws Exception {
+        File source = keys();
+        File shards = folder.newFolder("shards");
+        Cluster cluster = cluster("a:1", "b:1", "c:1");
+        KeyShards.Report report = new KeyShards(cluster, shards).write(source);
+        assertEquals(KIDS, report.getKids());
+        assertEquals(KIDS * 2, report.getMoved());
+        assertShardsMatch(cluster, shards);
+    }
+
+    @Test
+    public void addingANodeMovesOnlyItsShare() throws Exception {
+        File source = keys();
+        File shards = folder.newFolder("shards");
+        new KeyShards(cluster("a:1", "b:1", "c:1"), shards).write(source);
+        //Nothing changed, nothing to write
+        assertEquals(0, new KeyShards(cluster("a:1", "b:1", "c:1"), shards).write(source).getMoved());
+
+        Cluster grown = cluster("a:1", "b:1", "c:1", "d:1");
+        KeyShards.Report report = new KeyShards(grown, shards).write(source);
+        assertShardsMatch(grown, shards);
+        //d takes about a quarter of the 2 * KIDS copies, each added once and removed once elsewhere
+        assertTrue(String.valueOf(report.getMoved()), report.getMoved() > 0 && report.getMoved() < KIDS * 2);
+    }
+
+    @Test
+    public void removesKidsThatLeftTheSource() throws Exception {
+        File source = keys();
+        File shards = folder.newFolder("shards");
+        Cluster cluster = cluster("a:1", "b:1");
+        new KeyShards(cluster, shards).write(source);
+        assertTrue(new File(source, "kid7").delete());
+        KeyShards.Report report = new KeyShards(cluster, shards).write(source);
+        assertEquals(KIDS - 1, report.getKids());
+        assertEquals(2, report.getMoved());
+        assertShardsMatch(cluster, shards);
+    }
+
+    @Test
+    public void validatesTheClusterDefinition() {
+        assertEquals(Arrays.asList("a:1", "b:2"), Cluster.parseNodes(" a:1, b:2,,a:1 "));
+        expectFailure("a", "Expected host:port, not a");
+        expectFailure("a:b", "Expected host:port, not a:b");
+        expectFailure(" , ", "No cluster nodes in  , ");
+        try {
+            new Cluster(Arrays.asList("a:1"), "b:1", 1, 16);
+            fail("b:1 is not a node");
+        } catch (IllegalArgumentException e) {
+            assertEquals("b:1 is not one of the nodes [a:1]", e.getMessage());
+        }
+    }
+
+    private void assertShardsMatch(Cluster cluster, File shards) throws Exception {
+        for (String node : cluster.getNodes()) {
+            KeyStoreFile store = KeyStoreFile.open(KeyShards.storeFile(shards, node), false);
+            try {
+                for (String kid : store.kids()) assertTrue(node + " " + kid, cluster.isOwner(node, kid));
+                for (int i = 0; i < KIDS; i++) {
+                    String kid = "kid" + i;
+                    if (!new File(folder.getRoot(), "keys/" + kid).exists()) {
+                        assertNull(store.get(kid));
+                    } else if (cluster.isOwner(node, kid)) {
+                        assertNotNull(node + " " + kid, store.get(kid));
+                    }
+                }
+            } finally {
+                store.close();
+            }
+        }
+    }
+
+    private File keys() throws Exception {
+        File dir = folder.newFolder("keys");
+        for (int i = 0; i < KIDS; i++) {
+            String body = "{\"kid\":\"kid" + i + "\",\"jwe\":\"x\"}";
+            Files.write(new File(dir, "kid" + i).toPath(), body.getBytes(StandardCharsets.UTF_8));
+        }
+        return dir;
+    }
+
+    private static Cluster cluster(String... nodes) {
+        List<String> list = Arrays.asList(nodes);
+        return new Cluster(list, null, 2, Cluster.DEFAULT_VIRTUAL_NODES);
+    }
+
+    private static void expectFailure(String nodes, String message) {
+        try {
+            Cluster.parseNodes(nodes);
+            fail(nodes);
+        } catch (IllegalArgumentException e) {
+            assertEquals(message, e.getMessage());
+        }
+    }
+}
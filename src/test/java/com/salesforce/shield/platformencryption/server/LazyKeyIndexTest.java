@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.server;
+
+import com.salesforce.shield.platformencryption.util.CryptoUtils;
+import com.salesforce.shield.platformencryption.util.JweVerifier;
+import org.apache.commons.codec.binary.Hex;
+import org.jose4j.json.JsonUtil;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class LazyKeyIndexTest {
+
+    private static final int KIDS = 1000;
+
+    private static KeyPair first;
+    private static KeyPair second;
+
+    private final byte[] masterKey = new byte[32];
+    private final Map<String, byte[]> protectedKeys = new HashMap<String, byte[]>();
+
+    @BeforeClass
+    public static void generateKeyPairs() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        first = generator.generateKeyPair();
+        second = generator.generateKeyPair();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        Arrays.fill(masterKey, (byte) 5);
+        CryptoUtils cryptoUtils = new CryptoUtils();
+        byte[] key = new byte[32];
+        for (int i = 0; i < KIDS; i++) {
+            key[0] = (byte) i;
+            protectedKeys.put("k" + i, Hex.decodeHex(cryptoUtils.encrypt(masterKey, key)));
+        }
+    }
+
+    @Test
+    public void wrapsAColdKidOnceForConcurrentRequests() throws Exception {
+        final LazyKeyIndex index = new LazyKeyIndex(protectedKeys, masterKey, first.getPublic(), 1, TimeUnit.HOURS, 100, 2);
+        ExecutorService callers = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<ByteBuffer>> responses = new ArrayList<Future<ByteBuffer>>();
+            for (int i = 0; i < 64; i++) {
+                responses.add(callers.submit(new Callable<ByteBuffer>() {
+                    @Override
+                    public ByteBuffer call() throws Exception {
+                        return index.get("k1").get(30, TimeUnit.SECONDS);
+                    }
+                }));
+            }
+            String expected = body(responses.get(0).get());
+            for (Future<ByteBuffer> response : responses) assertEquals(expected, body(response.get()));
+            //Every request either started the one wrap, joined it, or found its response cached
+            assertEquals(1, index.getWraps());
+            assertEquals(63, index.getCoalesced() + index.getHits());
+        } finally {
+            callers.shutdownNow();
+            index.close();
+        }
+    }
+
+    @Test
+    public void doesNotJoinAWrapForAReplacedCertificate() throws Exception {
+        LazyKeyIndex index = new LazyKeyIndex(protectedKeys, masterKey, first.getPublic(), 1, TimeUnit.HOURS, KIDS, 1);
+        try {
+            //Keep the one wrapping thread busy so the wrap for k0 is most likely still queued
+            for (int i = 1; i < KIDS; i++) index.get("k" + i);
+            CompletableFuture<ByteBuffer> old = index.get("k0");
+            index.setWrappingKey(second.getPublic());
+            CompletableFuture<ByteBuffer> current = index.get("k0");
+            assertNotSame(old, current);
+
+            assertTrue(verify(first, "k0", body(old.get(30, TimeUnit.SECONDS))));
+            assertTrue(verify(second, "k0", body(current.get(30, TimeUnit.SECONDS))));
+            assertTrue(verify(second, "k0", body(index.get("k0").get(30, TimeUnit.SECONDS))));
+        } finally {
+            index.close();
+        }
+    }
+
+    @Test
+    public void failsWaitingRequestsOnClose() throws Exception {
+        LazyKeyIndex index = new LazyKeyIndex(protectedKeys, masterKey, first.getPublic(), 1, TimeUnit.HOURS, KIDS, 1);
+        List<CompletableFuture<ByteBuffer>> waiting = new ArrayList<CompletableFuture<ByteBuffer>>();
+        for (int i = 0; i < KIDS; i++) waiting.add(index.get("k" + i));
+        index.close();
+
+        for (CompletableFuture<ByteBuffer> future : waiting) assertTrue(future.isDone());
+        try {
+            waiting.get(KIDS - 1).get();
+            fail("The last wrap queued should not have run");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+        try {
+            index.get("k0").get();
+            fail("A closed index should not wrap");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+    }
+
+    private static String body(ByteBuffer response) {
+        String text = StandardCharsets.UTF_8.decode(response.duplicate()).toString();
+        return text.substring(text.indexOf("\r\n\r\n") + 4);
+    }
+
+    private static boolean verify(KeyPair keyPair, String kid, String body) throws Exception {
+        Map<String, Object> representation = JsonUtil.parseJson(body);
+        assertEquals(kid, representation.get("kid"));
+        return new JweVerifier(keyPair.getPrivate()).verify(kid, (String) representation.get("jwe")).isVerified();
+    }
+}
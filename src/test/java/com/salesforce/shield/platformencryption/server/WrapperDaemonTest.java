@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.server;
+
+import com.salesforce.shield.platformencryption.util.KeyStoreFile;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class WrapperDaemonTest {
+
+    private static final File CERT = new File("bin/BYOKWrappingCert.crt");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private WrapperDaemon daemon;
+    private File rendezvous;
+    private Thread serving;
+
+    @Before
+    public void setUp() throws Exception {
+        rendezvous = new File(folder.newFolder("daemon"), "daemon");
+        daemon = new WrapperDaemon(rendezvous, 8);
+        serving = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    daemon.serve();
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        serving.setDaemon(true);
+        serving.start();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!rendezvous.exists()) {
+            assertTrue("Daemon did not publish its port", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        daemon.close();
+        serving.join(10000);
+    }
+
+    @Test
+    public void wrapsConcurrentlyIntoOneKeyStore() throws Exception {
+        final File dir = folder.newFolder("work");
+        int requests = 32;
+        ExecutorService clients = Executors.newFixedThreadPool(requests);
+        try {
+            List<Future<String>> responses = new ArrayList<Future<String>>();
+            for (int i = 0; i < requests; i++) {
+                final String kid = "kid-" + i;
+                responses.add(clients.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        return request(dir, "WrapEncryptionKey", "-c", CERT.getAbsolutePath(), "-i", kid, "-ks", "keys.ks");
+                    }
+                }));
+            }
+            for (Future<String> response : responses) assertFalse(response.get(), response.get().contains("ERROR"));
+        } finally {
+            clients.shutdownNow();
+        }
+
+        KeyStoreFile keyStore = KeyStoreFile.open(new File(dir, "keys.ks"), false);
+        try {
+            assertEquals(requests, keyStore.size());
+            for (int i = 0; i < requests; i++) assertNotNull(keyStore.get("kid-" + i));
+        } finally {
+            keyStore.close();
+        }
+    }
+
+    @Test
+    public void reportsAnOptionThatIsNotANumberAsAUsageError() throws Exception {
+        File dir = folder.newFolder("work");
+        String response = request(dir, "WrapEncryptionKey", "-c", CERT.getAbsolutePath(), "-f", "-", "-t", "many");
+        assertTrue(response, response.contains("ERROR: Please choose a number for -t, not many"));
+        assertFalse(response, response.contains("NumberFormatException"));
+    }
+
+    @Test
+    public void rejectsAWrongToken() throws Exception {
+        String[] published = published();
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), Integer.parseInt(published[0]));
+        try {
+            OutputStream output = socket.getOutputStream();
+            field(output, "not the token");
+            field(output, "WrapEncryptionKey");
+            output.flush();
+            assertEquals(-1, socket.getInputStream().read());
+        } catch (SocketException e) {
+            //The daemon hung up after the token, before the rest was sent or read, which is a rejection too
+        } finally {
+            socket.close();
+        }
+    }
+
+    private String request(File dir, String command, String... args) throws IOException {
+        String[] published = published();
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), Integer.parseInt(published[0]));
+        try {
+            OutputStream output = socket.getOutputStream();
+            field(output, published[1]);
+            field(output, command);
+            field(output, dir.getAbsolutePath());
+            field(output, String.valueOf(args.length));
+            for (String arg : args) field(output, arg);
+            output.flush();
+
+            InputStream input = socket.getInputStream();
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = input.read(buffer)) > 0) response.write(buffer, 0, read);
+            return new String(response.toByteArray(), StandardCharsets.UTF_8);
+        } finally {
+            socket.close();
+        }
+    }
+
+    private String[] published() throws IOException {
+        return new String(Files.readAllBytes(rendezvous.toPath()), StandardCharsets.US_ASCII).trim().split(" ");
+    }
+
+    private static void field(OutputStream output, String value) throws IOException {
+        output.write(value.getBytes(StandardCharsets.UTF_8));
+        output.write(0);
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.util;
+
+import org.apache.commons.codec.binary.Hex;
+import org.jose4j.json.JsonUtil;
+import org.jose4j.jwe.JsonWebEncryption;
+import org.jose4j.jwx.JsonWebStructure;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BulkKeyWrapperTest {
+
+    private static KeyPair keyPair;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void generateKeyPair() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        keyPair = generator.generateKeyPair();
+    }
+
+    @Test
+    public void writesRecordsInInputOrder() throws Exception {
+        StringBuilder in = new StringBuilder();
+        byte[] key = new byte[32];
+        for (int i = 0; i < 500; i++) {
+            key[0] = (byte) i;
+            in.append("{\"kid\":\"k").append(i).append("\",\"key\":\"").append(Hex.encodeHexString(key)).append("\"}\n");
+            //Blank lines are skipped
+            if (i % 100 == 0) in.append("\n");
+        }
+        StringWriter out = new StringWriter();
+        assertEquals(500, new BulkKeyWrapper(keyPair.getPublic(), 3).wrap(new BufferedReader(new StringReader(in.toString())), out));
+
+        String[] lines = out.toString().split("\n");
+        assertEquals(500, lines.length);
+        for (int i = 0; i < lines.length; i++) {
+            Map<String, Object> record = JsonUtil.parseJson(lines[i]);
+            assertEquals("k" + i, record.get("kid"));
+            assertNull(record.get("key"));
+            key[0] = (byte) i;
+            assertArrayEquals(key, unwrap("k" + i, (String) record.get("jwe")));
+        }
+    }
+
+    @Test
+    public void returnsTheKeysItGenerates() throws Exception {
+        StringWriter out = new StringWriter();
+        new BulkKeyWrapper(keyPair.getPublic(), 1).wrap(new BufferedReader(new StringReader("{\"kid\":\"new\"}\n")), out);
+        Map<String, Object> record = JsonUtil.parseJson(out.toString().trim());
+        assertNotNull(record.get("key"));
+        assertArrayEquals(Hex.decodeHex((String) record.get("key")), unwrap("new", (String) record.get("jwe")));
+    }
+
+    @Test
+    public void appendsToAKeyStore() throws Exception {
+        KeyStoreFile keyStore = KeyStoreFile.open(new File(folder.getRoot(), "keys.ks"), true);
+        try {
+            String in = "{\"kid\":\"a\"}\n{\"kid\":\"b\"}\n";
+            new BulkKeyWrapper(keyPair.getPublic(), 2, keyStore).wrap(new BufferedReader(new StringReader(in)), new StringWriter());
+            assertEquals(2, keyStore.size());
+            assertEquals("a", JsonUtil.parseJson(keyStore.getString("a")).get("kid"));
+        } finally {
+            keyStore.close();
+        }
+    }
+
+    @Test
+    public void namesTheLineOfABadRecord() throws Exception {
+        String in = "{\"kid\":\"a\"}\n{\"kid\":\"b\",\"key\":\"abcd\"}\n";
+        try {
+            new BulkKeyWrapper(keyPair.getPublic(), 2).wrap(new BufferedReader(new StringReader(in)), new StringWriter());
+            fail("A 16 bit key should be refused");
+        } catch (CryptoException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Line 2:"));
+        }
+    }
+
+    private static byte[] unwrap(String kid, String serialized) throws Exception {
+        JsonWebEncryption jwe = (JsonWebEncryption) JsonWebStructure.fromCompactSerialization(serialized);
+        jwe.setKey(keyPair.getPrivate());
+        assertEquals(kid, jwe.getKeyIdHeaderValue());
+        return jwe.getPlaintextBytes();
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.util;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.cert.X509Certificate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class CertificateCacheTest {
+
+    private static final File CERT = new File("bin/BYOKWrappingCert.crt");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void parsesEachCertificateOnce() throws Exception {
+        CertificateCache cache = new CertificateCache();
+        X509Certificate certificate = cache.getCertificate(CERT);
+        assertSame(certificate, cache.getCertificate(CERT));
+        assertSame(certificate, cache.getCertificate(new File(CERT.getAbsoluteFile().getParentFile(), "../bin/" + CERT.getName())));
+    }
+
+    @Test
+    public void keepsOnlyTheMostRecentlyUsedPaths() throws Exception {
+        CertificateCache cache = new CertificateCache(4);
+        File[] files = new File[10];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = folder.newFile("cert" + i + ".crt");
+            Files.copy(CERT.toPath(), files[i].toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        X509Certificate first = cache.getCertificate(files[0]);
+        for (int i = 1; i < files.length; i++) {
+            //Keep the first one in use
+            assertSame(first, cache.getCertificate(files[0]));
+            cache.getCertificate(files[i]);
+            assertEquals(Math.min(i + 1, 4), cache.size());
+        }
+        assertSame(first, cache.getCertificate(files[0]));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void needsRoomForAnEntry() {
+        new CertificateCache(0);
+    }
+}
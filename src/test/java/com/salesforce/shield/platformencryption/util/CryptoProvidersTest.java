@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.util;
+
+import org.junit.After;
+import org.junit.Test;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CryptoProvidersTest {
+
+    @After
+    public void restoreDefaults() {
+        CryptoProviders.configure("");
+    }
+
+    @Test
+    public void usesTheJdkProvidersByDefault() throws Exception {
+        assertEquals("oaep=default,gcm=default,cbc=default", CryptoProviders.configure(null));
+        assertEquals(Cipher.getInstance("AES/GCM/NoPadding").getProvider(),
+                CryptoProviders.cipher("AES/GCM/NoPadding").getProvider());
+    }
+
+    @Test
+    public void pinsAProviderPerPrimitive() throws Exception {
+        assertEquals("oaep=SunJCE,gcm=BC,cbc=default", CryptoProviders.configure(" gcm=BC, oaep=SunJCE "));
+        assertEquals("BC", CryptoProviders.cipher("AES/GCM/NoPadding").getProvider().getName());
+        assertEquals("SunJCE", CryptoProviders.cipher(JweWrapper.RSA_OAEP).getProvider().getName());
+        //Transformations that aren't tuned keep the JDK's choice
+        assertEquals(Cipher.getInstance("AES/ECB/NoPadding").getProvider(),
+                CryptoProviders.cipher("AES/ECB/NoPadding").getProvider());
+    }
+
+    @Test
+    public void pinnedProviderInteroperatesWithTheDefault() throws Exception {
+        CryptoProviders.configure("gcm=BC");
+        byte[] key = new byte[32];
+        byte[] iv = new byte[CryptoUtils.GCM_IV_LENGTH];
+        SecureRandom random = new SecureRandom();
+        random.nextBytes(key);
+        random.nextBytes(iv);
+        Cipher pinned = CryptoProviders.cipher("AES/GCM/NoPadding");
+        pinned.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new GCMParameterSpec(128, iv));
+        byte[] ciphertext = pinned.doFinal("secret".getBytes(StandardCharsets.UTF_8));
+
+        Cipher standard = Cipher.getInstance("AES/GCM/NoPadding");
+        standard.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"), new GCMParameterSpec(128, iv));
+        assertEquals("secret", new String(standard.doFinal(ciphertext), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void autoChoosesAProviderForEveryPrimitive() {
+        String selection = CryptoProviders.configure("auto,cbc=SunJCE");
+        assertFalse(selection, selection.contains("default"));
+        assertTrue(selection, selection.endsWith(",cbc=SunJCE"));
+        assertEquals(selection, CryptoProviders.selection());
+    }
+
+    @Test
+    public void rejectsSelectionsItCanNotHonour() {
+        expectFailure("rsa=SunJCE", "Unknown primitive rsa, expected oaep, gcm or cbc");
+        expectFailure("gcm=NoSuchProvider", "Unknown provider NoSuchProvider");
+        expectFailure("oaep=SUN", "SUN does not support " + JweWrapper.RSA_OAEP);
+        expectFailure("SunJCE", "Expected primitive=provider or auto, not SunJCE");
+    }
+
+    private static void expectFailure(String specification, String message) {
+        try {
+            CryptoProviders.configure(specification);
+            fail(specification);
+        } catch (IllegalArgumentException e) {
+            assertEquals(message, e.getMessage());
+        }
+    }
+}
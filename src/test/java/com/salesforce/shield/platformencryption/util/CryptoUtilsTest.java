@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.util;
+
+import org.apache.commons.codec.binary.Hex;
+import org.junit.Test;
+
+import javax.crypto.SecretKey;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+public class CryptoUtilsTest {
+
+    private final CryptoUtils cryptoUtils = new CryptoUtils();
+    private final byte[] key = new byte[32];
+
+    {
+        Arrays.fill(key, (byte) 9);
+    }
+
+    @Test
+    public void arraysAndHexStringsAreInterchangeable() throws Exception {
+        byte[] cleartext = "a DEK, or any other secret".getBytes(StandardCharsets.UTF_8);
+        byte[] out = new byte[CryptoUtils.cbcOutputSize(cleartext.length) + 3];
+        int length = cryptoUtils.encrypt(cryptoUtils.secretKey(key), cleartext, 0, cleartext.length, out, 3);
+        assertEquals(CryptoUtils.cbcOutputSize(cleartext.length), length);
+        String hex = Hex.encodeHexString(Arrays.copyOfRange(out, 3, 3 + length));
+        assertEquals("a DEK, or any other secret", cryptoUtils.decrypt(key, hex));
+
+        byte[] ciphertext = Hex.decodeHex(cryptoUtils.encrypt(key, cleartext));
+        byte[] decrypted = new byte[ciphertext.length];
+        length = cryptoUtils.decrypt(cryptoUtils.secretKey(key), ciphertext, 0, ciphertext.length, decrypted, 0);
+        assertArrayEquals(cleartext, Arrays.copyOf(decrypted, length));
+    }
+
+    @Test
+    public void encryptsBetweenDirectBuffers() throws Exception {
+        SecretKey secretKey = cryptoUtils.secretKey(key);
+        for (int size = 0; size < 70; size += 7) {
+            ByteBuffer cleartext = ByteBuffer.allocateDirect(size);
+            for (int i = 0; i < size; i++) cleartext.put((byte) i);
+            cleartext.flip();
+            ByteBuffer ciphertext = ByteBuffer.allocateDirect(CryptoUtils.cbcOutputSize(size));
+            assertEquals(ciphertext.capacity(), cryptoUtils.encrypt(secretKey, cleartext, ciphertext));
+            ciphertext.flip();
+            ByteBuffer decrypted = ByteBuffer.allocateDirect(ciphertext.remaining());
+            assertEquals(size, cryptoUtils.decrypt(secretKey, ciphertext, decrypted));
+            decrypted.flip();
+            cleartext.rewind();
+            assertEquals(cleartext, decrypted);
+        }
+    }
+
+    @Test
+    public void gcmAuthenticatesCiphertextAndAad() throws Exception {
+        SecretKey secretKey = cryptoUtils.secretKey(key);
+        byte[] aad = "header".getBytes(StandardCharsets.US_ASCII);
+        byte[] cleartext = new byte[100];
+        for (int i = 0; i < cleartext.length; i++) cleartext[i] = (byte) (i * 3);
+        byte[] ciphertext = new byte[CryptoUtils.gcmOutputSize(cleartext.length)];
+        assertEquals(ciphertext.length, cryptoUtils.encryptGcm(secretKey, aad, cleartext, 0, cleartext.length, ciphertext, 0));
+
+        byte[] decrypted = new byte[ciphertext.length];
+        int length = cryptoUtils.decryptGcm(secretKey, aad, ciphertext, 0, ciphertext.length, decrypted, 0);
+        assertArrayEquals(cleartext, Arrays.copyOf(decrypted, length));
+
+        try {
+            cryptoUtils.decryptGcm(secretKey, "other".getBytes(StandardCharsets.US_ASCII), ciphertext, 0, ciphertext.length, decrypted, 0);
+            fail("A different AAD must not authenticate");
+        } catch (CryptoException e) {
+            //expected
+        }
+        ciphertext[CryptoUtils.GCM_IV_LENGTH + 5] ^= 1;
+        try {
+            cryptoUtils.decryptGcm(secretKey, aad, ciphertext, 0, ciphertext.length, decrypted, 0);
+            fail("A modified ciphertext must not authenticate");
+        } catch (CryptoException e) {
+            //expected
+        }
+    }
+
+    @Test
+    public void gcmNeverReusesAnIv() throws Exception {
+        SecretKey secretKey = cryptoUtils.secretKey(key);
+        byte[] first = new byte[CryptoUtils.gcmOutputSize(16)];
+        byte[] second = new byte[first.length];
+        cryptoUtils.encryptGcm(secretKey, null, new byte[16], 0, 16, first, 0);
+        cryptoUtils.encryptGcm(secretKey, null, new byte[16], 0, 16, second, 0);
+        assertFalse(Arrays.equals(Arrays.copyOf(first, CryptoUtils.GCM_IV_LENGTH), Arrays.copyOf(second, CryptoUtils.GCM_IV_LENGTH)));
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.util;
+
+import org.jose4j.jwe.JsonWebEncryption;
+import org.jose4j.jwx.JsonWebStructure;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class FanOutWrapperTest {
+
+    private static final ForkJoinPool POOL = new ForkJoinPool(2);
+    private static final List<KeyPair> KEY_PAIRS = new ArrayList<KeyPair>();
+
+    @BeforeClass
+    public static void generateKeyPairs() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        //More recipients than one fork-join task takes
+        for (int i = 0; i < 9; i++) KEY_PAIRS.add(generator.generateKeyPair());
+    }
+
+    @AfterClass
+    public static void shutDown() {
+        POOL.shutdownNow();
+    }
+
+    @Test
+    public void everyRecipientUnwrapsTheSameKey() throws Exception {
+        List<PublicKey> recipients = new ArrayList<PublicKey>();
+        for (KeyPair keyPair : KEY_PAIRS) recipients.add(keyPair.getPublic());
+        FanOutWrapper wrapper = new FanOutWrapper(recipients, POOL);
+        assertEquals(KEY_PAIRS.size(), wrapper.getRecipientCount());
+
+        byte[] key = new byte[32];
+        for (int i = 0; i < key.length; i++) key[i] = (byte) (255 - i);
+        String[] jwes = wrapper.wrap("kid", key);
+        assertEquals(KEY_PAIRS.size(), jwes.length);
+
+        Set<String> encryptedKeys = new HashSet<String>();
+        Set<String> contents = new HashSet<String>();
+        for (int i = 0; i < jwes.length; i++) {
+            JsonWebEncryption jwe = (JsonWebEncryption) JsonWebStructure.fromCompactSerialization(jwes[i]);
+            jwe.setKey(KEY_PAIRS.get(i).getPrivate());
+            assertEquals("kid", jwe.getKeyIdHeaderValue());
+            assertArrayEquals(key, jwe.getPlaintextBytes());
+            String[] parts = jwes[i].split("\\.");
+            encryptedKeys.add(parts[1]);
+            contents.add(parts[0] + "." + parts[2] + "." + parts[3] + "." + parts[4]);
+        }
+        //Only the CEK is encrypted per recipient, the rest is computed once
+        assertEquals(KEY_PAIRS.size(), encryptedKeys.size());
+        assertEquals(1, contents.size());
+    }
+
+    @Test
+    public void wrapsForASingleRecipient() throws Exception {
+        FanOutWrapper wrapper = new FanOutWrapper(Collections.singletonList(KEY_PAIRS.get(0).getPublic()), POOL);
+        String[] jwes = wrapper.wrap("one", new byte[32]);
+        JsonWebEncryption jwe = (JsonWebEncryption) JsonWebStructure.fromCompactSerialization(jwes[0]);
+        jwe.setKey(KEY_PAIRS.get(0).getPrivate());
+        assertArrayEquals(new byte[32], jwe.getPlaintextBytes());
+    }
+
+    @Test
+    public void reportsARecipientThatFailsOnThePool() throws Exception {
+        List<PublicKey> recipients = new ArrayList<PublicKey>();
+        for (KeyPair keyPair : KEY_PAIRS) recipients.add(keyPair.getPublic());
+        //A 512-bit modulus is too short to RSA-OAEP a 256-bit CEK
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(512);
+        recipients.set(7, generator.generateKeyPair().getPublic());
+        try {
+            new FanOutWrapper(recipients, POOL).wrap("kid", new byte[32]);
+            fail("Recipient 7 can't be wrapped for");
+        } catch (CryptoException e) {
+            assertEquals("Unable to wrap key kid for recipient 7", e.getMessage());
+        }
+    }
+
+    @Test
+    public void needsARecipient() throws Exception {
+        try {
+            new FanOutWrapper(Collections.<PublicKey>emptyList(), POOL);
+            fail("There is nobody to wrap for");
+        } catch (CryptoException e) {
+            //expected
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.util;
+
+import org.junit.AfterClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+public class FileEncryptorTest {
+
+    private static final ForkJoinPool POOL = new ForkJoinPool(4);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final byte[] key = new byte[32];
+    private final FileEncryptor encryptor = new FileEncryptor(key, POOL);
+
+    @AfterClass
+    public static void shutDown() {
+        POOL.shutdownNow();
+    }
+
+    @Test
+    public void roundTripsFilesOfEveryShape() throws Exception {
+        //Empty, shorter than a chunk, exactly some chunks, and a partial last chunk over many tasks
+        for (int length : new int[] {0, 1, 999, 4096, 4096 * 3, 4096 * 37 + 5}) {
+            byte[] plaintext = random(length);
+            File in = write(plaintext);
+            File encrypted = folder.newFile();
+            File decrypted = folder.newFile();
+            encryptor.encrypt(in, encrypted, 4096);
+            assertEquals(FileEncryptor.HEADER_LENGTH + length + ((length + 4095) / 4096) * 28L, encrypted.length());
+            encryptor.decrypt(encrypted, decrypted);
+            assertArrayEquals(plaintext, Files.readAllBytes(decrypted.toPath()));
+        }
+    }
+
+    @Test
+    public void decryptsOneChunkOnItsOwn() throws Exception {
+        byte[] plaintext = random(1000 * 10 + 7);
+        File encrypted = folder.newFile();
+        encryptor.encrypt(write(plaintext), encrypted, 1000);
+        assertArrayEquals(Arrays.copyOfRange(plaintext, 3000, 4000), encryptor.decryptChunk(encrypted, 3));
+        assertArrayEquals(Arrays.copyOfRange(plaintext, 10000, 10007), encryptor.decryptChunk(encrypted, 10));
+        try {
+            encryptor.decryptChunk(encrypted, 11);
+            fail("There are only 11 chunks");
+        } catch (CryptoException e) {
+            //expected
+        }
+    }
+
+    @Test
+    public void refusesChunksThatWereSwapped() throws Exception {
+        byte[] plaintext = random(300);
+        File encrypted = folder.newFile();
+        encryptor.encrypt(write(plaintext), encrypted, 100);
+
+        //Chunks are the same length, so swapping the first two keeps the layout intact
+        RandomAccessFile file = new RandomAccessFile(encrypted, "rw");
+        try {
+            byte[] first = new byte[128];
+            byte[] second = new byte[128];
+            file.seek(FileEncryptor.HEADER_LENGTH);
+            file.readFully(first);
+            file.readFully(second);
+            file.seek(FileEncryptor.HEADER_LENGTH);
+            file.write(second);
+            file.write(first);
+        } finally {
+            file.close();
+        }
+        try {
+            encryptor.decrypt(encrypted, folder.newFile());
+            fail("Swapped chunks must not authenticate");
+        } catch (CryptoException e) {
+            //expected
+        }
+    }
+
+    @Test
+    public void refusesATruncatedFile() throws Exception {
+        File encrypted = folder.newFile();
+        encryptor.encrypt(write(random(250)), encrypted, 100);
+        RandomAccessFile file = new RandomAccessFile(encrypted, "rw");
+        try {
+            file.setLength(file.length() - 1);
+        } finally {
+            file.close();
+        }
+        try {
+            encryptor.decrypt(encrypted, folder.newFile());
+            fail("A truncated file must be refused");
+        } catch (CryptoException e) {
+            assertEquals("Encrypted file is truncated or has trailing data", e.getMessage());
+        }
+    }
+
+    @Test
+    public void leavesTheOutputAloneWhenAChunkFails() throws Exception {
+        File encrypted = folder.newFile();
+        encryptor.encrypt(write(random(4096 * 10)), encrypted, 4096);
+        RandomAccessFile file = new RandomAccessFile(encrypted, "rw");
+        try {
+            //Flip a ciphertext byte in the last chunk, after the others have been written out
+            file.seek(file.length() - 20);
+            int b = file.read();
+            file.seek(file.length() - 20);
+            file.write(b ^ 1);
+        } finally {
+            file.close();
+        }
+        File out = write("previous".getBytes(StandardCharsets.UTF_8));
+        try {
+            encryptor.decrypt(encrypted, out);
+            fail("A tampered chunk must not authenticate");
+        } catch (CryptoException e) {
+            //expected
+        }
+        assertEquals("previous", new String(Files.readAllBytes(out.toPath()), StandardCharsets.UTF_8));
+        //Nor is the temporary file left behind
+        for (String name : folder.getRoot().list()) assertFalse(name, name.startsWith(out.getName()) && !name.equals(out.getName()));
+    }
+
+    @Test
+    public void boundsTheChunkSize() throws Exception {
+        try {
+            encryptor.encrypt(write(random(10)), folder.newFile(), FileEncryptor.MAX_CHUNK_SIZE + 1);
+            fail("The chunk size is over the limit");
+        } catch (IllegalArgumentException e) {
+            //expected
+        }
+
+        //A chunk size near Integer.MAX_VALUE in a forged header would overflow the chunk buffer's size
+        File encrypted = folder.newFile();
+        encryptor.encrypt(write(random(10)), encrypted, 100);
+        RandomAccessFile file = new RandomAccessFile(encrypted, "rw");
+        try {
+            file.seek(8);
+            file.writeInt(Integer.MAX_VALUE - 10);
+        } finally {
+            file.close();
+        }
+        try {
+            encryptor.decrypt(encrypted, new File(folder.getRoot(), "out"));
+            fail("The chunk size in the header is over the limit");
+        } catch (CryptoException e) {
+            assertEquals("Corrupt encrypted file header", e.getMessage());
+        }
+        assertFalse(new File(folder.getRoot(), "out").exists());
+    }
+
+    private File write(byte[] contents) throws Exception {
+        File file = folder.newFile();
+        Files.write(file.toPath(), contents);
+        return file;
+    }
+
+    private static byte[] random(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+}
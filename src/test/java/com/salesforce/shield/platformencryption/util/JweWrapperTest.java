@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.util;
+
+import org.jose4j.jwe.JsonWebEncryption;
+import org.jose4j.jwx.JsonWebStructure;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class JweWrapperTest {
+
+    private static KeyPair keyPair;
+
+    @BeforeClass
+    public static void generateKeyPair() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        keyPair = generator.generateKeyPair();
+    }
+
+    @Test
+    public void producesWhatJose4jDecrypts() throws Exception {
+        byte[] key = new byte[32];
+        for (int i = 0; i < key.length; i++) key[i] = (byte) i;
+        String jwe = new JweWrapper(keyPair.getPublic()).wrap("kid/with \"quotes\"", key);
+        assertArrayEquals(key, decrypt(jwe, "kid/with \"quotes\""));
+    }
+
+    @Test
+    public void writesTheSameSerializationIntoABuffer() throws Exception {
+        JweWrapper wrapper = new JweWrapper(keyPair.getPublic());
+        ByteBuffer out = ByteBuffer.allocate(1024);
+        out.put((byte) '[');
+        wrapper.wrap("a", new byte[32], out);
+        out.flip();
+        out.get();
+        byte[] jwe = new byte[out.remaining()];
+        out.get(jwe);
+        assertArrayEquals(new byte[32], decrypt(new String(jwe, StandardCharsets.US_ASCII), "a"));
+    }
+
+    @Test
+    public void wrapsConcurrentlyForSeveralKeys() throws Exception {
+        final JweWrapper wrapper = new JweWrapper(keyPair.getPublic());
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            for (int i = 0; i < 200; i++) {
+                final int n = i;
+                results.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        byte[] key = new byte[32];
+                        key[0] = (byte) n;
+                        key[31] = (byte) (n >> 8);
+                        byte[] unwrapped = decrypt(wrapper.wrap("k" + n, key), "k" + n);
+                        return Arrays.equals(key, unwrapped);
+                    }
+                }));
+            }
+            for (Future<Boolean> result : results) assertTrue(result.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void encodesLikeTheJdk() {
+        Base64.Encoder jdk = Base64.getUrlEncoder().withoutPadding();
+        for (int length = 0; length < 100; length++) {
+            byte[] src = new byte[length + 2];
+            for (int i = 0; i < src.length; i++) src[i] = (byte) (i * 37 + length);
+            byte[] dst = new byte[JweWrapper.encodedLength(length) + 1];
+            int end = JweWrapper.encode(src, 1, length, dst, 1);
+            assertEquals(dst.length, end);
+            byte[] expected = new byte[length];
+            System.arraycopy(src, 1, expected, 0, length);
+            assertEquals(jdk.encodeToString(expected), new String(dst, 1, end - 1, StandardCharsets.US_ASCII));
+        }
+    }
+
+    private static byte[] decrypt(String compact, String kid) throws Exception {
+        JsonWebEncryption jwe = (JsonWebEncryption) JsonWebStructure.fromCompactSerialization(compact);
+        jwe.setKey(keyPair.getPrivate());
+        assertEquals(kid, jwe.getKeyIdHeaderValue());
+        assertEquals("RSA-OAEP", jwe.getAlgorithmHeaderValue());
+        assertEquals("A256GCM", jwe.getHeader("enc"));
+        return jwe.getPlaintextBytes();
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.util;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class KeyAuditorTest {
+
+    private static KeyPair keyPair;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void generateKeyPair() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        keyPair = generator.generateKeyPair();
+    }
+
+    @Test
+    public void auditsEveryFileInADirectory() throws Exception {
+        File dir = folder.newFolder("keys");
+        JweWrapper wrapper = new JweWrapper(keyPair.getPublic());
+        byte[] key = new byte[32];
+        key[0] = 1;
+        for (int i = 0; i < 300; i++) write(new File(dir, "key" + i), representation("k" + i, wrapper.wrap("k" + i, key)));
+        write(new File(dir, "key0.backup"), "not a key".getBytes(StandardCharsets.UTF_8));
+        write(new File(dir, "notes.txt"), "not a key".getBytes(StandardCharsets.UTF_8));
+
+        StringWriter verified = new StringWriter();
+        KeyAuditor.Report report = new KeyAuditor(new JweVerifier(keyPair.getPrivate()), 2, null).audit(dir, verified);
+        assertEquals(301, report.getEntries());
+        assertEquals(300, report.getVerified());
+        assertEquals(1, report.getFailed());
+        assertEquals(Long.valueOf(1), report.getProblems().get(KeyAuditor.NOT_A_REPRESENTATION));
+
+        Map<String, String> fingerprints = KeyAuditor.readFingerprints(new BufferedReader(new StringReader(verified.toString())));
+        assertEquals(300, fingerprints.size());
+        assertEquals(JweVerifier.fingerprint(key), fingerprints.get("k7"));
+    }
+
+    @Test
+    public void comparesFingerprints() throws Exception {
+        File dir = folder.newFolder("keys");
+        JweWrapper wrapper = new JweWrapper(keyPair.getPublic());
+        byte[] key = new byte[32];
+        write(new File(dir, "a"), representation("a", wrapper.wrap("a", key)));
+        write(new File(dir, "b"), representation("b", wrapper.wrap("b", key)));
+
+        Map<String, String> fingerprints = new HashMap<String, String>();
+        fingerprints.put("a", JweVerifier.fingerprint(key));
+        key[0] = 1;
+        fingerprints.put("b", JweVerifier.fingerprint(key));
+
+        KeyAuditor.Report report = new KeyAuditor(new JweVerifier(keyPair.getPrivate()), 1, fingerprints).audit(dir, null);
+        assertEquals(1, report.getVerified());
+        assertEquals(Long.valueOf(1), report.getProblems().get(KeyAuditor.FINGERPRINT_MISMATCH));
+    }
+
+    @Test
+    public void checksTheKidAKeyIsStoredUnder() throws Exception {
+        JweWrapper wrapper = new JweWrapper(keyPair.getPublic());
+        KeyStoreFile keyStore = KeyStoreFile.open(new File(folder.getRoot(), "keys.ks"), true);
+        try {
+            keyStore.put("a", representation("a", wrapper.wrap("a", new byte[32])));
+            keyStore.put("b", representation("a", wrapper.wrap("a", new byte[32])));
+            KeyAuditor.Report report = new KeyAuditor(new JweVerifier(keyPair.getPrivate()), 1, null).audit(keyStore, null);
+            assertEquals(2, report.getEntries());
+            assertEquals(1, report.getVerified());
+            assertEquals(Long.valueOf(1), report.getProblems().get(JweVerifier.Problem.WRONG_KID.name()));
+            assertNull(report.getProblems().get(KeyAuditor.NOT_A_REPRESENTATION));
+        } finally {
+            keyStore.close();
+        }
+    }
+
+    private static void write(File file, byte[] body) throws Exception {
+        Files.write(file.toPath(), body);
+    }
+
+    private static byte[] representation(String kid, String jwe) {
+        return ("{\"kid\" : \"" + kid + "\",\"jwe\" : \"" + jwe + "\"}").getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.util;
+
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class KeyMaterialCacheTest {
+
+    @Test
+    public void putsReplacesAndRemoves() {
+        KeyMaterialCache cache = new KeyMaterialCache(1000, 100, 0, TimeUnit.SECONDS);
+        try {
+            cache.put("a", key(1), "jwe-a");
+            cache.put("b", key(2), "jwe-b");
+            cache.put("a", key(3), "jwe-a2");
+            assertEquals(2, cache.size());
+
+            byte[] key = new byte[KeyMaterialCache.MAX_KEY_LENGTH];
+            assertEquals(32, cache.getKey("a", key));
+            assertArrayEquals(key(3), key);
+            assertEquals("jwe-a2", cache.getJwe("a"));
+
+            assertTrue(cache.remove("a"));
+            assertFalse(cache.remove("a"));
+            assertEquals(-1, cache.getKey("a", key));
+            assertNull(cache.getJwe("a"));
+            assertEquals("jwe-b", cache.getJwe("b"));
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void evictsEntriesThatWereNotUsedRecently() {
+        //Small enough for a single segment, so eviction order is exact
+        KeyMaterialCache cache = new KeyMaterialCache(8, 16, 0, TimeUnit.SECONDS);
+        try {
+            for (int i = 0; i < 8; i++) cache.put("k" + i, key(i), "jwe");
+            //Every entry has been used once, so this sweep clears them all and evicts k0
+            cache.put("k8", key(8), "jwe");
+            assertEquals(1, cache.evictions());
+            assertNull(cache.getJwe("k0"));
+            //k1 is next in line unless it was used since
+            assertNotNull(cache.getJwe("k1"));
+            cache.put("k9", key(9), "jwe");
+            assertNotNull(cache.getJwe("k1"));
+            assertNull(cache.getJwe("k2"));
+            assertEquals(8, cache.size());
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void expiresEntriesAfterTheTimeToLive() throws Exception {
+        KeyMaterialCache cache = new KeyMaterialCache(100, 16, 50, TimeUnit.MILLISECONDS);
+        try {
+            cache.put("a", key(1), "jwe");
+            assertEquals("jwe", cache.getJwe("a"));
+            Thread.sleep(100);
+            assertNull(cache.getJwe("a"));
+            assertEquals(1, cache.evictExpired());
+            assertEquals(0, cache.size());
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void zeroesKeysThatLeaveTheCache() throws Exception {
+        KeyMaterialCache cache = new KeyMaterialCache(100, 16, 0, TimeUnit.SECONDS);
+        cache.put("removed", key(0xa5), "jwe");
+        cache.put("replaced", key(0x5a), "jwe");
+        cache.put("closed", key(0x3c), "jwe");
+        cache.remove("removed");
+        cache.put("replaced", key(1), "jwe");
+        assertFalse(holds(cache, key(0xa5)));
+        assertFalse(holds(cache, key(0x5a)));
+        assertTrue(holds(cache, key(0x3c)));
+        cache.close();
+        assertFalse(holds(cache, key(0x3c)));
+    }
+
+    @Test
+    public void readersNeverSeeAHalfWrittenEntry() throws Exception {
+        final KeyMaterialCache cache = new KeyMaterialCache(64, 16, 0, TimeUnit.SECONDS);
+        final AtomicBoolean done = new AtomicBoolean();
+        ExecutorService readers = Executors.newFixedThreadPool(2);
+        try {
+            Future<?>[] results = new Future<?>[2];
+            for (int r = 0; r < results.length; r++) {
+                results[r] = readers.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        byte[] key = new byte[KeyMaterialCache.MAX_KEY_LENGTH];
+                        while (!done.get()) {
+                            if (cache.getKey("k", key) < 0) continue;
+                            //Every byte of the key and the JWE name the same generation
+                            for (byte b : key) assertEquals(key[0], b);
+                            String jwe = cache.getJwe("k");
+                            if (jwe != null) assertEquals(3, jwe.length());
+                        }
+                        return null;
+                    }
+                });
+            }
+            for (int i = 0; i < 200000; i++) cache.put("k", key(i), String.format("%03d", i % 1000));
+            done.set(true);
+            for (Future<?> result : results) result.get();
+        } finally {
+            done.set(true);
+            readers.shutdownNow();
+            cache.close();
+        }
+    }
+
+    //Whether key appears anywhere in the cache's direct memory
+    private static boolean holds(KeyMaterialCache cache, byte[] key) throws Exception {
+        Field field = KeyMaterialCache.class.getDeclaredField("slabs");
+        field.setAccessible(true);
+        for (ByteBuffer slab : (ByteBuffer[]) field.get(cache)) {
+            byte[] bytes = new byte[slab.capacity()];
+            ByteBuffer copy = slab.duplicate();
+            copy.clear();
+            copy.get(bytes);
+            for (int i = 0; i + key.length <= bytes.length; i++) {
+                if (Arrays.equals(key, Arrays.copyOfRange(bytes, i, i + key.length))) return true;
+            }
+        }
+        return false;
+    }
+
+    private static byte[] key(int value) {
+        byte[] key = new byte[32];
+        Arrays.fill(key, (byte) value);
+        return key;
+    }
+}
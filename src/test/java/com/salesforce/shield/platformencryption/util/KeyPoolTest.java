@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.util;
+
+import com.salesforce.shield.platformencryption.metrics.Instrumentation;
+import com.salesforce.shield.platformencryption.metrics.Stage;
+import org.jose4j.jwe.JsonWebEncryption;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class KeyPoolTest {
+
+    private static KeyPair first;
+    private static KeyPair second;
+
+    private final byte[] masterKey = new byte[32];
+
+    @BeforeClass
+    public static void generateKeyPairs() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        first = generator.generateKeyPair();
+        second = generator.generateKeyPair();
+    }
+
+    @Before
+    public void setUp() {
+        Arrays.fill(masterKey, (byte) 3);
+        Instrumentation.reset();
+        Instrumentation.setEnabled(true);
+    }
+
+    @After
+    public void tearDown() {
+        Instrumentation.setEnabled(false);
+        Instrumentation.reset();
+    }
+
+    @Test
+    public void issuesEachKeyOnce() throws Exception {
+        KeyPool pool = new KeyPool(first.getPublic(), masterKey, 5, 20);
+        try {
+            awaitSize(pool, 20);
+            Set<String> kids = new HashSet<String>();
+            for (int i = 0; i < 50; i++) {
+                KeyPool.Entry entry = pool.take();
+                assertTrue(kids.add(entry.getKid()));
+                assertArrayEquals(unwrap(entry.getJwe(), first), pool.getKey(entry));
+            }
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void neverIssuesAKeyForTheOldCertificate() throws Exception {
+        KeyPool pool = new KeyPool(first.getPublic(), masterKey, 50, 100);
+        try {
+            awaitSize(pool, 100);
+            pool.setWrappingKey(second.getPublic());
+            for (int i = 0; i < 200; i++) {
+                KeyPool.Entry entry = pool.take();
+                assertSame(second.getPublic(), entry.getWrappingKey());
+                assertArrayEquals(unwrap(entry.getJwe(), second), pool.getKey(entry));
+            }
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void pollNeverGeneratesInline() throws Exception {
+        KeyPool pool = new KeyPool(first.getPublic(), masterKey, 0, 1);
+        try {
+            awaitSize(pool, 1);
+            pool.close();
+            //Closed, so nothing refills what poll() takes
+            assertEquals(0, pool.size());
+            assertNull(pool.poll());
+            assertEquals(0, pool.getMisses());
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void backsOffWhileRefillsFail() throws Exception {
+        //RSA-OAEP can't fit a 256 bit CEK into a 512 bit modulus, so every wrap fails
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(512);
+        KeyPool pool = new KeyPool(generator.generateKeyPair().getPublic(), masterKey, 5, 10);
+        try {
+            Thread.sleep(1000);
+            //100, 200 and 400 ms apart, rather than back to back
+            long failures = Instrumentation.statistics(Stage.WRAP).getFailures();
+            assertTrue("failed " + failures + " times", failures >= 2 && failures <= 5);
+            assertEquals(0, pool.size());
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void servesKeyWrappingServiceWithoutQueueing() throws Exception {
+        KeyWrappingService service = new KeyWrappingService(first.getPublic(), 1, 16);
+        KeyPool pool = new KeyPool(first.getPublic(), masterKey, 5, 20);
+        try {
+            service.setKeyPool(pool);
+            awaitSize(pool, 20);
+            CompletableFuture<KeyWrappingService.WrappedKey> future = service.generateAndWrap(null);
+            assertTrue(future.isDone());
+            KeyWrappingService.WrappedKey wrapped = future.get();
+            assertArrayEquals(unwrap(wrapped.getJwe(), first), wrapped.getKey());
+            assertEquals(19, pool.size());
+
+            //A named kid is always generated for that kid
+            assertEquals("named", service.generateAndWrap("named").get().getKid());
+        } finally {
+            service.close();
+            pool.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesAPoolForAnotherCertificate() throws Exception {
+        KeyWrappingService service = new KeyWrappingService(first.getPublic(), 1, 16);
+        KeyPool pool = new KeyPool(second.getPublic(), masterKey, 0, 1);
+        try {
+            service.setKeyPool(pool);
+        } finally {
+            service.close();
+            pool.close();
+        }
+    }
+
+    private static void awaitSize(KeyPool pool, int size) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 60000;
+        while (pool.size() < size) {
+            assertTrue("Pool did not fill", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static byte[] unwrap(String jwe, KeyPair keyPair) throws Exception {
+        JsonWebEncryption decrypter = new JsonWebEncryption();
+        decrypter.setCompactSerialization(jwe);
+        decrypter.setKey(keyPair.getPrivate());
+        return decrypter.getPlaintextBytes();
+    }
+}
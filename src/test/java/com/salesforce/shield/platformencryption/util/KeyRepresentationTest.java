@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.util;
+
+import org.jose4j.json.JsonUtil;
+import org.jose4j.jwe.JsonWebEncryption;
+import org.jose4j.jwx.JsonWebStructure;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class KeyRepresentationTest {
+
+    private static KeyPair first;
+    private static KeyPair second;
+
+    @BeforeClass
+    public static void generateKeyPairs() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        first = generator.generateKeyPair();
+        second = generator.generateKeyPair();
+    }
+
+    @Test
+    public void writesTheKidAndAJweOfTheKey() throws Exception {
+        byte[] key = new byte[32];
+        for (int i = 0; i < key.length; i++) key[i] = (byte) i;
+        Map<String, Object> representation = JsonUtil.parseJson(new KeyRepresentation("kid", key, first.getPublic()).toJson());
+        assertEquals("kid", representation.get("kid"));
+
+        JsonWebEncryption jwe = (JsonWebEncryption) JsonWebStructure.fromCompactSerialization((String) representation.get("jwe"));
+        jwe.setKey(first.getPrivate());
+        assertEquals("kid", jwe.getKeyIdHeaderValue());
+        assertArrayEquals(key, jwe.getPlaintextBytes());
+    }
+
+    @Test
+    public void sharesOneJweWrapperPerWrappingKey() throws Exception {
+        JweWrapper wrapper = KeyRepresentation.jweWrapper(first.getPublic());
+        assertSame(wrapper, KeyRepresentation.jweWrapper(first.getPublic()));
+        assertNotSame(wrapper, KeyRepresentation.jweWrapper(second.getPublic()));
+    }
+
+    @Test
+    public void failsInsteadOfWritingANullJwe() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(256);
+        KeyRepresentation representation = new KeyRepresentation("kid", new byte[32], generator.generateKeyPair().getPublic());
+        try {
+            representation.toJson();
+            fail("An EC key can't wrap for Cache-Only Keys");
+        } catch (CryptoException e) {
+            assertEquals("The BYOK wrapping key must be an RSA public key", e.getMessage());
+        }
+        try {
+            representation.toString();
+            fail("An EC key can't wrap for Cache-Only Keys");
+        } catch (IllegalStateException e) {
+            //expected
+        }
+    }
+}
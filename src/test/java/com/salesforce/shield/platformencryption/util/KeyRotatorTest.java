@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.util;
+
+import org.jose4j.json.JsonUtil;
+import org.jose4j.jwe.JsonWebEncryption;
+import org.jose4j.jwx.JsonWebStructure;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class KeyRotatorTest {
+
+    private static KeyPair newKeyPair;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final byte[] masterKey = new byte[32];
+    private final CryptoUtils cryptoUtils = new CryptoUtils();
+
+    @BeforeClass
+    public static void generateKeyPair() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        newKeyPair = generator.generateKeyPair();
+    }
+
+    @Test
+    public void resumesWhereAFailedRotationStopped() throws Exception {
+        Arrays.fill(masterKey, (byte) 7);
+        File dir = folder.newFolder("keys");
+        StringBuilder deks = new StringBuilder();
+        StringBuilder bad = new StringBuilder();
+        for (int i = 0; i < 10; i++) {
+            //k8 and k9 have no representation under the old certificate, so there is nothing to rotate
+            if (i < 8) Files.write(new File(dir, "k" + i).toPath(), "{}".getBytes(StandardCharsets.UTF_8));
+            String record = record("k" + i, i);
+            deks.append(record).append('\n');
+            bad.append(i == 5 ? "{\"kid\":\"k5\",\"key\":\"not hex\"}" : record).append('\n');
+        }
+
+        File journalFile = new File(folder.getRoot(), "journal");
+        KeyStoreFile target = KeyStoreFile.open(new File(folder.getRoot(), "new.ks"), true);
+        try {
+            RotationJournal journal = RotationJournal.open(journalFile, "new-cert");
+            try {
+                new KeyRotator(newKeyPair.getPublic(), 2, masterKey).rotate(reader(bad.toString()), KeyRotator.inDirectory(dir), target, journal);
+                fail("k5 can't be decoded");
+            } catch (CryptoException e) {
+                assertTrue(e.getMessage(), e.getMessage().startsWith("Line 6:"));
+            } finally {
+                journal.close();
+            }
+
+            journal = RotationJournal.open(journalFile, "new-cert");
+            try {
+                //Everything before the bad record was journaled, and isn't wrapped again
+                assertEquals(5, journal.size());
+                assertFalse(journal.contains("k5"));
+                KeyRotator rotator = new KeyRotator(newKeyPair.getPublic(), 2, masterKey);
+                assertEquals(3, rotator.rotate(reader(deks.toString()), KeyRotator.inDirectory(dir), target, journal));
+                assertEquals(5, rotator.getSkipped());
+                assertEquals(2, rotator.getMissing());
+                assertEquals(8, journal.size());
+            } finally {
+                journal.close();
+            }
+
+            assertEquals(8, target.size());
+            assertNull(target.get("k8"));
+            for (int i = 0; i < 8; i++) {
+                Map<String, Object> representation = JsonUtil.parseJson(target.getString("k" + i));
+                JsonWebEncryption jwe = (JsonWebEncryption) JsonWebStructure.fromCompactSerialization((String) representation.get("jwe"));
+                jwe.setKey(newKeyPair.getPrivate());
+                assertEquals("k" + i, jwe.getKeyIdHeaderValue());
+                assertArrayEquals(key(i), jwe.getPlaintextBytes());
+            }
+        } finally {
+            target.close();
+        }
+    }
+
+    @Test
+    public void refusesAJournalFromAnotherRotation() throws Exception {
+        File journalFile = new File(folder.getRoot(), "journal");
+        RotationJournal.open(journalFile, "first").close();
+        try {
+            RotationJournal.open(journalFile, "second");
+            fail("The journal belongs to the first rotation");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().endsWith("belongs to a different rotation: first"));
+        }
+    }
+
+    @Test
+    public void dropsATornLastLine() throws Exception {
+        File journalFile = new File(folder.getRoot(), "journal");
+        RotationJournal journal = RotationJournal.open(journalFile, "rotation");
+        journal.append(Arrays.asList("a", "b"));
+        journal.close();
+        Files.write(journalFile.toPath(), "c".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        journal = RotationJournal.open(journalFile, "rotation");
+        try {
+            assertEquals(2, journal.size());
+            assertFalse(journal.contains("c"));
+            journal.append(Arrays.asList("d"));
+        } finally {
+            journal.close();
+        }
+        journal = RotationJournal.open(journalFile, "rotation");
+        try {
+            assertTrue(journal.contains("d"));
+            assertEquals(3, journal.size());
+        } finally {
+            journal.close();
+        }
+    }
+
+    private String record(String kid, int i) throws Exception {
+        return "{\"kid\":\"" + kid + "\",\"key\":\"" + cryptoUtils.encrypt(masterKey, key(i)) + "\"}";
+    }
+
+    private static byte[] key(int i) {
+        byte[] key = new byte[32];
+        Arrays.fill(key, (byte) i);
+        return key;
+    }
+
+    private static BufferedReader reader(String text) {
+        return new BufferedReader(new StringReader(text));
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.util;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class KeyStoreFileTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+
+    @Before
+    public void setUp() {
+        file = new File(folder.getRoot(), "keys.ks");
+    }
+
+    @Test
+    public void sharesOneWriterPerPathInAProcess() throws Exception {
+        KeyStoreFile first = KeyStoreFile.open(file, true);
+        KeyStoreFile second = KeyStoreFile.open(new File(folder.getRoot(), "./keys.ks"), true);
+        assertSame(first, second);
+        first.put("a", bytes("1"));
+        first.close();
+        //Still open for the second caller
+        second.put("b", bytes("2"));
+        second.close();
+
+        KeyStoreFile reopened = KeyStoreFile.open(file, true);
+        try {
+            assertEquals("1", reopened.getString("a"));
+            assertEquals("2", reopened.getString("b"));
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @Test
+    public void concurrentWritersInOneProcessKeepEveryKey() throws Exception {
+        final int threads = 8;
+        final int keys = 500;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Void>> writers = new ArrayList<Future<Void>>();
+            for (int t = 0; t < threads; t++) {
+                final int thread = t;
+                writers.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        //Open, put and close per key, the way each wrap request does
+                        for (int i = 0; i < keys; i++) {
+                            KeyStoreFile keyStore = KeyStoreFile.open(file, true);
+                            try {
+                                keyStore.put(thread + "-" + i, bytes(String.valueOf(i)));
+                            } finally {
+                                keyStore.close();
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> writer : writers) writer.get();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        KeyStoreFile keyStore = KeyStoreFile.open(file, false);
+        try {
+            assertEquals(threads * keys, keyStore.size());
+            for (int t = 0; t < threads; t++) {
+                for (int i = 0; i < keys; i++) assertEquals(String.valueOf(i), keyStore.getString(t + "-" + i));
+            }
+        } finally {
+            keyStore.close();
+        }
+    }
+
+    @Test
+    public void closingTwiceDoesNotCloseAnotherOpen() throws Exception {
+        KeyStoreFile first = KeyStoreFile.open(file, true);
+        first.close();
+        KeyStoreFile second = KeyStoreFile.open(file, true);
+        try {
+            first.close();
+            second.put("a", bytes("1"));
+            assertEquals("1", second.getString("a"));
+            assertNull(second.get("b"));
+        } finally {
+            second.close();
+        }
+    }
+
+    @Test
+    public void keepsTheLatestValueAcrossCheckpointsAndReopens() throws Exception {
+        KeyStoreFile keyStore = KeyStoreFile.open(file, true);
+        try {
+            for (int i = 0; i < 3000; i++) keyStore.put("k" + i, bytes("1"));
+            keyStore.checkpoint();
+            //These are only in the overlay until the next checkpoint, and found by scanning on open
+            keyStore.put("k1", bytes("2"));
+            keyStore.delete("k2");
+            keyStore.put("new", bytes("3"));
+            assertEquals("2", keyStore.getString("k1"));
+            assertNull(keyStore.get("k2"));
+        } finally {
+            keyStore.close();
+        }
+
+        keyStore = KeyStoreFile.open(file, false);
+        try {
+            assertEquals(3000, keyStore.size());
+            assertEquals("1", keyStore.getString("k0"));
+            assertEquals("2", keyStore.getString("k1"));
+            assertNull(keyStore.get("k2"));
+            assertEquals("3", keyStore.getString("new"));
+            assertEquals("1", keyStore.getString("k2999"));
+            assertNull(keyStore.get("k3000"));
+        } finally {
+            keyStore.close();
+        }
+    }
+
+    @Test
+    public void compactsToTheLiveRecords() throws Exception {
+        KeyStoreFile keyStore = KeyStoreFile.open(file, true);
+        try {
+            for (int round = 0; round < 10; round++) {
+                for (int i = 0; i < 100; i++) keyStore.put("k" + i, bytes("value " + round));
+            }
+            long before = file.length();
+            keyStore.compact();
+            assertTrue(file.length() < before / 2);
+            assertEquals(100, keyStore.size());
+            assertEquals("value 9", keyStore.getString("k50"));
+            keyStore.put("after", bytes("1"));
+        } finally {
+            keyStore.close();
+        }
+
+        keyStore = KeyStoreFile.open(file, false);
+        try {
+            assertEquals(101, keyStore.size());
+            assertEquals("value 9", keyStore.getString("k99"));
+        } finally {
+            keyStore.close();
+        }
+    }
+
+    @Test
+    public void dropsATornAppendOnOpen() throws Exception {
+        KeyStoreFile keyStore = KeyStoreFile.open(file, true);
+        try {
+            keyStore.put("a", bytes("1"));
+            keyStore.put("b", bytes("2"));
+        } finally {
+            keyStore.close();
+        }
+        long length = file.length();
+        //Half of a record, as a crash in the middle of an append leaves it
+        RandomAccessFile torn = new RandomAccessFile(file, "rw");
+        try {
+            torn.setLength(length - 1);
+        } finally {
+            torn.close();
+        }
+
+        keyStore = KeyStoreFile.open(file, true);
+        try {
+            assertEquals("1", keyStore.getString("a"));
+            assertNull(keyStore.get("b"));
+            keyStore.put("c", bytes("3"));
+        } finally {
+            keyStore.close();
+        }
+        keyStore = KeyStoreFile.open(file, false);
+        try {
+            assertEquals(2, keyStore.size());
+            assertEquals("3", keyStore.getString("c"));
+        } finally {
+            keyStore.close();
+        }
+    }
+
+    @Test
+    public void readOnlyStoreFollowsTheWriter() throws Exception {
+        KeyStoreFile writer = KeyStoreFile.open(file, true);
+        try {
+            writer.put("a", bytes("1"));
+            writer.put("b", bytes("2"));
+            writer.sync();
+            KeyStoreFile reader = KeyStoreFile.open(file, false);
+            try {
+                assertEquals(2, reader.size());
+                assertEquals(0, reader.refresh().size());
+
+                writer.put("a", bytes("3"));
+                writer.delete("b");
+                writer.put("c", bytes("4"));
+                assertEquals(Arrays.asList("a", "b", "c"), reader.refresh());
+                assertEquals("3", reader.getString("a"));
+                assertNull(reader.get("b"));
+                assertEquals("4", reader.getString("c"));
+                assertEquals(2, reader.size());
+
+                //Enough appends that the writer checkpoints a new index block in between
+                for (int i = 0; i < 3000; i++) writer.put("k" + i, bytes("v" + i));
+                assertEquals(3000, reader.refresh().size());
+                assertEquals(3002, reader.size());
+                assertEquals("v2999", reader.getString("k2999"));
+            } finally {
+                reader.close();
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    @Test
+    public void refreshAsksForAReopenAfterCompaction() throws Exception {
+        KeyStoreFile writer = KeyStoreFile.open(file, true);
+        try {
+            for (int i = 0; i < 100; i++) writer.put("k" + i, bytes("v" + i));
+            KeyStoreFile reader = KeyStoreFile.open(file, false);
+            try {
+                writer.compact();
+                assertNull(reader.refresh());
+            } finally {
+                reader.close();
+            }
+            reader = KeyStoreFile.open(file, false);
+            try {
+                assertEquals(100, reader.size());
+                assertEquals("v42", reader.getString("k42"));
+            } finally {
+                reader.close();
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    @Test
+    public void onlyReadOnlyStoresRefresh() throws Exception {
+        KeyStoreFile writer = KeyStoreFile.open(file, true);
+        try {
+            writer.refresh();
+            fail("The writer has nothing to catch up with");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().endsWith("is open for writing, only read-only stores are refreshed"));
+        } finally {
+            writer.close();
+        }
+    }
+
+    static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
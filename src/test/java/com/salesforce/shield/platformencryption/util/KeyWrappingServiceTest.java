@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.util;
+
+import com.salesforce.shield.platformencryption.metrics.Instrumentation;
+import com.salesforce.shield.platformencryption.metrics.Stage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class KeyWrappingServiceTest {
+
+    private static final File CERT = new File("bin/BYOKWrappingCert.crt");
+
+    private PublicKey wrappingKey;
+
+    @Before
+    public void setUp() throws Exception {
+        wrappingKey = CertificateCache.parse(CERT).getPublicKey();
+        Instrumentation.reset();
+        Instrumentation.setEnabled(true);
+    }
+
+    @After
+    public void tearDown() {
+        Instrumentation.setEnabled(false);
+        Instrumentation.reset();
+    }
+
+    @Test
+    public void generatesAndWraps() throws Exception {
+        KeyWrappingService service = new KeyWrappingService(wrappingKey, 2, 16);
+        try {
+            KeyWrappingService.WrappedKey wrapped = service.generateAndWrap("kid").get();
+            assertEquals("kid", wrapped.getKid());
+            assertEquals(5, wrapped.getJwe().split("\\.").length);
+            assertEquals(32, wrapped.getKey().length);
+            wrapped.destroy();
+            assertArrayEquals(new byte[32], wrapped.getKey());
+        } finally {
+            service.close();
+        }
+    }
+
+    @Test
+    public void keepsTheOrderOfABatch() throws Exception {
+        KeyWrappingService service = new KeyWrappingService(wrappingKey, 2, 16);
+        try {
+            List<String> kids = new ArrayList<String>();
+            for (int i = 0; i < 150; i++) kids.add("kid-" + i);
+            List<KeyWrappingService.WrappedKey> wrapped = service.generateAndWrapAll(kids).get();
+            assertEquals(kids.size(), wrapped.size());
+            for (int i = 0; i < kids.size(); i++) assertEquals(kids.get(i), wrapped.get(i).getKid());
+            assertTrue(service.generateAndWrapAll(new ArrayList<String>()).get().isEmpty());
+        } finally {
+            service.close();
+        }
+    }
+
+    @Test
+    public void refusesBatchesTheQueueCanNeverHold() throws Exception {
+        //Two queued chunks of 64
+        KeyWrappingService service = new KeyWrappingService(wrappingKey, 1, 2);
+        try {
+            List<String> kids = new ArrayList<String>();
+            for (int i = 0; i < 129; i++) kids.add("kid-" + i);
+            assertReason(KeyWrappingException.Reason.INVALID_REQUEST, service.generateAndWrapAll(kids));
+
+            Map<String, byte[]> keys = new LinkedHashMap<String, byte[]>();
+            for (String kid : kids) keys.put(kid, new byte[32]);
+            assertReason(KeyWrappingException.Reason.INVALID_REQUEST, service.wrapAll(keys));
+            assertEquals(0, Instrumentation.histogram(Stage.WRAP).getCount());
+        } finally {
+            service.close();
+        }
+    }
+
+    @Test
+    public void cancelsTheRestOfABatchWhenAChunkIsRejected() throws Exception {
+        ManualExecutor executor = new ManualExecutor(2);
+        KeyWrappingService service = new KeyWrappingService(wrappingKey, executor);
+        Map<String, byte[]> keys = new LinkedHashMap<String, byte[]>();
+        for (int i = 0; i < 256; i++) {
+            byte[] key = new byte[32];
+            Arrays.fill(key, (byte) 7);
+            keys.put("kid-" + i, key);
+        }
+
+        CompletableFuture<List<KeyWrappingService.WrappedKey>> batch = service.wrapAll(keys);
+        assertReason(KeyWrappingException.Reason.REJECTED, batch);
+        //Only the chunks before the rejected one were submitted, and none of them wraps anything now
+        assertEquals(2, executor.queued.size());
+        executor.runAll();
+        assertEquals(0, Instrumentation.histogram(Stage.WRAP).getCount());
+        //The caller's keys were copied, not cleared
+        for (byte[] key : keys.values()) assertEquals(7, key[0]);
+    }
+
+    @Test
+    public void cancellingABatchCancelsItsChunks() throws Exception {
+        ManualExecutor executor = new ManualExecutor(Integer.MAX_VALUE);
+        KeyWrappingService service = new KeyWrappingService(wrappingKey, executor);
+        List<String> kids = new ArrayList<String>();
+        for (int i = 0; i < 200; i++) kids.add("kid-" + i);
+
+        CompletableFuture<List<KeyWrappingService.WrappedKey>> batch = service.generateAndWrapAll(kids);
+        assertEquals(4, executor.queued.size());
+        //The first chunk finishes, then the caller gives up on the batch
+        executor.queued.remove(0).run();
+        assertEquals(64, Instrumentation.histogram(Stage.WRAP).getCount());
+        assertTrue(batch.cancel(false));
+        executor.runAll();
+        assertEquals(64, Instrumentation.histogram(Stage.WRAP).getCount());
+    }
+
+    @Test
+    public void badSharesAreInvalidRequests() throws Exception {
+        KeyWrappingService service = new KeyWrappingService(wrappingKey, 1, 16);
+        try {
+            byte[] key = new byte[32];
+            Arrays.fill(key, (byte) 1);
+            String[] shares = service.split(key, 3, 2).get();
+            assertArrayEquals(key, service.recover(new String[]{shares[2], shares[0]}, 3, 2).get());
+
+            assertReason(KeyWrappingException.Reason.INVALID_REQUEST, service.recover(new String[]{shares[1], shares[1]}, 3, 2));
+            assertReason(KeyWrappingException.Reason.INVALID_REQUEST, service.recover(new String[]{shares[1], "zz"}, 3, 2));
+            assertReason(KeyWrappingException.Reason.INVALID_REQUEST, service.recover(new String[]{shares[1], null}, 3, 2));
+            assertReason(KeyWrappingException.Reason.INVALID_REQUEST, service.recover(new String[]{shares[1], shares[0].substring(0, 10)}, 3, 2));
+            assertReason(KeyWrappingException.Reason.INVALID_REQUEST, service.split(key, 2, 3));
+        } finally {
+            service.close();
+        }
+    }
+
+    @Test
+    public void rejectsRequestsOnceClosed() throws Exception {
+        KeyWrappingService service = new KeyWrappingService(wrappingKey, 1, 16);
+        service.close();
+        assertReason(KeyWrappingException.Reason.SHUT_DOWN, service.generateAndWrap(null));
+    }
+
+    static void assertReason(KeyWrappingException.Reason reason, CompletableFuture<?> future) throws InterruptedException {
+        try {
+            future.get();
+            fail("Expected " + reason);
+        } catch (ExecutionException e) {
+            assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof KeyWrappingException);
+            assertEquals(reason, ((KeyWrappingException) e.getCause()).getReason());
+        }
+    }
+
+    //Queues what it is given, up to a limit, and runs it only when asked
+    static final class ManualExecutor implements Executor {
+
+        final List<Runnable> queued = new ArrayList<Runnable>();
+        private final int capacity;
+
+        ManualExecutor(int capacity) {
+            this.capacity = capacity;
+        }
+
+        @Override
+        public synchronized void execute(Runnable command) {
+            assertNotNull(command);
+            if (queued.size() == capacity) throw new RejectedExecutionException("full");
+            queued.add(command);
+        }
+
+        void runAll() {
+            while (!queued.isEmpty()) queued.remove(0).run();
+        }
+    }
+}
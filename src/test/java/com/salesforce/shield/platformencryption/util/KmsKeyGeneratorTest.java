@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.util;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.kms.AbstractAWSKMS;
+import com.amazonaws.services.kms.model.GenerateDataKeyRequest;
+import com.amazonaws.services.kms.model.GenerateDataKeyResult;
+import org.jose4j.json.JsonUtil;
+import org.jose4j.jwe.JsonWebEncryption;
+import org.jose4j.jwx.JsonWebStructure;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class KmsKeyGeneratorTest {
+
+    private static KeyPair keyPair;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void generateKeyPair() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        keyPair = generator.generateKeyPair();
+    }
+
+    @Test
+    public void retriesThrottledRequestsAndWritesInKidOrder() throws Exception {
+        FakeKms kms = new FakeKms(3);
+        KmsKeyGenerator generator = new KmsKeyGenerator(kms, "alias/test", new JweWrapper(keyPair.getPublic()), 4,
+                new TokenBucket(100000, 100), 5);
+        List<String> kids = new ArrayList<String>();
+        for (int i = 0; i < 40; i++) kids.add("k" + i);
+
+        StringWriter out = new StringWriter();
+        KeyStoreFile keyStore = KeyStoreFile.open(new File(folder.getRoot(), "keys.ks"), true);
+        try {
+            assertEquals(40, generator.generate(kids, keyStore, out));
+            assertEquals(80, keyStore.size());
+            assertTrue(keyStore.getString("k7.backup").startsWith("KeyId:arn:test\n"));
+        } finally {
+            keyStore.close();
+        }
+        //Every third request was throttled once
+        assertEquals(kms.throttled.get(), generator.getRetries());
+        assertTrue(generator.getRetries() > 0);
+
+        String[] lines = out.toString().split("\n");
+        assertEquals(40, lines.length);
+        for (int i = 0; i < lines.length; i++) {
+            Map<String, Object> record = JsonUtil.parseJson(lines[i]);
+            assertEquals("k" + i, record.get("kid"));
+            assertEquals("arn:test", record.get("keyId"));
+            JsonWebEncryption jwe = (JsonWebEncryption) JsonWebStructure.fromCompactSerialization((String) record.get("jwe"));
+            jwe.setKey(keyPair.getPrivate());
+            assertEquals("k" + i, jwe.getKeyIdHeaderValue());
+            assertEquals(32, jwe.getPlaintextBytes().length);
+        }
+    }
+
+    @Test
+    public void givesUpOnErrorsThatAreNotThrottling() throws Exception {
+        AmazonServiceException denied = new AmazonServiceException("not allowed");
+        denied.setErrorCode("AccessDeniedException");
+        denied.setStatusCode(400);
+        expectFailure(new FailingKms(denied), "Unable to generate a data key for a: not allowed");
+        expectFailure(new FailingKms(new SdkClientException("connection refused")), "Unable to generate a data key for a: connection refused");
+    }
+
+    @Test
+    public void backsOffWithinTheCap() {
+        for (int attempt = 0; attempt < 40; attempt++) {
+            long backoff = KmsKeyGenerator.backoffMillis(attempt);
+            assertTrue(backoff >= 0 && backoff <= 5000);
+        }
+        AmazonServiceException throttled = new AmazonServiceException("slow down");
+        throttled.setErrorCode("ThrottlingException");
+        throttled.setStatusCode(400);
+        assertTrue(KmsKeyGenerator.isRetryable(throttled));
+    }
+
+    @Test
+    public void pacesRequestsToTheRate() throws Exception {
+        TokenBucket bucket = new TokenBucket(1000, 5);
+        for (int i = 0; i < 5; i++) assertEquals(0, bucket.tryAcquire());
+        assertTrue(bucket.tryAcquire() > 0);
+        long started = System.nanoTime();
+        for (int i = 0; i < 50; i++) bucket.acquire();
+        //50 permits at 1000 a second can't take much less than 50 ms
+        assertTrue(System.nanoTime() - started >= 40000000L);
+    }
+
+    private void expectFailure(AbstractAWSKMS kms, String message) throws Exception {
+        KmsKeyGenerator generator = new KmsKeyGenerator(kms, "alias/test", new JweWrapper(keyPair.getPublic()), 1,
+                new TokenBucket(1000, 10), 3);
+        try {
+            generator.generate(Arrays.asList("a"), null, new StringWriter());
+            fail(message);
+        } catch (CryptoException e) {
+            assertEquals(message, e.getMessage());
+        }
+        assertEquals(0, generator.getRetries());
+    }
+
+    //Throttles every n-th request the first time it is made
+    private static final class FakeKms extends AbstractAWSKMS {
+
+        private final int every;
+        private final AtomicInteger requests = new AtomicInteger();
+        final AtomicInteger throttled = new AtomicInteger();
+
+        FakeKms(int every) {
+            this.every = every;
+        }
+
+        @Override
+        public GenerateDataKeyResult generateDataKey(GenerateDataKeyRequest request) {
+            if (requests.incrementAndGet() % every == 0) {
+                throttled.incrementAndGet();
+                AmazonServiceException e = new AmazonServiceException("Rate exceeded");
+                e.setErrorCode("ThrottlingException");
+                e.setStatusCode(400);
+                throw e;
+            }
+            byte[] key = new byte[32];
+            new SecureRandom().nextBytes(key);
+            return new GenerateDataKeyResult()
+                    .withPlaintext(ByteBuffer.wrap(key))
+                    .withCiphertextBlob(ByteBuffer.wrap(new byte[] {1, 2, 3}))
+                    .withKeyId("arn:test");
+        }
+    }
+
+    private static final class FailingKms extends AbstractAWSKMS {
+
+        private final RuntimeException failure;
+
+        FailingKms(RuntimeException failure) {
+            this.failure = failure;
+        }
+
+        @Override
+        public GenerateDataKeyResult generateDataKey(GenerateDataKeyRequest request) {
+            throw failure;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.util;
+
+import org.junit.Test;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class RandomSourceTest {
+
+    @Test
+    public void fillsOnlyTheRequestedRange() {
+        byte[] bytes = new byte[64];
+        Arrays.fill(bytes, (byte) 7);
+        RandomSource.nextBytes(bytes, 16, 32);
+        for (int i = 0; i < 16; i++) assertEquals(7, bytes[i]);
+        for (int i = 48; i < 64; i++) assertEquals(7, bytes[i]);
+        assertFalse(Arrays.equals(new byte[32], Arrays.copyOfRange(bytes, 16, 48)));
+    }
+
+    @Test
+    public void outputLooksUniformAcrossRefills() {
+        //Several times the DRBG's buffer, in odd sized requests that straddle its edges
+        byte[] bytes = new byte[1 << 20];
+        for (int offset = 0; offset < bytes.length; offset += 4093) {
+            RandomSource.nextBytes(bytes, offset, Math.min(4093, bytes.length - offset));
+        }
+        long ones = 0;
+        int[] counts = new int[256];
+        for (byte b : bytes) {
+            ones += Integer.bitCount(b & 0xff);
+            counts[b & 0xff]++;
+        }
+        double ratio = ones / (bytes.length * 8.0);
+        assertTrue(String.valueOf(ratio), ratio > 0.499 && ratio < 0.501);
+        for (int count : counts) assertTrue(String.valueOf(count), count > 3500 && count < 4700);
+    }
+
+    @Test
+    public void makesDistinctKeysAndVersion4Kids() {
+        Set<String> keys = new HashSet<String>();
+        Set<String> kids = new HashSet<String>();
+        for (int i = 0; i < 10000; i++) {
+            byte[] key = RandomSource.key();
+            assertEquals(RandomSource.KEY_LENGTH, key.length);
+            keys.add(Arrays.toString(key));
+            String kid = RandomSource.kid();
+            UUID uuid = UUID.fromString(kid);
+            assertEquals(4, uuid.version());
+            assertEquals(2, uuid.variant());
+            assertEquals(kid, uuid.toString());
+            kids.add(kid);
+        }
+        assertEquals(10000, keys.size());
+        assertEquals(10000, kids.size());
+    }
+
+    @Test
+    public void everyThreadHasItsOwnGenerator() throws Exception {
+        final int threads = 4;
+        final CyclicBarrier barrier = new CyclicBarrier(threads);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Object[]>> results = new ArrayList<Future<Object[]>>();
+            for (int i = 0; i < threads; i++) {
+                results.add(pool.submit(new Callable<Object[]>() {
+                    @Override
+                    public Object[] call() throws Exception {
+                        //All running at once, so each is on its own thread
+                        barrier.await();
+                        SecureRandom current = RandomSource.current();
+                        assertSame(current, RandomSource.current());
+                        byte[] bytes = new byte[1000];
+                        current.nextBytes(bytes);
+                        return new Object[] {current, Arrays.toString(bytes)};
+                    }
+                }));
+            }
+            Set<SecureRandom> generators = new HashSet<SecureRandom>();
+            Set<String> outputs = new HashSet<String>();
+            for (Future<Object[]> result : results) {
+                Object[] drawn = result.get();
+                generators.add((SecureRandom) drawn[0]);
+                outputs.add((String) drawn[1]);
+            }
+            assertEquals(threads, generators.size());
+            assertEquals(threads, outputs.size());
+            assertFalse(generators.contains(RandomSource.current()));
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
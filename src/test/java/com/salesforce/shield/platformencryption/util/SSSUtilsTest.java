@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2018, salesforce.com, inc.
+ * All rights reserved.
+ * Licensed under the BSD 3-Clause license.
+ * For full license text, see LICENSE.txt file in the repo root  or https://opensource.org/licenses/BSD-3-Clause
+ */
+
+package com.salesforce.shield.platformencryption.util;
+
+import org.apache.commons.codec.binary.Hex;
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SSSUtilsTest {
+
+    private static final ForkJoinPool POOL = new ForkJoinPool(2);
+
+    @AfterClass
+    public static void shutDown() {
+        POOL.shutdownNow();
+    }
+
+    @Test
+    public void anyKSharesRecoverTheSecret() throws Exception {
+        byte[] secret = random(32, 1);
+        SSSUtils sss = new SSSUtils(5, 3);
+        String[] parts = sss.split(secret);
+        assertEquals(5, parts.length);
+        for (int a = 0; a < 5; a++) {
+            for (int b = a + 1; b < 5; b++) {
+                for (int c = b + 1; c < 5; c++) {
+                    assertArrayEquals(secret, sss.recover(new String[] {parts[c], parts[a], parts[b]}));
+                }
+            }
+        }
+        //More than k is fine too
+        assertArrayEquals(secret, sss.recover(parts));
+    }
+
+    @Test
+    public void splitsIntoAsManyAs255Shares() throws Exception {
+        byte[] secret = random(100, 2);
+        SSSUtils sss = new SSSUtils(SSSUtils.MAX_PARTS, 10);
+        byte[][] shares = sss.splitShares(secret);
+        assertEquals(255, shares[254][1] & 0xff);
+        byte[][] last = Arrays.copyOfRange(shares, 245, 255);
+        assertArrayEquals(secret, sss.recoverShares(last));
+    }
+
+    @Test
+    public void refusesSharesThatCanNotRecoverTheSecret() throws Exception {
+        SSSUtils sss = new SSSUtils(5, 3);
+        byte[][] shares = sss.splitShares(random(32, 3));
+        expectFailure(sss, new byte[][] {shares[0], shares[1]}, "At least 3 shares are required, only 2 given");
+        expectFailure(sss, new byte[][] {shares[0], shares[1], shares[1]}, "Share 3 is a duplicate of share 2");
+        byte[][] other = sss.splitShares(random(16, 4));
+        expectFailure(sss, new byte[][] {shares[0], shares[1], other[2]}, "Share 3 does not belong with the others");
+        byte[] unversioned = shares[2].clone();
+        unversioned[0] = 9;
+        expectFailure(sss, new byte[][] {shares[0], shares[1], unversioned}, "Share 3 is not a version 1 share");
+    }
+
+    @Test
+    public void recoversSharesInTheOriginalForm() throws Exception {
+        //The original form split the UTF-8 bytes of the hex key, and wrote each share as index - 1 and hex
+        byte[] secret = Hex.encodeHexString(random(32, 5)).getBytes(StandardCharsets.UTF_8);
+        byte[][] shares = new SSSUtils(3, 2).splitShares(secret);
+        String[] parts = new String[2];
+        for (int i = 0; i < 2; i++) {
+            byte[] share = shares[i + 1];
+            parts[i] = (i + 1) + Hex.encodeHexString(Arrays.copyOfRange(share, SSSUtils.HEADER_LENGTH, share.length));
+            assertTrue(SSSUtils.isLegacy(parts[i]));
+        }
+        assertArrayEquals(secret, new SSSUtils(3, 2).recover(parts));
+    }
+
+    @Test
+    public void splitsAndRecoversInBulk() throws Exception {
+        SSSUtils sss = new SSSUtils(4, 2);
+        List<byte[]> secrets = new ArrayList<byte[]>();
+        for (int i = 0; i < 1000; i++) secrets.add(random(32, i));
+        List<byte[][]> shareSets = sss.splitAll(secrets, POOL);
+        assertEquals(1000, shareSets.size());
+
+        List<byte[][]> subsets = new ArrayList<byte[][]>();
+        for (int i = 0; i < shareSets.size(); i++) {
+            byte[][] shares = shareSets.get(i);
+            subsets.add(new byte[][] {shares[i % 4], shares[(i + 1) % 4]});
+        }
+        List<byte[]> recovered = sss.recoverAll(subsets, POOL);
+        for (int i = 0; i < secrets.size(); i++) assertArrayEquals(secrets.get(i), recovered.get(i));
+
+        subsets.set(700, new byte[][] {shareSets.get(700)[0]});
+        try {
+            sss.recoverAll(subsets, POOL);
+            fail("Secret 700 has too few shares");
+        } catch (CryptoException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Secret 700: "));
+        }
+    }
+
+    private static void expectFailure(SSSUtils sss, byte[][] shares, String message) {
+        try {
+            sss.recoverShares(shares);
+            fail(message);
+        } catch (CryptoException e) {
+            assertEquals(message, e.getMessage());
+        }
+    }
+
+    @Test
+    public void redrawsAZeroTopCoefficient() throws Exception {
+        final int[] redraws = new int[1];
+        //Every coefficient comes out zero, then each redraw gives one more zero before a 5
+        SecureRandom zeros = new SecureRandom() {
+            @Override
+            public void nextBytes(byte[] bytes) {
+                if (bytes.length == 1) bytes[0] = (byte) (redraws[0]++ % 2 == 0 ? 0 : 5);
+                else Arrays.fill(bytes, (byte) 0);
+            }
+        };
+        byte[] secret = random(2, 6);
+        SSSUtils sss = new SSSUtils(4, 3);
+        byte[][] shares = sss.splitShares(secret, zeros);
+        assertEquals(4, redraws[0]);
+
+        //y = secret + 5x^2, so no share gives a secret byte away
+        for (byte[] share : shares) {
+            for (int b = 0; b < secret.length; b++) assertTrue(share[SSSUtils.HEADER_LENGTH + b] != secret[b]);
+        }
+        assertArrayEquals(secret, sss.recoverShares(Arrays.copyOfRange(shares, 1, 4)));
+
+        //Two shares passed off as a k = 2 split don't recover it
+        byte[][] two = {shares[0].clone(), shares[1].clone()};
+        two[0][2] = 2;
+        two[1][2] = 2;
+        assertFalse(Arrays.equals(secret, sss.recoverShares(two)));
+    }
+
+    private static byte[] random(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}